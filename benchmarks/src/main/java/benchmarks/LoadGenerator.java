@@ -0,0 +1,316 @@
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import coap.CodeRegistry;
+import coap.Communicator;
+import coap.GETRequest;
+import coap.LocalResource;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Request;
+import coap.Response;
+import coap.ResponseCallback;
+import coap.Message.messageType;
+import endpoint.LocalEndpoint;
+import layers.LoopbackLayer;
+import layers.LoopbackNetwork;
+import layers.PeerStatistics;
+import metrics.Histogram;
+
+/*
+ * This class describes a load generator that drives exchanges between
+ * many client communicators and a server communicator connected by a
+ * LoopbackNetwork, and reports the throughput and latency percentiles.
+ *
+ * Each client keeps a window of requests outstanding and sends the next
+ * request as soon as one is answered, so that the load is only limited by
+ * the stacks. The network may lose, duplicate, reorder and delay datagrams
+ * in order to exercise retransmissions and duplicate detection under load.
+ *
+ * Usage: java -cp target/benchmarks.jar benchmarks.LoadGenerator [options]
+ *
+ *   -clients N        number of client communicators (16)
+ *   -window N         outstanding requests per client (32)
+ *   -workers N        server worker threads (number of processors)
+ *   -duration S       duration of the measurement in seconds (10)
+ *   -warmup S         duration of the warmup in seconds (2)
+ *   -non              send Non-confirmable requests
+ *   -loss P           probability that a datagram is lost (0)
+ *   -duplication P    probability that a datagram is duplicated (0)
+ *   -reordering P     probability that a datagram is held back (0)
+ *   -reorderdelay MS  maximum time a datagram is held back (10)
+ *   -latency MS       latency of the network (0)
+ *   -idlifetime MS    time after which message IDs are used again (1000)
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class LoadGenerator {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// time after which Non-confirmable requests are given up
+	private static final long NON_TIMEOUT = 5000; // [milliseconds]
+
+	// capacity of the inboxes and worker queues
+	private static final int QUEUE_CAPACITY = 16384;
+
+	private static final Option PATH = new Option("load", OptionNumberRegistry.URI_PATH);
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Resource answering GET requests with a constant payload
+	 */
+	static class LoadResource extends LocalResource {
+
+		LoadResource() {
+			super("load");
+		}
+
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT, "OK");
+		}
+	}
+
+	/*
+	 * Client keeping a window of requests outstanding
+	 */
+	class Client {
+
+		Client(Communicator communicator) {
+			this.communicator = communicator;
+		}
+
+		void start() {
+			for (int i = 0; i < window; ++i) {
+				issue();
+			}
+		}
+
+		void issue() {
+			if (!running) {
+				return;
+			}
+
+			Request request = new GETRequest();
+			if (nonConfirmable) {
+				request.setType(messageType.Non_Confirmable);
+			}
+			request.setPeerAddress(serverLayer.getAddress());
+			request.setOption(PATH);
+			request.setCommunicator(communicator);
+
+			// Non-confirmables are not retransmitted and would never
+			// be answered if lost, so give up after a while
+			Exchange exchange = new Exchange(this);
+			if (nonConfirmable) {
+				request.executeAsync(NON_TIMEOUT).addCallback(exchange);
+			} else {
+				request.executeAsync().addCallback(exchange);
+			}
+		}
+
+		final Communicator communicator;
+	}
+
+	/*
+	 * A single exchange, measuring its latency
+	 */
+	class Exchange implements ResponseCallback {
+
+		Exchange(Client client) {
+			this.client = client;
+			this.start = System.nanoTime();
+		}
+
+		@Override
+		public void completed(Response response) {
+			if (recording) {
+				latencies.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+				numCompleted.incrementAndGet();
+			}
+			client.issue();
+		}
+
+		@Override
+		public void failed(Throwable cause) {
+			if (recording) {
+				numFailed.incrementAndGet();
+			}
+			client.issue();
+		}
+
+		private final Client client;
+		private final long start;
+	}
+
+	// Main ////////////////////////////////////////////////////////////////////
+
+	public static void main(String[] args) throws Exception {
+
+		LoadGenerator generator = new LoadGenerator();
+
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.equals("-non")) {
+				generator.nonConfirmable = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				usage("Missing value of " + arg);
+			}
+			String value = args[++i];
+
+			if (arg.equals("-clients")) {
+				generator.numClients = Integer.parseInt(value);
+			} else if (arg.equals("-window")) {
+				generator.window = Integer.parseInt(value);
+			} else if (arg.equals("-workers")) {
+				generator.numWorkers = Integer.parseInt(value);
+			} else if (arg.equals("-duration")) {
+				generator.duration = Long.parseLong(value);
+			} else if (arg.equals("-warmup")) {
+				generator.warmup = Long.parseLong(value);
+			} else if (arg.equals("-loss")) {
+				generator.network.setLoss(Double.parseDouble(value));
+			} else if (arg.equals("-duplication")) {
+				generator.network.setDuplication(Double.parseDouble(value));
+			} else if (arg.equals("-reordering")) {
+				generator.reordering = Double.parseDouble(value);
+			} else if (arg.equals("-reorderdelay")) {
+				generator.reorderDelay = Long.parseLong(value);
+			} else if (arg.equals("-latency")) {
+				generator.network.setLatency(Long.parseLong(value));
+			} else if (arg.equals("-idlifetime")) {
+				generator.idLifetime = Long.parseLong(value);
+			} else {
+				usage("Unknown option " + arg);
+			}
+		}
+
+		generator.run();
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Runs the warmup and the measurement and prints the results
+	 */
+	void run() throws InterruptedException {
+
+		network.setReordering(reordering, reorderDelay);
+
+		// set up server
+		serverLayer = new LoopbackLayer(network, numWorkers, QUEUE_CAPACITY);
+		Communicator server = new Communicator(serverLayer);
+		server.getMessageLayer().setMessageIdLifetime(idLifetime);
+		LocalEndpoint endpoint = new LocalEndpoint(server);
+		endpoint.addResource(new LoadResource());
+
+		// set up clients
+		List<Communicator> communicators = new ArrayList<Communicator>();
+		List<Client> clients = new ArrayList<Client>();
+		for (int i = 0; i < numClients; ++i) {
+			Communicator communicator = new Communicator(
+				new LoopbackLayer(network, 0, QUEUE_CAPACITY));
+			communicator.getMessageLayer().setNstart(window);
+			communicator.getMessageLayer().setMessageIdLifetime(idLifetime);
+			communicators.add(communicator);
+			clients.add(new Client(communicator));
+		}
+
+		System.out.printf("%d clients with %d outstanding %s requests each, %d server workers\n",
+			numClients, window, nonConfirmable ? "NON" : "CON", numWorkers);
+		System.out.printf("Network: loss %.3f, duplication %.3f, reordering %.3f, latency %d ms\n",
+			network.getLoss(), network.getDuplication(), network.getReordering(),
+			network.getLatency());
+
+		running = true;
+		for (Client client : clients) {
+			client.start();
+		}
+
+		// warm up
+		Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+
+		// measure, reporting the throughput every second
+		recording = true;
+		long start = System.nanoTime();
+		long last = 0;
+		for (long second = 1; second <= duration; ++second) {
+			Thread.sleep(1000);
+			long completed = numCompleted.get();
+			System.out.printf("%3d s: %10d exchanges/s, %d failed, queued at server: %d\n",
+				second, completed - last, numFailed.get(), serverLayer.getQueueDepth());
+			last = completed;
+		}
+		recording = false;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		running = false;
+
+		// report
+		long retransmissions = 0;
+		for (Communicator communicator : communicators) {
+			for (PeerStatistics statistics : communicator.getMessageLayer().getPeerStatistics()) {
+				retransmissions += statistics.getNumRetransmissions();
+			}
+		}
+
+		System.out.println();
+		System.out.printf("Exchanges:       %d completed, %d failed\n",
+			numCompleted.get(), numFailed.get());
+		System.out.printf("Throughput:      %.0f exchanges/s\n", numCompleted.get() / elapsed);
+		System.out.printf("Latency [us]:    p50 %d, p90 %d, p99 %d, p99.9 %d, max %d\n",
+			latencies.getPercentile(0.5), latencies.getPercentile(0.9),
+			latencies.getPercentile(0.99), latencies.getPercentile(0.999),
+			latencies.getPercentile(1.0));
+		System.out.printf("Network:         %d sent, %d lost, %d duplicated, %d reordered\n",
+			network.getNumSent(), network.getNumLost(), network.getNumDuplicated(),
+			network.getNumReordered());
+		System.out.printf("Retransmissions: %d\n", retransmissions);
+		System.out.printf("Server dropped:  %d datagrams, %d duplicates detected\n",
+			serverLayer.getNumDropped(),
+			server.getMessageLayer().getDuplicateCache().getNumHits());
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	private static void usage(String error) {
+		System.err.println(error);
+		System.err.println("Options: -clients N -window N -workers N -duration S -warmup S -non");
+		System.err.println("         -loss P -duplication P -reordering P -reorderdelay MS");
+		System.err.println("         -latency MS -idlifetime MS");
+		System.exit(1);
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final LoopbackNetwork network = new LoopbackNetwork();
+	private LoopbackLayer serverLayer;
+
+	// settings
+	private int numClients = 16;
+	private int window = 32;
+	private int numWorkers = Runtime.getRuntime().availableProcessors();
+	private long duration = 10;
+	private long warmup = 2;
+	private boolean nonConfirmable;
+	private double reordering;
+	private long reorderDelay = 10;
+	private long idLifetime = 1000;
+
+	// state of the run
+	private volatile boolean running;
+	private volatile boolean recording;
+
+	private final Histogram latencies = new Histogram();
+	private final AtomicLong numCompleted = new AtomicLong();
+	private final AtomicLong numFailed = new AtomicLong();
+}
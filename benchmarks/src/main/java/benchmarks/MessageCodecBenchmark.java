@@ -0,0 +1,117 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import coap.CodeRegistry;
+import coap.Message;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Message.messageType;
+
+/*
+ * Benchmarks encoding and decoding of messages with the option
+ * mixes typically exchanged:
+ *
+ * - EMPTY: empty Acknowledgement
+ * - REQUEST: Confirmable GET with token, host, path and query
+ * - BLOCK: piggy-backed response carrying a block of 512 bytes
+ * - NOTIFICATION: Non-confirmable notification with a short payload
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+	@Param({"EMPTY", "REQUEST", "BLOCK", "NOTIFICATION"})
+	public String mix;
+
+	@Setup
+	public void setUp() {
+		message = newMessage(mix);
+		datagram = message.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return message.toByteArray();
+	}
+
+	@Benchmark
+	public Message decode() {
+		return Message.fromByteArray(datagram);
+	}
+
+	// Class functions /////////////////////////////////////////////////////////
+
+	static Message newMessage(String mix) {
+
+		Message msg;
+		if (mix.equals("EMPTY")) {
+
+			msg = new Message(messageType.Acknowledgement, CodeRegistry.EMPTY_MESSAGE);
+
+		} else if (mix.equals("REQUEST")) {
+
+			msg = new Message(messageType.Confirmable, CodeRegistry.METHOD_GET);
+			msg.addOption(new Option(TOKEN, OptionNumberRegistry.TOKEN));
+			msg.addOption(new Option("sensors.example.org", OptionNumberRegistry.URI_HOST));
+			msg.addOption(new Option("sensors", OptionNumberRegistry.URI_PATH));
+			msg.addOption(new Option("temperature", OptionNumberRegistry.URI_PATH));
+			msg.addOption(new Option("outdoor", OptionNumberRegistry.URI_PATH));
+			msg.addOption(new Option("unit=celsius", OptionNumberRegistry.URI_QUERY));
+			msg.addOption(new Option("precision=2", OptionNumberRegistry.URI_QUERY));
+
+		} else if (mix.equals("BLOCK")) {
+
+			msg = new Message(messageType.Acknowledgement, CodeRegistry.RESP_CONTENT);
+			msg.addOption(new Option(TOKEN, OptionNumberRegistry.TOKEN));
+			msg.addOption(new Option(0, OptionNumberRegistry.CONTENT_TYPE));
+			msg.addOption(new Option(new byte[] {0x12, 0x34, 0x56, 0x78}, OptionNumberRegistry.ETAG));
+			msg.addOption(new Option(0x3E, OptionNumberRegistry.BLOCK2));
+			msg.setPayload(new byte[512]);
+
+		} else if (mix.equals("NOTIFICATION")) {
+
+			msg = new Message(messageType.Non_Confirmable, CodeRegistry.RESP_CONTENT);
+			msg.addOption(new Option(TOKEN, OptionNumberRegistry.TOKEN));
+			msg.addOption(new Option(0, OptionNumberRegistry.CONTENT_TYPE));
+			msg.addOption(new Option(60, OptionNumberRegistry.MAX_AGE));
+			msg.addOption(new Option(4711, OptionNumberRegistry.OBSERVE));
+			msg.setPayload("22.5 C, humidity 48 %, wind 3 m/s");
+
+		} else {
+			throw new IllegalArgumentException("Unknown option mix: " + mix);
+		}
+
+		msg.setID(0x1234);
+		return msg;
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	private static final byte[] TOKEN = {0x0A, 0x1B, 0x2C, 0x3D};
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private Message message;
+	private byte[] datagram;
+}
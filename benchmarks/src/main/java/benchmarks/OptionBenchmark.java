@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import coap.Option;
+import coap.OptionNumberRegistry;
+
+/*
+ * Benchmarks the conversions of option values between integers or
+ * strings and their raw representation, for values of different lengths
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OptionBenchmark {
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	@State(Scope.Thread)
+	public static class IntValue {
+
+		// values encoded in 0 to 3 bytes
+		@Param({"0", "200", "60000", "4000000"})
+		public int value;
+
+		@Setup
+		public void setUp() {
+			option = new Option(value, OptionNumberRegistry.MAX_AGE);
+		}
+
+		Option option;
+	}
+
+	@State(Scope.Thread)
+	public static class StringValue {
+
+		@Param({"a", "temperature", "sensors.example.org/a/rather/long/path"})
+		public String value;
+
+		@Setup
+		public void setUp() {
+			option = new Option(value, OptionNumberRegistry.URI_PATH);
+		}
+
+		Option option;
+	}
+
+	// Benchmarks //////////////////////////////////////////////////////////////
+
+	@Benchmark
+	public Option intToRaw(IntValue state) {
+		return new Option(state.value, OptionNumberRegistry.MAX_AGE);
+	}
+
+	@Benchmark
+	public int rawToInt(IntValue state) {
+		return state.option.getIntValue();
+	}
+
+	@Benchmark
+	public Option stringToRaw(StringValue state) {
+		return new Option(state.value, OptionNumberRegistry.URI_PATH);
+	}
+
+	@Benchmark
+	public String rawToString(StringValue state) {
+		return state.option.getStringValue();
+	}
+}
@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import coap.Message;
+import layers.TransportLayer;
+
+/*
+ * This class describes an in-memory transport that passes encoded messages
+ * to a connected transport on the sending thread, so that a complete
+ * exchange between two communicators runs within a single call.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+class PipeTransport extends TransportLayer {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new pipe transport
+	 *
+	 * @param address The address messages sent by this transport come from
+	 */
+	PipeTransport(InetSocketAddress address) {
+		super(0, 0, true);
+		this.address = address;
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Connects two transports in both directions
+	 */
+	static void connect(PipeTransport first, PipeTransport second) {
+		first.peer = second;
+		second.peer = first;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	@Override
+	public int getPort() {
+		return address.getPort();
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	// I/O implementation //////////////////////////////////////////////////////
+
+	@Override
+	protected void doSendMessage(Message msg) throws IOException {
+
+		// messages to unconnected transports are lost
+		if (peer != null) {
+			byte[] datagram = msg.toByteArray();
+			peer.messageReceived(Message.fromByteArray(datagram), address,
+				System.currentTimeMillis());
+		}
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final InetSocketAddress address;
+
+	private PipeTransport peer;
+}
@@ -0,0 +1,130 @@
+package benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import coap.CodeRegistry;
+import coap.Communicator;
+import coap.GETRequest;
+import coap.LocalResource;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Request;
+import endpoint.LocalEndpoint;
+
+/*
+ * Benchmarks the dispatching of requests to resources by LocalEndpoint,
+ * including the lookup of the resource and the local handling of the
+ * response, on resource trees of different shapes:
+ *
+ * - DEEP: a chain of resources, of which the innermost one is requested
+ * - WIDE: resources that are all children of the root
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResourceLookupBenchmark {
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Resource answering GET requests with a constant payload
+	 */
+	static class ConstantResource extends LocalResource {
+
+		ConstantResource(String identifier) {
+			super(identifier);
+		}
+
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT, "value");
+		}
+	}
+
+	// Benchmarks //////////////////////////////////////////////////////////////
+
+	@Param({"DEEP", "WIDE"})
+	public String shape;
+
+	// depth or width of the tree
+	@Param({"8", "1000"})
+	public int size;
+
+	@Setup
+	public void setUp() {
+
+		// requests are answered locally, so the transport is not connected
+		endpoint = new LocalEndpoint(new Communicator(
+			new PipeTransport(new InetSocketAddress("127.0.0.1", 5683))));
+
+		path = new ArrayList<Option>();
+
+		if (shape.equals("DEEP")) {
+
+			LocalResource parent = null;
+			for (int i = 0; i < size; ++i) {
+				LocalResource resource = new ConstantResource("level" + i);
+				if (parent != null) {
+					parent.addSubResource(resource);
+				} else {
+					endpoint.addResource(resource);
+				}
+				path.add(new Option("level" + i, OptionNumberRegistry.URI_PATH));
+				parent = resource;
+			}
+
+		} else if (shape.equals("WIDE")) {
+
+			for (int i = 0; i < size; ++i) {
+				endpoint.addResource(new ConstantResource("item" + i));
+			}
+			path.add(new Option("item" + size / 2, OptionNumberRegistry.URI_PATH));
+
+		} else {
+			throw new IllegalArgumentException("Unknown shape: " + shape);
+		}
+	}
+
+	@Benchmark
+	public Request execute() {
+
+		Request request = new GETRequest();
+		request.setPeerAddress(CLIENT);
+		request.setOptions(OptionNumberRegistry.URI_PATH, path);
+
+		endpoint.execute(request);
+		return request;
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	private static final InetSocketAddress CLIENT
+		= new InetSocketAddress("127.0.0.1", 61616);
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private LocalEndpoint endpoint;
+	private List<Option> path;
+}
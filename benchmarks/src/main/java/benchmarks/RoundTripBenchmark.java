@@ -0,0 +1,127 @@
+package benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import coap.CodeRegistry;
+import coap.Communicator;
+import coap.GETRequest;
+import coap.LocalResource;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Request;
+import coap.Response;
+import coap.ResponseFuture;
+import coap.Message.messageType;
+import endpoint.LocalEndpoint;
+
+/*
+ * Benchmarks a complete exchange between a client and a server
+ * communicator, each running its full layer stack, which are connected
+ * by an in-memory transport. An operation encodes and decodes both the
+ * request and the response and passes them through all layers of both
+ * stacks, including the matching of the response to the request.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// time after which message IDs are used again, which allows
+	// more than 65536 exchanges per lifetime over the in-memory transport
+	private static final long MESSAGE_ID_LIFETIME = 100; // [milliseconds]
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Resource answering GET requests with a constant payload
+	 */
+	static class HelloResource extends LocalResource {
+
+		HelloResource() {
+			super("hello");
+		}
+
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT, "Hello World!");
+		}
+	}
+
+	// Benchmarks //////////////////////////////////////////////////////////////
+
+	@Param({"CON", "NON"})
+	public String type;
+
+	@Setup
+	public void setUp() {
+
+		PipeTransport clientTransport = new PipeTransport(CLIENT);
+		PipeTransport serverTransport = new PipeTransport(SERVER);
+		PipeTransport.connect(clientTransport, serverTransport);
+
+		client = new Communicator(clientTransport);
+		client.getMessageLayer().setMessageIdLifetime(MESSAGE_ID_LIFETIME);
+
+		Communicator server = new Communicator(serverTransport);
+		server.getMessageLayer().setMessageIdLifetime(MESSAGE_ID_LIFETIME);
+
+		LocalEndpoint endpoint = new LocalEndpoint(server);
+		endpoint.addResource(new HelloResource());
+
+		path = new Option("hello", OptionNumberRegistry.URI_PATH);
+	}
+
+	@Benchmark
+	public Response exchange() throws Exception {
+
+		Request request = new GETRequest();
+		if (type.equals("NON")) {
+			request.setType(messageType.Non_Confirmable);
+		}
+		request.setPeerAddress(SERVER);
+		request.setOption(path);
+		request.setCommunicator(client);
+
+		// the response arrives before executeAsync() returns
+		ResponseFuture future = request.executeAsync();
+		if (!future.isDone()) {
+			throw new IllegalStateException("Exchange not completed");
+		}
+		return future.get();
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	private static final InetSocketAddress CLIENT
+		= new InetSocketAddress("127.0.0.1", 61616);
+
+	private static final InetSocketAddress SERVER
+		= new InetSocketAddress("127.0.0.1", 5683);
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private Communicator client;
+	private Option path;
+}
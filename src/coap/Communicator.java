@@ -4,17 +4,38 @@ import java.io.IOException;
 import java.net.SocketException;
 
 import layers.TransferLayer;
+import layers.TransportLayer;
 import layers.UpperLayer;
 import layers.MessageLayer;
+import layers.PeerTable;
+import layers.TimingWheel;
 import layers.TransactionLayer;
 import layers.UDPLayer;
+import metrics.Histogram;
+import metrics.MetricRegistry;
 
+/*
+ * This class describes the functionality of a communicator, which is the
+ * top of a CoAP communication stack: requests executed with it pass the
+ * transfer, transaction and message layers down to the transport, and
+ * received messages are delivered to the endpoints registered with it.
+ *
+ * A communicator is meant to be shared, e.g. Request.defaultCommunicator()
+ * by all RemoteEndpoints. Requests may be executed and endpoints registered
+ * or unregistered from any thread. Received requests and responses are
+ * handled on the thread of the transport that received them, so handlers
+ * should hand work that blocks over to threads of their own.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
 public class Communicator extends UpperLayer {
 
 	// Constants ///////////////////////////////////////////////////////////////
 	
-	public final static int DEFAULT_PORT       = UDPLayer.DEFAULT_PORT;
-	public final static String URI_SCHEME_NAME = UDPLayer.URI_SCHEME_NAME;
+	public final static int DEFAULT_PORT       = TransportLayer.DEFAULT_PORT;
+	public final static String URI_SCHEME_NAME = TransportLayer.URI_SCHEME_NAME;
 	
 	// Constructors ////////////////////////////////////////////////////////////
 	
@@ -22,17 +43,52 @@ public class Communicator extends UpperLayer {
 	 * Constructor for a new Communicator
 	 * 
 	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if the receiver threads should not keep the
+	 *               application alive
+	 * @param numWorkers The number of threads processing incoming messages,
+	 *                   or 0 to process them on the receiver thread
 	 */	
-	public Communicator(int port, boolean daemon) throws SocketException {
+	public Communicator(int port, boolean daemon, int numWorkers) throws SocketException {
+		this(new UDPLayer(port, daemon, numWorkers, TransportLayer.DEFAULT_QUEUE_CAPACITY));
+	}
+	
+	/*
+	 * Constructor for a new Communicator using a given transport, e.g.
+	 * a DatagramChannelLayer instead of the default UDPLayer
+	 * 
+	 * @param transportLayer The lowest layer of the stack, used to exchange
+	 *                       messages with remote endpoints
+	 */
+	public Communicator(TransportLayer transportLayer) {
 		
 		// initialize layers
-		transferLayer = new TransferLayer();
-		transactionLayer = new TransactionLayer();
-		messageLayer = new MessageLayer();
-		udpLayer = new UDPLayer(port, daemon);
+		this.peerTable = new PeerTable();
+		this.transferLayer = new TransferLayer();
+		this.transactionLayer = new TransactionLayer(peerTable);
+		this.messageLayer = new MessageLayer(TimingWheel.defaultWheel(), peerTable);
+
+		this.transportLayer = transportLayer;
 		
 		// connect layers
 		buildStack();
+		
+		// collect metrics of all layers
+		this.metrics = new MetricRegistry();
+		this.rtt = metrics.histogram("communicator.rttMillis");
+		registerMetrics(metrics, "communicator");
+		transferLayer.registerMetrics(metrics, "transfer");
+		transactionLayer.registerMetrics(metrics, "transaction");
+		messageLayer.registerMetrics(metrics, "message");
+		transportLayer.registerMetrics(metrics, "transport");
+	}
+	
+	/*
+	 * Constructor for a new Communicator
+	 * 
+	 * @param port The local UDP port to listen for incoming messages
+	 */	
+	public Communicator(int port, boolean daemon) throws SocketException {
+		this(port, daemon, 0);
 	}
 
 	/*
@@ -54,11 +110,10 @@ public class Communicator extends UpperLayer {
 	 */
 	protected void buildStack() {
 		
-		//this.setLowerLayer(transferLayer);
-		//transferLayer.setLowerLayer(transactionLayer);
-		this.setLowerLayer(transactionLayer);
+		this.setLowerLayer(transferLayer);
+		transferLayer.setLowerLayer(transactionLayer);
 		transactionLayer.setLowerLayer(messageLayer);
-		messageLayer.setLowerLayer(udpLayer);
+		messageLayer.setLowerLayer(transportLayer);
 		
 	}
 	
@@ -77,6 +132,11 @@ public class Communicator extends UpperLayer {
 		if (msg instanceof Response) {
 			Response response = (Response) msg;
 			
+			// measure round-trip time of matched responses
+			if (response.getRequest() != null) {
+				rtt.record(response.getRTT());
+			}
+			
 			// initiate custom response handling
 			response.handle();
 			
@@ -94,7 +154,31 @@ public class Communicator extends UpperLayer {
 	// Queries /////////////////////////////////////////////////////////////////
 	
 	public int port() {
-		return udpLayer.getPort();
+		return transportLayer.getPort();
+	}
+	
+	public TransferLayer getTransferLayer() {
+		return transferLayer;
+	}
+	
+	public MessageLayer getMessageLayer() {
+		return messageLayer;
+	}
+	
+	/*
+	 * Returns the table keeping the state of remote endpoints,
+	 * which is shared by the layers of the stack
+	 */
+	public PeerTable getPeerTable() {
+		return peerTable;
+	}
+	
+	/*
+	 * Returns the registry of the metrics of all layers of the stack,
+	 * e.g. to export them via JMX
+	 */
+	public MetricRegistry getMetrics() {
+		return metrics;
 	}
 
 	// Attributes //////////////////////////////////////////////////////////////
@@ -102,6 +186,11 @@ public class Communicator extends UpperLayer {
 	protected TransferLayer transferLayer;
 	protected TransactionLayer transactionLayer;
 	protected MessageLayer messageLayer;
-	protected UDPLayer udpLayer;
+	protected TransportLayer transportLayer;
+	protected PeerTable peerTable;
+	
+	protected MetricRegistry metrics;
+	private final Histogram rtt;
+
 	
 }
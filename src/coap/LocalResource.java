@@ -1,13 +1,19 @@
 package coap;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+import log.Logger;
 
 public class LocalResource extends Resource {
 
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(LocalResource.class);
+
 	// Constructors ////////////////////////////////////////////////////////////
 	
 	public LocalResource(String resourceIdentifier, boolean hidden) {
@@ -19,49 +25,164 @@ public class LocalResource extends Resource {
 	
 	// Observing ///////////////////////////////////////////////////////////////
 	
-	public void addObserveRequest(GETRequest request) {
+	/*
+	 * Establishes an observation relationship with the sender of a request,
+	 * replacing any previous one of that endpoint. It must be called before
+	 * the request is answered, so that the response of a refused observer
+	 * does not carry an Observe option.
+	 * 
+	 * @param request The request containing an Observe option
+	 * @return False if the maximum number of observers was reached
+	 */
+	public boolean addObserveRequest(GETRequest request) {
 		
 		if (request != null) {
-		
-			// lazy creation
-			if (observeRequests == null) {
-				observeRequests = new HashMap<String, GETRequest>();
-			}
 			
-			observeRequests.put(request.endpointID(), request);
+			String endpointID = request.endpointID();
+			
+			// registrations are serialized, so that concurrent ones cannot
+			// exceed the limit; removals only shrink the map
+			synchronized (observeRequests) {
+				
+				if (maxObservers > 0 && observeRequests.size() >= maxObservers &&
+					!observeRequests.containsKey(endpointID)) {
+					
+					numObserversRefused.incrementAndGet();
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Observation relationship between %s and %s refused: Limit of %d observers reached",
+							endpointID, getResourceIdentifier(), maxObservers);
+					}
+					return false;
+				}
+				
+				observeRequests.put(endpointID, new Observer(request));
+			}
 			
-			System.out.printf("Observation relationship between %s and %s established.\n",
-				request.endpointID(), getResourceIdentifier());
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Observation relationship between %s and %s established",
+					endpointID, getResourceIdentifier());
+			}
 
 		}
+		return true;
 	}
 	
 	public void removeObserveRequest(String endpointID) {
 		
-		if (observeRequests != null) {
-			if (observeRequests.remove(endpointID) != null) {
-				System.out.printf("Observation relationship between %s and %s terminated.\n",
+		if (observeRequests.remove(endpointID) != null && LOG.isDebugEnabled()) {
+			LOG.debug("Observation relationship between %s and %s terminated",
+				endpointID, getResourceIdentifier());
+		}
+	}
+
+	/*
+	 * Removes an observer unless it was replaced in the meantime
+	 * 
+	 * @return True if the observer was removed
+	 */
+	boolean removeObserver(Observer observer) {
+		
+		String endpointID = observer.request.endpointID();
+		
+		if (observeRequests.remove(endpointID, observer)) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Observation relationship between %s and %s terminated",
 					endpointID, getResourceIdentifier());
 			}
+			return true;
+
 		}
+		return false;
 	}
 
 	public boolean isObserved(String endpointID) {
-		return observeRequests != null && observeRequests.containsKey(endpointID);
+		return observeRequests.containsKey(endpointID);
+	}
+	
+	/*
+	 * Returns the number of endpoints observing this resource
+	 */
+	public int getObserverCount() {
+		return observeRequests.size();
+	}
+	
+	/*
+	 * Limits the number of endpoints observing this resource. Further
+	 * observe requests are answered without establishing an observation
+	 * relationship.
+	 * 
+	 * @param maxObservers The maximum number of observers, or 0 for no limit
+	 */
+	public void setMaxObservers(int maxObservers) {
+		this.maxObservers = maxObservers;
+	}
+	
+	public int getMaxObservers() {
+		return maxObservers;
+	}
+	
+	/*
+	 * Returns the number of observe requests refused because
+	 * the maximum number of observers was reached
+	 */
+	public long getNumObserversRefused() {
+		return numObserversRefused.get();
+	}
+	
+	/*
+	 * Returns the observers of this resource
+	 */
+	Collection<Observer> getObservers() {
+		return observeRequests.values();
+	}
+	
+	/*
+	 * Sets the policy by which notifications are sent to the observers
+	 * of this resource, e.g. to limit their rate
+	 * 
+	 * @param policy The policy, or null to use the default policy
+	 */
+	public void setNotificationPolicy(NotificationPolicy policy) {
+		this.notificationPolicy = policy != null ? policy : NotificationPolicy.DEFAULT;
+	}
+	
+	public NotificationPolicy getNotificationPolicy() {
+		return notificationPolicy;
+	}
+	
+	/*
+	 * Sets the engine used to send notifications to the observers of this
+	 * resource, e.g. to use a dedicated pool of worker threads
+	 * 
+	 * @param engine The engine, or null to use the default engine
+	 */
+	public void setNotificationEngine(NotificationEngine engine) {
+		this.notificationEngine = engine;
+	}
+	
+	public NotificationEngine getNotificationEngine() {
+		return notificationEngine != null ? notificationEngine : NotificationEngine.getDefault();
 	}
 	
 	protected void processObserveRequests() {
-		if (observeRequests != null) {
-			for (GETRequest request : observeRequests.values()) {
-				performGET(request);
-			}
-		}
+		getNotificationEngine().changed(this);
 	}
 	
 	protected void changed() {
 		processObserveRequests();
 	}
 	
+	/*
+	 * Returns the observe sequence number for the next notification
+	 */
+	int nextObserveSequence() {
+		return observeSequence.incrementAndGet() & 0xFFFF;
+	}
+	
+	NotificationEngine.Schedule getNotificationSchedule() {
+		return notificationSchedule;
+	}
+	
 	// REST Operations /////////////////////////////////////////////////////////
 	
 	@Override
@@ -89,6 +210,25 @@ public class LocalResource extends Resource {
 		request.respond(CodeRegistry.RESP_NOT_IMPLEMENTED);
 	}	
 	
-	private Map<String, GETRequest> observeRequests;
+	// the observers by remote endpoint, which may be
+	// added and removed while notifications are sent
+	// TODO key by the PeerState of the remote endpoint, once resources
+	// know the peer table of the communicator serving them; a resource
+	// needs its own index of observers to send notifications anyway
+
+	private ConcurrentMap<String, Observer> observeRequests
+		= new ConcurrentHashMap<String, Observer>();
+	
+	private volatile NotificationEngine notificationEngine;
+	private volatile NotificationPolicy notificationPolicy = NotificationPolicy.DEFAULT;
+	
+	// the state of delayed and periodic notifications
+	private final NotificationEngine.Schedule notificationSchedule
+		= new NotificationEngine.Schedule(this);
+	
+	private AtomicInteger observeSequence = new AtomicInteger();
+	
+	private volatile int maxObservers;
+	private AtomicLong numObserversRefused = new AtomicLong();
 	
 }
@@ -3,13 +3,16 @@ package coap;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+
+import layers.TransportLayer;
+import log.Logger;
 
 /*
  * This class describes the functionality of the CoAP messages
@@ -19,6 +22,10 @@ import java.util.TreeMap;
  * 
  */
 public class Message {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(Message.class);
 	
 	// CoAP specific definitions ///////////////////////////////////////////////
 	
@@ -65,6 +72,14 @@ public class Message {
 	public static final int MAX_OPTIONLENGTH_BASE      
 		= (1 << OPTIONLENGTH_BASE_BITS) - 2;
 	
+	// Implementation specific constants ///////////////////////////////////////
+	
+	// number of options room is made for when the first option is added,
+	// which suffices for most messages
+	private static final int INITIAL_OPTION_CAPACITY = 8;
+	
+	private static final Option[] NO_OPTIONS = new Option[0];
+	
 	// Static Functions ////////////////////////////////////////////////////////
 	
 	public Message newReply(boolean ack) {
@@ -87,8 +102,10 @@ public class Message {
 		// echo token
 		reply.setOption(getFirstOption(OptionNumberRegistry.TOKEN));
 		
-		// set the receiver URI of the reply to the sender of this message
-		reply.uri = this.uri;
+		// address the reply to the sender of this message, which for
+		// messages received from the network is only known by its address
+		reply.copyPeer(this);
+
 		
 		// create an empty reply by default
 		reply.code = CodeRegistry.EMPTY_MESSAGE;
@@ -109,7 +126,7 @@ public class Message {
 		
 		// set receiver URI to sender URI of the message
 		// to acknowledge
-		ack.setURI(msg.getURI());
+		ack.copyPeer(msg);
 		
 		// create an empty Acknowledgement by default,
 		// can be piggy-backed with a response by the user
@@ -130,7 +147,7 @@ public class Message {
 		
 		// set receiver URI to sender URI of the message
 		// to reset
-		rst.setURI(msg.getURI());
+		rst.copyPeer(msg);
 		
 		// Reset must be empty
 		rst.setCode(CodeRegistry.EMPTY_MESSAGE);
@@ -196,7 +213,7 @@ public class Message {
 		this.type = type;
 		this.code = code;
 		this.messageID = id;
-		this.payload = payload;
+		setPayload(payload);
 	}
 	
 	// Serialization ///////////////////////////////////////////////////////////
@@ -209,114 +226,7 @@ public class Message {
 	 * 
 	 */
 	public byte[] toByteArray() {
-		
-		// create datagram writer to encode options
-		DatagramWriter optWriter = new DatagramWriter(); 
-		
-		int optionCount = 0;
-		int lastOptionNumber = 0;
-		for (Option opt : getOptionList()) {
-			
-			// calculate option delta
-			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
-			
-			// ensure that option delta value can be encoded correctly
-			while (optionDelta > MAX_OPTIONDELTA) {
-				
-				// option delta is too large to be encoded:
-				// add fencepost options in order to reduce the option delta
-				
-				// get fencepost option that is next to the last option
-				int fencepostNumber = 
-					OptionNumberRegistry.nextFencepost(lastOptionNumber);
-				
-				// calculate fencepost delta
-				int fencepostDelta = fencepostNumber - lastOptionNumber;
-				
-				// correctness assertions
-				//assert fencepostDelta > 0: "Fencepost liveness";
-				//assert fencepostDelta <= MAX_OPTIONDELTA: "Fencepost safety";
-				if (fencepostDelta <= 0) {
-					System.out.printf("Fencepost liveness violated: delta = %d\n", fencepostDelta);
-				}
-				
-				if (fencepostDelta > MAX_OPTIONDELTA) {
-					System.out.printf("Fencepost safety violated: delta = %d\n", fencepostDelta);
-				}
-
-				
-				// write fencepost option delta
-				optWriter.write(fencepostDelta, OPTIONDELTA_BITS);
-				
-				// fencepost have an empty value
-				optWriter.write(0, OPTIONLENGTH_BASE_BITS);
-				//System.out.printf("DEBUG: %d\n", fencepostDelta);
-				
-				// increment option count
-				++optionCount;
-				
-				// update last option number
-				lastOptionNumber = fencepostNumber;
-				
-				// update option delta
-				optionDelta -= fencepostDelta;
-			}
-			
-			// write option delta
-			optWriter.write(optionDelta, OPTIONDELTA_BITS);
-			
-			// write option length
-			int length = opt.getLength();
-			if (length <= MAX_OPTIONLENGTH_BASE) {
-				
-				// use option length base field only to encode
-				// option lengths less or equal than MAX_OPTIONLENGTH_BASE
-				
-				optWriter.write(length, OPTIONLENGTH_BASE_BITS);
-				
-			} else {
-				
-				// use both option length base and extended field
-				// to encode option lengths greater than MAX_OPTIONLENGTH_BASE
-				
-				int baseLength = MAX_OPTIONLENGTH_BASE + 1;
-				optWriter.write(baseLength, OPTIONLENGTH_BASE_BITS);
-				
-				int extLength = length - baseLength;
-				optWriter.write(extLength, OPTIONLENGTH_EXTENDED_BITS);
-				
-			}
-
-			// write option value
-			optWriter.writeBytes(opt.getRawValue());
-			
-			// increment option count
-			++optionCount;
-			
-			// update last option number
-			lastOptionNumber = opt.getOptionNumber();
-		}
-
-		
-		// create datagram writer to encode message data
-		DatagramWriter writer = new DatagramWriter();
-		
-		// write fixed-size CoAP header
-		writer.write(version, VERSION_BITS);
-		writer.write(type.ordinal(), TYPE_BITS);
-		writer.write(optionCount, OPTIONCOUNT_BITS);
-		writer.write(code, CODE_BITS);
-		writer.write(messageID, ID_BITS);
-		
-	
-		// write options
-		writer.writeBytes(optWriter.toByteArray());
-		
-		//write payload
-		writer.writeBytes(payload);
-
-		// return encoded message
-		return writer.toByteArray();
+		return MessageCodec.encode(this);
 	}
 
 	/*
@@ -327,90 +237,7 @@ public class Message {
 	 * 
 	 */
 	public static Message fromByteArray(byte[] byteArray) {
-
-		//Initialize DatagramReader
-		DatagramReader datagram = new DatagramReader(byteArray);
-		
-		//Read current version
-		int version = datagram.read(VERSION_BITS);
-		
-		//Read current type
-		messageType type = getTypeByID(datagram.read(TYPE_BITS));
-		
-		//Read number of options
-		int optionCount = datagram.read(OPTIONCOUNT_BITS);
-		
-		//Read code
-		int code = datagram.read(CODE_BITS);
-		if (!CodeRegistry.isValid(code)) {
-			System.out.printf("ERROR: Invalid message code: %d\n", code);
-			return null;
-		}
-
-		// create new message with subtype according to code number
-		Message msg;
-		try {
-			msg = CodeRegistry.getMessageClass(code).newInstance();
-		} catch (InstantiationException e) {
-			e.printStackTrace();
-			return null;
-		} catch (IllegalAccessException e) {
-			e.printStackTrace();
-			return null;
-		}
-		msg.version = version;
-		msg.type = type;
-		msg.code = code;
-		
-		//Read message ID
-		msg.messageID = datagram.read(ID_BITS);
-		
-		//Current option nr initialization
-		int currentOption = 0;
-
-		//Loop over all options
-		//System.out.println("DEBUG OPTION CNT: " + optionCount);
-		for (int i=0; i < optionCount; i++) {
-			
-			//Read option delta bits
-			int optionDelta = datagram.read(OPTIONDELTA_BITS);
-			
-			currentOption += optionDelta;
-			//System.out.printf("DEBUG MSG: %d\n", optionDelta);
-			if (OptionNumberRegistry.isFencepost(currentOption))
-			{
-				//Read number of options
-				datagram.read(OPTIONLENGTH_BASE_BITS);
-				
-				//Fencepost: Reset Option to 0
-				//TODO: FIX
-				//currentOption = 0;
-			} else {
-				
-				//Read option length
-				int length = datagram.read(OPTIONLENGTH_BASE_BITS);
-				
-				if (length > MAX_OPTIONLENGTH_BASE)
-				{
-					//Read extended option length
-					//length = datagram.read(OPTIONLENGTH_EXTENDED_BITS)
-					//		 - (MAX_OPTIONLENGTH_BASE + 1);
-					
-					length += datagram.read(OPTIONLENGTH_EXTENDED_BITS);
-				}
-				//Read option
-				Option opt = new Option (datagram.readBytes(length), currentOption);
-				
-				//Add option to message
-				msg.addOption(opt);
-			}
-			
-		}
-
-		//Get payload
-		msg.payload = datagram.readBytesLeft();
-		
-		return msg;
+		return MessageCodec.decode(byteArray, 0, byteArray.length);
 	}
 	
 	
@@ -476,6 +303,8 @@ public class Message {
 		
 		// finally, set new Uri
 		this.uri = uri;
+		this.peerAddress = null;
+		this.key = null;
 	}
 	
 	public boolean setURI(String uri) {
@@ -483,20 +312,62 @@ public class Message {
 			setURI(new URI(uri));
 			return true;
 		} catch (URISyntaxException e) {
-			System.out.printf("[%s] Failed to set URI: %s\n",
-				getClass().getName(), e.getMessage());
+			LOG.warning("Failed to set URI: %s", e.getMessage());
 			return false;
 		}
 	}
 	
+	/*
+	 * This procedure sets the socket address of the remote endpoint of this
+	 * CoAP message, e.g. the sender of a message received from the network.
+	 * It replaces the current URI, which is only built on demand from the
+	 * socket address.
+	 * 
+	 * @param peerAddress The address and port of the remote endpoint
+	 */
+	public void setPeerAddress(InetSocketAddress peerAddress) {
+		this.peerAddress = peerAddress;
+		this.uri = null;
+		this.key = null;
+	}
+	
+	/*
+	 * This procedure addresses this CoAP message to the remote endpoint
+	 * of another message, e.g. to reply to its sender
+	 * 
+	 * @param msg The message whose remote endpoint to use
+	 */
+	public void copyPeer(Message msg) {
+		if (msg.peerAddress != null) {
+			setPeerAddress(msg.peerAddress);
+		} else {
+			setURI(msg.getURI());
+		}
+	}
+	
 	/*
 	 * This procedure sets the payload of this CoAP message
 	 * 
 	 * @param payload The payload to which the current message payload should
 	 *                be set to
 	 */
-	public void setPayload(byte[] payload) {
-		this.payload = payload;
+	public synchronized void setPayload(byte[] payload) {
+		setPayload(payload, 0, payload != null ? payload.length : 0);
+	}
+	
+	/*
+	 * This procedure sets the payload of this CoAP message to a slice
+	 * of a byte array, e.g. of a received datagram or of a larger body
+	 * sent blockwise. The bytes are not copied and must not be modified
+	 * while the message is in use.
+	 * 
+	 * @param data The byte array containing the payload
+	 * @param offset The position of the payload within the array
+	 * @param length The length of the payload
+	 */
+	public synchronized void setPayload(byte[] data, int offset, int length) {
+		payload.set(data, offset, length);
+		template = null;
 	}
 	
 	public void setPayload(String payload, int mediaType) {
@@ -526,6 +397,7 @@ public class Message {
 	 */
 	public void setType(messageType msgType) {
 		this.type = msgType;
+		this.key = null;
 	}
 	
 	/*
@@ -536,6 +408,7 @@ public class Message {
 	 */
 	public void setCode(int code) {
 		this.code = code;
+		this.template = null;
 	}
 	
 	/*
@@ -546,6 +419,17 @@ public class Message {
 	 */
 	public void setID(int id) {
 		this.messageID = id;
+		this.key = null;
+	}
+	
+	
+	/*
+	 * This procedure sets the version of this CoAP message
+	 * 
+	 * @param version The version as read from an encoded message
+	 */
+	void setVersion(int version) {
+		this.version = version;
 	}
 	
 	// Functions ///////////////////////////////////////////////////////////////
@@ -556,20 +440,56 @@ public class Message {
 	 * @return The current URI
 	 */
 	public URI getURI() {
+		
+		// build URI of network-originated messages on demand
+		if (uri == null && peerAddress != null) {
+			try {
+				uri = new URI(TransportLayer.URI_SCHEME_NAME, null, 
+					peerAddress.getAddress().getHostAddress(), 
+					peerAddress.getPort(), null, null, null);
+			} catch (URISyntaxException e) {
+				LOG.warning("Failed to build URI from peer address: %s", e.getMessage());
+			}
+		}
 		return this.uri;
 	}
 	
+	/*
+	 * This function returns the socket address of the remote endpoint
+	 * 
+	 * @return The address and port of the remote endpoint, or null
+	 * if the message is addressed by its URI only
+	 */
+	public InetSocketAddress getPeerAddress() {
+		return peerAddress;
+	}
+	
 	/*
 	 * This function returns the payload of this CoAP message
 	 * 
 	 * @return The current payload.
 	 */
-	public byte[] getPayload() {
-		return this.payload;
+	public synchronized byte[] getPayload() {
+		
+		// merges the chunks of a payload appended blockwise
+		// or copies a slice into an array of its own
+		return payload.toArray();
+	}
+	
+	/*
+	 * This procedure writes the payload of this CoAP message into a
+	 * byte array without copying it first
+	 * 
+	 * @param buffer The byte array to write to
+	 * @param pos The position within the array to write the payload at
+	 */
+	synchronized void writePayload(byte[] buffer, int pos) {
+		payload.writeTo(buffer, pos);
 	}
 	
 	public String getPayloadString() {
 		try {
+			byte[] payload = getPayload();
 			return payload != null ? new String(payload, "UTF-8") : null;
 		} catch (UnsupportedEncodingException e) {
 			e.printStackTrace();
@@ -622,22 +542,33 @@ public class Message {
 	 */
 	public void addOption(Option opt) {
 		
-		List<Option> list = optionMap.get(opt.getOptionNumber());
-		if (list == null) {
-			list = new ArrayList<Option>();
-			optionMap.put(opt.getOptionNumber(), list);
-		}
-		list.add(opt);
+		// insert after existing options with the same number
+		int index = upperBound(opt.getOptionNumber());
+		insertOptions(index, 1);
+		options[index] = opt;
+		template = null;
 	}	
 	
 	/*
 	 * This function returns all options with the given option number
 	 * 
 	 * @param optionNumber The option number
-	 * @return A list containing the options with the given number
+	 * @return A list containing the options with the given number (copy),
+	 * or null if there are none
 	 */
 	public List<Option> getOptions(int optionNumber) {
-		return optionMap.get(optionNumber);
+		
+		int from = lowerBound(optionNumber);
+		int to = upperBound(optionNumber);
+		if (from == to) {
+			return null;
+		}
+		
+		List<Option> list = new ArrayList<Option>(to - from);
+		for (int i = from; i < to; i++) {
+			list.add(options[i]);
+		}
+		return list;
 	}
 
 	/*
@@ -648,7 +579,22 @@ public class Message {
 	 */
 	public void setOptions(int optionNumber, List<Option> opt) {
 		// TODO Check if all options are consistent with optionNumber
-		optionMap.put(optionNumber, opt);
+		
+		int from = lowerBound(optionNumber);
+		int to = upperBound(optionNumber);
+		int count = opt != null ? opt.size() : 0;
+		
+		// resize range of options with the given number
+		if (count > to - from) {
+			insertOptions(to, count - (to - from));
+		} else if (count < to - from) {
+			removeOptions(from + count, (to - from) - count);
+		}
+		
+		for (int i = 0; i < count; i++) {
+			options[from + i] = opt.get(i);
+		}
+		template = null;
 	}
 	
 	/*
@@ -659,8 +605,9 @@ public class Message {
 	 */
 	public Option getFirstOption(int optionNumber) {
 		
-		List<Option> list = getOptions(optionNumber);
-		return list != null && !list.isEmpty() ? list.get(0) : null;
+		int index = lowerBound(optionNumber);
+		return index < optionCount && options[index].getOptionNumber() == optionNumber
+			? options[index] : null;
 	}
 	
 	/*
@@ -671,9 +618,23 @@ public class Message {
 	public void setOption(Option opt) {
 
 		if (opt != null) {
-			List<Option> options = new ArrayList<Option>();
-			options.add(opt);
-			setOptions(opt.getOptionNumber(), options);
+			
+			int from = lowerBound(opt.getOptionNumber());
+			int to = upperBound(opt.getOptionNumber());
+			
+			// replace existing options in place
+			if (from == to) {
+				insertOptions(from, 1);
+			} else if (to - from > 1) {
+				removeOptions(from + 1, to - from - 1);
+			}
+			options[from] = opt;
+			
+			// the values of these options are patched into templates
+			if (from == to || (opt.getOptionNumber() != OptionNumberRegistry.TOKEN &&
+				opt.getOptionNumber() != OptionNumberRegistry.OBSERVE)) {
+				template = null;
+			}
 		}
 	}
 
@@ -684,10 +645,10 @@ public class Message {
 	 */
 	public List<Option> getOptionList() {
 
-		List<Option> list = new ArrayList<Option>();
+		List<Option> list = new ArrayList<Option>(optionCount);
 		
-		for (List<Option> option : optionMap.values()) {
-			list.addAll(option);
+		for (int i = 0; i < optionCount; i++) {
+			list.add(options[i]);
 		}
 		
 		return list;
@@ -699,37 +660,130 @@ public class Message {
 	 * @return The current number of options.
 	 */
 	public int getOptionCount() {
-		return getOptionList().size();
+		return optionCount;
 	}
 	
 	/*
-	 * Appends data to this message's payload.
+	 * Returns an option by its position in the sorted list of options,
+	 * e.g. to iterate the options without copying them
 	 * 
-	 * @param block The byte array containing the data to append
+	 * @param index The position of the option, less than getOptionCount()
+	 * @return The option at the given position
 	 */
-	public synchronized void appendPayload(byte[] block) {
+	Option optionAt(int index) {
+		return options[index];
+	}
 	
-		if (block != null) {
-			if (payload != null) {
+	/*
+	 * Replaces the options of this message by those of another message
+	 * without sorting them again
+	 * 
+	 * @param msg The message whose options to copy
+	 */
+	void copyOptions(Message msg) {
 		
-				byte[] oldPayload = payload;
-				payload = new byte[oldPayload.length + block.length];
-				System.arraycopy(oldPayload, 0,	payload, 0, 
-					oldPayload.length);
-				System.arraycopy(block, 0, payload, oldPayload.length, 
-					block.length);
-				
-			} else {
-				
-				payload = block.clone();
-			}
+		for (int i = msg.optionCount; i < optionCount; i++) {
+			options[i] = null;
+		}
+		ensureOptionCapacity(msg.optionCount);
+		System.arraycopy(msg.options, 0, options, 0, msg.optionCount);
+		optionCount = msg.optionCount;
+		template = null;
+	}
+	
+	/*
+	 * Attaches a template used to encode this message, e.g. a notification
+	 * whose representation was already encoded for other observers. The
+	 * template is detached if other fields than the type, ID, token or
+	 * observe value are changed afterwards.
+	 * 
+	 * @param template The template, or null to encode the message as usual
+	 */
+	void setTemplate(MessageTemplate template) {
+		this.template = template;
+	}
+	
+	MessageTemplate getTemplate() {
+		return template;
+	}
+	
+	/*
+	 * Ensures that a number of options can be added without growing
+	 * the option array, e.g. when decoding a message
+	 * 
+	 * @param capacity The total number of options to make room for
+	 */
+	void ensureOptionCapacity(int capacity) {
+		
+		if (capacity > options.length) {
+			Option[] grown = new Option[Math.max(capacity,
+				Math.max(options.length * 2, INITIAL_OPTION_CAPACITY))];
+			System.arraycopy(options, 0, grown, 0, optionCount);
+			options = grown;
+		}
+	}
+	
+	/*
+	 * Appends data to this message's payload. The data is not copied
+	 * and must not be modified afterwards.
+	 * 
+	 * @param block The byte array containing the data to append
+	 */
+	public void appendPayload(byte[] block) {
+		if (block != null) {
+			appendPayload(block, 0, block.length);
+		}
+	}
+	
+	/*
+	 * Appends a slice of a byte array to this message's payload. The data
+	 * is added as a chunk of its own, so that neither the data appended
+	 * nor the existing payload is copied.
+	 * 
+	 * @param data The byte array containing the data to append
+	 * @param offset The position of the data within the array
+	 * @param length The length of the data
+	 */
+	public void appendPayload(byte[] data, int offset, int length) {
+		synchronized (this) {
+			payload.append(data, offset, length);
+			template = null;
 			
-			// wake up threads waiting in readPayload()
+			// wake up threads waiting for more payload, once per chunk
 			notifyAll();
-			
-			// call notification method
+		}
+		
+		// call notification method
+		if (offset != 0 || length != data.length) {
+			byte[] block = new byte[length];
+			System.arraycopy(data, offset, block, 0, length);
 			payloadAppended(block);
-		}		
+		} else {
+			payloadAppended(data);
+		}
+	}
+	
+	/*
+	 * Appends the payload of another message to this message's payload,
+	 * e.g. a block received during a blockwise transfer, without copying it
+	 * 
+	 * @param msg The message whose payload to append
+	 */
+	public void appendPayload(Message msg) {
+		
+		// the chunks of the other message are shared
+		PayloadBuffer appended = new PayloadBuffer();
+		synchronized (msg) {
+			appended.append(msg.payload);
+		}
+		
+		synchronized (this) {
+			payload.append(appended);
+			template = null;
+			notifyAll();
+		}
+		
+		payloadAppended(appended.toArray());
 	}
 	
 	/*
@@ -740,26 +794,43 @@ public class Message {
 	 * @return The byte at the given position, or -1 if it does not exist
 	 */
 	public synchronized int readPayload(int pos) {
-		
-		// check if there is data to read
-		while (pos >= payload.length) {
-			
-			// all payload was read
-			if (complete) {
-				return -1;
-			} else try {
-				// wait until more data is appended
-				wait();
-			} catch (InterruptedException e) {
-				// TODO Think more about this
-				return -1;
-			}
+		return awaitPayload(pos) ? payload.get(pos) : -1;
+	}
+	
+	/*
+	 * Reads bytes starting at the given position from the payload and
+	 * blocks if no data is available yet. Returns as soon as at least one
+	 * byte could be read.
+	 * 
+	 * @param pos The position of the first byte to read
+	 * @param buffer The byte array to read into
+	 * @param offset The position within the array to read into
+	 * @param length The maximum number of bytes to read
+	 * @return The number of bytes read, or -1 if the end of the payload
+	 *         was reached
+	 */
+	public synchronized int readPayload(int pos, byte[] buffer, int offset, int length) {
+		if (length == 0) {
+			return 0;
 		}
-		return payload[pos];		
+		return awaitPayload(pos) ? payload.read(pos, buffer, offset, length) : -1;
 	}
 	
-	public int payloadSize() {
-		return payload != null ? payload.length : 0;
+	/*
+	 * Returns a read-only view of the payload starting at the given
+	 * position and blocks if no data is available yet. The view extends
+	 * to the end of the chunk containing the position, i.e. a single call
+	 * may not cover all of the available payload.
+	 * 
+	 * @param pos The position of the first byte of the view
+	 * @return The view, or null if the end of the payload was reached
+	 */
+	public synchronized ByteBuffer readPayloadBuffer(int pos) {
+		return awaitPayload(pos) ? payload.view(pos) : null;
+	}
+	
+	public synchronized int payloadSize() {
+		return payload.length();
 	}
 	
 	/*
@@ -768,7 +839,7 @@ public class Message {
 	 * 
 	 * @return True iff the message is complete
 	 */
-	public boolean isComplete() {
+	public synchronized boolean isComplete() {
 		return complete;
 	}
 	
@@ -778,7 +849,12 @@ public class Message {
 	 * @param complete The value of the complete flag
 	 */
 	public void setComplete(boolean complete) {
-		this.complete = complete;
+		synchronized (this) {
+			this.complete = complete;
+			
+			// wake up threads waiting in readPayload()
+			notifyAll();
+		}
 		if (complete) {
 			completed();
 		}
@@ -822,6 +898,26 @@ public class Message {
 		// do nothing
 	}
 	
+	/*
+	 * Notification method that is called when this Confirmable message
+	 * was acknowledged by the remote endpoint.
+	 * 
+	 * Subclasses may override this method to add custom handling code.
+	 */
+	public void acknowledged() {
+		// do nothing
+	}
+	
+	/*
+	 * Notification method that is called when this message was rejected
+	 * by the remote endpoint with a Reset message.
+	 * 
+	 * Subclasses may override this method to add custom handling code.
+	 */
+	public void rejected() {
+		// do nothing
+	}
+	
 	/*
 	 * Notification method that is called whenever payload was appended
 	 * using the appendPayload() method.
@@ -920,7 +1016,7 @@ public class Message {
 			case Reset           : typeStr = "RST"; break;
 			default              : typeStr = "???"; break;
 		}
-		String payloadStr = payload != null ? new String(payload) : null;
+		String payloadStr = getPayloadString();
 		return String.format("%s: [%s] %s '%s'(%d)",
 			key(), typeStr, CodeRegistry.toString(code), 
 			payloadStr, payloadSize());
@@ -964,34 +1060,52 @@ public class Message {
 		log(System.out);
 	}
 	
+	/*
+	 * Returns a string identifying the remote endpoint of this message
+	 * 
+	 * @return A string of the form "address:port"
+	 */
 	public String endpointID() {
-		InetAddress address = null;
-		try {
-			address = getAddress();
-		} catch (UnknownHostException e) {
-		}
-		return String.format("%s:%d", 
-			address != null ? address.getHostAddress() : "NULL",
-			uri != null ? uri.getPort() : -1
-		);
+		return key().endpointID();
 	}
 	
 	/*
-	 * Returns a string that is assumed to uniquely identify a message
+	 * Returns a key that is assumed to uniquely identify a message
 	 * 
 	 * Note that for incoming messages, the message ID is not sufficient
 	 * as different remote endpoints may use the same message ID.
 	 * Therefore, the message key includes the identifier of the sender
 	 * next to the message id. 
 	 * 
-	 * @return A string identifying the message
+	 * @return A key identifying the message
 	 */
-	public String key() {
-		return String.format("%s|%s#%d", 
-			endpointID(), typeString(),	messageID);
+	public MessageKey key() {
+		
+		// lazy initialization
+		if (key == null && peerAddress != null) {
+			key = new MessageKey(peerAddress.getAddress(), peerAddress.getPort(),
+				type, messageID);
+		} else if (key == null) {
+			InetAddress address = null;
+			try {
+				address = getAddress();
+			} catch (UnknownHostException e) {
+			}
+			
+			// the port the transport layer sends to if the URI has none,
+			// so that keys match those of replies from the peer
+			int port = uri != null ? uri.getPort() : -1;
+			key = new MessageKey(address, port >= 0 ? port : TransportLayer.DEFAULT_PORT,
+				type, messageID);
+
+		}
+		return key;
 	}
 	
 	public InetAddress getAddress() throws UnknownHostException {
+		if (peerAddress != null) {
+			return peerAddress.getAddress();
+		}
 		return InetAddress.getByName(uri != null ? uri.getHost() : null);
 	}
 	
@@ -1004,13 +1118,111 @@ public class Message {
 		// do nothing
 	}
 	
+	// Internal ////////////////////////////////////////////////////////////////
+	
+	/*
+	 * Blocks until the payload extends beyond the given position
+	 * or the message is complete. The caller must hold the lock.
+	 * 
+	 * @param pos The position to wait for
+	 * @return True if the byte at the position is available,
+	 *         false if it does not exist
+	 */
+	private boolean awaitPayload(int pos) {
+		
+		// check if there is data to read
+		while (pos >= payload.length()) {
+			
+			// all payload was read
+			if (complete) {
+				return false;
+			} else try {
+				// wait until more data is appended
+				wait();
+			} catch (InterruptedException e) {
+				// TODO Think more about this
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/*
+	 * Returns the position of the first option with a number
+	 * greater than or equal to the given one
+	 */
+	private int lowerBound(int optionNumber) {
+		int low = 0;
+		int high = optionCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (options[mid].getOptionNumber() < optionNumber) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	/*
+	 * Returns the position of the first option with a number
+	 * greater than the given one
+	 */
+	private int upperBound(int optionNumber) {
+		int low = 0;
+		int high = optionCount;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (options[mid].getOptionNumber() <= optionNumber) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	/*
+	 * Opens a gap in the option array
+	 * 
+	 * @param index The position of the gap
+	 * @param count The number of slots to insert
+	 */
+	private void insertOptions(int index, int count) {
+		ensureOptionCapacity(optionCount + count);
+		System.arraycopy(options, index, options, index + count, optionCount - index);
+		optionCount += count;
+	}
+	
+	/*
+	 * Removes a range of options from the option array
+	 * 
+	 * @param index The position of the first option to remove
+	 * @param count The number of options to remove
+	 */
+	private void removeOptions(int index, int count) {
+		System.arraycopy(options, index + count, options, index, optionCount - index - count);
+		optionCount -= count;
+		for (int i = optionCount; i < optionCount + count; i++) {
+			options[i] = null;
+		}
+	}
+	
 	// Attributes //////////////////////////////////////////////////////////////
 	
 	//The message's URI
 	private URI uri;
 	
-	//The message's payload
-	private byte[] payload;
+	// The address of the remote endpoint of network-originated messages
+	private InetSocketAddress peerAddress;
+	
+	//The message's payload, consisting of slices of byte arrays
+	private PayloadBuffer payload = new PayloadBuffer();
+	
+	// template used to encode the message, or null
+	private MessageTemplate template;
 	
 	// indicates whether the message's payload is complete
 	private boolean complete;
@@ -1040,13 +1252,16 @@ public class Message {
 	// they have the same message ID
 	private Message buddy;
 	
-	//The message's options
-	private Map<Integer, List<Option>> optionMap
-		= new TreeMap<Integer, List<Option>>();
+	//The message's options, sorted by option number
+	private Option[] options = NO_OPTIONS;
+	private int optionCount;
 	
 	//A time stamp associated with the message
 	private long timestamp;
 	
+	// The key identifying the message (lazy initialized)
+	private MessageKey key;
+	
 	// Declarations ////////////////////////////////////////////////////////////
 	/*
 	 * The message's type which can have the following values:
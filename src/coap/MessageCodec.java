@@ -0,0 +1,460 @@
+package coap;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import log.Logger;
+
+/*
+ * This class describes the functionality to encode and decode CoAP messages
+ * as specified in draft-ietf-core-coap-05, section 3.1.
+ *
+ * In contrast to DatagramReader and DatagramWriter, which operate on
+ * bit-level, the codec works directly on the byte boundaries of the header
+ * and the option delta/length fields. It reads from and writes into
+ * caller-supplied byte arrays or ByteBuffers at a given offset and thus
+ * does not allocate any intermediate buffers.
+ *
+ * The produced encoding is byte-identical to the one of the bit-level
+ * implementation.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class MessageCodec {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// number of bytes used for the fixed-size CoAP header
+	public static final int HEADER_LENGTH =
+		(Message.VERSION_BITS + Message.TYPE_BITS + Message.OPTIONCOUNT_BITS +
+		 Message.CODE_BITS + Message.ID_BITS) / Byte.SIZE;
+
+	// maximum number of options that can be encoded in the option count field
+	public static final int MAX_OPTIONCOUNT
+		= (1 << Message.OPTIONCOUNT_BITS) - 1;
+
+	// maximum option length that can be encoded using the extended field
+	public static final int MAX_OPTIONLENGTH_EXTENDED
+		= Message.MAX_OPTIONLENGTH_BASE + 1 +
+		  (1 << Message.OPTIONLENGTH_EXTENDED_BITS) - 1;
+
+	private static final Logger LOG = Logger.getLogger(MessageCodec.class);
+
+	// Encoding ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Calculates the number of bytes required to encode a message
+	 *
+	 * @param msg The message to encode
+	 * @return The length of the encoded message in bytes
+	 */
+	public static int encodedLength(Message msg) {
+
+		// messages sent to many recipients are encoded from a template
+		MessageTemplate template = msg.getTemplate();
+		if (template != null && template.accepts(msg)) {
+			return template.encodedLength(msg);
+		}
+
+		int length = HEADER_LENGTH;
+
+		int lastOptionNumber = 0;
+		for (int i = 0; i < msg.getOptionCount(); i++) {
+			Option opt = msg.optionAt(i);
+
+			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
+
+			// fencepost options consist of the option header only
+			while (optionDelta > Message.MAX_OPTIONDELTA) {
+
+				int fencepostNumber =
+					OptionNumberRegistry.nextFencepost(lastOptionNumber);
+
+				++length;
+
+				optionDelta -= fencepostNumber - lastOptionNumber;
+				lastOptionNumber = fencepostNumber;
+			}
+
+			int optionLength = opt.getLength();
+			length += optionLength > Message.MAX_OPTIONLENGTH_BASE ? 2 : 1;
+			length += optionLength;
+
+			lastOptionNumber = opt.getOptionNumber();
+		}
+
+		return length + msg.payloadSize();
+	}
+
+	/*
+	 * Encodes a message into a newly allocated byte array of exact size
+	 *
+	 * @param msg The message to encode
+	 * @return A byte array containing the encoded message
+	 */
+	public static byte[] encode(Message msg) {
+
+		byte[] data = new byte[encodedLength(msg)];
+		encode(msg, data, 0);
+
+		return data;
+	}
+
+	/*
+	 * Encodes a message into a byte array at a given offset
+	 *
+	 * @param msg The message to encode
+	 * @param buffer The byte array to write the encoding to
+	 * @param offset The position in the byte array to start writing at
+	 * @return The number of bytes written
+	 * @throws BufferOverflowException If the array is too small
+	 */
+	public static int encode(Message msg, byte[] buffer, int offset) {
+		return encode(msg, buffer, offset, buffer.length);
+	}
+
+	/*
+	 * Encodes a message into a bounded region of a byte array
+	 *
+	 * @param msg The message to encode
+	 * @param buffer The byte array to write the encoding to
+	 * @param offset The position in the byte array to start writing at
+	 * @param limit The position in the byte array not to write beyond
+	 * @return The number of bytes written
+	 * @throws BufferOverflowException If the region is too small
+	 */
+	private static int encode(Message msg, byte[] buffer, int offset, int limit) {
+
+		// messages sent to many recipients are encoded from a template
+		MessageTemplate template = msg.getTemplate();
+		if (template != null && template.accepts(msg)) {
+			return template.encode(msg, buffer, offset, limit);
+		}
+
+		// reserve space for the header, which is written after the options
+		// as the option count includes the fencepost options
+		int pos = offset + HEADER_LENGTH;
+		checkCapacity(limit, pos);
+
+		int optionCount = 0;
+		int lastOptionNumber = 0;
+		for (int i = 0; i < msg.getOptionCount(); i++) {
+			Option opt = msg.optionAt(i);
+
+			// calculate option delta
+			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
+
+			// ensure that option delta value can be encoded correctly
+			while (optionDelta > Message.MAX_OPTIONDELTA) {
+
+				// option delta is too large to be encoded:
+				// add fencepost options in order to reduce the option delta
+				int fencepostNumber =
+					OptionNumberRegistry.nextFencepost(lastOptionNumber);
+
+				int fencepostDelta = fencepostNumber - lastOptionNumber;
+
+				if (fencepostDelta <= 0) {
+					LOG.error("Fencepost liveness violated: delta = %d", fencepostDelta);
+				}
+				if (fencepostDelta > Message.MAX_OPTIONDELTA) {
+					LOG.error("Fencepost safety violated: delta = %d", fencepostDelta);
+				}
+
+				// fenceposts have an empty value
+				checkCapacity(limit, pos + 1);
+				buffer[pos++] = (byte) ((fencepostDelta & 0xF) << 4);
+
+				++optionCount;
+
+				lastOptionNumber = fencepostNumber;
+				optionDelta -= fencepostDelta;
+			}
+
+			// write option header
+			int length = opt.getLength();
+			if (length <= Message.MAX_OPTIONLENGTH_BASE) {
+
+				// use option length base field only
+				checkCapacity(limit, pos + 1 + length);
+				buffer[pos++] = (byte) ((optionDelta & 0xF) << 4 | length);
+
+			} else {
+
+				// use both option length base and extended field
+				if (length > MAX_OPTIONLENGTH_EXTENDED) {
+					LOG.warning("Truncating option length %d", length);
+				}
+
+				checkCapacity(limit, pos + 2 + length);
+				buffer[pos++] = (byte) ((optionDelta & 0xF) << 4 |
+					(Message.MAX_OPTIONLENGTH_BASE + 1));
+				buffer[pos++] = (byte) (length - (Message.MAX_OPTIONLENGTH_BASE + 1));
+			}
+
+			// write option value
+			opt.writeValue(buffer, pos);
+			pos += length;
+
+			++optionCount;
+
+			lastOptionNumber = opt.getOptionNumber();
+		}
+
+		if (optionCount > MAX_OPTIONCOUNT) {
+			LOG.warning("Truncating option count %d", optionCount);
+		}
+
+		// write fixed-size CoAP header
+		buffer[offset    ] = (byte) (
+			(msg.getVersion() & 0x3) << 6 |
+			(msg.getType().ordinal() & 0x3) << 4 |
+			(optionCount & 0xF));
+		buffer[offset + 1] = (byte) msg.getCode();
+		buffer[offset + 2] = (byte) (msg.getID() >> 8);
+		buffer[offset + 3] = (byte) msg.getID();
+
+		// write payload
+		int payloadLength = msg.payloadSize();
+		if (payloadLength > 0) {
+			checkCapacity(limit, pos + payloadLength);
+			msg.writePayload(buffer, pos);
+			pos += payloadLength;
+		}
+
+		return pos - offset;
+	}
+
+	/*
+	 * Encodes a message into a ByteBuffer at its current position and
+	 * advances the position accordingly
+	 *
+	 * @param msg The message to encode
+	 * @param buffer The buffer to write the encoding to
+	 * @return The number of bytes written
+	 * @throws BufferOverflowException If the remaining space is too small
+	 */
+	public static int encode(Message msg, ByteBuffer buffer) {
+
+		int length;
+		if (buffer.hasArray()) {
+
+			// write directly into the backing array
+			int offset = buffer.arrayOffset() + buffer.position();
+			length = encode(msg, buffer.array(), offset,
+				offset + buffer.remaining());
+			buffer.position(buffer.position() + length);
+
+		} else {
+
+			// direct buffers are written by a single bulk transfer
+			byte[] scratch = scratchBuffer(encodedLength(msg));
+			length = encode(msg, scratch, 0);
+			buffer.put(scratch, 0, length);
+		}
+
+		return length;
+	}
+
+	// Decoding ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Decodes a message from a byte array
+	 *
+	 * Option values of the decoded message refer to the byte array
+	 * instead of copying it, so the array must not be modified afterwards.
+	 *
+	 * @param data The byte array containing the encoded message
+	 * @param offset The position of the first byte of the message
+	 * @param length The length of the encoded message
+	 * @return The decoded message, or null if the data is malformed
+	 */
+	public static Message decode(byte[] data, int offset, int length) {
+
+		int end = offset + length;
+
+		if (length < HEADER_LENGTH) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Datagram too short: %d bytes", length);
+			}
+			return null;
+		}
+
+		// read fixed-size CoAP header
+		int first       = data[offset] & 0xFF;
+		int version     = first >>> 6;
+		int type        = first >>> 4 & 0x3;
+		int optionCount = first & 0xF;
+		int code        = data[offset + 1] & 0xFF;
+		int messageID   = (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+
+		if (!CodeRegistry.isValid(code)) {
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Invalid message code: %d", code);
+			}
+			return null;
+		}
+
+		// create new message with subtype according to code number
+		Message msg = newMessage(code);
+		if (msg == null) {
+			return null;
+		}
+		msg.setVersion(version);
+		msg.setType(Message.getTypeByID(type));
+		msg.setCode(code);
+		msg.setID(messageID);
+
+		// read options, which are appended in order
+		msg.ensureOptionCapacity(optionCount);
+		int pos = offset + HEADER_LENGTH;
+		int currentOption = 0;
+		for (int i = 0; i < optionCount; i++) {
+
+			if (pos >= end) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Datagram truncated in option #%d", i);
+				}
+				return null;
+			}
+
+			int optionHeader = data[pos++] & 0xFF;
+
+			currentOption += optionHeader >>> 4;
+
+			// fencepost options carry no value
+			if (OptionNumberRegistry.isFencepost(currentOption)) {
+				continue;
+			}
+
+			int optionLength = optionHeader & 0xF;
+			if (optionLength > Message.MAX_OPTIONLENGTH_BASE) {
+
+				// read extended option length
+				if (pos >= end) {
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Datagram truncated in option #%d", i);
+					}
+					return null;
+				}
+				optionLength += data[pos++] & 0xFF;
+			}
+
+			if (pos + optionLength > end) {
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Datagram truncated in option #%d", i);
+				}
+				return null;
+			}
+
+			// refer to the option value within the data without copying it
+			msg.addOption(new Option(data, pos, optionLength, currentOption));
+			pos += optionLength;
+		}
+
+		// read payload, referring to it within the data
+		msg.setPayload(data, pos, end - pos);
+
+		return msg;
+	}
+
+	/*
+	 * Decodes a message from the remaining bytes of a ByteBuffer and
+	 * advances its position to the limit
+	 *
+	 * If the buffer is backed by an array, option values of the decoded
+	 * message refer to it, so its contents must not be modified afterwards.
+	 *
+	 * @param buffer The buffer containing the encoded message
+	 * @return The decoded message, or null if the data is malformed
+	 */
+	public static Message decode(ByteBuffer buffer) {
+
+		int length = buffer.remaining();
+
+		Message msg;
+		if (buffer.hasArray()) {
+
+			// read directly from the backing array
+			msg = decode(buffer.array(),
+				buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.limit());
+
+		} else {
+
+			// direct buffers are read by a single bulk transfer into
+			// an array of its own, as the options of the message refer to it
+			byte[] data = new byte[length];
+			buffer.get(data, 0, length);
+			msg = decode(data, 0, length);
+		}
+
+		return msg;
+	}
+
+	// Utilities ///////////////////////////////////////////////////////////////
+
+	/*
+	 * Instantiates a message with the subtype according to the code number
+	 * without using reflection for the common message classes
+	 *
+	 * @param code The message code
+	 * @return A new message, or null if instantiation failed
+	 */
+	private static Message newMessage(int code) {
+
+		switch (code) {
+		case CodeRegistry.METHOD_GET:
+			return new GETRequest();
+		case CodeRegistry.METHOD_POST:
+			return new POSTRequest();
+		case CodeRegistry.METHOD_PUT:
+			return new PUTRequest();
+		case CodeRegistry.METHOD_DELETE:
+			return new DELETERequest();
+		}
+
+		Class<? extends Message> msgClass = CodeRegistry.getMessageClass(code);
+		if (msgClass == Response.class) {
+			return new Response(code);
+		}
+
+		try {
+			return msgClass.newInstance();
+		} catch (InstantiationException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IllegalAccessException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static void checkCapacity(int limit, int end) {
+		if (end > limit) {
+			throw new BufferOverflowException();
+		}
+	}
+
+	private static byte[] scratchBuffer(int size) {
+
+		byte[] scratch = SCRATCH.get();
+		if (scratch.length < size) {
+			scratch = new byte[Math.max(size, scratch.length * 2)];
+			SCRATCH.set(scratch);
+		}
+		return scratch;
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	// per-thread buffer used to transfer from and to direct ByteBuffers
+	private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[1024];
+		}
+	};
+}
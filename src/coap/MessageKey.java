@@ -0,0 +1,154 @@
+package coap;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+import coap.Message.messageType;
+
+/*
+ * This class describes a value that is assumed to uniquely identify a
+ * message, consisting of the address and port of the remote endpoint,
+ * the message type and the message ID.
+ *
+ * Message keys are immutable and their hash code is computed once on
+ * construction, which makes them cheap to use as keys of hash-based
+ * caches. The string representation is only built when requested,
+ * e.g. for logging.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public final class MessageKey {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new message key
+	 *
+	 * @param address The raw IP address of the remote endpoint, or null
+	 * @param port The port of the remote endpoint, or -1
+	 * @param type The message type
+	 * @param messageID The message ID
+	 */
+	public MessageKey(byte[] address, int port, messageType type, int messageID) {
+		this.address = address;
+		this.port = port;
+		this.type = type;
+		this.messageID = messageID;
+
+		int hash = Arrays.hashCode(address);
+		hash = 31 * hash + port;
+		hash = 31 * hash + (type != null ? type.ordinal() : -1);
+		hash = 31 * hash + messageID;
+		this.hash = hash;
+	}
+
+	/*
+	 * Constructor for a new message key
+	 *
+	 * @param address The IP address of the remote endpoint, or null
+	 * @param port The port of the remote endpoint, or -1
+	 * @param type The message type
+	 * @param messageID The message ID
+	 */
+	public MessageKey(InetAddress address, int port, messageType type, int messageID) {
+		this(address != null ? address.getAddress() : null, port, type, messageID);
+	}
+
+	// Functions ///////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns a key that differs from this key in the message type only,
+	 * e.g. to relate a reply to the Confirmable it answers
+	 *
+	 * @param type The message type of the new key
+	 * @return A message key with the given type
+	 */
+	public MessageKey withType(messageType type) {
+		return type == this.type ? this
+			: new MessageKey(address, port, type, messageID);
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public messageType getType() {
+		return type;
+	}
+
+	public int getID() {
+		return messageID;
+	}
+
+	/*
+	 * Returns a string identifying the remote endpoint of the form
+	 * "address:port" without performing any name resolution
+	 *
+	 * @return The endpoint identifier
+	 */
+	public String endpointID() {
+
+		// lazy initialization
+		if (endpointID == null) {
+			String host = "NULL";
+			if (address != null) {
+				try {
+					host = InetAddress.getByAddress(address).getHostAddress();
+				} catch (UnknownHostException e) {
+					// only thrown for illegal address lengths
+				}
+			}
+			endpointID = String.format("%s:%d", host, port);
+		}
+		return endpointID;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof MessageKey))
+			return false;
+		MessageKey other = (MessageKey) obj;
+		return hash == other.hash &&
+			messageID == other.messageID &&
+			port == other.port &&
+			type == other.type &&
+			Arrays.equals(address, other.address);
+	}
+
+	@Override
+	public String toString() {
+		String typeStr = "???";
+		if (type != null) switch (type) {
+			case Confirmable     : typeStr = "CON"; break;
+			case Non_Confirmable : typeStr = "NON"; break;
+			case Acknowledgement : typeStr = "ACK"; break;
+			case Reset           : typeStr = "RST"; break;
+		}
+		return String.format("%s|%s#%d", endpointID(), typeStr, messageID);
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// the raw IP address of the remote endpoint
+	private final byte[] address;
+
+	private final int port;
+	private final messageType type;
+	private final int messageID;
+
+	// precomputed hash code
+	private final int hash;
+
+	// string identifying the remote endpoint (lazy initialized)
+	private String endpointID;
+}
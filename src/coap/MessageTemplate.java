@@ -0,0 +1,175 @@
+package coap;
+
+import java.nio.BufferOverflowException;
+
+/*
+ * This class describes the functionality of a pre-encoded message that is
+ * sent to many recipients, such as a notification sent to all observers of
+ * a resource.
+ *
+ * The representation is encoded only once. For each recipient, the fields
+ * that differ are patched into a copy of the encoding: the message type and
+ * ID in the header, the value of the Observe option and the Token option.
+ * The Observe option is encoded with a fixed length of two bytes so that
+ * the layout of the options does not depend on its value.
+ *
+ * A template is attached to a message using Message.setTemplate(). It is
+ * detached as soon as other fields of the message are changed, in which case
+ * the message is encoded as usual.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+final class MessageTemplate {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// length of the Observe option value in the encoding
+	static final int OBSERVE_LENGTH = 2; // [bytes]
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	private MessageTemplate(byte[] encoded, int observePos, int tokenPos, int tokenLength) {
+		this.encoded = encoded;
+		this.observePos = observePos;
+		this.tokenPos = tokenPos;
+		this.tokenLength = tokenLength;
+	}
+
+	// Factory methods /////////////////////////////////////////////////////////
+
+	/*
+	 * Creates a template from a prototype of the messages to send
+	 *
+	 * @param prototype The message, which must contain an Observe option
+	 *                  with a two-byte value and a Token option
+	 * @return The template, or null if the prototype is not suitable
+	 */
+	static MessageTemplate create(Message prototype) {
+
+		Option observe = prototype.getFirstOption(OptionNumberRegistry.OBSERVE);
+		Option token = prototype.getFirstOption(OptionNumberRegistry.TOKEN);
+		if (observe == null || observe.getLength() != OBSERVE_LENGTH || token == null) {
+			return null;
+		}
+
+		byte[] encoded = MessageCodec.encode(prototype);
+
+		// locate option values within the encoding
+		int observePos = -1;
+		int tokenPos = -1;
+		int tokenLength = 0;
+
+		int optionCount = encoded[0] & 0xF;
+		int optionNumber = 0;
+		int pos = MessageCodec.HEADER_LENGTH;
+		for (int i = 0; i < optionCount; ++i) {
+
+			int header = encoded[pos] & 0xFF;
+			int length = header & 0xF;
+
+			optionNumber += header >>> 4;
+
+			if (optionNumber == OptionNumberRegistry.TOKEN) {
+				tokenPos = pos;
+				tokenLength = length;
+			}
+
+			if (length > Message.MAX_OPTIONLENGTH_BASE) {
+				length = (encoded[++pos] & 0xFF) + Message.MAX_OPTIONLENGTH_BASE + 1;
+			}
+			++pos;
+
+			if (optionNumber == OptionNumberRegistry.OBSERVE) {
+				observePos = pos;
+			}
+			pos += length;
+		}
+
+		if (observePos < 0 || tokenPos < 0 || tokenLength > Message.MAX_OPTIONLENGTH_BASE) {
+			return null;
+		}
+
+		return new MessageTemplate(encoded, observePos, tokenPos, tokenLength);
+	}
+
+	// Encoding ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Checks whether a message can be encoded using this template, i.e. its
+	 * token fits into the base length field of the option header
+	 */
+	boolean accepts(Message msg) {
+		Option token = msg.getFirstOption(OptionNumberRegistry.TOKEN);
+		return token != null && token.getLength() <= Message.MAX_OPTIONLENGTH_BASE;
+	}
+
+	/*
+	 * Returns the length of a message encoded using this template
+	 */
+	int encodedLength(Message msg) {
+		return encoded.length - tokenLength +
+			msg.getFirstOption(OptionNumberRegistry.TOKEN).getLength();
+	}
+
+	/*
+	 * Encodes a message by patching its individual fields into a copy
+	 * of the template
+	 *
+	 * @param msg The message to encode
+	 * @param buffer The byte array to write the encoding to
+	 * @param offset The position in the byte array to start writing at
+	 * @param limit The position in the byte array not to write beyond
+	 * @return The number of bytes written
+	 * @throws BufferOverflowException If the region is too small
+	 */
+	int encode(Message msg, byte[] buffer, int offset, int limit) {
+
+		Option token = msg.getFirstOption(OptionNumberRegistry.TOKEN);
+		int length = token.getLength();
+
+		if (offset + encodedLength(msg) > limit) {
+			throw new BufferOverflowException();
+		}
+
+		// copy header and options preceding the token
+		System.arraycopy(encoded, 0, buffer, offset, tokenPos);
+
+		// write token with its own length
+		int pos = offset + tokenPos;
+		buffer[pos++] = (byte) (encoded[tokenPos] & 0xF0 | length);
+		token.writeValue(buffer, pos);
+		pos += length;
+
+		// copy remaining options and payload
+		int rest = tokenPos + 1 + tokenLength;
+		System.arraycopy(encoded, rest, buffer, pos, encoded.length - rest);
+		pos += encoded.length - rest;
+
+		// patch header
+		buffer[offset] = (byte) (encoded[0] & 0xCF | (msg.getType().ordinal() & 0x3) << 4);
+		buffer[offset + 2] = (byte) (msg.getID() >> 8);
+		buffer[offset + 3] = (byte) msg.getID();
+
+		// patch observe value, which precedes the token
+		Option observe = msg.getFirstOption(OptionNumberRegistry.OBSERVE);
+		int value = observe != null ? observe.getIntValue() : 0;
+		buffer[offset + observePos    ] = (byte) (value >> 8);
+		buffer[offset + observePos + 1] = (byte) value;
+
+		return pos - offset;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// the encoding of the prototype
+	private byte[] encoded;
+
+	// the position of the Observe option value
+	private int observePos;
+
+	// the position and value length of the Token option
+	private int tokenPos;
+	private int tokenLength;
+}
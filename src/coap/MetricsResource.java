@@ -0,0 +1,55 @@
+package coap;
+
+import metrics.MetricRegistry;
+
+/*
+ * This class describes the functionality of a resource exposing the
+ * metrics of an endpoint, one "name value" line per value, e.g. for
+ * monitoring tools that cannot access JMX.
+ * 
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ * 
+ */
+public class MetricsResource extends ReadOnlyResource {
+	
+	// Constants ///////////////////////////////////////////////////////////////
+	
+	// the default resource identifier below .well-known
+	public static final String DEFAULT_IDENTIFIER = "metrics";
+	
+	// Constructors ////////////////////////////////////////////////////////////
+	
+	/*
+	 * Constructor for a new MetricsResource
+	 * 
+	 * @param registry The registry of the metrics to expose
+	 */
+	public MetricsResource(MetricRegistry registry) {
+		super(DEFAULT_IDENTIFIER);
+		
+		this.registry = registry;
+		
+		setContentTypeCode(MediaTypeRegistry.PLAIN);
+	}
+	
+	// REST Operations /////////////////////////////////////////////////////////
+	
+	@Override
+	public void performGET(GETRequest request) {
+		
+		// create response
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		
+		// return current values as text
+		response.setPayload(registry.toText(), getContentTypeCode());
+		
+		// complete the request
+		request.respond(response);
+	}
+	
+	// Attributes //////////////////////////////////////////////////////////////
+	
+	// the registry of the metrics exposed
+	private MetricRegistry registry;
+}
@@ -0,0 +1,671 @@
+package coap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import layers.TimingWheel;
+import layers.WorkerPool;
+import log.Logger;
+
+/*
+ * This class describes the functionality of an engine that sends the
+ * notifications for observed resources. It provides:
+ *
+ * - Rendering of a representation only once per change, by invoking
+ *   performGET() with a request that captures the response instead of
+ *   sending it; observers using different URI queries are rendered
+ *   separately
+ *
+ * - Encoding of a representation only once per change, using a
+ *   MessageTemplate into which the token, message ID and observe
+ *   sequence of each observer are patched
+ *
+ * - Sending the notifications on a pool of worker threads. The observers
+ *   are partitioned among the workers by remote endpoint, so that the
+ *   notifications for an observer are sent in order. If the workers fall
+ *   behind, the thread reporting a change is blocked until there is room
+ *   in their queues. A round still queued when a later one is submitted
+ *   is skipped, as the later one carries the latest state.
+ *
+ * - Rate limiting according to the NotificationPolicy of a resource.
+ *   Changes within the minimum interval are coalesced into one delayed
+ *   notification, and the state is sent again after the maximum interval.
+ *   An observer with an unacknowledged Confirmable notification is only
+ *   sent the latest state once it was acknowledged. Delayed notifications
+ *   are scheduled on a timing wheel.
+ *
+ * - Eviction of observers that rejected a notification with a Reset or
+ *   did not acknowledge a Confirmable one. Non-confirmable streams are
+ *   sent a Confirmable after the keepalive interval of the policy to
+ *   detect observers that went away.
+ *
+ * Resources responding asynchronously, i.e. after performGET() returned,
+ * cannot be rendered once; performGET() is then invoked for each observer
+ * on the worker threads.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class NotificationEngine {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// default maximum number of pending notification rounds per worker
+	public static final int DEFAULT_QUEUE_CAPACITY = 64; // [rounds]
+
+	// time after which a delayed round is submitted again
+	// if the worker queues were full
+	private static final long RETRY_DELAY = 100; // [milliseconds]
+
+	private static final Logger LOG = Logger.getLogger(NotificationEngine.class);
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Request used to render a representation, capturing the first
+	 * non-empty response placed to it
+	 */
+	private static class RenderRequest extends GETRequest {
+
+		@Override
+		public void respond(Response response) {
+			if (this.response == null && response.getCode() != CodeRegistry.EMPTY_MESSAGE) {
+				this.response = response;
+			}
+		}
+
+		Response response;
+	}
+
+	/*
+	 * Notification that reports the outcome of its transmission, so that
+	 * a notification held back in the meantime can be sent or the
+	 * observer evicted
+	 */
+	private class Notification extends Response {
+
+		Notification(int code, LocalResource resource, Observer observer) {
+			super(code);
+			this.resource = resource;
+			this.observer = observer;
+		}
+
+		@Override
+		public void acknowledged() {
+			notificationCompleted(this);
+		}
+
+		@Override
+		public void rejected() {
+			evict(resource, observer, "rejected");
+		}
+
+		@Override
+		public void timedOut() {
+			evict(resource, observer, "timed out");
+		}
+
+		LocalResource resource;
+		Observer observer;
+	}
+
+	/*
+	 * Notification state of a resource, which is scheduled on a timing
+	 * wheel for delayed and periodic notifications
+	 */
+	static class Schedule extends TimingWheel.Timeout {
+
+		Schedule(LocalResource resource) {
+			this.resource = resource;
+		}
+
+		@Override
+		protected void expired() {
+			resource.getNotificationEngine().scheduleExpired(this);
+		}
+
+		LocalResource resource;
+
+		// the time the last round was started
+		long lastRound;
+
+		// true if a change waits for the minimum interval to elapse
+		boolean pending;
+
+		// the observe sequence number of the round submitted last
+		volatile int latestSequence = -1;
+	}
+
+	/*
+	 * Task sending a notification to the observers assigned to a worker
+	 */
+	private class Round implements Runnable {
+
+		@Override
+		public void run() {
+
+			// a later round follows in the same queue
+			if (sequence != schedule.latestSequence) {
+				numSkipped.addAndGet(observers.size());
+				return;
+			}
+
+			for (Observer observer : observers) {
+				if (prototype != null) {
+					Response notification = newNotification(observer);
+					if (offer(observer, notification, confirmable, keepaliveInterval)) {
+						send(observer.request, notification);
+					}
+				} else {
+					// representation could not be rendered once
+					schedule.resource.performGET(observer.request);
+				}
+			}
+		}
+
+		private Response newNotification(Observer observer) {
+
+			GETRequest request = observer.request;
+
+			Response notification = new Notification(prototype.getCode(),
+				schedule.resource, observer);
+			notification.copyOptions(prototype);
+			notification.setPayload(body);
+
+			// the fields set from here on are patched into the template
+			notification.setTemplate(template);
+
+			Option token = request.getFirstOption(OptionNumberRegistry.TOKEN);
+			if (token != null) {
+				notification.setOption(token);
+			} else {
+				notification.setOptions(OptionNumberRegistry.TOKEN, null);
+			}
+			notification.setOption(observe);
+
+			notification.copyPeer(request);
+			notification.setRequest(request);
+
+			return notification;
+		}
+
+		Schedule schedule;
+		int sequence;
+
+		// the rendered response with placeholder token, or null
+		Response prototype;
+		MessageTemplate template;
+		byte[] body;
+		Option observe;
+		boolean confirmable;
+		long keepaliveInterval;
+
+		List<Observer> observers = new ArrayList<Observer>();
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new notification engine
+	 *
+	 * @param numWorkers The number of threads sending notifications
+	 * @param queueCapacity The maximum number of pending changes per worker
+	 *                      before the thread reporting changes is blocked
+	 * @param timingWheel The wheel on which delayed notifications are scheduled
+	 */
+	public NotificationEngine(int numWorkers, int queueCapacity, TimingWheel timingWheel) {
+		this.workerPool = new WorkerPool("NotificationEngine-Worker",
+			numWorkers, queueCapacity, true);
+		this.timingWheel = timingWheel;
+	}
+
+	public NotificationEngine(int numWorkers, int queueCapacity) {
+		this(numWorkers, queueCapacity, TimingWheel.defaultWheel());
+	}
+
+	public NotificationEngine() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Reports a change of a resource, which is sent to its observers
+	 * according to the resource's notification policy
+	 *
+	 * @param resource The resource that changed
+	 */
+	public void changed(LocalResource resource) {
+
+		if (resource.getObserverCount() == 0) {
+			return;
+		}
+
+		Schedule schedule = resource.getNotificationSchedule();
+		NotificationPolicy policy = resource.getNotificationPolicy();
+
+		synchronized (schedule) {
+
+			// the state is rendered when the waiting notification
+			// is sent, so it includes this change
+			if (schedule.pending) {
+				numCoalesced.incrementAndGet();
+				return;
+			}
+
+			long now = System.currentTimeMillis();
+			long wait = schedule.lastRound + policy.getMinInterval() - now;
+			if (wait > 0) {
+				schedule.pending = true;
+				timingWheel.schedule(schedule, wait);
+				return;
+			}
+
+			startRound(schedule, policy, now);
+		}
+
+		submitRound(resource, policy, true);
+	}
+
+	/*
+	 * Sends a notification about the current state of a resource
+	 * to its observers immediately, regardless of its policy
+	 *
+	 * @param resource The resource whose state to send
+	 */
+	public void notifyObservers(LocalResource resource) {
+
+		Schedule schedule = resource.getNotificationSchedule();
+		NotificationPolicy policy = resource.getNotificationPolicy();
+
+		synchronized (schedule) {
+			schedule.pending = false;
+			startRound(schedule, policy, System.currentTimeMillis());
+		}
+
+		submitRound(resource, policy, true);
+	}
+
+	/*
+	 * Stops the worker threads. Pending notifications are discarded.
+	 */
+	public void shutdown() {
+		workerPool.shutdown();
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the number of notifications sent
+	 */
+	public long getNumNotifications() {
+		return numNotifications.get();
+	}
+
+	/*
+	 * Returns the number of changes merged into a notification that was
+	 * waiting for the minimum interval to elapse
+	 */
+	public long getNumCoalesced() {
+		return numCoalesced.get();
+	}
+
+	/*
+	 * Returns the number of notifications not sent because a later one
+	 * replaced them, either while queued for a worker or while an earlier
+	 * Confirmable was unacknowledged
+	 */
+	public long getNumSkipped() {
+		return numSkipped.get();
+	}
+
+	/*
+	 * Returns the number of Non-confirmable streams checked by
+	 * sending a Confirmable notification
+	 */
+	public long getNumKeepalives() {
+		return numKeepalives.get();
+	}
+
+	/*
+	 * Returns the number of observers removed because a notification
+	 * was rejected or timed out
+	 */
+	public long getNumEvicted() {
+		return numEvicted.get();
+	}
+
+	/*
+	 * Returns the number of notification rounds waiting for a worker
+	 */
+	public int getQueueDepth() {
+		return workerPool.getQueueDepth();
+	}
+
+	// Class functions /////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the engine used by resources that were not assigned one
+	 *
+	 * @return The default engine
+	 */
+	public static synchronized NotificationEngine getDefault() {
+
+		// lazy initialization
+		if (DEFAULT_ENGINE == null) {
+			DEFAULT_ENGINE = new NotificationEngine();
+		}
+		return DEFAULT_ENGINE;
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Records the start of a round and schedules the next one after
+	 * the maximum interval. The caller must hold the schedule's lock.
+	 */
+	private void startRound(Schedule schedule, NotificationPolicy policy, long now) {
+
+		schedule.lastRound = now;
+
+		if (policy.getMaxInterval() > 0) {
+			timingWheel.schedule(schedule, policy.getMaxInterval());
+		} else {
+			timingWheel.cancel(schedule);
+		}
+	}
+
+	/*
+	 * Called on the timing wheel's thread when the minimum interval for
+	 * a waiting change or the maximum interval elapsed
+	 */
+	private void scheduleExpired(Schedule schedule) {
+
+		LocalResource resource = schedule.resource;
+		NotificationPolicy policy = resource.getNotificationPolicy();
+
+		synchronized (schedule) {
+
+			schedule.pending = false;
+			if (resource.getObserverCount() == 0) {
+				return;
+			}
+
+			startRound(schedule, policy, System.currentTimeMillis());
+		}
+
+		// the wheel's thread must not block on full worker queues
+		if (!submitRound(resource, policy, false)) {
+			synchronized (schedule) {
+				schedule.pending = true;
+				timingWheel.schedule(schedule, Math.max(policy.getMinInterval(), RETRY_DELAY));
+			}
+		}
+	}
+
+	/*
+	 * Renders the current state of a resource and hands over
+	 * the notifications to the workers
+	 *
+	 * @param resource The resource whose state to send
+	 * @param policy The notification policy of the resource
+	 * @param blocking True to wait for room in the worker queues
+	 * @return False if a worker queue was full or the thread was
+	 * interrupted, so that not all observers will be notified
+	 */
+	private boolean submitRound(LocalResource resource, NotificationPolicy policy, boolean blocking) {
+
+		Schedule schedule = resource.getNotificationSchedule();
+
+		// group observers by the representation they receive
+		Map<String, List<Observer>> groups = new LinkedHashMap<String, List<Observer>>();
+		for (Observer observer : resource.getObservers()) {
+			String key = representationKey(observer.request);
+			List<Observer> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Observer>();
+				groups.put(key, group);
+			}
+			group.add(observer);
+		}
+
+		int sequence = resource.nextObserveSequence();
+		Option observe = newObserveOption(sequence);
+
+		// rounds still queued are superseded by this one
+		schedule.latestSequence = sequence;
+
+		boolean submitted = true;
+
+		for (List<Observer> group : groups.values()) {
+
+			Round[] rounds = new Round[workerPool.getNumWorkers()];
+			for (int i = 0; i < rounds.length; i++) {
+				rounds[i] = new Round();
+				rounds[i].schedule = schedule;
+				rounds[i].sequence = sequence;
+				rounds[i].observe = observe;
+				rounds[i].confirmable = policy.isConfirmable();
+				rounds[i].keepaliveInterval = policy.getKeepaliveInterval();
+			}
+
+			// render and encode representation once
+			Response prototype = render(resource, group.get(0).request, observe);
+			if (prototype != null) {
+				MessageTemplate template = MessageTemplate.create(prototype);
+				byte[] body = prototype.getPayload();
+				for (Round round : rounds) {
+					round.prototype = prototype;
+					round.template = template;
+					round.body = body;
+				}
+			}
+
+			// assign observers to workers by remote endpoint
+			for (Observer observer : group) {
+				int index = (observer.request.endpointID().hashCode() & 0x7FFFFFFF) % rounds.length;
+				rounds[index].observers.add(observer);
+			}
+
+			for (int i = 0; i < rounds.length; i++) {
+				if (rounds[i].observers.isEmpty()) {
+					continue;
+				}
+				if (!blocking) {
+					submitted &= workerPool.execute(i, rounds[i]);
+				} else try {
+					workerPool.executeBlocking(i, rounds[i]);
+				} catch (InterruptedException e) {
+					LOG.info("Notification of %d observers interrupted",
+						rounds[i].observers.size());
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+
+		return submitted;
+	}
+
+	/*
+	 * Decides whether a notification is sent to an observer now or held
+	 * back until the unacknowledged one was acknowledged, and whether
+	 * it is sent as a Confirmable
+	 *
+	 * @return True if the notification is to be sent
+	 */
+	private boolean offer(Observer observer, Response notification,
+		boolean confirmable, long keepaliveInterval) {
+
+		synchronized (observer) {
+
+			long now = System.currentTimeMillis();
+			if (!confirmable && keepaliveInterval > 0 &&
+				now - observer.lastConfirmable >= keepaliveInterval) {
+
+				// check that a Non-confirmable stream is still received
+				confirmable = true;
+				numKeepalives.incrementAndGet();
+			}
+			notification.setType(confirmable ?
+				Message.messageType.Confirmable : Message.messageType.Non_Confirmable);
+
+			if (observer.unacknowledged != null) {
+
+				// keep latest state only
+				if (observer.deferred != null) {
+					numSkipped.incrementAndGet();
+				}
+				observer.deferred = notification;
+				return false;
+			}
+
+			if (notification.isConfirmable()) {
+				observer.unacknowledged = notification;
+				observer.lastConfirmable = now;
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Called when a Confirmable notification was acknowledged or timed out,
+	 * sending the notification held back in the meantime, if any
+	 */
+	private void notificationCompleted(Notification notification) {
+
+		Observer observer = notification.observer;
+		Response next;
+
+		synchronized (observer) {
+
+			if (observer.unacknowledged != notification) {
+				return;
+			}
+
+			next = observer.deferred;
+			observer.deferred = null;
+			observer.unacknowledged = next != null && next.isConfirmable() ? next : null;
+			if (observer.unacknowledged != null) {
+				observer.lastConfirmable = System.currentTimeMillis();
+			}
+		}
+
+		if (next != null) {
+			send(observer.request, next);
+		}
+	}
+
+	/*
+	 * Removes an observer whose notification was rejected or not
+	 * acknowledged, discarding notifications held back for it
+	 */
+	private void evict(LocalResource resource, Observer observer, String reason) {
+
+		synchronized (observer) {
+			observer.unacknowledged = null;
+			observer.deferred = null;
+		}
+
+		if (resource.removeObserver(observer)) {
+			numEvicted.incrementAndGet();
+			LOG.info("Notification to %s %s, observer removed",
+				observer.request.endpointID(), reason);
+		}
+	}
+
+	/*
+	 * Invokes performGET() of a resource with a copy of an observer's request
+	 *
+	 * @return The response with placeholder token and observe option,
+	 * or null if the resource did not respond synchronously
+	 */
+	private static Response render(LocalResource resource, GETRequest observer, Option observe) {
+
+		RenderRequest request = new RenderRequest();
+		request.copyOptions(observer);
+		request.copyPeer(observer);
+
+		resource.performGET(request);
+
+		Response response = request.response;
+		if (response != null) {
+			response.setType(Message.messageType.Non_Confirmable);
+			response.setOption(observe);
+			if (!response.hasOption(OptionNumberRegistry.TOKEN)) {
+				response.setOption(observer.getFirstOption(OptionNumberRegistry.TOKEN));
+			}
+		}
+		return response;
+	}
+
+	private void send(GETRequest observer, Response notification) {
+
+		Communicator communicator = observer.getCommunicator();
+		if (communicator != null) {
+			try {
+				communicator.sendMessage(notification);
+			} catch (IOException e) {
+				LOG.error("Failed to notify %s: %s",
+					observer.endpointID(), e.getMessage());
+				return;
+			}
+		} else {
+			// handle locally
+			notification.handle();
+		}
+		numNotifications.incrementAndGet();
+	}
+
+	/*
+	 * Returns the Observe option for a sequence number, which is
+	 * encoded with a fixed length so that it can be patched
+	 */
+	private static Option newObserveOption(int sequence) {
+		byte[] value = new byte[MessageTemplate.OBSERVE_LENGTH];
+		value[0] = (byte) (sequence >> 8);
+		value[1] = (byte) sequence;
+		return new Option(value, OptionNumberRegistry.OBSERVE);
+	}
+
+	/*
+	 * Returns a string identifying the representation an observer receives,
+	 * which depends on the URI queries of its request
+	 */
+	private static String representationKey(GETRequest observer) {
+
+		List<Option> queries = observer.getOptions(OptionNumberRegistry.URI_QUERY);
+		if (queries == null) {
+			return "";
+		}
+
+		StringBuilder builder = new StringBuilder();
+		for (Option query : queries) {
+			builder.append('?').append(query.getStringValue());
+		}
+		return builder.toString();
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	// the engine used by default (lazy initialized)
+	private static NotificationEngine DEFAULT_ENGINE;
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private WorkerPool workerPool;
+
+	// the wheel on which delayed notifications are scheduled
+	private TimingWheel timingWheel;
+
+	private AtomicLong numNotifications = new AtomicLong();
+	private AtomicLong numCoalesced     = new AtomicLong();
+	private AtomicLong numSkipped       = new AtomicLong();
+	private AtomicLong numKeepalives    = new AtomicLong();
+	private AtomicLong numEvicted       = new AtomicLong();
+}
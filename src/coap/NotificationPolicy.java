@@ -0,0 +1,95 @@
+package coap;
+
+/*
+ * This class describes the policy by which the notifications for an
+ * observed resource are sent. It defines:
+ *
+ * - A minimum interval between notifications. Changes within the interval
+ *   are coalesced into a single notification carrying the latest state,
+ *   which is sent once the interval elapsed.
+ *
+ * - A maximum interval after which the current state is sent again even
+ *   if the resource did not change, or 0 for none
+ *
+ * - Whether notifications are sent as Confirmables. An observer is not
+ *   sent further notifications while one is unacknowledged; instead, only
+ *   the latest of the states that changed in the meantime is sent as soon
+ *   as the acknowledgement arrives.
+ *
+ * - A keepalive interval after which a notification is sent as a
+ *   Confirmable even if the policy uses Non-confirmables, so that
+ *   observers that went away are detected by the missing acknowledgement
+ *
+ * Policies are immutable and may be shared by any number of resources.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class NotificationPolicy {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// time after which a Non-confirmable stream is confirmed by default
+	public static final long DEFAULT_KEEPALIVE_INTERVAL = 24 * 60 * 60 * 1000; // [milliseconds]
+	
+	// policy sending a Non-confirmable notification for every change
+	public static final NotificationPolicy DEFAULT
+		= new NotificationPolicy(0, 0, false);
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new notification policy
+	 *
+	 * @param minInterval The minimum time in milliseconds between
+	 *                    notifications, or 0 for none
+	 * @param maxInterval The time in milliseconds after which an unchanged
+	 *                    state is sent again, or 0 for never
+	 * @param confirmable True to send notifications as Confirmables
+	 * @param keepaliveInterval The time in milliseconds after which a
+	 *                          notification is sent as a Confirmable
+	 *                          to check the observer is still alive
+	 */
+	public NotificationPolicy(long minInterval, long maxInterval, boolean confirmable,
+		long keepaliveInterval) {
+
+		if (minInterval < 0 || maxInterval < 0 || keepaliveInterval < 0) {
+			throw new IllegalArgumentException("Notification intervals must not be negative");
+		}
+
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		this.confirmable = confirmable;
+		this.keepaliveInterval = keepaliveInterval;
+	}
+
+	public NotificationPolicy(long minInterval, long maxInterval, boolean confirmable) {
+		this(minInterval, maxInterval, confirmable, DEFAULT_KEEPALIVE_INTERVAL);
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	public boolean isConfirmable() {
+		return confirmable;
+	}
+
+	public long getKeepaliveInterval() {
+		return keepaliveInterval;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final long minInterval;
+	private final long maxInterval;
+	private final boolean confirmable;
+	private final long keepaliveInterval;
+}
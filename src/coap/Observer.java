@@ -0,0 +1,36 @@
+package coap;
+
+/*
+ * This class describes the state kept for an endpoint observing
+ * a local resource.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+class Observer {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	Observer(GETRequest request) {
+		this.request = request;
+		this.lastConfirmable = System.currentTimeMillis();
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// the request that established the observation relationship
+	final GETRequest request;
+
+	// the Confirmable notification waiting for its acknowledgement,
+	// guarded by the observer itself
+	Response unacknowledged;
+
+	// the latest notification held back until the unacknowledged one
+	// was acknowledged, replacing any earlier one
+	Response deferred;
+
+	// the time the last Confirmable notification was sent, or the
+	// observation relationship was established
+	long lastConfirmable;
+}
@@ -2,7 +2,8 @@ package coap;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+
+import log.Logger;
 
 /*
  * This class describes the functionality of the CoAP messages
@@ -13,6 +14,10 @@ import java.util.Arrays;
  */
 public class Option {
 
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(Option.class);
+
 	// Constructors ////////////////////////////////////////////////////////////
 	
 	/*
@@ -57,6 +62,25 @@ public class Option {
 		setOptionNr(nr);
 	}
 	
+	/*
+	 * This is a constructor for a new option with a given number, based on a
+	 * slice of a byte array, e.g. of a received datagram. The bytes are not
+	 * copied and must not be modified while the option is in use.
+	 * 
+	 * @param data The byte array
+	 * @param offset The offset of the option value within the array
+	 * @param length The length of the option value
+	 * @param nr The option number
+	 * 
+	 * @return A new option with a given number referring to the byte array
+	 */
+	public Option (byte[] data, int offset, int length, int nr) {
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+		setOptionNr(nr);
+	}
+	
 	
 	// Procedures //////////////////////////////////////////////////////////////
 	
@@ -67,34 +91,37 @@ public class Option {
 	 *            current option.
 	 */
 	private void setStringValue(String str) {
-		value = ByteBuffer.wrap(str.getBytes());	
+		try {
+			setValue(str.getBytes("UTF8"));
+		} catch (UnsupportedEncodingException e) {
+			setValue(str.getBytes());
+		}
+		stringValue = str;
 	}
 	
 	/*
 	 * This method sets the data of the current option based on a integer value
 	 * 
+	 * The value is kept unboxed; its bytes are only produced when requested.
+	 * 
 	 * @param val The integer representation of the data which is stored in the
 	 *            current option.
 	 */
 	private void setIntValue(int val) {
+		
+		// determine number of bytes without leading zeros,
+		// but at least one byte
 		int neededBytes = 4;
-		if (val == 0) {
-			value = ByteBuffer.allocate(1);
-			value.put((byte) 0);
-		} else {ByteBuffer aux = ByteBuffer.allocate(4);
-			aux.putInt(val);
-			for (int i=3; i >= 0; i--) {
-				if (aux.get(3-i) == 0x00) {
-					neededBytes--;
-				} else {
-					break;
-				}
-			}
-			value = ByteBuffer.allocate(neededBytes);
-			for (int i = neededBytes - 1; i >= 0; i--) {
-				value.put(aux.get(3-i));
-			}
+		while (neededBytes > 1 && (val >>> ((neededBytes - 1) * 8)) == 0) {
+			neededBytes--;
 		}
+		
+		data = null;
+		offset = 0;
+		length = neededBytes;
+		intValue = val;
+		isInt = true;
+		stringValue = null;
 	}
 	
 	/*
@@ -112,7 +139,11 @@ public class Option {
 	 * @param value The byte array.
 	 */
 	public void setValue (byte[] value) {
-		this.value = ByteBuffer.wrap(value);
+		this.data = value;
+		this.offset = 0;
+		this.length = value.length;
+		this.isInt = false;
+		this.stringValue = null;
 	}
 	
 	
@@ -122,10 +153,38 @@ public class Option {
 	/*
 	 * This method returns the data of the current option as byte array
 	 * 
+	 * A slice of a larger array is copied on each call rather than replaced
+	 * by the copy, as readers on other threads may use the slice meanwhile.
+	 * 
 	 * @return The byte array holding the data
 	 */
 	public byte[] getRawValue() {
-		return value.array();
+		
+		if (data != null && offset == 0 && length == data.length) {
+			return data;
+		}
+		
+		// copy value into an array of its own
+		byte[] raw = new byte[length];
+		writeValue(raw, 0);
+		return raw;
+	}
+
+	
+	/*
+	 * This method writes the data of the current option into a byte array
+	 * 
+	 * @param buffer The byte array to write to
+	 * @param pos The position within the array to write the data at
+	 */
+	public void writeValue(byte[] buffer, int pos) {
+		if (data != null) {
+			System.arraycopy(data, offset, buffer, pos, length);
+		} else {
+			for (int i = 0; i < length; i++) {
+				buffer[pos + i] = byteAt(i);
+			}
+		}
 	}
 
 	@Override
@@ -133,7 +192,11 @@ public class Option {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + optionNr;
-		result = prime * result + ((value == null) ? 0 : value.hashCode());
+		int valueHash = 1;
+		for (int i = 0; i < length; i++) {
+			valueHash = prime * valueHash + byteAt(i);
+		}
+		result = prime * result + valueHash;
 		return result;
 	}
 	
@@ -148,11 +211,14 @@ public class Option {
 		Option other = (Option) obj;
 		if (optionNr != other.optionNr)
 			return false;
-		if (value == null) {
-			if (other.value != null)
-				return false;
-		} else if (!Arrays.equals(this.getRawValue(),other.getRawValue()))
+		if (length != other.length)
 			return false;
+		if (isInt && other.isInt)
+			return intValue == other.intValue;
+		for (int i = 0; i < length; i++) {
+			if (byteAt(i) != other.byteAt(i))
+				return false;
+		}
 		return true;
 	}
 
@@ -180,7 +246,7 @@ public class Option {
 	 * @return The length of the data stored in the ByteBuffer as number of bytes
 	 */
 	public int getLength() {
-		return value.capacity();
+		return length;
 	}
 	
 	/*
@@ -189,13 +255,22 @@ public class Option {
 	 * @return The string representation of the current option's data
 	 */
 	public String getStringValue () {
-		String result = "";
-		try {
-			result = new String(value.array(), "UTF8");
-		} catch (UnsupportedEncodingException e) {
-			System.err.println("String conversion error");
+		
+		// lazy initialization
+		if (stringValue == null) {
+			String result = "";
+			try {
+				if (data != null) {
+					result = new String(data, offset, length, "UTF8");
+				} else {
+					result = new String(getRawValue(), "UTF8");
+				}
+			} catch (UnsupportedEncodingException e) {
+				LOG.error("String conversion error: %s", e.getMessage());
+			}
+			stringValue = result;
 		}
-		return result;
+		return stringValue;
 	}
 	
 	/*
@@ -204,16 +279,16 @@ public class Option {
 	 * @return The integer representation of the current option's data
 	 */
 	public int getIntValue () {
-		int byteLength = value.capacity();
-		ByteBuffer temp = ByteBuffer.allocate(4);
-		for (int i=0; i < (4-byteLength); i++) {
-			temp.put((byte)0);
-		}
-		for (int i=0; i < byteLength; i++) {
-			temp.put(value.get(i));
+		
+		if (isInt) {
+			return intValue;
 		}
 		
-		int val = temp.getInt(0);
+		// decode big-endian value
+		int val = 0;
+		for (int i = 0; i < length; i++) {
+			val = (val << 8) | (data[offset + i] & 0xFF);
+		}
 		return val;
 	}
 	
@@ -223,7 +298,22 @@ public class Option {
 	 * @return The current option's data as byte array.
 	 */
 	public Object getValue () {
-		return value;
+		return ByteBuffer.wrap(getRawValue());
+	}
+	
+	/*
+	 * This method returns a single byte of the current option's data
+	 * 
+	 * @param i The index of the byte within the data
+	 * @return The byte at the given index
+	 */
+	private byte byteAt(int i) {
+		if (data != null) {
+			return data[offset + i];
+		} else {
+			// big-endian representation of the integer value
+			return (byte) (intValue >>> ((length - 1 - i) * 8));
+		}
 	}
 	
 	private static String hex(byte[] data) {
@@ -300,8 +390,18 @@ public class Option {
 	
 	// Attributes //////////////////////////////////////////////////////////////
 	
-	//The current option's data
-	private ByteBuffer value;
+	//The current option's data, possibly a slice of a larger array
+	private byte[] data;
+	private int offset;
+	private int length;
+	
+	//The current option's integer value if set as such, so that
+	//integer options need not be converted to and from bytes
+	private int intValue;
+	private boolean isInt;
+	
+	//The current option's data decoded as string (lazy initialized)
+	private String stringValue;
 	
 	//The current option's number
 	private int optionNr;
@@ -0,0 +1,249 @@
+package coap;
+
+import java.nio.ByteBuffer;
+
+/*
+ * This class describes the functionality of a payload buffer that consists
+ * of a list of chunks, each referring to a slice of a byte array.
+ *
+ * Appending data adds a chunk without copying the data already contained,
+ * so that the payload of a blockwise transfer is assembled in linear time.
+ * The byte arrays are not copied and must not be modified while the buffer
+ * is in use. The buffer is not thread-safe; Message synchronizes access.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+class PayloadBuffer {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// number of chunks the buffer has room for initially
+	private static final int INITIAL_CHUNK_CAPACITY = 4;
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Replaces the contents of the buffer by a slice of a byte array
+	 *
+	 * @param data The byte array, or null to clear the buffer
+	 * @param offset The position of the slice within the array
+	 * @param length The length of the slice
+	 */
+	void set(byte[] data, int offset, int length) {
+		for (int i = 0; i < count; ++i) {
+			chunks[i] = null;
+		}
+		count = 0;
+		size = 0;
+		current = 0;
+		if (data != null) {
+			addChunk(data, offset, length);
+		}
+	}
+
+	/*
+	 * Appends a slice of a byte array to the buffer
+	 *
+	 * @param data The byte array
+	 * @param offset The position of the slice within the array
+	 * @param length The length of the slice
+	 */
+	void append(byte[] data, int offset, int length) {
+		if (length > 0 || count == 0) {
+			addChunk(data, offset, length);
+		}
+	}
+
+	/*
+	 * Appends the contents of another buffer to this one
+	 *
+	 * @param other The buffer whose chunks to append
+	 */
+	void append(PayloadBuffer other) {
+		for (int i = 0; i < other.count; ++i) {
+			append(other.chunks[i], other.offsets[i], other.chunkLength(i));
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the number of bytes in the buffer
+	 */
+	int length() {
+		return size;
+	}
+
+	/*
+	 * Checks whether the buffer holds a payload, which may be empty
+	 */
+	boolean isNull() {
+		return count == 0;
+	}
+
+	/*
+	 * Returns the byte at a given position
+	 *
+	 * @param pos The position, which must be smaller than the length
+	 * @return The byte as an unsigned value
+	 */
+	int get(int pos) {
+		int i = locate(pos);
+		return chunks[i][offsets[i] + pos - starts[i]] & 0xFF;
+	}
+
+	/*
+	 * Copies bytes starting at a given position, possibly spanning
+	 * several chunks
+	 *
+	 * @param pos The position of the first byte to copy
+	 * @param buffer The byte array to copy to
+	 * @param offset The position within the array to copy to
+	 * @param length The maximum number of bytes to copy
+	 * @return The number of bytes copied
+	 */
+	int read(int pos, byte[] buffer, int offset, int length) {
+
+		int copied = 0;
+		length = Math.min(length, size - pos);
+
+		if (length > 0) {
+			int i = locate(pos);
+			while (copied < length) {
+				int from = pos + copied - starts[i];
+				int n = Math.min(length - copied, chunkLength(i) - from);
+				System.arraycopy(chunks[i], offsets[i] + from, buffer, offset + copied, n);
+				copied += n;
+				++i;
+			}
+			current = i - 1;
+		}
+		return copied;
+	}
+
+	/*
+	 * Writes the complete contents into a byte array
+	 *
+	 * @param buffer The byte array to write to
+	 * @param pos The position within the array to write at
+	 */
+	void writeTo(byte[] buffer, int pos) {
+		for (int i = 0; i < count; ++i) {
+			int length = chunkLength(i);
+			System.arraycopy(chunks[i], offsets[i], buffer, pos, length);
+			pos += length;
+		}
+	}
+
+	/*
+	 * Returns a read-only view of the chunk containing a given position,
+	 * starting at that position
+	 *
+	 * @param pos The position, which must be smaller than the length
+	 * @return The view of the remaining bytes of the chunk
+	 */
+	ByteBuffer view(int pos) {
+		int i = locate(pos);
+		int from = pos - starts[i];
+		return ByteBuffer.wrap(chunks[i], offsets[i] + from, chunkLength(i) - from)
+			.slice().asReadOnlyBuffer();
+	}
+
+	/*
+	 * Returns the contents as a single byte array. If the buffer consists
+	 * of several chunks or a slice, they are merged into a new array,
+	 * which replaces them.
+	 *
+	 * @return The contents, or null if the buffer holds no payload
+	 */
+	byte[] toArray() {
+
+		if (count == 0) {
+			return null;
+		}
+
+		if (count == 1 && offsets[0] == 0 && size == chunks[0].length) {
+			return chunks[0];
+		}
+
+		byte[] merged = new byte[size];
+		writeTo(merged, 0);
+		set(merged, 0, merged.length);
+		return merged;
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	private void addChunk(byte[] data, int offset, int length) {
+
+		if (chunks == null || count == chunks.length) {
+			int capacity = chunks == null ? INITIAL_CHUNK_CAPACITY : chunks.length * 2;
+			byte[][] grownChunks = new byte[capacity][];
+			int[] grownOffsets = new int[capacity];
+			int[] grownStarts = new int[capacity + 1];
+			if (chunks != null) {
+				System.arraycopy(chunks, 0, grownChunks, 0, count);
+				System.arraycopy(offsets, 0, grownOffsets, 0, count);
+				System.arraycopy(starts, 0, grownStarts, 0, count + 1);
+			}
+			chunks = grownChunks;
+			offsets = grownOffsets;
+			starts = grownStarts;
+		}
+
+		chunks[count] = data;
+		offsets[count] = offset;
+		starts[count] = size;
+		size += length;
+		starts[++count] = size;
+	}
+
+	private int chunkLength(int i) {
+		return starts[i + 1] - starts[i];
+	}
+
+	/*
+	 * Returns the index of the chunk containing a position. Since readers
+	 * usually proceed sequentially, the chunk accessed last is tried first.
+	 */
+	private int locate(int pos) {
+
+		if (current < count && pos >= starts[current] && pos < starts[current + 1]) {
+			return current;
+		}
+
+		int low = 0;
+		int high = count - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		current = low;
+		return low;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// the byte arrays the chunks refer to
+	private byte[][] chunks;
+
+	// the position of each chunk within its array
+	private int[] offsets;
+
+	// the position of each chunk within the payload; the entry following
+	// the last chunk holds the payload length
+	private int[] starts;
+
+	private int count;
+	private int size;
+
+	// index of the chunk accessed last
+	private int current;
+}
@@ -2,7 +2,20 @@ package coap;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+/*
+ * This class describes the functionality of an input stream reading
+ * the payload of a message, e.g. a response received blockwise.
+ * 
+ * Reading blocks until the requested data was appended to the payload
+ * or the message is complete. Bulk reads return as soon as some data is
+ * available, so that a reader proceeds block by block during a transfer.
+ * 
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ * 
+ */
 public class PayloadInputStream extends InputStream {
 
 	public PayloadInputStream(Message message) {
@@ -20,13 +33,51 @@ public class PayloadInputStream extends InputStream {
 		return value;
 	}
 	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		
+		int bytesRead = message.readPayload(pos, b, off, len);
+		if (bytesRead > 0) {
+			pos += bytesRead;
+		}
+		return bytesRead;
+	}
+	
+	/*
+	 * Reads the next part of the payload without copying it
+	 * 
+	 * @return A read-only view of the next available bytes,
+	 *         or null if the end of the payload was reached
+	 */
+	public ByteBuffer readBuffer() {
+		
+		ByteBuffer buffer = message.readPayloadBuffer(pos);
+		if (buffer != null) {
+			pos += buffer.remaining();
+		}
+		return buffer;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		
+		// skip available data only, as InputStream.skip() does not block
+		long skipped = Math.max(0, Math.min(n, available()));
+		pos += skipped;
+		return skipped;
+	}
+	
 	public String readString(String charsetName) throws IOException {
 		int size = available();
 		if (size > 0) {
 			byte[] bytes = new byte[size];
 			int bytesRead = read(bytes);
 			if (bytesRead >= 0) {
-				return new String(bytes, charsetName);
+				return new String(bytes, 0, bytesRead, charsetName);
 			}
 		}
 		return null;
@@ -37,9 +88,13 @@ public class PayloadInputStream extends InputStream {
 	}
 	
 	
+	/*
+	 * Returns the number of bytes that can be read without blocking,
+	 * i.e. those received so far during a transfer
+	 */
 	@Override
 	public int available() {
-		return message.payloadSize() - pos;
+		return Math.max(0, message.payloadSize() - pos);
 	}
 
 	protected Message message;
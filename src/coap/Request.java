@@ -6,6 +6,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeoutException;
+
+import log.Logger;
 
 /*
  * This class describes the functionality of a CoAP Request as
@@ -18,12 +21,18 @@ import java.util.concurrent.LinkedBlockingQueue;
  *        using anonymous inner classes
  *     2) by registering a handler using registerResponseHandler()
  *     3) by calling the blocking method receiveResponse()
+ *     4) by executing it using executeAsync(), which returns a future
+ *        that is completed with the response
  * 
  * @author Dominique Im Obersteg & Daniel Pauli
  * @version 0.1
  * 
  */
 public class Request extends Message {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(Request.class);
 	
 	// Constructors ////////////////////////////////////////////////////////////
 	
@@ -53,6 +62,39 @@ public class Request extends Message {
 		}
 	}
 	
+	/*
+	 * Executes the request without waiting for the response
+	 * 
+	 * @return The future that is completed with the response, or fails
+	 * if the request could not be sent or timed out
+	 */
+	public ResponseFuture executeAsync() {
+		
+		Communicator comm = communicator != null ? communicator : defaultCommunicator();
+		ResponseFuture future = new ResponseFuture(this, comm);
+		this.future = future;
+		
+		if (comm != null) try {
+			comm.sendMessage(this);
+		} catch (IOException e) {
+			future.fail(e);
+		} else {
+			future.fail(new IOException("No communicator available"));
+		}
+		return future;
+	}
+	
+	/*
+	 * Executes the request without waiting for the response
+	 * 
+	 * @param timeout The time in milliseconds after which the future
+	 *                fails and the request is cancelled
+	 * @return The future that is completed with the response
+	 */
+	public ResponseFuture executeAsync(long timeout) {
+		return executeAsync().setDeadline(timeout);
+	}
+	
 	private static final long startTime = System.currentTimeMillis();
 	
 	/*
@@ -65,7 +107,7 @@ public class Request extends Message {
 		// assign response to this request
 		response.setRequest(this);
 		
-		response.setURI(getURI());
+		response.copyPeer(this);
 		response.setOption(getFirstOption(OptionNumberRegistry.TOKEN));
 
 		if (responseCount == 0 && isConfirmable()) {
@@ -149,6 +191,14 @@ public class Request extends Message {
 		this.communicator = communicator;
 	}
 	
+	/*
+	 * Returns the communicator that received this request, or null if
+	 * the request is of local origin
+	 */
+	Communicator getCommunicator() {
+		return communicator;
+	}
+	
 	/*
 	 * Returns a response that was placed using respond() and
 	 * blocks until such a response is available.
@@ -162,7 +212,7 @@ public class Request extends Message {
 		
 		// response queue required to perform this operation
 		if (!responseQueueEnabled()) {
-			System.out.println("WARNING: Missing useResponseQueue(true) call, responses may be lost");
+			LOG.warning("Missing useResponseQueue(true) call, responses may be lost");
 			enableResponseQueue(true);
 		}
 		
@@ -178,8 +228,26 @@ public class Request extends Message {
 		if (responseQueueEnabled()) {
 			responseQueue.offer(TIMEOUT_RESPONSE);
 		}
+		if (future != null) {
+			future.fail(new TimeoutException("Transmission of request timed out"));
+		}
+	}
+	
+	/*
+	 * Notification method that is called when a blockwise transfer of this
+	 * request or of its response was aborted, e.g. as a block could not be
+	 * sent. The future of an asynchronous execution fails with the cause,
+	 * as the response is missing or its payload is incomplete.
+	 * 
+	 * @param cause The reason the transfer was aborted
+	 */
+	public void transferAborted(Throwable cause) {
+		if (future != null) {
+			future.fail(cause);
+		}
 	}
 
+
 	/*
 	 * Registers a handler for responses to this request
 	 * 
@@ -238,6 +306,31 @@ public class Request extends Message {
 		return responseQueue != null;
 	}	
 	
+	/*
+	 * Sets the expected size of the response payload, e.g. the maximum
+	 * size estimate (sz) of a remote resource. The hint is not sent, but
+	 * allows to request the blocks of a large response concurrently.
+	 * 
+	 * @param sizeHint The expected payload size in bytes, or -1 if unknown
+	 */
+	public void setSizeHint(int sizeHint) {
+		this.sizeHint = sizeHint;
+	}
+	
+	/*
+	 * Sets the expected size of the response payload according to
+	 * the maximum size estimate of a resource
+	 * 
+	 * @param resource The resource the request is for
+	 */
+	public void setSizeHint(Resource resource) {
+		setSizeHint(resource != null ? resource.getMaximumSizeEstimate() : -1);
+	}
+	
+	public int getSizeHint() {
+		return sizeHint;
+	}
+	
 	// Subclassing /////////////////////////////////////////////////////////////
 	
 	/*
@@ -251,7 +344,7 @@ public class Request extends Message {
 		// enqueue response
 		if (responseQueueEnabled()) {
 			if (!responseQueue.offer(response)) {
-				System.out.println("ERROR: Failed to enqueue response to request");
+				LOG.error("Failed to enqueue response to request");
 			}
 		}
 	
@@ -262,6 +355,13 @@ public class Request extends Message {
 			}
 		}
 
+		// complete future unless further blocks are appended to the payload;
+		// an empty Acknowledgement only announces a separate response
+		if (future != null && !response.isEmptyACK() && (response.isComplete() ||
+			!response.hasOption(OptionNumberRegistry.BLOCK2))) {
+			
+			future.complete(response);
+		}
 	}
 	
 	protected void responsePayloadAppended(Response response, byte[] block) {
@@ -269,7 +369,11 @@ public class Request extends Message {
 	}
 	
 	protected void responseCompleted(Response response) {
-		// do nothing
+		
+		// complete future once the payload was transferred
+		if (future != null && !response.isEmptyACK()) {
+			future.complete(response);
+		}
 	}
 	
 	/*
@@ -279,7 +383,7 @@ public class Request extends Message {
 	 * @param handler A handler for this request
 	 */
 	public void dispatch(RequestHandler handler) {
-		System.out.printf("Unable to dispatch request with code '%s'", 
+		LOG.warning("Unable to dispatch request with code '%s'",
 			CodeRegistry.toString(getCode()));
 	}
 	
@@ -291,28 +395,35 @@ public class Request extends Message {
 	// Class functions /////////////////////////////////////////////////////////
 
 	/*
-	 * Returns the default communicator used for outgoing requests
+	 * Returns the default communicator used for outgoing requests, which
+	 * is shared by all threads and created once on first use
 	 * 
 	 * @return The default communicator
 	 */
 	public static Communicator defaultCommunicator() {
 		
-		// lazy initialization
-		if (DEFAULT_COMM == null) {
-			try {
-				DEFAULT_COMM = new Communicator();
-			} catch (SocketException e) {
-				System.out.printf("[%s] Failed to create default communicator: %s\n", 
-					"JCoAP", e.getMessage());
+		// lazy initialization; the field is volatile, so that the lock is
+		// only taken until the communicator exists
+		Communicator comm = DEFAULT_COMM;
+		if (comm == null) {
+			synchronized (Request.class) {
+				comm = DEFAULT_COMM;
+				if (comm == null) try {
+					comm = new Communicator();
+					DEFAULT_COMM = comm;
+				} catch (SocketException e) {
+					LOG.warning("Failed to create default communicator: %s", e.getMessage());
+				}
 			}
 		}
-		return DEFAULT_COMM;
+		return comm;
 	}
 		
 	// Class attributes ////////////////////////////////////////////////////////
 	
 	// the default communicator for request objects (lazy initialized)
-	private static Communicator DEFAULT_COMM;
+	private static volatile Communicator DEFAULT_COMM;
+
 	
 	private static final Response TIMEOUT_RESPONSE
 		= new Response();
@@ -328,6 +439,12 @@ public class Request extends Message {
 	// receiveResponse() 
 	private BlockingQueue<Response> responseQueue;
 	
+	// future of an asynchronous execution, or null
+	private volatile ResponseFuture future;
+	
 	// number of responses to this request
 	private int responseCount;
+	
+	// expected size of the response payload, or -1 if unknown
+	private int sizeHint = -1;
 }
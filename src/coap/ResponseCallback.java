@@ -0,0 +1,13 @@
+package coap;
+
+/*
+ * Callback interface for the outcome of a request executed asynchronously,
+ * see ResponseFuture.addCallback(). The methods are invoked on the thread
+ * that completed the future, e.g. a receiver thread, and must not block.
+ */
+public interface ResponseCallback {
+
+	void completed(Response response);
+
+	void failed(Throwable cause);
+}
@@ -0,0 +1,284 @@
+package coap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import layers.TimingWheel;
+import log.Logger;
+
+/*
+ * This class describes the functionality of the pending result of a request
+ * executed asynchronously using Request.executeAsync(). It provides:
+ *
+ * - Completion by the communication stack when the response arrives and its
+ *   payload is complete, or failure when the transmission timed out, so that
+ *   no thread needs to wait for the response
+ *
+ * - Callbacks that are invoked on completion, which allow to chain further
+ *   requests without blocking
+ *
+ * - A deadline after which the future fails with a TimeoutException
+ *
+ * - Cancellation, which stops the retransmissions of the request and the
+ *   matching of responses to it
+ *
+ * Only the first response completes the future; further responses, e.g.
+ * notifications of an observed resource, are passed to the response
+ * handlers of the request as usual.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class ResponseFuture implements Future<Response> {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(ResponseFuture.class);
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Timeout linked into the timing wheel to enforce the deadline
+	 */
+	private class Deadline extends TimingWheel.Timeout {
+
+		@Override
+		protected void expired() {
+
+			// release the transmission before waking up waiting threads
+			if (!isDone()) {
+				cancelTransmission();
+				fail(new TimeoutException("Deadline of request expired"));
+			}
+		}
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for the future of a request
+	 *
+	 * @param request The request whose response is awaited
+	 * @param communicator The communicator the request is sent by,
+	 *                     or null if it is handled locally
+	 */
+	ResponseFuture(Request request, Communicator communicator) {
+		this.request = request;
+		this.communicator = communicator;
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Registers a callback that is invoked when this future completes,
+	 * or immediately if it is done already
+	 *
+	 * @param callback The callback to invoke
+	 * @return This future, to allow chaining
+	 */
+	public ResponseFuture addCallback(ResponseCallback callback) {
+
+		synchronized (this) {
+			if (!isDone()) {
+
+				// lazy creation of callback list
+				if (callbacks == null) {
+					callbacks = new ArrayList<ResponseCallback>();
+				}
+				callbacks.add(callback);
+				return this;
+			}
+		}
+
+		invoke(callback);
+		return this;
+	}
+
+	/*
+	 * Sets a deadline after which this future fails with a TimeoutException
+	 * if no response arrived, replacing any previous deadline
+	 *
+	 * @param timeout The time from now in milliseconds
+	 * @return This future, to allow chaining
+	 */
+	public ResponseFuture setDeadline(long timeout) {
+		if (!isDone()) {
+			TimingWheel.defaultWheel().schedule(deadline, timeout);
+		}
+		return this;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+
+		// release the transmission before waking up waiting threads
+		if (isDone()) {
+			return false;
+		}
+		cancelTransmission();
+		return fail(new CancellationException("Request cancelled"));
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return failure instanceof CancellationException;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return response != null || failure != null;
+	}
+
+	@Override
+	public synchronized Response get() throws InterruptedException, ExecutionException {
+
+		while (!isDone()) {
+			wait();
+		}
+		return result();
+	}
+
+	@Override
+	public synchronized Response get(long timeout, TimeUnit unit)
+		throws InterruptedException, ExecutionException, TimeoutException
+	{
+		long end = System.nanoTime() + unit.toNanos(timeout);
+
+		while (!isDone()) {
+			long left = end - System.nanoTime();
+			if (left <= 0) {
+				throw new TimeoutException("No response received in time");
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return result();
+	}
+
+	/*
+	 * Returns the request whose response is awaited
+	 */
+	public Request getRequest() {
+		return request;
+	}
+
+	// Completion //////////////////////////////////////////////////////////////
+
+	/*
+	 * Completes this future with a response unless it is done already
+	 *
+	 * @return True if the future was completed by this call
+	 */
+	boolean complete(Response response) {
+
+		List<ResponseCallback> callbacks;
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			this.response = response;
+			callbacks = takeCallbacks();
+		}
+
+		TimingWheel.defaultWheel().cancel(deadline);
+		invokeAll(callbacks);
+		return true;
+	}
+
+	/*
+	 * Fails this future unless it is done already
+	 *
+	 * @return True if the future failed due to this call
+	 */
+	boolean fail(Throwable cause) {
+
+		List<ResponseCallback> callbacks;
+		synchronized (this) {
+			if (isDone()) {
+				return false;
+			}
+			this.failure = cause;
+			callbacks = takeCallbacks();
+		}
+
+		TimingWheel.defaultWheel().cancel(deadline);
+		invokeAll(callbacks);
+		return true;
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the outcome of this future, which must be done.
+	 * The caller must hold the lock.
+	 */
+	private Response result() throws ExecutionException {
+
+		if (failure instanceof CancellationException) {
+			throw (CancellationException) failure;
+		} else if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return response;
+	}
+
+	/*
+	 * Wakes up waiting threads and returns the callbacks to invoke.
+	 * The caller must hold the lock.
+	 */
+	private List<ResponseCallback> takeCallbacks() {
+
+		notifyAll();
+
+		List<ResponseCallback> taken = callbacks;
+		callbacks = null;
+		return taken;
+	}
+
+	private void invokeAll(List<ResponseCallback> callbacks) {
+		if (callbacks != null) {
+			for (ResponseCallback callback : callbacks) {
+				invoke(callback);
+			}
+		}
+	}
+
+	private void invoke(ResponseCallback callback) {
+		try {
+			if (failure != null) {
+				callback.failed(failure);
+			} else {
+				callback.completed(response);
+			}
+		} catch (RuntimeException e) {
+			LOG.error("Response callback failed: %s", e.getMessage());
+		}
+	}
+
+	private void cancelTransmission() {
+		if (communicator != null) {
+			communicator.cancelTransmission(request);
+		}
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final Request request;
+	private final Communicator communicator;
+
+	private final Deadline deadline = new Deadline();
+
+	// the outcome, guarded by the future itself
+	private Response response;
+	private Throwable failure;
+
+	// the callbacks to invoke on completion, or null
+	private List<ResponseCallback> callbacks;
+}
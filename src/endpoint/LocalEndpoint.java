@@ -6,8 +6,14 @@ import java.net.SocketException;
 import java.util.List;
 
 import coap.*;
+import log.Logger;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricRegistry;
 
 public class LocalEndpoint extends Endpoint {
+
+	private static final Logger LOG = Logger.getLogger(LocalEndpoint.class);
 	
 	private class RootResource extends ReadOnlyResource {
 
@@ -33,10 +39,30 @@ public class LocalEndpoint extends Endpoint {
 		}		
 	}
 	
-	public LocalEndpoint(int port) throws SocketException {
+	/*
+	 * Constructor for a new LocalEndpoint
+	 * 
+	 * @param port The local UDP port to listen for incoming requests
+	 * @param numWorkers The number of threads handling incoming requests,
+	 *                   or 0 to handle them on the receiver thread
+	 */
+	public LocalEndpoint(int port, int numWorkers) throws SocketException {
+		this(new Communicator(port, false, numWorkers));
+		
+		// expose metrics of the server via JMX
+		communicator.getMetrics().registerMBean("jcoap:type=LocalEndpoint,port=" + port());
+	}
+	
+	/*
+	 * Constructor for a new LocalEndpoint using a given communicator, e.g.
+	 * one built on an in-memory transport
+	 * 
+	 * @param communicator The communicator to receive incoming requests by
+	 */
+	public LocalEndpoint(Communicator communicator) {
 		
 		// initialize communicator
-		this.communicator = new Communicator(port, false);
+		this.communicator = communicator;
 		this.communicator.registerReceiver(this);
 		
 		// initialize resources
@@ -49,9 +75,19 @@ public class LocalEndpoint extends Endpoint {
 		
 		rootResource.addSubResource(wellKnownResource);
 		wellKnownResource.addSubResource(discoveryResource);
+		wellKnownResource.addSubResource(new MetricsResource(communicator.getMetrics()));
+		
+		// initialize metrics
+		MetricRegistry metrics = communicator.getMetrics();
+		this.handlerTime = metrics.histogram("endpoint.handlerMicros");
+		this.numNotFound = metrics.counter("endpoint.notFound");
 	
 	}
 	
+	public LocalEndpoint(int port) throws SocketException {
+		this(port, 0);
+	}
+	
 	public LocalEndpoint() throws SocketException {
 		this(DEFAULT_PORT);
 	}
@@ -71,20 +107,27 @@ public class LocalEndpoint extends Endpoint {
 			// check if resource available
 			if (resource != null) {
 				
+				// check if resource is to be observed
+				boolean observe = request instanceof GETRequest && 
+					request.hasOption(OptionNumberRegistry.OBSERVE);
+				
+				// establish new observation relationship before the response
+				// is sent, which only confirms it by an Observe option if the
+				// limit of observers was not reached
+				if (observe && !resource.addObserveRequest((GETRequest) request)) {
+					request.setOptions(OptionNumberRegistry.OBSERVE, null);
+				}
+				
 				// invoke request handler of the resource
+				long start = MetricRegistry.ENABLED ? System.nanoTime() : 0;
 				request.dispatch(resource);
+				if (MetricRegistry.ENABLED) {
+					handlerTime.record((System.nanoTime() - start) / 1000);
+				}
 				
-				// check if resource is to be observed
-				if (
-					request instanceof GETRequest && 
-					request.hasOption(OptionNumberRegistry.OBSERVE)
-				) {
+				// a request without Observe option ends an observation
+				if (!observe && resource.isObserved(request.endpointID())) {
 					
-					// establish new observation relationship
-					resource.addObserveRequest((GETRequest) request);
-
-				} else if (resource.isObserved(request.endpointID())){
-				
 					// terminate observation relationship on that resource
 					resource.removeObserveRequest(request.endpointID());
 				}
@@ -95,8 +138,11 @@ public class LocalEndpoint extends Endpoint {
 			} else {
 				
 				// resource does not exist
-				System.out.printf("[%s] Resource not found: '%s'\n",
-					getClass().getName(), resourceIdentifier);
+				numNotFound.increment();
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Resource not found: '%s'", resourceIdentifier);
+				}
+
 				
 				request.respond(CodeRegistry.RESP_NOT_FOUND);
 			}
@@ -180,6 +226,10 @@ public class LocalEndpoint extends Endpoint {
 
 	private Resource wellKnownResource;
 	private DiscoveryResource discoveryResource;
+	
+	// time spent in request handlers, and requests for unknown resources
+	private Histogram handlerTime;
+	private Counter numNotFound;
 
 	@Override
 	public void handleRequest(Request request) {
@@ -6,15 +6,20 @@ import java.net.URISyntaxException;
 
 import coap.Request;
 import coap.Response;
+import coap.ResponseFuture;
+import log.Logger;
 
 public class RemoteEndpoint extends Endpoint {
 
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(RemoteEndpoint.class);
+
 	public static Endpoint fromURI(String uri) {
 		try {
 			return new RemoteEndpoint(new URI(uri));
 		} catch (URISyntaxException e) {
-			System.out.printf("[%s] Failed to create RemoteEndpoint from URI: %s\n",
-				"JCoAP", e.getMessage());
+			LOG.warning("Failed to create RemoteEndpoint from URI: %s", e.getMessage());
 			return null;
 		}
 	}
@@ -31,30 +36,52 @@ public class RemoteEndpoint extends Endpoint {
 	public void execute(Request request) throws IOException {
 		
 		if (request != null) {
-		
-			// set authority specific part of the request's URI
-			
-			String 	scheme 		= uri.getScheme();
-			String 	authority   = uri.getAuthority();
-			String 	path 		= request.getURI() != null ? request.getURI().getPath() : uri.getPath();
-			String 	query 		= request.getURI() != null ? request.getURI().getQuery() : uri.getQuery();
-			String 	fragment 	= request.getURI() != null ? request.getURI().getFragment() : uri.getFragment();
 			
-			try {
-				
-				request.setURI(new URI(scheme, authority, path, query, fragment));
-				
-			} catch (URISyntaxException e) {
-	
-				System.out.printf("[%s] Failed to assign URI to request: %s\n",
-					getClass().getName(), e.getMessage());
-			}
+			// set authority specific part of the request's URI
+			assignURI(request);
 			
 			// execute the request
 			request.execute();
 		}
 
 	}
+	
+	/*
+	 * Executes a request without waiting for the response
+	 * 
+	 * @param request The request to execute
+	 * @param timeout The time in milliseconds after which the future
+	 *                fails and the request is cancelled, or 0 for none
+	 * @return The future that is completed with the response
+	 */
+	public ResponseFuture executeAsync(Request request, long timeout) {
+		
+		assignURI(request);
+		
+		ResponseFuture future = request.executeAsync();
+		return timeout > 0 ? future.setDeadline(timeout) : future;
+	}
+	
+	/*
+	 * Sets the authority specific part of a request's URI
+	 */
+	private void assignURI(Request request) {
+		
+		String 	scheme 		= uri.getScheme();
+		String 	authority   = uri.getAuthority();
+		String 	path 		= request.getURI() != null ? request.getURI().getPath() : uri.getPath();
+		String 	query 		= request.getURI() != null ? request.getURI().getQuery() : uri.getQuery();
+		String 	fragment 	= request.getURI() != null ? request.getURI().getFragment() : uri.getFragment();
+		
+		try {
+			
+			request.setURI(new URI(scheme, authority, path, query, fragment));
+			
+		} catch (URISyntaxException e) {
+	
+			LOG.warning("Failed to assign URI to request: %s", e.getMessage());
+		}
+	}
 
 	protected URI uri;
 
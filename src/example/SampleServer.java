@@ -24,6 +24,10 @@ public class SampleServer extends LocalEndpoint {
 	 */
 	public SampleServer() throws SocketException {
 		
+		// handle requests of different clients in parallel, e.g. in order
+		// not to block other clients while waiting for SeparateResource
+		super(DEFAULT_PORT, Runtime.getRuntime().availableProcessors());
+		
 		// add resources to the server
 		addResource(new HelloWorldResource());
 		addResource(new StorageResource());
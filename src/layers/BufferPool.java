@@ -0,0 +1,105 @@
+package layers;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class describes the functionality of a pool of direct ByteBuffers
+ * of equal capacity that are recycled instead of being allocated for
+ * each datagram.
+ *
+ * Buffers are allocated on demand. Released buffers are kept for reuse
+ * up to the configured maximum number of pooled buffers.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class BufferPool {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new buffer pool
+	 *
+	 * @param bufferSize The capacity of the buffers, in bytes
+	 * @param maxPooled The maximum number of idle buffers kept for reuse
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns a cleared buffer, either recycled or newly allocated
+	 *
+	 * @return A buffer ready to be written to
+	 */
+	public ByteBuffer acquire() {
+
+		ByteBuffer buffer = buffers.poll();
+		if (buffer != null) {
+			numPooled.decrementAndGet();
+		} else {
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+			numAllocated.incrementAndGet();
+		}
+		return buffer;
+	}
+
+	/*
+	 * Returns a buffer to the pool. The buffer must not be used afterwards.
+	 *
+	 * @param buffer The buffer to recycle
+	 */
+	public void release(ByteBuffer buffer) {
+
+		if (buffer != null && buffer.capacity() == bufferSize) {
+
+			// keep buffer only if pool is not yet full;
+			// otherwise, leave it to the garbage collector
+			if (numPooled.incrementAndGet() <= maxPooled) {
+				buffer.clear();
+				buffers.offer(buffer);
+			} else {
+				numPooled.decrementAndGet();
+			}
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/*
+	 * Returns the number of idle buffers currently held by the pool
+	 */
+	public int getNumPooled() {
+		return numPooled.get();
+	}
+
+	/*
+	 * Returns the total number of buffers allocated by the pool
+	 */
+	public int getNumAllocated() {
+		return numAllocated.get();
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// idle buffers ready for reuse
+	private Queue<ByteBuffer> buffers
+		= new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private int bufferSize;
+	private int maxPooled;
+
+	private AtomicInteger numPooled = new AtomicInteger();
+	private AtomicInteger numAllocated = new AtomicInteger();
+}
@@ -0,0 +1,215 @@
+package layers;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * This class describes the congestion control state that a message layer
+ * keeps for a remote endpoint. It provides:
+ *
+ * - The transmissions of Confirmables to the remote endpoint by message ID
+ *
+ * - A limit on the number of outstanding Confirmables (NSTART), with a
+ *   queue for Confirmables waiting until an earlier one completed
+ *
+ * - A retransmission timeout (RTO) adapted to the round-trip times
+ *   measured, following the CoCoA proposal (draft-bormann-core-congestion-
+ *   control): a strong estimator for exchanges without retransmissions and
+ *   a weak one for exchanges completed after one or two retransmissions,
+ *   whose estimates are blended into the overall RTO. The RTO ages back
+ *   towards the default when no measurements are made, and determines a
+ *   variable backoff factor for retransmissions.
+ *
+ * The state is attached to the PeerState of the remote endpoint. It is not
+ * thread-safe; the message layer synchronizes access. Only the counters
+ * are atomic, so that they are updated without taking the lock.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+class CongestionState implements PeerState.Attachment {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// lower and upper limit of the RTO
+	static final long MIN_RTO = 100; // [milliseconds]
+	static final long MAX_RTO = 60000; // [milliseconds]
+
+	// RTOs below and above which the backoff and aging differ
+	private static final long LOW_RTO = 1000; // [milliseconds]
+	private static final long HIGH_RTO = 3000; // [milliseconds]
+
+	// estimated memory used by the state and by each transmission
+	private static final int STATE_OVERHEAD = 150; // [bytes]
+	private static final int QUEUED_OVERHEAD = 64; // [bytes]
+
+	// weights of the estimators when blended into the overall RTO
+	private static final double STRONG_WEIGHT = 0.5;
+	private static final double WEAK_WEIGHT = 0.25;
+
+	// factors of the variance in the estimates, as defined by CoCoA
+	private static final int STRONG_K = 4;
+	private static final int WEAK_K = 1;
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Estimator of the RTO according to RFC 6298
+	 */
+	private static class Estimator {
+
+		Estimator(int k) {
+			this.k = k;
+		}
+
+		/*
+		 * Adds a round-trip time measurement
+		 *
+		 * @return The new RTO estimate
+		 */
+		double update(long rtt) {
+			if (srtt < 0) {
+				srtt = rtt;
+				rttvar = rtt / 2.0;
+			} else {
+				rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+				srtt = 0.875 * srtt + 0.125 * rtt;
+			}
+			return srtt + k * rttvar;
+		}
+
+		int k;
+
+		// smoothed round-trip time and its variation, or -1 if not measured
+		double srtt = -1;
+		double rttvar = -1;
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for the state of a remote endpoint
+	 *
+	 * @param address The address of the remote endpoint
+	 * @param defaultRto The RTO used until round-trip times are measured
+	 */
+	CongestionState(InetSocketAddress address, long defaultRto) {
+		this.address = address;
+		this.defaultRto = defaultRto;
+		this.rto = defaultRto;
+		this.lastUpdate = System.currentTimeMillis();
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Updates the RTO with the round-trip time of a completed exchange
+	 *
+	 * @param rtt The time from the first transmission to the reply
+	 * @param numRetransmit The number of retransmissions of the exchange
+	 */
+	void measured(long rtt, int numRetransmit) {
+
+		// the sample is ambiguous if the reply may refer to either
+		// of several retransmissions
+		if (numRetransmit == 0) {
+			rto = STRONG_WEIGHT * strong.update(rtt) + (1 - STRONG_WEIGHT) * rto;
+		} else if (numRetransmit <= 2) {
+			rto = WEAK_WEIGHT * weak.update(rtt) + (1 - WEAK_WEIGHT) * rto;
+		} else {
+			return;
+		}
+
+		rto = Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+		lastUpdate = System.currentTimeMillis();
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the current RTO, which ages towards the default RTO
+	 * if it was not updated for a while
+	 *
+	 * @param now The current time
+	 * @return The RTO in milliseconds
+	 */
+	long rto(long now) {
+
+		long idle = now - lastUpdate;
+		if (rto < LOW_RTO && idle > 16 * rto) {
+			rto = (LOW_RTO + 2 * rto) / 3;
+			lastUpdate = now;
+		} else if (rto > HIGH_RTO && idle > 4 * rto) {
+			rto = (defaultRto + rto) / 2;
+			lastUpdate = now;
+		}
+		return (long) rto;
+	}
+
+	/*
+	 * Returns the factor by which the timeout of a Confirmable is multiplied
+	 * for each retransmission, depending on its initial RTO
+	 */
+	static double backoffFactor(long rto) {
+		if (rto < LOW_RTO) {
+			return 3;
+		} else if (rto > HIGH_RTO) {
+			return 1.5;
+		} else {
+			return 2;
+		}
+	}
+
+	@Override
+	public boolean isActive() {
+		return inFlight > 0;
+	}
+
+	@Override
+	public int getMemoryUsage() {
+		return STATE_OVERHEAD + QUEUED_OVERHEAD * transmissions.size();
+	}
+
+	/*
+	 * Returns a snapshot of the statistics of this remote endpoint
+	 */
+	PeerStatistics getStatistics() {
+		return new PeerStatistics(address, inFlight, queue.size(), (long) rto,
+			(long) strong.srtt, (long) strong.rttvar,
+			numTransmissions.get(), numRetransmissions.get(), numTimeouts.get());
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	final InetSocketAddress address;
+
+	// the number of outstanding Confirmables, which is positive
+	// while Confirmables are queued
+	volatile int inFlight;
+
+	// the transmissions of outstanding and queued Confirmables by message ID
+	final Map<Integer, MessageLayer.TxContext> transmissions
+		= new HashMap<Integer, MessageLayer.TxContext>();
+
+	// the transmissions waiting for an outstanding Confirmable to complete
+	final Queue<MessageLayer.TxContext> queue = new LinkedList<MessageLayer.TxContext>();
+
+	final AtomicLong numTransmissions = new AtomicLong();
+	final AtomicLong numRetransmissions = new AtomicLong();
+	final AtomicLong numTimeouts = new AtomicLong();
+
+
+	private final long defaultRto;
+
+	private final Estimator strong = new Estimator(STRONG_K);
+	private final Estimator weak = new Estimator(WEAK_K);
+
+	// the overall RTO and the time it was last updated
+	private double rto;
+	private long lastUpdate;
+}
@@ -0,0 +1,305 @@
+package layers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicLong;
+
+import coap.Message;
+import coap.MessageCodec;
+import log.Logger;
+
+/*
+ * This class describes the functionality of a transport layer that
+ * exchanges CoAP messages over UDP using a non-blocking DatagramChannel.
+ *
+ * In contrast to UDPLayer, datagrams are received into and sent from
+ * direct ByteBuffers that are recycled by a BufferPool. As the options and
+ * payload of a decoded message refer to the bytes they were decoded from,
+ * a received datagram is copied once by a single bulk transfer into an
+ * array of its exact size, and the pooled buffer is released right after.
+ * A selector thread drains the channel whenever datagrams are available.
+ *
+ * The selector thread is the only one receiving. Senders each take a buffer
+ * of their own from the pool, which is lock-free, and send through the
+ * channel, which serializes concurrent sends.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class DatagramChannelLayer extends TransportLayer {
+
+	// Implementation specific constants ///////////////////////////////////////
+
+	// buffer size for incoming and outgoing datagrams
+	private static final int BUFFER_SIZE        = 1024;
+
+	// maximum number of idle buffers kept for reuse
+	private static final int MAX_POOLED_BUFFERS = 256;
+
+	// time the selector thread waits after an I/O error, so that
+	// it does not spin if the error persists
+	private static final long ERROR_BACKOFF = 100; // [milliseconds]
+
+	private static final Logger LOG = Logger.getLogger(DatagramChannelLayer.class);
+
+
+	// Inner Classes ///////////////////////////////////////////////////////////
+
+	class SelectorThread extends Thread {
+		@Override
+		public void run() {
+			// listen for incoming datagrams as long as the channel is open
+			while (channel.isOpen()) {
+
+				// wait until datagrams are available
+				try {
+					selector.select();
+					selector.selectedKeys().clear();
+				} catch (ClosedSelectorException e) {
+
+					// layer closed
+					return;
+				} catch (IOException e) {
+					LOG.error("Select failed: %s", e.getMessage());
+					backOff();
+					continue;
+				}
+
+				if (!receiveDatagrams()) {
+					backOff();
+				}
+			}
+		}
+
+		private void backOff() {
+			try {
+				Thread.sleep(ERROR_BACKOFF);
+			} catch (InterruptedException e) {
+				interrupt();
+			}
+		}
+	}
+
+	/*
+	 * Task used to process a received datagram, possibly on a worker thread
+	 */
+	private class DatagramTask implements Runnable {
+
+		DatagramTask(ByteBuffer buffer, InetSocketAddress source, long timestamp) {
+			this.buffer = buffer;
+			this.source = source;
+			this.timestamp = timestamp;
+		}
+
+		@Override
+		public void run() {
+
+			// decode message from a copy of the datagram, which
+			// frees the pooled buffer for reuse
+			Message msg;
+			try {
+				msg = MessageCodec.decode(buffer);
+			} finally {
+				bufferPool.release(buffer);
+			}
+
+			// pass message to upper layers
+			messageReceived(msg, source, timestamp);
+		}
+
+		private ByteBuffer buffer;
+		private InetSocketAddress source;
+		private long timestamp;
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new DatagramChannel layer
+	 *
+	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if the selector and worker threads should not keep
+	 *               the application alive
+	 * @param numWorkers The number of worker threads processing received
+	 *                   datagrams, or 0 to process them on the selector thread
+	 * @param queueCapacity The maximum number of pending datagrams per worker
+	 */
+	public DatagramChannelLayer(int port, boolean daemon, int numWorkers, int queueCapacity)
+		throws IOException
+	{
+		super(numWorkers, queueCapacity, daemon);
+
+		// initialize members
+		this.bufferPool = new BufferPool(BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+		this.channel = DatagramChannel.open();
+		this.channel.socket().bind(new InetSocketAddress(port));
+		this.channel.configureBlocking(false);
+
+		this.selector = Selector.open();
+		this.channel.register(selector, SelectionKey.OP_READ);
+
+		this.selectorThread = new SelectorThread();
+		this.selectorThread.setName("DatagramChannelLayer-Selector");
+
+		// decide if selector thread terminates with main thread
+		selectorThread.setDaemon(daemon);
+
+		// start listening right from the beginning
+		selectorThread.start();
+	}
+
+	/*
+	 * Constructor for a new DatagramChannel layer
+	 *
+	 * @param port The local UDP port to listen for incoming messages
+	 */
+	public DatagramChannelLayer(int port, boolean daemon)
+		throws IOException
+	{
+		this(port, daemon, 0, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Closes the channel and stops the selector thread
+	 */
+	public void close() throws IOException {
+		channel.close();
+		selector.close();
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	@Override
+	public int getPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/*
+	 * Returns the number of outgoing datagrams that were discarded
+	 * because the socket's send buffer was full
+	 *
+	 * @return The number of discarded datagrams
+	 */
+	public long getNumSendDropped() {
+		return numSendDropped.get();
+	}
+
+	// I/O implementation //////////////////////////////////////////////////////
+
+	@Override
+	protected void doSendMessage(Message msg) throws IOException {
+
+		// retrieve remote endpoint
+		// throws UnknownHostException, subclass of IOException
+		InetSocketAddress target = destination(msg);
+
+		ByteBuffer pooled = bufferPool.acquire();
+		try {
+
+			// encode message into pooled buffer
+			ByteBuffer buffer = pooled;
+			try {
+				MessageCodec.encode(msg, buffer);
+				buffer.flip();
+			} catch (BufferOverflowException e) {
+
+				// message does not fit into a pooled buffer
+				buffer = ByteBuffer.wrap(msg.toByteArray());
+			}
+
+			// remember when this message was sent
+			msg.setTimestamp(System.currentTimeMillis());
+
+			// send it over the channel; in non-blocking mode, the datagram
+			// is discarded if there is no room in the socket's send buffer
+			int length = buffer.remaining();
+			if (channel.send(buffer, target) == 0) {
+				numSendDropped.incrementAndGet();
+			} else {
+				numBytesSent.add(length);
+			}
+
+		} finally {
+			bufferPool.release(pooled);
+		}
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Receives all datagrams currently available on the channel
+	 *
+	 * @return False if receiving failed
+	 */
+	private boolean receiveDatagrams() {
+
+		while (true) {
+
+			ByteBuffer buffer = bufferPool.acquire();
+
+			InetSocketAddress source;
+			try {
+				source = (InetSocketAddress) channel.receive(buffer);
+			} catch (IOException e) {
+				bufferPool.release(buffer);
+
+				// receiving from a channel closed concurrently is expected
+				if (channel.isOpen()) {
+					LOG.error("Receive failed: %s", e.getMessage());
+				}
+				return false;
+			}
+
+			// check if channel is drained
+			if (source == null) {
+				bufferPool.release(buffer);
+				return true;
+			}
+
+			// get current time
+			long timestamp = System.currentTimeMillis();
+
+			buffer.flip();
+			numBytesReceived.add(buffer.remaining());
+
+			// process datagram, possibly on a worker thread;
+			// if the worker's queue is full, the datagram is dropped
+			if (!dispatchDatagram(source.getAddress(), source.getPort(),
+				new DatagramTask(buffer, source, timestamp))) {
+
+				bufferPool.release(buffer);
+			}
+		}
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// The channel used to send and receive datagrams
+	private DatagramChannel channel;
+
+	// The selector used to wait for incoming datagrams
+	private Selector selector;
+
+	// The thread that receives datagrams from the channel
+	private SelectorThread selectorThread;
+
+	// The pool of buffers used to receive and send datagrams
+	private BufferPool bufferPool;
+
+	private AtomicLong numSendDropped = new AtomicLong();
+}
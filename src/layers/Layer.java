@@ -1,19 +1,54 @@
 package layers;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import coap.Message;
 import coap.MessageReceiver;
+import metrics.Counter;
+import metrics.MetricRegistry;
 
+/*
+ * This class describes the functionality common to all layers of the
+ * communication stack, which pass messages down by sendMessage() and
+ * deliver received messages to the receivers registered with them.
+ *
+ * Layers are used by many threads at once: messages are sent by any
+ * application thread, received messages are delivered by receiver or
+ * worker threads of the transport, and timeouts by the timing wheel.
+ * The contract for all layers is therefore:
+ *
+ * - sendMessage() and receiveMessage() may be called concurrently, and
+ *   subclasses guard the state they keep accordingly
+ *
+ * - Receivers may be registered and unregistered at any time, also by a
+ *   receiver while a message is delivered to it. Registration replaces an
+ *   immutable array of receivers by compare-and-set, and delivery iterates
+ *   the array read once, so that it neither locks nor allocates and sees
+ *   either the old or the new receivers.
+ *
+ * - No lock of a layer is held while messages or timeouts are delivered to
+ *   its receivers, so that receivers may call back into the stack
+ *
+ * - Counters are atomic and may be read at any time
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
 public abstract class Layer implements MessageReceiver {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final MessageReceiver[] NO_RECEIVERS = new MessageReceiver[0];
+
+	// I/O implementation //////////////////////////////////////////////////////
 	
 	public void sendMessage(Message msg) throws IOException {
 
 		if (msg != null) {
 			doSendMessage(msg);
-			++numMessagesSent;
+			numMessagesSent.increment();
 		}
 	}
 	
@@ -21,7 +56,7 @@ public abstract class Layer implements MessageReceiver {
 	public void receiveMessage(Message msg) {
 
 		if (msg != null) {
-			++numMessagesReceived;
+			numMessagesReceived.increment();
 			doReceiveMessage(msg);
 		}
 	}
@@ -34,46 +69,143 @@ public abstract class Layer implements MessageReceiver {
 	protected void deliverMessage(Message msg) {
 
 		// pass message to registered receivers
-		if (receivers != null) {
-			for (MessageReceiver receiver : receivers) {
-				receiver.receiveMessage(msg);
+		for (MessageReceiver receiver : receivers.get()) {
+			receiver.receiveMessage(msg);
+		}
+	}
+	
+	/*
+	 * Notification method that is called by the lower layer when the
+	 * transmission of a message was cancelled due to timeout.
+	 * 
+	 * Subclasses may override this method to release state kept for the
+	 * message, but should pass the notification on to the upper layers.
+	 * 
+	 * @param msg The message whose transmission timed out
+	 */
+	protected void transmissionTimedOut(Message msg) {
+		deliverTimeout(msg);
+	}
+	
+	/*
+	 * Cancels the transmission of a message that was sent through this
+	 * layer, e.g. a request whose response is no longer of interest.
+	 * 
+	 * Subclasses keeping state for sent messages override this method to
+	 * release it, but should pass the call on to the lower layers.
+	 * 
+	 * @param msg The message whose transmission to cancel
+	 * @return True if state kept for the message was released
+	 */
+	public boolean cancelTransmission(Message msg) {
+		return false;
+	}
+	
+	protected void deliverTimeout(Message msg) {
+		
+		// notify upper layers among the registered receivers
+		for (MessageReceiver receiver : receivers.get()) {
+			if (receiver instanceof Layer) {
+				((Layer) receiver).transmissionTimedOut(msg);
 			}
 		}
 	}
 	
+	/*
+	 * Registers a receiver for the messages delivered by this layer.
+	 * Messages being delivered concurrently may or may not reach it.
+	 * 
+	 * @param receiver The receiver to register
+	 */
 	public void registerReceiver(MessageReceiver receiver) {
 		
 		// check for valid receiver
-		if (receiver != null && receiver != this) {
-			
-			// lazy creation of receiver list
-			if (receivers == null) {
-				receivers = new ArrayList<MessageReceiver>();
-			}
-			
-			// add receiver to list
-			receivers.add(receiver);
+		if (receiver == null || receiver == this) {
+			return;
 		}
+		
+		// append receiver to a copy of the array
+		MessageReceiver[] current, updated;
+		do {
+			current = receivers.get();
+			updated = new MessageReceiver[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = receiver;
+		} while (!receivers.compareAndSet(current, updated));
 	}
 	
+	/*
+	 * Unregisters a receiver. Messages being delivered concurrently
+	 * may still reach it.
+	 * 
+	 * @param receiver The receiver to unregister
+	 */
 	public void unregisterReceiver(MessageReceiver receiver) {
 		
-		// remove receiver from list
-		if (receivers != null) {
-			receivers.remove(receiver);
-		}
+		// remove first occurrence of receiver from a copy of the array
+		MessageReceiver[] current, updated;
+		do {
+			current = receivers.get();
+			int index = indexOf(current, receiver);
+			if (index < 0) {
+				return;
+			}
+			updated = new MessageReceiver[current.length - 1];
+			System.arraycopy(current, 0, updated, 0, index);
+			System.arraycopy(current, index + 1, updated, index, updated.length - index);
+		} while (!receivers.compareAndSet(current, updated));
+	}
+	
+	/*
+	 * Returns the number of registered receivers
+	 */
+	public int getNumReceivers() {
+		return receivers.get().length;
 	}
 	
-	public int getNumMessagesSent() {
-		return numMessagesSent;
+	/*
+	 * Registers the metrics of this layer with a registry, e.g. the one
+	 * of the communicator the layer belongs to.
+	 * 
+	 * Subclasses keeping further metrics override this method to register
+	 * them as well, but should call the overridden method.
+	 * 
+	 * @param registry The registry to register the metrics with
+	 * @param prefix The prefix of the metric names, e.g. "message"
+	 */
+	public void registerMetrics(MetricRegistry registry, String prefix) {
+		registry.register(prefix + ".messagesSent", numMessagesSent);
+		registry.register(prefix + ".messagesReceived", numMessagesReceived);
 	}
 	
-	public int getNumMessagesReceived() {
-		return numMessagesReceived;
+	public long getNumMessagesSent() {
+		return numMessagesSent.get();
 	}
 	
-	private List<MessageReceiver> receivers;
-	private int numMessagesSent;
-	private int numMessagesReceived;
+	public long getNumMessagesReceived() {
+		return numMessagesReceived.get();
+	}
+	
+	// Internal ////////////////////////////////////////////////////////////////
+	
+	private static int indexOf(MessageReceiver[] array, MessageReceiver receiver) {
+		for (int i = 0; i < array.length; ++i) {
+			if (array[i] == receiver) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	// Attributes //////////////////////////////////////////////////////////////
+	
+	// immutable array of receivers, replaced on registration
+	private final AtomicReference<MessageReceiver[]> receivers
+		= new AtomicReference<MessageReceiver[]>(NO_RECEIVERS);
+	
+	// counted even if metrics are disabled, as they back the accessors
+	private final Counter numMessagesSent = new Counter(false);
+	private final Counter numMessagesReceived = new Counter(false);
 
 }
+
@@ -0,0 +1,272 @@
+package layers;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import coap.Message;
+import coap.MessageCodec;
+import log.Logger;
+
+/*
+ * This class describes the functionality of a transport layer that
+ * exchanges CoAP messages with other layers connected to the same
+ * LoopbackNetwork, without using sockets.
+ *
+ * Messages are encoded and decoded as for UDP. Datagrams sent to a layer
+ * are appended to its lock-free inbox, from which its receiver thread takes
+ * them. Datagrams delayed by the network are kept by the receiver thread
+ * until they are due. As with a socket, the inbox is bounded, and datagrams
+ * arriving while it is full are dropped.
+ *
+ * Senders run the channel model of the network on their own thread and
+ * append to the inbox of the destination without locking; only the
+ * receiver thread takes datagrams from it.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class LoopbackLayer extends TransportLayer {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(LoopbackLayer.class);
+
+	// Inner Classes ///////////////////////////////////////////////////////////
+
+	/*
+	 * Entity class of a datagram in transit, which is also the task
+	 * that processes it, possibly on a worker thread
+	 */
+	private class Datagram implements Runnable, Comparable<Datagram> {
+
+		Datagram(InetSocketAddress source, byte[] data, long due) {
+			this.source = source;
+			this.data = data;
+			this.due = due;
+		}
+
+		@Override
+		public void run() {
+
+			// decode the message as if received from a socket
+			numBytesReceived.add(data.length);
+			Message msg = MessageCodec.decode(data, 0, data.length);
+			messageReceived(msg, source, System.currentTimeMillis());
+		}
+
+		@Override
+		public int compareTo(Datagram other) {
+			return due < other.due ? -1 : due > other.due ? 1 : 0;
+		}
+
+		final InetSocketAddress source;
+		final byte[] data;
+
+		// the time the datagram is delivered, in nanoseconds
+		final long due;
+	}
+
+	class ReceiverThread extends Thread {
+
+		ReceiverThread() {
+			super("LoopbackLayer-" + address.getPort());
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+
+				long now = System.nanoTime();
+
+				// take arrived datagrams, keeping back delayed ones
+				Datagram datagram;
+				while ((datagram = inbox.poll()) != null) {
+					inboxSize.decrementAndGet();
+					if (datagram.due - now > 0) {
+						delayed.add(datagram);
+					} else {
+						deliver(datagram);
+					}
+				}
+
+				// deliver delayed datagrams that are due
+				while (!delayed.isEmpty() && delayed.peek().due - now <= 0) {
+					deliver(delayed.poll());
+				}
+
+				// wait for further datagrams or the next one due; the flag
+				// is set before checking the inbox again, so that a sender
+				// either sees it or the receiver sees the datagram
+				waiting = true;
+				if (inbox.isEmpty() && !closed) {
+					if (delayed.isEmpty()) {
+						LockSupport.park(this);
+					} else {
+						LockSupport.parkNanos(this, delayed.peek().due - System.nanoTime());
+					}
+				}
+				waiting = false;
+			}
+		}
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new loopback layer, which is connected to the
+	 * network under a free port
+	 *
+	 * @param network The network to exchange messages over
+	 * @param numWorkers The number of worker threads processing received
+	 *                   datagrams, or 0 to process them on the receiver thread
+	 * @param queueCapacity The maximum number of datagrams waiting in the
+	 *                      inbox, and per worker
+	 */
+	public LoopbackLayer(LoopbackNetwork network, int numWorkers, int queueCapacity) {
+		super(numWorkers, queueCapacity, true);
+
+		// initialize members
+		this.network = network;
+		this.queueCapacity = queueCapacity;
+		this.address = network.connect(this);
+		this.receiverThread = new ReceiverThread();
+
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+	}
+
+	public LoopbackLayer(LoopbackNetwork network) {
+		this(network, 0, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Disconnects this layer from the network and stops its receiver thread.
+	 * Datagrams waiting in the inbox are discarded.
+	 */
+	public void close() {
+		closed = true;
+		network.disconnect(this);
+		LockSupport.unpark(receiverThread);
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	@Override
+	public int getPort() {
+		return address.getPort();
+	}
+
+	/*
+	 * Returns the address other layers send messages to this layer to
+	 */
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	public LoopbackNetwork getNetwork() {
+		return network;
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return inboxSize.get() + super.getQueueDepth();
+	}
+
+	@Override
+	public long getNumDropped() {
+		return numOverflows.get() + super.getNumDropped();
+	}
+
+	// I/O implementation //////////////////////////////////////////////////////
+
+	@Override
+	protected void doSendMessage(Message msg) throws IOException {
+
+		if (closed) {
+			throw new IOException("Loopback layer closed");
+		}
+
+		InetSocketAddress target = destination(msg);
+		byte[] data = msg.toByteArray();
+
+		// remember when this message was sent
+		msg.setTimestamp(System.currentTimeMillis());
+
+		network.transmit(address, target, data, random);
+		numBytesSent.add(data.length);
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Appends a datagram to the inbox of this layer. Called by the
+	 * network on the thread of the sending layer.
+	 *
+	 * @param source The address of the sending layer
+	 * @param data The encoded message
+	 * @param delay The time in milliseconds until the datagram is due
+	 */
+	void enqueue(InetSocketAddress source, byte[] data, long delay) {
+
+		if (inboxSize.incrementAndGet() > queueCapacity) {
+			inboxSize.decrementAndGet();
+			numOverflows.incrementAndGet();
+			return;
+		}
+
+		inbox.offer(new Datagram(source, data,
+			System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay)));
+
+		if (waiting) {
+			LockSupport.unpark(receiverThread);
+		}
+	}
+
+	private void deliver(Datagram datagram) {
+		try {
+			dispatchDatagram(datagram.source.getAddress(), datagram.source.getPort(), datagram);
+		} catch (RuntimeException e) {
+
+			// keep the receiver thread alive
+			LOG.error("Processing datagram failed: %s", e.getMessage(), e);
+		}
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final LoopbackNetwork network;
+	private final InetSocketAddress address;
+	private final int queueCapacity;
+
+	// datagrams arrived from other layers, and their number
+	private final Queue<Datagram> inbox = new ConcurrentLinkedQueue<Datagram>();
+	private final AtomicInteger inboxSize = new AtomicInteger();
+
+	// datagrams not yet due, ordered by due time;
+	// only accessed by the receiver thread
+	private final PriorityQueue<Datagram> delayed = new PriorityQueue<Datagram>();
+
+	// the thread that delivers received datagrams
+	private final ReceiverThread receiverThread;
+
+	// true while the receiver thread is about to wait
+	private volatile boolean waiting;
+
+	private volatile boolean closed;
+
+	// random generator used by the network for datagrams sent by this layer
+	private final Random random = new Random();
+
+	private AtomicLong numOverflows = new AtomicLong();
+}
@@ -0,0 +1,234 @@
+package layers;
+
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * This class describes the functionality of an in-memory network that
+ * connects LoopbackLayers within the same process, e.g. in order to test
+ * many communicators under load without the limits of real sockets.
+ * It provides:
+ *
+ * - Addressing of the connected layers by socket address, using the
+ *   loopback address and a port assigned to each layer
+ *
+ * - A probabilistic model of an unreliable channel, as suggested for
+ *   evaluating the implementation in Communicator.buildStack(): datagrams
+ *   may be lost, duplicated, reordered or delayed with configurable
+ *   probabilities
+ *
+ * - Counters of the datagrams affected by the model
+ *
+ * The model may be changed while datagrams are transmitted; each datagram
+ * is subject to the settings at the time it is sent.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class LoopbackNetwork {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// port assigned to the first layer connected
+	public static final int FIRST_PORT = 10000;
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new network without losses or delays
+	 */
+	public LoopbackNetwork() {
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Sets the probability that a datagram is lost
+	 *
+	 * @param probability The probability between 0 and 1
+	 */
+	public void setLoss(double probability) {
+		this.loss = probability;
+	}
+
+	/*
+	 * Sets the probability that a datagram is delivered twice
+	 *
+	 * @param probability The probability between 0 and 1
+	 */
+	public void setDuplication(double probability) {
+		this.duplication = probability;
+	}
+
+	/*
+	 * Sets the probability that a datagram is held back, so that
+	 * datagrams sent after it may overtake it
+	 *
+	 * @param probability The probability between 0 and 1
+	 * @param maxDelay The maximum time in milliseconds a datagram is held
+	 *                 back; the actual delay is chosen uniformly
+	 */
+	public void setReordering(double probability, long maxDelay) {
+		this.reorderDelay = maxDelay;
+		this.reordering = probability;
+	}
+
+	/*
+	 * Sets the time it takes a datagram to reach its destination
+	 *
+	 * @param latency The latency in milliseconds
+	 */
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public double getLoss() {
+		return loss;
+	}
+
+	public double getDuplication() {
+		return duplication;
+	}
+
+	public double getReordering() {
+		return reordering;
+	}
+
+	public long getLatency() {
+		return latency;
+	}
+
+	/*
+	 * Returns the layer connected under an address
+	 *
+	 * @param address The address of the layer
+	 * @return The layer, or null if none is connected
+	 */
+	public LoopbackLayer getLayer(InetSocketAddress address) {
+		return layers.get(address);
+	}
+
+	public long getNumSent() {
+		return numSent.get();
+	}
+
+	public long getNumLost() {
+		return numLost.get();
+	}
+
+	public long getNumDuplicated() {
+		return numDuplicated.get();
+	}
+
+	public long getNumReordered() {
+		return numReordered.get();
+	}
+
+	/*
+	 * Returns the number of datagrams sent to addresses
+	 * no layer is connected under
+	 */
+	public long getNumUnreachable() {
+		return numUnreachable.get();
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Connects a layer, assigning a free port to it
+	 *
+	 * @param layer The layer to connect
+	 * @return The address assigned to the layer
+	 */
+	InetSocketAddress connect(LoopbackLayer layer) {
+
+		InetSocketAddress address;
+		do {
+			address = new InetSocketAddress(LOOPBACK, nextPort.getAndIncrement());
+		} while (layers.putIfAbsent(address, layer) != null);
+
+		return address;
+	}
+
+	void disconnect(LoopbackLayer layer) {
+		layers.remove(layer.getAddress(), layer);
+	}
+
+	/*
+	 * Transmits a datagram according to the model of the channel
+	 *
+	 * @param source The address of the sending layer
+	 * @param destination The address of the receiving layer
+	 * @param data The encoded message
+	 * @param random The random generator of the sending layer
+	 */
+	void transmit(InetSocketAddress source, InetSocketAddress destination,
+		byte[] data, Random random)
+	{
+		numSent.incrementAndGet();
+
+		LoopbackLayer layer = layers.get(destination);
+		if (layer == null) {
+			numUnreachable.incrementAndGet();
+			return;
+		}
+
+		// read the model once, avoiding random numbers if not used
+		double loss = this.loss;
+		double duplication = this.duplication;
+		double reordering = this.reordering;
+
+		if (loss > 0 && random.nextDouble() < loss) {
+			numLost.incrementAndGet();
+			return;
+		}
+
+		int copies = 1;
+		if (duplication > 0 && random.nextDouble() < duplication) {
+			numDuplicated.incrementAndGet();
+			copies = 2;
+		}
+
+		for (int i = 0; i < copies; ++i) {
+
+			long delay = latency;
+			if (reordering > 0 && random.nextDouble() < reordering) {
+				numReordered.incrementAndGet();
+				delay += (long) (random.nextDouble() * reorderDelay) + 1;
+			}
+			layer.enqueue(source, data, delay);
+		}
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	private static final String LOOPBACK = "127.0.0.1";
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// the connected layers by address
+	private final ConcurrentMap<InetSocketAddress, LoopbackLayer> layers
+		= new ConcurrentHashMap<InetSocketAddress, LoopbackLayer>();
+
+	private final AtomicInteger nextPort = new AtomicInteger(FIRST_PORT);
+
+	// the model of the channel
+	private volatile double loss;
+	private volatile double duplication;
+	private volatile double reordering;
+	private volatile long reorderDelay;
+	private volatile long latency;
+
+	private AtomicLong numSent = new AtomicLong();
+	private AtomicLong numLost = new AtomicLong();
+	private AtomicLong numDuplicated = new AtomicLong();
+	private AtomicLong numReordered = new AtomicLong();
+	private AtomicLong numUnreachable = new AtomicLong();
+}
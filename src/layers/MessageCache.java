@@ -0,0 +1,308 @@
+package layers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import coap.Message;
+import coap.MessageKey;
+
+/*
+ * This class describes the functionality of a cache for message keys and,
+ * optionally, messages associated with them, as used for duplicate
+ * detection and reply retransmissions.
+ *
+ * Entries are kept for a fixed lifetime, usually the exchange lifetime,
+ * after which retransmissions of a message are not expected anymore.
+ * In addition, the estimated memory used by the entries is limited by a
+ * budget; if it is exceeded, the oldest entries are evicted early.
+ *
+ * The cache is divided into stripes by the hash of the key, each with its
+ * own lock, so that concurrent threads rarely contend for the same lock.
+ * Expired entries are removed lazily when their stripe is accessed.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class MessageCache {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// estimated memory used by an entry apart from the message payload
+	public static final int ENTRY_OVERHEAD = 160; // [bytes]
+
+	// default number of stripes
+	public static final int DEFAULT_NUM_STRIPES = 16;
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Entity class to keep a cached message
+	 */
+	private static class Entry {
+		Message msg;
+
+		// time the entry was added
+		long timestamp;
+
+		// estimated memory used by the entry
+		int size;
+	}
+
+	/*
+	 * A part of the cache protected by its own lock,
+	 * containing entries in order of their insertion
+	 */
+	private class Stripe {
+
+		synchronized Entry get(MessageKey key, long now) {
+			expire(now);
+			return entries.get(key);
+		}
+
+		synchronized boolean add(MessageKey key, Message msg, long now, boolean replace) {
+
+			expire(now);
+
+			Entry entry = entries.get(key);
+			if (entry != null) {
+				if (!replace) {
+					// keep original entry
+					return false;
+				}
+
+				// re-insert entry as the most recent one
+				entries.remove(key);
+				usage -= entry.size;
+			}
+
+			entry = new Entry();
+			entry.msg       = msg;
+			entry.timestamp = now;
+			entry.size      = ENTRY_OVERHEAD + (msg != null ? msg.payloadSize() : 0);
+
+			entries.put(key, entry);
+			usage += entry.size;
+
+			// evict oldest entries if budget exceeded
+			evict(entry);
+
+			return true;
+		}
+
+		synchronized void trim() {
+			evict(null);
+		}
+
+		synchronized int size() {
+			return entries.size();
+		}
+
+		synchronized long usage() {
+			return usage;
+		}
+
+		/*
+		 * Evicts the oldest entries until the budget is met,
+		 * except for the entry just added
+		 */
+		private void evict(Entry added) {
+
+			long budget = stripeBudget;
+
+			Iterator<Entry> it = entries.values().iterator();
+			while (usage > budget && it.hasNext()) {
+				Entry eldest = it.next();
+				if (eldest == added) {
+					break;
+				}
+				it.remove();
+				usage -= eldest.size;
+				numEvicted.incrementAndGet();
+			}
+		}
+
+		private void expire(long now) {
+
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry eldest = it.next();
+				if (now - eldest.timestamp < lifetime) {
+					break;
+				}
+				it.remove();
+				usage -= eldest.size;
+				numExpired.incrementAndGet();
+			}
+		}
+
+		private LinkedHashMap<MessageKey, Entry> entries
+			= new LinkedHashMap<MessageKey, Entry>();
+
+		private long usage;
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new message cache
+	 *
+	 * @param lifetime The time in milliseconds entries are kept
+	 * @param memoryBudget The estimated memory in bytes the entries may use
+	 * @param numStripes The number of stripes, which must be a power of two
+	 */
+	public MessageCache(long lifetime, long memoryBudget, int numStripes) {
+
+		if (numStripes <= 0 || (numStripes & (numStripes - 1)) != 0) {
+			throw new IllegalArgumentException("Number of stripes must be a power of two");
+		}
+
+		this.lifetime = lifetime;
+		this.stripeBudget = memoryBudget / numStripes;
+		this.stripes = new Stripe[numStripes];
+		for (int i = 0; i < numStripes; ++i) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	public MessageCache(long lifetime, long memoryBudget) {
+		this(lifetime, memoryBudget, DEFAULT_NUM_STRIPES);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Records a key if it is not contained yet, e.g. to detect duplicates
+	 *
+	 * @param key The key to add
+	 * @return True if the key was added, false if it was already contained
+	 */
+	public boolean add(MessageKey key) {
+		boolean added = stripe(key).add(key, null, System.currentTimeMillis(), false);
+		if (added) {
+			numMisses.incrementAndGet();
+		} else {
+			numHits.incrementAndGet();
+		}
+		return added;
+	}
+
+	/*
+	 * Associates a message with a key, replacing any previous entry
+	 *
+	 * @param key The key of the message
+	 * @param msg The message to cache
+	 */
+	public void put(MessageKey key, Message msg) {
+		stripe(key).add(key, msg, System.currentTimeMillis(), true);
+	}
+
+	/*
+	 * Sets the estimated memory the entries may use. If the cache
+	 * is shrunk, the oldest entries are evicted immediately.
+	 *
+	 * @param memoryBudget The memory budget in bytes
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.stripeBudget = memoryBudget / stripes.length;
+		for (Stripe stripe : stripes) {
+			stripe.trim();
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the message associated with a key
+	 *
+	 * @param key The key to look up
+	 * @return The cached message, or null if none
+	 */
+	public Message get(MessageKey key) {
+		Entry entry = stripe(key).get(key, System.currentTimeMillis());
+		if (entry != null && entry.msg != null) {
+			numHits.incrementAndGet();
+			return entry.msg;
+		} else {
+			numMisses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/*
+	 * Returns the number of entries in the cache, including expired
+	 * entries that were not removed yet
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			size += stripe.size();
+		}
+		return size;
+	}
+
+	public long getMemoryBudget() {
+		return stripeBudget * stripes.length;
+	}
+
+	/*
+	 * Returns the estimated memory used by the entries, in bytes
+	 */
+	public long getMemoryUsage() {
+		long usage = 0;
+		for (Stripe stripe : stripes) {
+			usage += stripe.usage();
+		}
+		return usage;
+	}
+
+	public long getNumHits() {
+		return numHits.get();
+	}
+
+	public long getNumMisses() {
+		return numMisses.get();
+	}
+
+	/*
+	 * Returns the number of entries evicted before their lifetime expired
+	 * because the memory budget was exceeded
+	 */
+	public long getNumEvicted() {
+		return numEvicted.get();
+	}
+
+	/*
+	 * Returns the number of entries removed after their lifetime expired
+	 */
+	public long getNumExpired() {
+		return numExpired.get();
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	private Stripe stripe(MessageKey key) {
+
+		// spread hash bits, as keys of the same endpoint differ in few bits
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+
+		return stripes[hash & (stripes.length - 1)];
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private Stripe[] stripes;
+
+	private long lifetime;
+
+	// the memory budget of each stripe
+	private volatile long stripeBudget;
+
+
+	private AtomicLong numHits    = new AtomicLong();
+	private AtomicLong numMisses  = new AtomicLong();
+	private AtomicLong numEvicted = new AtomicLong();
+	private AtomicLong numExpired = new AtomicLong();
+}
@@ -0,0 +1,144 @@
+package layers;
+
+import coap.Message;
+
+/*
+ * This class describes the space of message IDs used for messages sent to
+ * a remote endpoint. It is attached to the PeerState of the endpoint, so
+ * that each remote endpoint has all message IDs available.
+ *
+ * IDs are allocated consecutively, starting at a random ID. An ID is only
+ * allocated again once its previous use is older than the exchange
+ * lifetime, since the remote endpoint might otherwise take the message for
+ * a duplicate, or a late reply might be matched to the wrong message. To
+ * this end, the allocation times of the IDs used within the lifetime are
+ * kept in a ring buffer, which only grows as large as the rate of messages
+ * sent to the endpoint requires.
+ *
+ * The space is not thread-safe; the message layer synchronizes access.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+class MessageIdSpace implements PeerState.Attachment {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// number of distinct message IDs
+	static final int NUM_IDS = Message.MAX_ID + 1;
+
+	// capacity of the ring buffer initially
+	private static final int INITIAL_CAPACITY = 8;
+
+	// estimated memory used by the space without its ring buffer
+	private static final int SPACE_OVERHEAD = 48; // [bytes]
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new message ID space
+	 *
+	 * @param lifetime The time in milliseconds after which an ID may be
+	 *                 used again
+	 */
+	MessageIdSpace(long lifetime) {
+		this.lifetime = lifetime;
+		this.next = (int) (Math.random() * NUM_IDS);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Allocates the next message ID
+	 *
+	 * @param now The current time
+	 * @return The message ID, or -1 if all IDs were used within the lifetime
+	 */
+	int allocate(long now) {
+
+		expire(now);
+
+		if (count == NUM_IDS) {
+			return -1;
+		}
+
+		if (times == null || count == times.length) {
+			grow();
+		}
+
+		times[(head + count) % times.length] = now;
+		++count;
+
+		int ID = next;
+		next = (next + 1) % NUM_IDS;
+		return ID;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Checks whether IDs were used within the lifetime, which must not
+	 * be forgotten by evicting the space. This method is called by the
+	 * peer table without synchronization and only reads the state.
+	 */
+	@Override
+	public boolean isActive() {
+
+		long[] times = this.times;
+		int count = this.count;
+		if (times == null || count == 0) {
+			return false;
+		}
+
+		long newest = times[(head + count - 1) % times.length];
+		return System.currentTimeMillis() - newest < lifetime;
+	}
+
+	@Override
+	public int getMemoryUsage() {
+		return SPACE_OVERHEAD + (times != null ? 8 * times.length : 0);
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Releases the IDs allocated before the lifetime
+	 */
+	private void expire(long now) {
+		while (count > 0 && now - times[head] >= lifetime) {
+			head = (head + 1) % times.length;
+			--count;
+		}
+		if (count == 0 && times != null && times.length > INITIAL_CAPACITY) {
+
+			// release memory of bursts
+			times = null;
+			head = 0;
+		}
+	}
+
+	private void grow() {
+
+		int capacity = times == null ? INITIAL_CAPACITY : Math.min(2 * times.length, NUM_IDS);
+		long[] grown = new long[capacity];
+		for (int i = 0; i < count; ++i) {
+			grown[i] = times[(head + i) % times.length];
+		}
+		times = grown;
+		head = 0;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final long lifetime;
+
+	// the ID to allocate next
+	private int next;
+
+	// ring buffer of the allocation times of the IDs used within the
+	// lifetime, oldest first
+	private long[] times;
+	private int head;
+	private int count;
+}
@@ -1,14 +1,19 @@
 package layers;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import coap.CodeRegistry;
 import coap.Message;
+import coap.Message.messageType;
+import log.Logger;
+import metrics.Counter;
+import metrics.Gauge;
+import metrics.MetricRegistry;
 
 /*
  * This class describes the functionality of a CoAP message layer. It provides:
@@ -16,13 +21,31 @@ import coap.Message;
  * - Reliable transport of Confirmable messages over underlying layers
  *   by making use of retransmissions and exponential backoff
  *   
+ * - Congestion control per remote endpoint: a limit on the number of
+ *   outstanding Confirmables (NSTART), beyond which further ones wait in
+ *   a queue, and retransmission timeouts adapted to the measured round-trip
+ *   times (see CongestionState)
+ *   
+ * - Allocation of message IDs per remote endpoint, which are not used
+ *   again within the exchange lifetime (see MessageIdSpace)
+ *   
  * - Matching of Confirmables to their corresponding Acknowledgement/Reset
+ *   by remote endpoint and message ID
+ *   
+ * - Matching of Resets to recently sent Non-confirmables, e.g. to detect
+ *   observers that lost interest in notifications
  *   
  * - Detection and cancellation of duplicate messages 
  * 
  * - Retransmission of Acknowledgements/Reset messages upon receiving duplicate
  *   Confirmable messages
  *   
+ * The transmissions and congestion state of all remote endpoints are
+ * guarded by the monitor of the layer, which is held only briefly and
+ * never while sending or delivering a message. Duplicate detection uses
+ * the striped locks of the message caches, so that messages received
+ * from different remote endpoints rarely contend. Retransmissions and
+ * timeouts are handled on the thread of the timing wheel.
  *   
  * @author Dominique Im Obersteg & Daniel Pauli
  * @version 0.1
@@ -43,62 +66,243 @@ public class MessageLayer extends UpperLayer {
 	// maximal number of retransmissions before the attempt
 	// to transmit a message is canceled
 	private static final int MAX_RETRANSMIT = 4;
+	
+	// default number of outstanding Confirmables per remote endpoint
+	public static final int DEFAULT_NSTART = 1;
 
 	// Implementation-specific /////////////////////////////////////////////////
 	
-	// capacity for caches used for duplicate detection and retransmissions
-	private static final int MESSAGE_CACHE_SIZE = 100; // [messages]
+	// time after which no more retransmissions of a message are expected,
+	// corresponding to EXCHANGE_LIFETIME of draft-ietf-core-coap
+	private static final long EXCHANGE_LIFETIME = 247000; // [milliseconds]
+	
+	// time after which no more Resets to a Non-confirmable are expected,
+	// corresponding to NON_LIFETIME of draft-ietf-core-coap
+	private static final long NON_LIFETIME = 145000; // [milliseconds]
+	
+	// default estimated memory available to each of the caches used for
+	// duplicate detection and retransmissions
+	public static final long DEFAULT_MESSAGE_CACHE_BUDGET = 4 * 1024 * 1024; // [bytes]
+	
+	// maximum number of Confirmables waiting per remote endpoint
+	private static final int MAX_QUEUED = 1024; // [messages]
+	
+	// key of the congestion state attached to the peers
+	private static final PeerState.Key<CongestionState> CONGESTION
+		= PeerState.newKey("congestion");
+	
+	// key of the message ID space attached to the peers
+	private static final PeerState.Key<MessageIdSpace> MESSAGE_IDS
+		= PeerState.newKey("message IDs");
+
+	private static final Logger LOG = Logger.getLogger(MessageLayer.class);
 	
 	// Nested Classes //////////////////////////////////////////////////////////
 	
 	/*
-	 * Entity class to keep state of retransmissions
+	 * Entity class to keep state of retransmissions. It is linked into the
+	 * timing wheel directly to schedule its next retransmission.
 	 */
-	private static class TxContext {
+	class TxContext extends TimingWheel.Timeout {
 		Message msg;
-		RetransmitTask retransmitTask;
 		int numRetransmit;
 		int timeout;
-	}
-	
-	/*
-	 * Utility class used for duplicate detection and reply retransmissions
-	 */
-	@SuppressWarnings("serial")
-	private static class MessageCache extends LinkedHashMap<String, Message> {
+		
+		// the congestion state of the remote endpoint
+		CongestionState peer;
+		
+		// true while waiting in the queue of the remote endpoint
+		boolean queued;
+		
+		// time of the first transmission and the factor by
+		// which the timeout increases for each retransmission
+		long firstTransmission;
+		double backoff;
 		
 		@Override
-		protected boolean removeEldestEntry(Map.Entry<String, Message> eldest) {
-			return size() > MESSAGE_CACHE_SIZE;
+		protected void expired() {
+			handleResponseTimeout(this);
 		}
-		
 	}
 	
+	// Constructors ////////////////////////////////////////////////////////////
+	
 	/*
-	 * Utility class used to notify the Communicator class 
-	 * about timed-out replies
+	 * Constructor for a new message layer
+	 * 
+	 * @param timingWheel The timing wheel used to schedule retransmissions,
+	 *                    which may be shared with other message layers
+	 * @param peerTable The table to keep the state of remote endpoints in,
+	 *                  which may be shared with other layers of the stack
+	 * @param cacheBudget The estimated memory in bytes available to each of
+	 *                    the caches used for duplicate detection and
+	 *                    retransmissions
 	 */
-	private class RetransmitTask extends TimerTask {
+	public MessageLayer(TimingWheel timingWheel, PeerTable peerTable, long cacheBudget) {
 
-		RetransmitTask(TxContext ctx) {
-			this.context = ctx;
-		}
-		
-		@Override
-		public void run() {
-			handleResponseTimeout(context);
-		}
+		// initialize members
+		this.timingWheel = timingWheel;
+		this.peerTable = peerTable;
 		
-		private TxContext context;
+		this.dupCache = new MessageCache(EXCHANGE_LIFETIME, cacheBudget);
+		this.replyCache = new MessageCache(EXCHANGE_LIFETIME, cacheBudget);
+		this.nonCache = new MessageCache(NON_LIFETIME, cacheBudget);
 	}
 	
-	// Constructors ////////////////////////////////////////////////////////////
+	public MessageLayer(TimingWheel timingWheel, PeerTable peerTable) {
+		this(timingWheel, peerTable, DEFAULT_MESSAGE_CACHE_BUDGET);
+	}
 	
+	public MessageLayer(TimingWheel timingWheel) {
+		this(timingWheel, new PeerTable());
+	}
+	
+	/*
+	 * Constructor for a new message layer using the shared timing wheel
+	 */
 	public MessageLayer() {
+		this(TimingWheel.defaultWheel());
+	}
 
-		// initialize members
-		// TODO Randomize initial message ID?
-		this.messageID = 0x1D00;
+	// Commands ////////////////////////////////////////////////////////////////
+	
+	/*
+	 * Sets the number of Confirmables that may be outstanding to a remote
+	 * endpoint. Further ones are sent when an earlier one completed.
+	 * 
+	 * @param nstart The maximum number of outstanding Confirmables
+	 */
+	public void setNstart(int nstart) {
+		this.nstart = Math.max(1, nstart);
+	}
+	
+	/*
+	 * Sets the time after which a message ID may be used again for the same
+	 * remote endpoint, which limits the rate of messages sent to it. Times
+	 * shorter than the exchange lifetime are only safe if messages cannot be
+	 * delayed, e.g. over in-memory transports used for benchmarks. The time
+	 * applies to remote endpoints messages are sent to for the first time.
+	 * 
+	 * @param lifetime The time in milliseconds
+	 */
+	public void setMessageIdLifetime(long lifetime) {
+		this.idLifetime = lifetime;
+	}
+	
+	/*
+	 * Sets the estimated memory available to each of the caches used for
+	 * duplicate detection and retransmissions. Shrinking the caches evicts
+	 * their oldest entries immediately, so that duplicates of the
+	 * corresponding messages are not detected anymore.
+	 * 
+	 * @param budget The memory budget of each cache in bytes
+	 */
+	public void setMessageCacheBudget(long budget) {
+		dupCache.setMemoryBudget(budget);
+		replyCache.setMemoryBudget(budget);
+		nonCache.setMemoryBudget(budget);
+	}
+	
+	// Queries /////////////////////////////////////////////////////////////////
+	
+	public int getNstart() {
+		return nstart;
+	}
+	
+	public long getMessageIdLifetime() {
+		return idLifetime;
+	}
+	
+	public long getMessageCacheBudget() {
+		return dupCache.getMemoryBudget();
+	}
+	
+	/*
+	 * Returns the transmission statistics of a remote endpoint
+	 * 
+	 * @param address The address of the remote endpoint
+	 * @return The statistics, or null if no Confirmable was sent to it
+	 */
+	public synchronized PeerStatistics getPeerStatistics(InetSocketAddress address) {
+		PeerState state = peerTable.get(address);
+		CongestionState peer = state != null ? state.get(CONGESTION) : null;
+		return peer != null ? peer.getStatistics() : null;
+	}
+	
+	/*
+	 * Returns the transmission statistics of all remote endpoints
+	 * Confirmables were sent to
+	 */
+	public synchronized List<PeerStatistics> getPeerStatistics() {
+		List<PeerStatistics> statistics = new ArrayList<PeerStatistics>();
+		for (PeerState state : peerTable.getPeers()) {
+			CongestionState peer = state.get(CONGESTION);
+			if (peer != null) {
+				statistics.add(peer.getStatistics());
+			}
+		}
+		return statistics;
+	}
+	
+	public PeerTable getPeerTable() {
+		return peerTable;
+	}
+	
+	/*
+	 * Returns the number of messages not sent because all message IDs
+	 * for their remote endpoint were used within the exchange lifetime
+	 */
+	public long getNumIDsExhausted() {
+		return numIDsExhausted.get();
+	}
+	
+	/*
+	 * Returns the cache used to detect duplicates of incoming messages,
+	 * e.g. to inspect its hit and eviction counters
+	 */
+	public MessageCache getDuplicateCache() {
+		return dupCache;
+	}
+	
+	/*
+	 * Returns the cache used to retransmit replies to incoming messages
+	 */
+	public MessageCache getReplyCache() {
+		return replyCache;
+	}
+	
+	@Override
+	public void registerMetrics(MetricRegistry registry, String prefix) {
+		super.registerMetrics(registry, prefix);
+		
+		registry.register(prefix + ".retransmissions", numRetransmissions);
+		registry.register(prefix + ".timeouts", numTimeouts);
+		registry.register(prefix + ".duplicates", numDuplicates);
+		registry.register(prefix + ".unexpectedReplies", numUnexpectedReplies);
+		registry.register(prefix + ".idsExhausted", new Gauge() {
+			@Override
+			public long getValue() {
+				return getNumIDsExhausted();
+			}
+		});
+		registry.register(prefix + ".peers", new Gauge() {
+			@Override
+			public long getValue() {
+				return peerTable.size();
+			}
+		});
+		registry.register(prefix + ".replyCache.hits", new Gauge() {
+			@Override
+			public long getValue() {
+				return replyCache.getNumHits();
+			}
+		});
+		registry.register(prefix + ".replyCache.size", new Gauge() {
+			@Override
+			public long getValue() {
+				return replyCache.size();
+			}
+		});
 	}
 
 	// I/O implementation //////////////////////////////////////////////////////
@@ -106,24 +310,40 @@ public class MessageLayer extends UpperLayer {
 	@Override
 	protected void doSendMessage(Message msg) throws IOException {
 		
+		PeerState state = null;
+		
 		// set message ID
 		if (msg.getID() < 0) {
-			msg.setID(nextMessageID());
+			state = getPeerState(TransportLayer.destination(msg));
+			msg.setID(nextMessageID(state));
 		}
 		
 		// check if message needs confirmation, i.e. a reply is expected
 		if (msg.isConfirmable()) {
 			
-			// create new transmission context
-			// to keep track of the Confirmable
-			TxContext ctx = addTransmission(msg);
+			if (state == null) {
+				state = getPeerState(TransportLayer.destination(msg));
+			}
 			
-			// schedule first retransmission
-			scheduleRetransmission(ctx);
+			// create new transmission context to keep track of the
+			// Confirmable, which waits if too many are outstanding
+			TxContext ctx = addTransmission(msg, getCongestionState(state));
+			
+			if (!ctx.queued) {
+				startTransmission(ctx);
+			}
+			return;
 			
 		} else if (msg.isReply()) {
 			
-			replyCache.put(msg.key(), msg);
+			// cache reply under the key of the Confirmable it answers,
+			// as this is the key of retransmissions to be replied to
+			replyCache.put(msg.key().withType(messageType.Confirmable), msg);
+			
+		} else if (msg.isNonConfirmable()) {
+			
+			// remember message in order to report a Reset to it
+			nonCache.put(msg.key(), msg);
 		}
 
 		// send message over unreliable channel
@@ -133,8 +353,10 @@ public class MessageLayer extends UpperLayer {
 	@Override
 	protected void doReceiveMessage(Message msg) {
 
-		// check for duplicate
-		if (dupCache.containsKey(msg.key())) {
+		// check for duplicate, caching the key of new messages
+		if (!dupCache.add(msg.key())) {
+			
+			numDuplicates.increment();
 		
 			// check for retransmitted Confirmable
 			if (msg.isConfirmable()) {
@@ -147,50 +369,64 @@ public class MessageLayer extends UpperLayer {
 					try {
 						sendMessageOverLowerLayer(reply);
 					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+						LOG.error("Failed to reply to duplicate: %s", e.getMessage());
 					}
 
 					// ignore duplicate
-					System.out.printf("[%s] Replied to duplicate Confirmable: %s\n",
-						getClass().getName(), msg.key());
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Replied to duplicate Confirmable: %s", msg.key());
+					}
 					return;
 				}
-				
-			} else {
+			}
 
-				// ignore duplicate
-				System.out.printf("[%s] Duplicate dropped: %s\n",
-					getClass().getName(), msg.key());
-				return;
+			// ignore duplicate, including a Confirmable that is still
+			// being processed and will be replied to once
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Duplicate dropped: %s", msg.key());
 			}
-			
-		} else {
-			
-			// cache received message
-			dupCache.put(msg.key(), msg);
+			return;
 		}
 		
 		
+		// keep state of remote endpoint
+		PeerState state = peerTable.get(msg.getPeerAddress());
+		if (state != null) {
+			state.touch();
+		}
+		
 		// check for reply to Confirmable
 		if (msg.isReply()) {
 			
 			// retrieve context to the incoming message
-			TxContext ctx = getTransmission(msg);
+			TxContext ctx = getTransmission(msg.getPeerAddress(), msg.getID());
 			
-			if (ctx != null) {
+			if (ctx != null && !ctx.queued) {
 				
 				// match reply to corresponding Confirmable
 				Message.matchBuddies(ctx.msg, msg);
 				
 				// transmission completed
-				removeTransmission(ctx);
+				endTransmission(ctx, msg);
+				
+				// invoke event handler method
+				if (msg.isAcknowledgement()) {
+					ctx.msg.acknowledged();
+				} else {
+					ctx.msg.rejected();
+				}
+				
+			} else if (msg.isReset() && rejectNonConfirmable(msg)) {
+				
+				// Reset to Non-confirmable handled
+				return;
 				
 			} else {
 				// ignore unexpected reply
-				System.out.printf("[%s] Unexpected reply dropped: %s\n",
-					getClass().getName(), msg.key());
-				msg.log();
+				numUnexpectedReplies.increment();
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Unexpected reply dropped: %s", msg.key());
+				}
 				return;
 			}
 		}
@@ -199,10 +435,49 @@ public class MessageLayer extends UpperLayer {
 		deliverMessage(msg);
 	}	
 
+	@Override
+	public boolean cancelTransmission(Message msg) {
+		
+		// stop retransmitting the Confirmable or remove it from the queue
+		TxContext ctx = null;
+		try {
+			ctx = getTransmission(TransportLayer.destination(msg), msg.getID());
+		} catch (UnknownHostException e) {
+			// never sent
+		}
+		boolean removed = ctx != null && ctx.msg == msg && endTransmission(ctx, null);
+		
+		return super.cancelTransmission(msg) | removed;
+	}
+
 	// Internal ////////////////////////////////////////////////////////////////
 	
+	/*
+	 * Reports a Reset to the Non-confirmable it refers to, if that
+	 * was sent recently
+	 * 
+	 * @param reset The Reset message
+	 * @return True if the Non-confirmable was found
+	 */
+	private boolean rejectNonConfirmable(Message reset) {
+		
+		Message msg = nonCache.get(reset.key().withType(messageType.Non_Confirmable));
+		if (msg != null) {
+			msg.rejected();
+			return true;
+		}
+		return false;
+	}
+	
 	private void handleResponseTimeout(TxContext ctx) {
 		
+		// check if transmission completed in the meantime
+		synchronized (this) {
+			if (ctx.peer.transmissions.get(ctx.msg.getID()) != ctx) {
+				return;
+			}
+		}
+		
 		// check if limit of retransmissions reached
 		if (ctx.numRetransmit < MAX_RETRANSMIT) {
 			
@@ -210,18 +485,21 @@ public class MessageLayer extends UpperLayer {
 			
 			++ctx.numRetransmit;
 			
-			System.out.printf("[%s] Retransmitting %s (%d of %d)\n", 
-				getClass().getName(), ctx.msg.key(), 
-				ctx.numRetransmit, MAX_RETRANSMIT);
+			ctx.peer.numRetransmissions.incrementAndGet();
+			numRetransmissions.increment();
+			
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Retransmitting %s (%d of %d)",
+					ctx.msg.key(), ctx.numRetransmit, MAX_RETRANSMIT);
+			}
 			
 			try {
 				sendMessageOverLowerLayer(ctx.msg);
 			} catch (IOException e) {
 				
-				System.out.printf("[%s] ERROR: Retransmission failed: %s\n", 
-					getClass().getName(), e.getMessage());
+				LOG.error("Retransmission failed: %s", e.getMessage());
 				
-				removeTransmission(ctx);
+				endTransmission(ctx, null);
 				
 				return;
 			}
@@ -232,103 +510,211 @@ public class MessageLayer extends UpperLayer {
 		} else {
 			
 			// cancel transmission
-			removeTransmission(ctx);
+			ctx.peer.numTimeouts.incrementAndGet();
+			numTimeouts.increment();
+			endTransmission(ctx, null);
 			
-			System.out.printf("[%s] Transmission of %s cancelled\n", 
-				getClass().getName(), ctx.msg.key());
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Transmission of %s cancelled", ctx.msg.key());
+			}
 			
 			// invoke event handler method
 			ctx.msg.timedOut();
+			
+			// let upper layers release state kept for the message
+			deliverTimeout(ctx.msg);
 		}
 	}
 	
-	private synchronized TxContext addTransmission(Message msg) {
-		
-		if (msg != null) {
+	/*
+	 * Creates the transmission context of a Confirmable, which is queued
+	 * if too many Confirmables are outstanding to its remote endpoint
+	 * 
+	 * @throws IOException If the queue of the remote endpoint is full
+	 */
+	private synchronized TxContext addTransmission(Message msg, CongestionState peer)
+		throws IOException
+	{
+		// initialize new transmission context
+		TxContext ctx = new TxContext();
+		ctx.msg            = msg;
+		ctx.numRetransmit  = 0;
+		ctx.peer           = peer;
 		
-			// initialize new transmission context
-			TxContext ctx = new TxContext();
-			ctx.msg            = msg;
-			ctx.numRetransmit  = 0;
-			ctx.retransmitTask = null;
-			
-			// add context to context table
-			txTable.put(msg.getID(), ctx);
-			
-			return ctx;
+		if (peer.inFlight < nstart) {
+			++peer.inFlight;
+		} else if (peer.queue.size() < MAX_QUEUED) {
+			peer.queue.add(ctx);
+			ctx.queued = true;
+		} else {
+			throw new IOException(String.format("Too many Confirmables waiting for %s",
+				peer.address));
 		}
 		
-		return null;
+		// add context to context table of the remote endpoint
+		peer.transmissions.put(msg.getID(), ctx);
+		
+		return ctx;
 	}
 	
-	private synchronized TxContext getTransmission(Message msg) {
+	private synchronized TxContext getTransmission(InetSocketAddress address, int ID) {
 
-		// retrieve context from context table		
-		return msg != null ? txTable.get(msg.getID()) : null;
+		// retrieve context from context table of the remote endpoint
+		PeerState state = peerTable.get(address);
+		CongestionState peer = state != null ? state.get(CONGESTION) : null;
+		return peer != null ? peer.transmissions.get(ID) : null;
 	}
 	
-	private synchronized void removeTransmission(TxContext ctx) {
-
-		if (ctx != null) {
+	/*
+	 * Sends a Confirmable for the first time and schedules its retransmission
+	 */
+	private void startTransmission(TxContext ctx) throws IOException {
 		
-			// cancel any pending retransmission schedule
-			ctx.retransmitTask.cancel();
-			ctx.retransmitTask = null;
+		synchronized (this) {
+			ctx.firstTransmission = System.currentTimeMillis();
+		}
+		ctx.peer.numTransmissions.incrementAndGet();
+		
+		// schedule first retransmission
+		scheduleRetransmission(ctx);
+		
+		try {
+			sendMessageOverLowerLayer(ctx.msg);
+		} catch (IOException e) {
+			
+			// release the slot of the remote endpoint
+			endTransmission(ctx, null);
+			throw e;
+		}
+	}
 	
+	/*
+	 * Removes the context of a completed, failed or cancelled transmission
+	 * and starts the next Confirmable waiting for the remote endpoint
+	 * 
+	 * @param ctx The transmission context
+	 * @param reply The reply that completed the transmission, or null
+	 * @return True if the transmission had not ended yet
+	 */
+	private boolean endTransmission(TxContext ctx, Message reply) {
+		
+		TxContext next;
+		
+		synchronized (this) {
+			
+			// check if transmission ended in the meantime
+			if (ctx.peer.transmissions.get(ctx.msg.getID()) != ctx) {
+				return false;
+			}
+			
 			// remove context from context table
-			txTable.remove(ctx.msg.getID());
+			ctx.peer.transmissions.remove(ctx.msg.getID());
+			
+			if (ctx.queued) {
+				ctx.peer.queue.remove(ctx);
+				return true;
+			}
+			
+			// cancel any pending retransmission schedule
+			timingWheel.cancel(ctx);
+			
+			if (reply != null) {
+				long received = reply.getTimestamp() > 0 ? reply.getTimestamp() : System.currentTimeMillis();
+				ctx.peer.measured(received - ctx.firstTransmission, ctx.numRetransmit);
+			}
+			
+			// pass slot on to the next Confirmable waiting, if any
+			next = ctx.peer.queue.poll();
+			if (next != null) {
+				next.queued = false;
+			} else {
+				--ctx.peer.inFlight;
+			}
+		}
+		
+		if (next != null) try {
+			startTransmission(next);
+		} catch (IOException e) {
+			LOG.error("Transmission of %s failed: %s", next.msg.key(), e.getMessage());
 		}
+
+		
+		return true;
 	}
 	
 	private void scheduleRetransmission(TxContext ctx) {
 
-		// cancel existing schedule (if any)
-		if (ctx.retransmitTask != null) {
-			ctx.retransmitTask.cancel();
-		}
-		
-		// create new retransmission task
-		ctx.retransmitTask = new RetransmitTask(ctx);
-		
 		// calculate timeout using exponential backoff
 		if (ctx.timeout == 0) {
-			// use initial timeout
-			ctx.timeout = initialTimeout();
+			// use RTO of remote endpoint
+			long rto;
+			synchronized (this) {
+				rto = ctx.peer.rto(System.currentTimeMillis());
+			}
+			ctx.timeout = rnd((int) rto, (int) (rto * RESPONSE_RANDOM_FACTOR));
+			ctx.backoff = CongestionState.backoffFactor(rto);
 		} else {
-			// double timeout
-			ctx.timeout *= 2;
+			// increase timeout
+			ctx.timeout = (int) (ctx.timeout * ctx.backoff);
 		}
 		
-		// schedule retransmission task
-		timer.schedule(ctx.retransmitTask, ctx.timeout);
+		// schedule retransmission, replacing existing schedule (if any)
+		timingWheel.schedule(ctx, ctx.timeout);
 	}
 	
 	/*
-	 * Returns the next message ID to use out of a consecutive range
+	 * Returns the state of a remote endpoint, adding it if necessary.
+	 * The state is touched by the lookup already.
 	 * 
-	 * @return The message ID
+	 * @throws IOException If the peer table is full
 	 */
-	private int nextMessageID() {
+	private PeerState getPeerState(InetSocketAddress address) throws IOException {
 		
-		int ID = messageID;
-		
-		++messageID;
-		
-		// check for wrap-around
-		if (messageID > Message.MAX_ID) {
-			messageID = 1;
+		PeerState state = peerTable.getOrCreate(address);
+		if (state == null) {
+			throw new IOException(String.format("Too many remote endpoints to add %s",
+				address));
 		}
+		return state;
+	}
+
+	
+	private static CongestionState getCongestionState(PeerState state) {
 		
-		return ID;
+		CongestionState peer = state.get(CONGESTION);
+		if (peer == null) {
+			peer = state.attach(CONGESTION,
+				new CongestionState(state.getAddress(), RESPONSE_TIMEOUT));
+		}
+		return peer;
 	}
 	
 	/*
-	 * Calculates the initial timeout for outgoing Confirmable messages.
+	 * Returns the next message ID for a remote endpoint
 	 * 
-	 * @Return The timeout in milliseconds
+	 * @param state The state of the remote endpoint
+	 * @return The message ID
+	 * @throws IOException If all message IDs were used within
+	 * the exchange lifetime
 	 */
-	private static int initialTimeout() {
-		return rnd(RESPONSE_TIMEOUT, (int)(RESPONSE_TIMEOUT * RESPONSE_RANDOM_FACTOR));
+	private int nextMessageID(PeerState state) throws IOException {
+		
+		MessageIdSpace space = state.get(MESSAGE_IDS);
+		if (space == null) {
+			space = state.attach(MESSAGE_IDS, new MessageIdSpace(idLifetime));
+		}
+		
+		int ID;
+		synchronized (this) {
+			ID = space.allocate(System.currentTimeMillis());
+		}
+		
+		if (ID < 0) {
+			numIDsExhausted.incrementAndGet();
+			throw new IOException(String.format("No message ID available for %s",
+				state.getAddress()));
+		}
+		return ID;
 	}
 	
 	/*
@@ -345,24 +731,36 @@ public class MessageLayer extends UpperLayer {
 	
 	// Attributes //////////////////////////////////////////////////////////////
 
-	// Timer used to schedule retransmissions
-	private Timer timer
-		= new Timer(true); // run as daemon
+	// Timing wheel used to schedule retransmissions
+	private TimingWheel timingWheel;
 	
-	// Table used to store context for outgoing messages
-	private Map<Integer, TxContext> txTable
-		= new HashMap<Integer, TxContext>();
+	// Table keeping the state of remote endpoints
+	private PeerTable peerTable;
+	
+	// Maximum number of outstanding Confirmables per remote endpoint
+	private volatile int nstart = DEFAULT_NSTART;
+	
+	// Time after which a message ID may be used again for a remote endpoint
+	private volatile long idLifetime = EXCHANGE_LIFETIME;
 	
 	// Cache used to detect duplicates of incoming messages
-	private MessageCache dupCache
-		= new MessageCache();
+	private final MessageCache dupCache;
 	
 	// Cache used to retransmit replies to incoming messages
-	private MessageCache replyCache
-		= new MessageCache();
+	private final MessageCache replyCache;
+	
+	// Cache used to match Resets to outgoing Non-confirmables
+	private final MessageCache nonCache;
+
+	
+	// Number of messages not sent because no message ID was available
+	private final AtomicLong numIDsExhausted = new AtomicLong();
 	
-	// ID attached to outgoing messages
-	private int messageID;
+	private final Counter numRetransmissions = new Counter();
+	private final Counter numTimeouts = new Counter();
+	private final Counter numDuplicates = new Counter();
+	private final Counter numUnexpectedReplies = new Counter();
+
 
 	
 }
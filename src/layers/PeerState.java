@@ -0,0 +1,226 @@
+package layers;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * This class describes the state kept for a remote endpoint in a PeerTable.
+ *
+ * Layers attach their own per-peer data to it using keys obtained from
+ * newKey(), so that all state about a remote endpoint is found by a single
+ * lookup. Attachments implementing PeerState.Attachment report whether they
+ * are in use and how much memory they occupy; a peer is only evicted from
+ * the table when none of its attachments is in use.
+ *
+ * Eviction and touch() race for the time of the last activity: a peer
+ * is marked evicted by a compare-and-set only if it was not touched
+ * since it was found idle, and an evicted peer cannot be touched anymore,
+ * so that no layer attaches data to a peer removed from the table.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class PeerState {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// maximum number of keys that may be created
+	public static final int MAX_KEYS = 8;
+
+	// estimated memory used by a peer without its attachments,
+	// including its entry in the table
+	public static final int PEER_OVERHEAD = 200; // [bytes]
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Key identifying a kind of data attached to the peers
+	 */
+	public static final class Key<T> {
+
+		private Key(int index, String name) {
+			this.index = index;
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+		private final int index;
+		private final String name;
+	}
+
+	/*
+	 * Interface to be implemented by attachments that must not be discarded
+	 * while in use, or whose memory is accounted for
+	 */
+	public interface Attachment {
+
+		/*
+		 * Checks whether the attachment holds state that must not be lost,
+		 * e.g. outstanding transmissions
+		 */
+		boolean isActive();
+
+		/*
+		 * Returns the estimated memory used by the attachment in bytes
+		 */
+		int getMemoryUsage();
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	PeerState(InetSocketAddress address) {
+		this.address = address;
+		this.lastActivity = new AtomicLong(System.currentTimeMillis());
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Records that the remote endpoint was communicated with, which
+	 * keeps it from being evicted
+	 *
+	 * @return False if the peer was evicted already
+	 */
+	public boolean touch() {
+		long now = System.currentTimeMillis();
+		long last;
+		do {
+			last = lastActivity.get();
+			if (last == EVICTED) {
+				return false;
+			}
+		} while (last < now && !lastActivity.compareAndSet(last, now));
+		return true;
+	}
+
+	/*
+	 * Marks this peer evicted if it was idle for longer than a timeout
+	 * and holds no state in use
+	 *
+	 * @param now The current time
+	 * @param idleTimeout The time in milliseconds after which idle
+	 *                    peers are evicted
+	 * @return True if the peer was marked evicted by this call
+	 */
+	boolean evictIfIdle(long now, long idleTimeout) {
+		long last = lastActivity.get();
+		return last != EVICTED && now - last > idleTimeout && !isActive() &&
+			lastActivity.compareAndSet(last, EVICTED);
+	}
+
+	/*
+	 * Attaches data to this peer unless data was attached with the same
+	 * key already, e.g. by another thread
+	 *
+	 * @param key The key of the data
+	 * @param value The data to attach
+	 * @return The data attached with the key
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T attach(Key<T> key, T value) {
+		if (attachments.compareAndSet(key.index, null, value)) {
+			return value;
+		}
+		return (T) attachments.get(key.index);
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the data attached with a key
+	 *
+	 * @param key The key of the data
+	 * @return The data, or null if none is attached
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(Key<T> key) {
+		return (T) attachments.get(key.index);
+	}
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/*
+	 * Returns the time the remote endpoint was last communicated with
+	 */
+	public long getLastActivity() {
+		return lastActivity.get();
+	}
+
+	public boolean isEvicted() {
+		return lastActivity.get() == EVICTED;
+	}
+
+	/*
+	 * Checks whether any attachment is in use
+	 */
+	public boolean isActive() {
+		for (int i = 0; i < MAX_KEYS; ++i) {
+			Object attachment = attachments.get(i);
+			if (attachment instanceof Attachment && ((Attachment) attachment).isActive()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Returns the estimated memory used by this peer and its attachments
+	 */
+	public int getMemoryUsage() {
+		int usage = PEER_OVERHEAD;
+		for (int i = 0; i < MAX_KEYS; ++i) {
+			Object attachment = attachments.get(i);
+			if (attachment instanceof Attachment) {
+				usage += ((Attachment) attachment).getMemoryUsage();
+			}
+		}
+		return usage;
+	}
+
+	// Class functions /////////////////////////////////////////////////////////
+
+	/*
+	 * Creates a key for a kind of data attached to the peers. Keys are
+	 * usually created once per class and kept in a constant.
+	 *
+	 * @param name The name of the key, used for debugging
+	 * @return The new key
+	 * @throws IllegalStateException If MAX_KEYS keys exist already
+	 */
+	public static <T> Key<T> newKey(String name) {
+
+		int index = numKeys.getAndIncrement();
+		if (index >= MAX_KEYS) {
+			throw new IllegalStateException("Too many peer state keys: " + name);
+		}
+		return new Key<T>(index, name);
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	private static final AtomicInteger numKeys = new AtomicInteger();
+
+	// the time of the last activity of evicted peers
+	private static final long EVICTED = Long.MIN_VALUE;
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final InetSocketAddress address;
+
+	// the time of the last activity, or EVICTED
+	private final AtomicLong lastActivity;
+
+
+	// the attached data by key index
+	private final AtomicReferenceArray<Object> attachments
+		= new AtomicReferenceArray<Object>(MAX_KEYS);
+}
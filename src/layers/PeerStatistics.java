@@ -0,0 +1,111 @@
+package layers;
+
+import java.net.InetSocketAddress;
+
+/*
+ * This class describes a snapshot of the transmission statistics of a
+ * remote endpoint, as kept by the message layer for congestion control.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class PeerStatistics {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	PeerStatistics(InetSocketAddress address, int inFlight, int queued,
+		long rto, long srtt, long rttvar,
+		long numTransmissions, long numRetransmissions, long numTimeouts) {
+
+		this.address = address;
+		this.inFlight = inFlight;
+		this.queued = queued;
+		this.rto = rto;
+		this.srtt = srtt;
+		this.rttvar = rttvar;
+		this.numTransmissions = numTransmissions;
+		this.numRetransmissions = numRetransmissions;
+		this.numTimeouts = numTimeouts;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/*
+	 * Returns the number of Confirmables waiting for their reply
+	 */
+	public int getInFlight() {
+		return inFlight;
+	}
+
+	/*
+	 * Returns the number of Confirmables waiting to be sent
+	 */
+	public int getQueued() {
+		return queued;
+	}
+
+	/*
+	 * Returns the retransmission timeout in milliseconds
+	 */
+	public long getRTO() {
+		return rto;
+	}
+
+	/*
+	 * Returns the smoothed round-trip time and its variation in
+	 * milliseconds, or -1 if no round-trip time was measured yet
+	 */
+	public long getSRTT() {
+		return srtt;
+	}
+
+	public long getRTTVAR() {
+		return rttvar;
+	}
+
+	/*
+	 * Returns the number of Confirmables sent, not counting retransmissions
+	 */
+	public long getNumTransmissions() {
+		return numTransmissions;
+	}
+
+	public long getNumRetransmissions() {
+		return numRetransmissions;
+	}
+
+	/*
+	 * Returns the number of Confirmables cancelled after the last
+	 * retransmission timed out
+	 */
+	public long getNumTimeouts() {
+		return numTimeouts;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: in-flight=%d, queued=%d, RTO=%d ms, SRTT=%d ms, RTTVAR=%d ms, sent=%d, retransmitted=%d, timed out=%d",
+			address, inFlight, queued, rto, srtt, rttvar,
+			numTransmissions, numRetransmissions, numTimeouts);
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final InetSocketAddress address;
+
+	private final int inFlight;
+	private final int queued;
+
+	private final long rto;
+	private final long srtt;
+	private final long rttvar;
+
+	private final long numTransmissions;
+	private final long numRetransmissions;
+	private final long numTimeouts;
+}
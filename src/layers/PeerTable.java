@@ -0,0 +1,199 @@
+package layers;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * This class describes the functionality of a table of remote endpoints,
+ * which is shared by the layers of a communication stack. It provides:
+ *
+ * - Lookup of the PeerState of a remote endpoint by its socket address
+ *   in constant time, to which each layer attaches its own data
+ *
+ * - Eviction of peers that were idle for longer than the idle timeout and
+ *   hold no state in use. Idle peers are swept when new peers are added,
+ *   at most once per sweep interval, so that no timer thread is needed.
+ *
+ * - An optional limit on the number of peers, and an estimate of the
+ *   memory they use, so that the memory needed for many remote endpoints
+ *   is predictable
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class PeerTable {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// default time after which idle peers are evicted, corresponding
+	// to EXCHANGE_LIFETIME of draft-ietf-core-coap
+	public static final long DEFAULT_IDLE_TIMEOUT = 247000; // [milliseconds]
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new peer table
+	 *
+	 * @param idleTimeout The time in milliseconds after which idle peers
+	 *                    are evicted
+	 * @param maxPeers The maximum number of peers, or 0 for no limit
+	 */
+	public PeerTable(long idleTimeout, int maxPeers) {
+		this.idleTimeout = idleTimeout;
+		this.maxPeers = maxPeers;
+		this.lastSweep = System.currentTimeMillis();
+	}
+
+	public PeerTable() {
+		this(DEFAULT_IDLE_TIMEOUT, 0);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the state of a remote endpoint, adding it if not present.
+	 * The state is touched, so that it is not evicted while in use.
+	 *
+	 * @param address The address of the remote endpoint
+	 * @return The state, or null if the maximum number of peers is reached
+	 */
+	public PeerState getOrCreate(InetSocketAddress address) {
+
+		while (true) {
+
+			PeerState peer = peers.get(address);
+			if (peer != null) {
+				if (peer.touch()) {
+					return peer;
+				}
+
+				// evicted concurrently, but possibly not removed yet
+				peers.remove(address, peer);
+				continue;
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - lastSweep > idleTimeout / 4 ||
+				maxPeers > 0 && peers.size() >= maxPeers) {
+
+				evictIdle(now);
+			}
+
+			if (maxPeers > 0 && peers.size() >= maxPeers) {
+				numRefused.incrementAndGet();
+				return null;
+			}
+
+			// a new peer is touched by its creation
+			peer = new PeerState(address);
+			if (peers.putIfAbsent(address, peer) == null) {
+				return peer;
+			}
+		}
+	}
+
+	/*
+	 * Removes the peers that were idle for longer than the idle timeout
+	 * and hold no state in use
+	 *
+	 * @param now The current time
+	 * @return The number of peers removed
+	 */
+	public int evictIdle(long now) {
+
+		lastSweep = now;
+
+		// peers touched concurrently are not marked evicted, and
+		// only the marked instance is removed
+		int evicted = 0;
+		for (PeerState peer : peers.values()) {
+			if (peer.evictIfIdle(now, idleTimeout)) {
+				peers.remove(peer.getAddress(), peer);
+				++evicted;
+			}
+		}
+
+
+		numEvicted.addAndGet(evicted);
+		return evicted;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the state of a remote endpoint
+	 *
+	 * @param address The address of the remote endpoint
+	 * @return The state, or null if not present
+	 */
+	public PeerState get(InetSocketAddress address) {
+		return address != null ? peers.get(address) : null;
+	}
+
+	/*
+	 * Returns a view of the peers in the table, which may be
+	 * iterated while peers are added and removed
+	 */
+	public Collection<PeerState> getPeers() {
+		return peers.values();
+	}
+
+	public int size() {
+		return peers.size();
+	}
+
+	/*
+	 * Returns the estimated memory used by the peers and their attachments.
+	 * The peers are visited, so this method is meant for monitoring.
+	 *
+	 * @return The memory usage in bytes
+	 */
+	public long getMemoryUsage() {
+		long usage = 0;
+		for (PeerState peer : peers.values()) {
+			usage += peer.getMemoryUsage();
+		}
+		return usage;
+	}
+
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public int getMaxPeers() {
+		return maxPeers;
+	}
+
+	/*
+	 * Returns the number of peers evicted because they were idle
+	 */
+	public long getNumEvicted() {
+		return numEvicted.get();
+	}
+
+	/*
+	 * Returns the number of peers not added because the
+	 * maximum number of peers was reached
+	 */
+	public long getNumRefused() {
+		return numRefused.get();
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final ConcurrentMap<InetSocketAddress, PeerState> peers
+		= new ConcurrentHashMap<InetSocketAddress, PeerState>();
+
+	private final long idleTimeout;
+	private final int maxPeers;
+
+	// the time idle peers were last evicted
+	private volatile long lastSweep;
+
+	private AtomicLong numEvicted = new AtomicLong();
+	private AtomicLong numRefused = new AtomicLong();
+}
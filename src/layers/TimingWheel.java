@@ -0,0 +1,294 @@
+package layers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import log.Logger;
+
+/*
+ * This class describes the functionality of a hashed timing wheel used to
+ * schedule large numbers of timeouts, e.g. for retransmissions.
+ *
+ * The wheel consists of a ring of buckets, each covering one tick. A timeout
+ * is linked into the bucket of the tick it expires in, together with the
+ * number of full revolutions left before it is due. Scheduling and
+ * cancelling are therefore O(1) and do not allocate: timeouts are objects
+ * owned by the caller that extend Timeout and are linked into the wheel
+ * directly. Cancelled timeouts are unlinked immediately.
+ *
+ * A single daemon thread advances the wheel and invokes expired() on the
+ * due timeouts. The default wheel returned by defaultWheel() can be shared
+ * by any number of layers.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class TimingWheel {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// duration of one tick; this is the resolution of the timeouts
+	public static final int DEFAULT_TICK_DURATION = 100; // [milliseconds]
+
+	// number of buckets; one revolution covers the range of CoAP
+	// retransmission timeouts (2-48 s) without multiple rounds
+	public static final int DEFAULT_WHEEL_SIZE    = 512; // [ticks]
+
+	private static final Logger LOG = Logger.getLogger(TimingWheel.class);
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Base class for objects that can be scheduled on a timing wheel
+	 */
+	public static abstract class Timeout {
+
+		/*
+		 * Checks whether this timeout is currently scheduled
+		 *
+		 * @return True iff the timeout is linked into a wheel
+		 */
+		public boolean isScheduled() {
+			return bucket >= 0;
+		}
+
+		/*
+		 * Notification method that is called on the wheel's thread when
+		 * the timeout expired.
+		 */
+		protected abstract void expired();
+
+		// links within the bucket list
+		private Timeout prev;
+		private Timeout next;
+
+		// index of the bucket this timeout is linked into, or -1
+		private int bucket = -1;
+
+		// number of revolutions left before the timeout is due
+		private long rounds;
+	}
+
+	/*
+	 * The thread that advances the wheel
+	 */
+	private class TickThread extends Thread {
+
+		TickThread(String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+
+				// wait until current tick has passed
+				long sleep = startTime + (tick + 1) * tickDuration - System.currentTimeMillis();
+				if (sleep > 0) {
+					try {
+						Thread.sleep(sleep);
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+
+				// invoke handlers outside the lock, as they usually reschedule
+				advance(expired);
+				for (Timeout timeout : expired) {
+					try {
+						timeout.expired();
+					} catch (RuntimeException e) {
+						LOG.error("Timeout handler failed: %s", e.getMessage(), e);
+					}
+				}
+				expired.clear();
+			}
+		}
+		
+		// timeouts due in the current tick
+		private List<Timeout> expired = new ArrayList<Timeout>();
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new timing wheel
+	 *
+	 * @param name The name of the thread advancing the wheel
+	 * @param tickDuration The duration of one tick in milliseconds
+	 * @param wheelSize The number of buckets, which must be a power of two
+	 */
+	public TimingWheel(String name, int tickDuration, int wheelSize) {
+
+		if (tickDuration <= 0 || wheelSize <= 0 || (wheelSize & (wheelSize - 1)) != 0) {
+			throw new IllegalArgumentException("Invalid timing wheel dimensions");
+		}
+
+		this.tickDuration = tickDuration;
+		this.buckets = new Timeout[wheelSize];
+		this.mask = wheelSize - 1;
+		this.startTime = System.currentTimeMillis();
+
+		new TickThread(name).start();
+	}
+
+	/*
+	 * Constructor for a new timing wheel with default dimensions
+	 */
+	public TimingWheel() {
+		this("TimingWheel", DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Schedules a timeout, replacing any pending schedule of it
+	 *
+	 * @param timeout The timeout to schedule
+	 * @param delay The time in milliseconds after which the timeout expires
+	 */
+	public synchronized void schedule(Timeout timeout, long delay) {
+
+		// cancel existing schedule (if any)
+		unlink(timeout);
+
+		// determine the first tick processed at or after the expiration time
+		long expiration = System.currentTimeMillis() + delay - startTime;
+		long due = (expiration + tickDuration - 1) / tickDuration - 1;
+		if (due < tick) {
+			due = tick;
+		}
+
+		timeout.rounds = (due - tick) / buckets.length;
+		timeout.bucket = (int) (due & mask);
+
+		// link at head of bucket
+		timeout.prev = null;
+		timeout.next = buckets[timeout.bucket];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		buckets[timeout.bucket] = timeout;
+
+		++size;
+	}
+
+	/*
+	 * Cancels a scheduled timeout
+	 *
+	 * @param timeout The timeout to cancel
+	 * @return True if the timeout was scheduled
+	 */
+	public synchronized boolean cancel(Timeout timeout) {
+		return unlink(timeout);
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the number of scheduled timeouts
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public int getTickDuration() {
+		return tickDuration;
+	}
+
+	// Class functions /////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the timing wheel shared by all layers that do not use
+	 * a dedicated one
+	 *
+	 * @return The default timing wheel
+	 */
+	public static synchronized TimingWheel defaultWheel() {
+
+		// lazy initialization
+		if (DEFAULT_WHEEL == null) {
+			DEFAULT_WHEEL = new TimingWheel();
+		}
+		return DEFAULT_WHEEL;
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Processes the bucket of the current tick and advances to the next tick
+	 *
+	 * @param expired The list to add the expired timeouts to
+	 */
+	private synchronized void advance(List<Timeout> expired) {
+
+		int index = (int) (tick & mask);
+
+		Timeout timeout = buckets[index];
+		while (timeout != null) {
+			Timeout next = timeout.next;
+
+			if (timeout.rounds <= 0) {
+
+				// remove expired timeout from wheel
+				unlink(timeout);
+				expired.add(timeout);
+
+			} else {
+				--timeout.rounds;
+			}
+
+			timeout = next;
+		}
+
+		++tick;
+	}
+
+	private boolean unlink(Timeout timeout) {
+
+		if (timeout.bucket < 0) {
+			return false;
+		}
+
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			buckets[timeout.bucket] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+
+		--size;
+
+		return true;
+	}
+
+	// Class attributes ////////////////////////////////////////////////////////
+
+	// the shared timing wheel (lazy initialized)
+	private static TimingWheel DEFAULT_WHEEL;
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// heads of the bucket lists
+	private Timeout[] buckets;
+
+	private int mask;
+	private int tickDuration;
+
+	// time the wheel was started, in milliseconds
+	private long startTime;
+
+	// number of the next tick to process
+	private long tick;
+
+	// number of scheduled timeouts
+	private int size;
+}
@@ -1,125 +1,523 @@
 package layers;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.Iterator;
+
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
+import coap.CodeRegistry;
 import coap.Message;
 import coap.Option;
 import coap.OptionNumberRegistry;
 import coap.Request;
 import coap.Response;
+import log.Logger;
+import metrics.Counter;
+import metrics.Gauge;
+import metrics.MetricRegistry;
 
+/*
+ * This class describes the functionality of a CoAP transaction layer. It
+ * provides:
+ *
+ * - Assignment of tokens to outgoing requests
+ *
+ * - Matching of incoming responses to their requests by token
+ *
+ * Outgoing requests are tracked as exchanges until their final response
+ * arrived, their transmission timed out or they were removed explicitly,
+ * e.g. to cancel an observation. To bound memory usage, the number of
+ * exchanges is limited and exchanges that did not see a response within
+ * their lifetime are evicted.
+ *
+ * The exchanges of a remote endpoint are attached to its PeerState, so
+ * that responses are matched by remote endpoint and token, and a peer
+ * is not evicted from the table while it has exchanges outstanding.
+ *
+ * Token assignment and the table of exchanges are guarded by the monitor
+ * of the layer. Requests are passed on to the lower layer and responses to
+ * the upper layers without holding it.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
 public class TransactionLayer extends UpperLayer {
-	
-	public TransactionLayer() {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// default maximum number of concurrently tracked exchanges
+	public static final int DEFAULT_EXCHANGE_CAPACITY = 4096; // [exchanges]
+
+	// default time an exchange is kept without receiving a response,
+	// corresponding to EXCHANGE_LIFETIME of draft-ietf-core-coap
+	public static final long DEFAULT_EXCHANGE_LIFETIME = 247000; // [milliseconds]
+
+	// estimated memory used by each exchange attached to a peer
+	private static final int EXCHANGE_OVERHEAD = 96; // [bytes]
+
+	// key of the exchanges attached to the peers
+	private static final PeerState.Key<PeerExchanges> EXCHANGES
+		= PeerState.newKey("exchanges");
+
+	private static final Logger LOG = Logger.getLogger(TransactionLayer.class);
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Entity class to keep state of an exchange
+	 */
+	private static class Exchange {
+		Request request;
+		int token;
+
+		// time the exchange was started or last saw a response
+		long timestamp;
+	}
+
+	/*
+	 * Entity class to keep the exchanges of a remote endpoint by token,
+	 * which is attached to its PeerState
+	 */
+	private static class PeerExchanges implements PeerState.Attachment {
+
+		@Override
+		public boolean isActive() {
+			return size > 0;
+		}
+
+		@Override
+		public int getMemoryUsage() {
+			return EXCHANGE_OVERHEAD * size;
+		}
+
+		final Map<Integer, Exchange> byToken = new HashMap<Integer, Exchange>();
+
+		// the number of exchanges, which is read without the layer's lock
+		volatile int size;
+	}
+
+	/*
+	 * Utility class that maps all exchanges to the exchanges of their
+	 * remote endpoint in order of their timestamps. Lookups do not reorder
+	 * the entries; an exchange whose timestamp is refreshed is inserted
+	 * again as the most recent one.
+	 */
+	@SuppressWarnings("serial")
+	private class ExchangeMap extends LinkedHashMap<Exchange, PeerExchanges> {
+
+		ExchangeMap() {
+			super(16, 0.75f, false);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Exchange, PeerExchanges> eldest) {
+			if (size() > capacity) {
+				unlinkExchange(eldest.getKey(), eldest.getValue());
+				numEvicted.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new transaction layer
+	 *
+	 * @param capacity The maximum number of concurrently tracked exchanges
+	 * @param lifetime The time in milliseconds after which an exchange
+	 *                 without response is evicted
+	 * @param peerTable The table to keep the state of remote endpoints in,
+	 *                  which may be shared with other layers of the stack
+	 */
+	public TransactionLayer(int capacity, long lifetime, PeerTable peerTable) {
 		// member initialization
 		// TODO randomize initial token?
 		this.currentToken = 0xCAFE;
+		this.capacity = capacity;
+		this.lifetime = lifetime;
+		this.peerTable = peerTable;
+	}
+
+	public TransactionLayer(int capacity, long lifetime) {
+		this(capacity, lifetime, new PeerTable());
+	}
+
+	public TransactionLayer(PeerTable peerTable) {
+		this(DEFAULT_EXCHANGE_CAPACITY, DEFAULT_EXCHANGE_LIFETIME, peerTable);
+	}
+
+	public TransactionLayer() {
+		this(new PeerTable());
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Stops tracking the exchange of a request, e.g. to cancel an
+	 * observation. Responses received afterwards are not matched anymore.
+	 *
+	 * @param request The request whose exchange to remove
+	 * @return True if the exchange was tracked
+	 */
+	public synchronized boolean removeExchange(Request request) {
+
+		Option tokenOpt = request.getFirstOption(OptionNumberRegistry.TOKEN);
+		PeerExchanges peer = null;
+		try {
+			peer = getExchanges(peerTable.get(TransportLayer.destination(request)));
+		} catch (UnknownHostException e) {
+			// never sent
+		}
+
+		if (tokenOpt != null && peer != null) {
+
+			Exchange exchange = peer.byToken.get(tokenOpt.getIntValue());
+
+			// only remove if token was not reused in the meantime
+			if (exchange != null && exchange.request == request) {
+				exchanges.remove(exchange);
+				unlinkExchange(exchange, peer);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the number of currently tracked exchanges
+	 */
+	public synchronized int getNumExchanges() {
+		return exchanges.size();
+	}
+
+	/*
+	 * Returns the number of exchanges evicted because the capacity was reached
+	 */
+	public long getNumEvicted() {
+		return numEvicted.get();
+	}
+
+	/*
+	 * Returns the number of exchanges evicted because their lifetime expired
+	 */
+	public long getNumExpired() {
+		return numExpired.get();
+	}
+
+	public PeerTable getPeerTable() {
+		return peerTable;
+	}
+
+	@Override
+	public void registerMetrics(MetricRegistry registry, String prefix) {
+		super.registerMetrics(registry, prefix);
+
+		registry.register(prefix + ".matched", numMatched);
+		registry.register(prefix + ".unmatched", numUnmatched);
+		registry.register(prefix + ".exchanges", new Gauge() {
+			@Override
+			public long getValue() {
+				return getNumExchanges();
+			}
+		});
+		registry.register(prefix + ".evicted", new Gauge() {
+			@Override
+			public long getValue() {
+				return getNumEvicted();
+			}
+		});
+		registry.register(prefix + ".expired", new Gauge() {
+			@Override
+			public long getValue() {
+				return getNumExpired();
+			}
+		});
 	}
 
 	// I/O implementation //////////////////////////////////////////////////////
-	
+
 	@Override
 	protected void doSendMessage(Message msg) throws IOException {
-		
+
 		if (msg instanceof Request) {
 			Request request = (Request) msg;
-			
-			// set token option
-			if (request.getFirstOption(OptionNumberRegistry.TOKEN) == null) {
-				request.setOption(new Option(currentToken, OptionNumberRegistry.TOKEN));
+
+			// the lookup touches the remote endpoint
+			InetSocketAddress address = TransportLayer.destination(request);
+			PeerState state = peerTable.getOrCreate(address);
+			if (state == null) {
+				throw new IOException(String.format("Too many remote endpoints to add %s",
+					address));
+			}
+
+			synchronized (this) {
+
+				// set token option
+				if (request.getFirstOption(OptionNumberRegistry.TOKEN) == null) {
+					request.setOption(new Option(currentToken, OptionNumberRegistry.TOKEN));
+
+					// compute next token
+					++currentToken;
+				}
+
+				// associate token with request
+				addExchange(request, attachExchanges(state));
 			}
-			
-			// associate token with request
-			tokenMap.put(currentToken, request);
-			
-			// compute next token
-			++currentToken;
 		}
 		sendMessageOverLowerLayer(msg);
-	}	
-	
+	}
+
 	@Override
 	protected void doReceiveMessage(Message msg) {
 
 		// retrieve token option
 		Option tokenOpt = msg.getFirstOption(OptionNumberRegistry.TOKEN);
-		
+
 		if (msg instanceof Response) {
 
 			Response response = (Response) msg;
-			
+
 			Request request = null;
-			
+
 			if (tokenOpt != null) {
-				
-				// retrieve request corresponding to token
+
+				// retrieve request corresponding to remote endpoint and token
 				int token = tokenOpt.getIntValue();
-				request = tokenMap.get(token);
-				
-				/*if (request == null) {
-					System.out.printf("[%s] WARNING: Unexpected response, Token=0x%x\n",
-						getClass().getName(), token);
-				}*/
+				request = matchExchange(response, token, isFinal(response));
+
+				if (request != null) {
+					numMatched.increment();
+				} else {
+					numUnmatched.increment();
+
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Unexpected response, Token=0x%x: %s", token, response.key());
+					}
+				}
 			} else {
-				// no token option present (blame server)
-				
-				System.out.printf("[%s] WARNING: Token missing for matching response to request\n",
-					getClass().getName());
-				
+				// no token option present (blame server); as this
+				// repeats for every response of the server, it is
+				// logged at debug level only
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Token missing for matching response to request: %s",
+						response.key());
+				}
+
 				// try to use buddy for matching response to request
 				if (response.getBuddy() instanceof Request) {
-					
+
 					request = (Request)response.getBuddy();
 
-					System.out.printf("[%s] Falling back to buddy matching for %s\n",
-						getClass().getName(), response.key());
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Falling back to buddy matching for %s", response.key());
+					}
 				}
 			}
-			
+
 			// check if received response needs confirmation
 			if (response.isConfirmable()) {
 				try {
 					// reply with ACK if response matched to request,
 					// otherwise reply with RST
-					
+
 					Message reply = response.newReply(request != null);
 
 					sendMessageOverLowerLayer(reply);
 
 				} catch (IOException e) {
-					System.out.printf("[%s] ERROR: Failed to reply to confirmable response:\n",
-						getClass().getName());
-					e.printStackTrace();
+					LOG.error("Failed to reply to confirmable response: %s",
+						e.getMessage(), e);
+
 				}
 			}
 
 			if (request != null) {
-				
+
 				// attach request to response
 				response.setRequest(request);
-			}/* else {
-				
-				// log unsuccessful matching
-				System.out.printf("[%s] ERROR: Failed to match response to request:\n",
-					getClass().getName());
-				response.log();
-			}*/
-			
-		} else if (msg instanceof Request) {
-			
-			// incoming request: 
-			if (tokenOpt != null) {
-				tokenMap.put(tokenOpt.getIntValue(), (Request) msg);
 			}
 		}
 
+
+		// incoming requests are not tracked, as their responses
+		// are matched by the remote endpoint
+
 		deliverMessage(msg);
 	}
-	
-	private Map<Integer, Request> tokenMap
-		= new HashMap<Integer, Request>();
+
+	@Override
+	protected void transmissionTimedOut(Message msg) {
+
+		// no response will arrive for a request that never got through
+		if (msg instanceof Request) {
+			removeExchange((Request) msg);
+		}
+
+		super.transmissionTimedOut(msg);
+	}
+
+	@Override
+	public boolean cancelTransmission(Message msg) {
+
+		// responses arriving later are not matched anymore
+		boolean removed = msg instanceof Request && removeExchange((Request) msg);
+
+		return super.cancelTransmission(msg) | removed;
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Starts tracking the exchange of an outgoing request
+	 *
+	 * @param request The request, which must have a token option
+	 * @param peer The exchanges of the request's remote endpoint
+	 */
+	private synchronized void addExchange(Request request, PeerExchanges peer) {
+
+		long now = System.currentTimeMillis();
+
+		// evict exchanges whose lifetime expired
+		Iterator<Map.Entry<Exchange, PeerExchanges>> it = exchanges.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Exchange, PeerExchanges> eldest = it.next();
+			if (now - eldest.getKey().timestamp < lifetime) {
+				break;
+			}
+			it.remove();
+			unlinkExchange(eldest.getKey(), eldest.getValue());
+			numExpired.incrementAndGet();
+		}
+
+		Exchange exchange = new Exchange();
+		exchange.request   = request;
+		exchange.token     = request.getFirstOption(OptionNumberRegistry.TOKEN).getIntValue();
+		exchange.timestamp = now;
+
+		// an exchange with the same token is replaced
+		Exchange replaced = peer.byToken.put(exchange.token, exchange);
+		if (replaced != null) {
+			exchanges.remove(replaced);
+		}
+		peer.size = peer.byToken.size();
+
+		exchanges.put(exchange, peer);
+	}
+
+	/*
+	 * Retrieves the request matching a response's remote endpoint and token
+	 *
+	 * @param response The response
+	 * @param token The token of the response
+	 * @param last True if no further responses are expected for the exchange
+	 * @return The matching request, or null if none
+	 */
+	private synchronized Request matchExchange(Response response, int token, boolean last) {
+
+		PeerExchanges peer = getExchanges(peerTable.get(response.getPeerAddress()));
+		Exchange exchange = peer != null ? peer.byToken.get(token) : null;
+		if (exchange == null) {
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+
+		if (now - exchange.timestamp >= lifetime) {
+
+			// exchange expired but was not evicted yet
+			exchanges.remove(exchange);
+			unlinkExchange(exchange, peer);
+			numExpired.incrementAndGet();
+			return null;
+		}
+
+		// further responses extend the lifetime, e.g. for notifications,
+		// which moves the exchange to the end of the expiry order
+		exchanges.remove(exchange);
+		if (last) {
+			unlinkExchange(exchange, peer);
+		} else {
+			exchange.timestamp = now;
+			exchanges.put(exchange, peer);
+		}
+
+		return exchange.request;
+
+	}
+
+	/*
+	 * Removes an exchange from the exchanges of its remote endpoint.
+	 * The caller removes it from the expiry order.
+	 */
+	private void unlinkExchange(Exchange exchange, PeerExchanges peer) {
+		if (peer.byToken.get(exchange.token) == exchange) {
+			peer.byToken.remove(exchange.token);
+			peer.size = peer.byToken.size();
+		}
+	}
+
+	private static PeerExchanges getExchanges(PeerState state) {
+		return state != null ? state.get(EXCHANGES) : null;
+	}
+
+	private static PeerExchanges attachExchanges(PeerState state) {
+
+		PeerExchanges peer = state.get(EXCHANGES);
+		if (peer == null) {
+			peer = state.attach(EXCHANGES, new PeerExchanges());
+		}
+		return peer;
+	}
+
+	/*
+	 * Checks whether a response is the last one of its exchange
+	 *
+	 * @param response The response to check
+	 * @return False if the response is a successful notification or
+	 * an empty message, true otherwise
+	 */
+	private static boolean isFinal(Response response) {
+
+		int code = response.getCode();
+
+		if (!CodeRegistry.isResponse(code)) {
+			// empty Acknowledgements precede separate responses
+			return false;
+		}
+
+		// observations end with an error or a response without Observe option
+		return !response.hasOption(OptionNumberRegistry.OBSERVE) ||
+			CodeRegistry.responseClass(code) != CodeRegistry.RESP_CLASS_SUCCESS;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// Exchanges of all remote endpoints in order of expiry
+	private final Map<Exchange, PeerExchanges> exchanges = new ExchangeMap();
+
+	// Table of the remote endpoints, to which their exchanges are attached
+	private final PeerTable peerTable;
 
 	private int currentToken;
+
+	private final int capacity;
+	private final long lifetime;
+
+	private final AtomicLong numEvicted = new AtomicLong();
+	private final AtomicLong numExpired = new AtomicLong();
+
+	// Responses matched or not matched to an exchange by their token
+	private final Counter numMatched = new Counter(false);
+	private final Counter numUnmatched = new Counter(false);
 }
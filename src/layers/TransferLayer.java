@@ -1,241 +1,1155 @@
 package layers;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeoutException;
 
-import coap.GETRequest;
+import coap.CodeRegistry;
 import coap.Message;
 import coap.Option;
 import coap.OptionNumberRegistry;
-import coap.POSTRequest;
-import coap.PUTRequest;
 import coap.Request;
 import coap.Response;
+import coap.Message.messageType;
+import log.Logger;
 
+/*
+ * This class describes the functionality of a CoAP transfer layer. It
+ * provides blockwise transfers as defined in draft-ietf-core-block-03:
+ *
+ * - Requests with large payloads are sent in blocks using the Block1
+ *   option, each block waiting for the response to the previous one
+ *
+ * - Responses with large payloads are sent in blocks using the Block2
+ *   option; the remaining blocks are served from the stored response body
+ *   as the client requests them
+ *
+ * - Incoming blockwise requests are reassembled before they are passed
+ *   to the upper layers
+ *
+ * - Incoming blockwise responses are passed to the upper layers with
+ *   their first block; further blocks are requested and appended to its
+ *   payload until the response is complete
+ *
+ * Block sizes are negotiated by using the smaller of the local and the
+ * remote block size. Transfers that are not continued within their
+ * lifetime are discarded.
+ *
+ * By default, the blocks of a response are requested one after another.
+ * If a pipeline window is set and the size of a response can be estimated
+ * from the request's size hint, e.g. the sz attribute of a resource, up to
+ * that many blocks are requested concurrently. Blocks arriving out of
+ * order are buffered until they can be appended, and blocks whose request
+ * timed out are requested again.
+ *
+ * The tables of transfers are guarded by the monitor of the layer, and the
+ * state of each transfer by the monitor of the transfer, so that blocks of
+ * different transfers are processed concurrently. Neither is held while
+ * messages are sent or delivered, or while a response is marked complete.
+ * Only the payload of a response is appended under the monitor of its
+ * transfer, which keeps the blocks in order, so that the request's
+ * responsePayloadAppended() must not block.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
 public class TransferLayer extends UpperLayer {
-	
-	private static int DEFAULT_BLOCK_SIZE = 512;
 
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// default maximum payload size of a single block
+	public static final int DEFAULT_BLOCK_SIZE = 512; // [bytes]
+
+	// default maximum size of the reassembled payload of incoming requests
+	public static final int DEFAULT_MAX_BODY_SIZE = 1 << 20; // [bytes]
+
+	// default time after which incomplete transfers are discarded
+	public static final long TRANSFER_LIFETIME = 247000; // [milliseconds]
+
+	// largest block size exponent defined by draft-ietf-core-block-03
+	private static final int MAX_SZX = 6;
+
+	// number of times the blocks of a pipelined transfer are requested
+	// again after their request timed out
+	public static final int MAX_BLOCK_RETRIES = 4;
+
+	private static final Logger LOG = Logger.getLogger(TransferLayer.class);
+
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * Entity class to keep state of a blockwise transfer
+	 */
+	private static class Transfer {
+
+		// the message whose payload is transferred: for outgoing transfers,
+		// the complete message; for incoming ones, the message the received
+		// blocks are appended to
+		Message message;
+
+		// the payload of outgoing transfers
+		byte[] body;
+
+		// the request initiating an outgoing request or incoming response
+		Request request;
+
+		// the key of transfers identified by resource, or null
+		String resourceKey;
+
+		// the last block transferred
+		int num;
+		int szx;
+
+		// time the last block was transferred
+		long timestamp;
+
+		// state of incoming responses, guarded by the transfer itself:
+		// the number of the next block to append and to request
+		int appended;
+		int next;
+
+		// the number of blocks requested but not received yet
+		int inFlight;
+
+		// the number of the last block to request speculatively,
+		// estimated from the size hint
+		int estimatedLast;
+
+		// the number of the last block, or -1 if not known yet
+		int last = -1;
+
+		// the number of the first block that could not be retrieved
+		int end = Integer.MAX_VALUE;
+
+		// the number of blocks requested again
+		int retries;
+
+		// true if the transfer completed or was aborted
+		boolean done;
+
+		// blocks received out of order
+		Map<Integer, Response> blocks;
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new transfer layer
+	 *
+	 * @param blockSize The maximum payload size of a single block,
+	 *                  which must be a power of two from 16 to 1024
+	 */
+	public TransferLayer(int blockSize) {
+		this.defaultSZX = computeSZX(blockSize);
+		this.pipelineWindow = 1;
+		this.maxBodySize = DEFAULT_MAX_BODY_SIZE;
+	}
+
+	public TransferLayer() {
+		this(DEFAULT_BLOCK_SIZE);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Sets the maximum number of blocks of an incoming response that are
+	 * requested concurrently. Blocks beyond the first are only requested
+	 * in advance if the request has a size hint.
+	 *
+	 * Confirmable block requests are subject to the message layer's limit
+	 * of outstanding Confirmables per peer, which is 1 by default. A window
+	 * only takes full effect if MessageLayer.setNstart() allows at least
+	 * as many; otherwise, further requests wait for the previous ones.
+	 *
+	 * @param window The number of blocks, or 1 to request them sequentially
+	 */
+	public void setPipelineWindow(int window) {
+		this.pipelineWindow = Math.max(window, 1);
+	}
+
+	/*
+	 * Sets the maximum payload size of incoming blockwise requests. Blocks
+	 * exceeding it are answered with 4.13 Request Entity Too Large, and
+	 * the transfer is discarded.
+	 *
+	 * @param size The maximum size in bytes
+	 */
+	public void setMaxBodySize(int size) {
+		this.maxBodySize = size;
+	}
+
+	/*
+	 * Sets the time after which transfers that were not continued are
+	 * discarded. Outgoing requests and incoming responses are aborted then,
+	 * as the request for their next block may have been lost without
+	 * timing out, e.g. if it is non-confirmable.
+	 *
+	 * @param lifetime The lifetime in milliseconds
+	 */
+	public void setTransferLifetime(long lifetime) {
+		this.transferLifetime = Math.max(lifetime, 1);
+	}
+
+	// Class functions /////////////////////////////////////////////////////////
+
+	/*
+	 * Logs the fields of a block option at debug level
+	 *
+	 * @param blockOpt The Block, Block1 or Block2 option
+	 */
 	public static void decodeBlock(Option blockOpt) {
+		if (!LOG.isDebugEnabled()) {
+			return;
+		}
+
 		int value = blockOpt.getIntValue();
-		
+
 		int szx = value      & 0x7;
 		int m   = value >> 3 & 0x1;
 		int num = value >> 4      ;
-		
-		int size = 1 << (szx + 4);
-		System.out.printf("NUM: %d, SZX: %d (%d bytes), M: %d", num, szx, size, m);
+
+		LOG.debug("NUM: %d, SZX: %d (%d bytes), M: %d", num, szx, blockSize(szx), m);
 	}
-	
+
+
 	public static Option encodeBlock(int num, int szx, int m) {
+		return encodeBlock(OptionNumberRegistry.BLOCK, num, szx, m);
+	}
+
+	public static Option encodeBlock(int optionNumber, int num, int szx, int m) {
 		int value = 0;
-		
+
 		value |= (szx & 0x7)     ;
 		value |= (m   & 0x1) << 3;
 		value |= num         << 4;
-		
-		return new Option(value, OptionNumberRegistry.BLOCK);
-	}
-
-
-	private static Message getBlock(Message msg, int num, int szx) {
-		
-		int blockSize = 1 << (szx + 4);
-		int payloadOffset = num * blockSize;
-		int payloadLeft = msg.payloadSize() - payloadOffset;
-		
-		if (payloadLeft > 0) {
-			Message block = null;
-			try {
-				block = msg.getClass().newInstance();
-			} catch (Exception e) {
-				e.printStackTrace();
-				return null;
-			}
-			block.setType(msg.getType());
-			block.setCode(msg.getCode());
-			block.setURI(msg.getURI());
-			
-			// TODO set options (Content-Type, Max-Age etc)
-			
-			// calculate 'more' bit 
-			int m = blockSize < payloadLeft ? 1 : 0;
-			
-			// limit block size to size of payload left
-			if (m == 0) {
-				blockSize = payloadLeft;
-			}
-			
-			// copy payload block
-			
-			byte[] blockPayload = new byte[blockSize];
-			System.arraycopy(msg.getPayload(), payloadOffset, 
-				blockPayload, 0, blockSize);
-			
-			block.setPayload(blockPayload);
-			
-			// calculate block option
-			
-			int value = 0;
-			
-			value |= (szx & 0x7)     ;
-			value |= (m   & 0x1) << 3;
-			value |= num         << 4;
-
-			Option blockOpt = null;
-			if (msg.isRequest()) {
-				blockOpt = new Option(value, OptionNumberRegistry.BLOCK1);
-			} else {
-				blockOpt = new Option(value, OptionNumberRegistry.BLOCK2);
-			}
-			block.setOption(blockOpt);
-			
-			return block;
-			
-		} else {
-			return null;
-		}
+
+		return new Option(value, optionNumber);
+	}
+
+	/*
+	 * Returns the block size for a block size exponent
+	 *
+	 * @param szx The block size exponent
+	 * @return The block size in bytes
+	 */
+	public static int blockSize(int szx) {
+		return 1 << (szx + 4);
 	}
-	
+
+	/*
+	 * Returns the block size exponent for a block size
+	 *
+	 * @param blockSize The block size in bytes
+	 * @return The block size exponent, rounding down to the next valid size
+	 */
+	public static int computeSZX(int blockSize) {
+		int szx = 31 - Integer.numberOfLeadingZeros(Math.max(blockSize, 16)) - 4;
+		return Math.min(szx, MAX_SZX);
+	}
+
+	// I/O implementation //////////////////////////////////////////////////////
+
 	@Override
 	protected void doSendMessage(Message msg) throws IOException {
-		
-		if (msg.payloadSize() > DEFAULT_BLOCK_SIZE) {
-			
-			// split message up using block1 for requests and block2 for responses
-			
-			Message block = getBlock(msg, 0, 5);
-			partialOut.put(block, msg);
-			
-			// send only first block and wait for reply
-			sendMessageOverLowerLayer(block);
+
+		if (msg instanceof Response) {
+
+			Response response = (Response) msg;
+			Request request = response.getRequest();
+
+			// echo Block1 option of reassembled requests
+			Option block1 = request != null ?
+				request.getFirstOption(OptionNumberRegistry.BLOCK1) : null;
+			if (block1 != null && !response.hasOption(OptionNumberRegistry.BLOCK1)) {
+				response.setOption(block1);
+			}
+
+			// check for Block2 option requesting a particular block
+			Option block2 = request != null ?
+				request.getFirstOption(OptionNumberRegistry.BLOCK2) : null;
+
+			int num = block2 != null ? block2.getIntValue() >> 4 : 0;
+			int szx = block2 != null ?
+				Math.min(block2.getIntValue() & 0x7, defaultSZX) : defaultSZX;
+
+			if (response.payloadSize() > blockSize(szx) || num > 0) {
+
+				// send response blockwise
+				byte[] body = response.getPayload();
+				if (prepareBlock2(response, body, num, szx)) {
+
+					// keep body to serve further blocks without
+					// generating the response again
+					Transfer transfer = new Transfer();
+					transfer.message     = response;
+					transfer.body        = body;
+					transfer.resourceKey = resourceKey(request);
+					transfer.num         = num;
+					transfer.szx         = szx;
+					addTransfer(transfer);
+				}
+			}
+
+			sendMessageOverLowerLayer(response);
+
+		} else if (msg instanceof Request && msg.payloadSize() > blockSize(defaultSZX)) {
+
+			Request request = (Request) msg;
+
+			// send request blockwise, starting with first block
+			Transfer transfer = new Transfer();
+			transfer.message = request;
+			transfer.body    = request.getPayload();
+			transfer.request = request;
+			transfer.num     = 0;
+			transfer.szx     = defaultSZX;
+
+			sendBlock1(transfer, null);
 
 		} else {
-			
+
 			// send complete message
 			sendMessageOverLowerLayer(msg);
 		}
 	}
-	
+
 	@Override
 	protected void doReceiveMessage(Message msg) {
-		
-		// check Block option
-		Option blockOpt = msg.getFirstOption(OptionNumberRegistry.BLOCK);
-		
+
 		Option block1 = msg.getFirstOption(OptionNumberRegistry.BLOCK1);
 		Option block2 = msg.getFirstOption(OptionNumberRegistry.BLOCK2);
-		
-		if (block2 != null && msg.isRequest()) {
-			// send blockwise response
-		}
-		
-		if 	(block2 != null && msg.isResponse()) {
-			// handle incoming payload using block2
-		}
-		
-		if 	(block1 != null && msg.isRequest()) {
-			// handle incoming payload using block1
-		}
-		
-		if (block1 != null && msg.isResponse()) {
-			// handle blockwise acknowledgement
-		}
-		
-		if (blockOpt != null) {
-
-			int value = blockOpt.getIntValue();
-			
-			int szx = value      & 0x7;
-			int m   = value >> 3 & 0x1;
-			int num = value >> 4      ;
-			
-			int size = 1 << (szx + 4);
-			
-			// retrieve token option
-			Option tokenOpt = msg.getFirstOption(OptionNumberRegistry.TOKEN);
-			if (tokenOpt != null) {
-				
-				int token = tokenOpt.getIntValue();
-				
-				if (m != 0) {
-					// transfer not yet complete
-
-					// check if message is a response to a GET request
-					if (msg instanceof Response) {
-						if ( true || ((Response)msg).getRequest() instanceof GETRequest) {
-							
-							// request the next block
-							
-							Request request = new GETRequest();
-							request.setOption(tokenOpt);
-							request.setOption(encodeBlock(num+1, szx, 0));
-							
-							try {
-								sendMessageOverLowerLayer(request);
-							} catch (IOException e) {
-								System.out.printf("[%s] Failed to request next block for T%d: %s\n",
-									getClass().getName(), token, e.getMessage());
-							}
-						}
-					}
-				
+
+		if (msg instanceof Request) {
+
+			Request request = (Request) msg;
+
+			if (block2 != null && (block2.getIntValue() >> 4) > 0) {
+
+				// serve further block of a response if still available
+				if (serveBlock2(request, block2)) {
+					return;
 				}
+			}
 
-				if (num == 0 && m != 0) {
-					// first block: add to set of incomplete transfers
-					incomplete.put(token, msg);
-					
-					System.out.printf("[%s] Blockwise transfer of T%d initiated\n", 
-						getClass().getName(), token);
-				} else {
-					Message first = incomplete.get(token);
-
-					System.out.printf("[%s] Receiving block #%d of T%d\n", 
-						getClass().getName(), token);
-					
-					// append payload of this block to the message 
-					// that initiated the transfer
-					first.appendPayload(msg.getPayload());
-					
-					if (m == 0) {
-						// complete the transfer
-						
-						System.out.printf("[%s] Blockwise transfer of T%d completed\n", 
-							getClass().getName(), token);
+			if (block1 != null) {
 
-						incomplete.remove(token);
-						first.setComplete(true);
-					}
+				// reassemble blockwise request
+				if (!receiveBlock1(request, block1)) {
+					return;
 				}
-				
-				if (m == 0) {
-					
+			}
+
+		} else if (msg instanceof Response && !((Response) msg).isEmptyACK()) {
+
+			// empty Acknowledgements are skipped, as the response
+			// to a block may be separate
+
+			Response response = (Response) msg;
+
+			// check for response to a block of an outgoing request
+			Transfer transfer = takeBlockRequest(response.getRequest());
+
+			if (transfer != null && transfer.body != null) {
+
+				if (!receiveBlock1Response(response, block1, transfer)) {
+					return;
 				}
-				
-				
-			} else {
-				System.out.printf("[%s] ERROR: Token missing for blockwise receiving of %s\n",
-					getClass().getName(), msg.key());
+
+			} else if (transfer != null) {
+
+				// further block of an incoming response, which is appended
+				// to the first one, or an error
+				receiveBlock2(response, block2, transfer);
+				return;
+
+			} else if (block2 != null && startBlock2(response, block2)) {
+
+				// further blocks are appended to the payload
+				deliverMessage(msg);
+				return;
 			}
-			
+		}
+
+		// message is complete, as no further blocks follow
+		if (!msg.isComplete()) {
+			msg.setComplete(true);
 		}
 
 		deliverMessage(msg);
 	}
-	
-	private boolean isPayloadMsg(Message msg) {
-		return 
-			msg instanceof POSTRequest ||
-			msg instanceof PUTRequest ||
-			(msg instanceof Response && ((Response)msg).getRequest() instanceof GETRequest);
+
+	@Override
+	protected void transmissionTimedOut(Message msg) {
+
+		Transfer transfer = msg instanceof Request ? takeBlockRequest((Request) msg) : null;
+		if (transfer != null && transfer.body == null && retryBlock2((Request) msg, transfer)) {
+
+			// missing block of a pipelined transfer requested again
+			return;
+
+		} else if (transfer != null) {
+
+			// abort transfer if a block could not be transmitted
+			LOG.info("Blockwise transfer aborted due to timeout: %s", msg.key());
+
+			if (transfer.body == null) {
+				abortBlock2(transfer, new TimeoutException("Transmission of block timed out"));
+			}
+
+			if (transfer.request != null && transfer.request != msg) {
+				transfer.request.timedOut();
+			}
+		}
+
+		super.transmissionTimedOut(msg);
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the number of incomplete transfers
+	 */
+	public synchronized int getNumTransfers() {
+		return resourceTransfers.size() + blockRequests.size();
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Turns a response into a block of its body
+	 *
+	 * @param response The response to turn into a block
+	 * @param body The complete payload of the response
+	 * @param num The number of the block
+	 * @param szx The block size exponent
+	 * @return True if further blocks follow
+	 */
+	private static boolean prepareBlock2(Response response, byte[] body, int num, int szx) {
+
+		int size = blockSize(szx);
+		int offset = num * size;
+		int length = body != null ? body.length : 0;
+
+		if (offset >= length && num > 0) {
+
+			// block does not exist
+			response.setCode(CodeRegistry.RESP_BAD_OPTION);
+			response.setPayload((byte[]) null);
+			response.setOptions(OptionNumberRegistry.BLOCK2, null);
+			return false;
+		}
+
+		int m = offset + size < length ? 1 : 0;
+
+		// refer to block within body without copying it
+		response.setPayload(body, offset, Math.min(size, length - offset));
+		response.setOption(encodeBlock(OptionNumberRegistry.BLOCK2, num, szx, m));
+
+		return m != 0;
+	}
+
+	/*
+	 * Sends a further block of a stored response
+	 *
+	 * @param request The request for the block
+	 * @param block2 The Block2 option of the request
+	 * @return True if the block was sent, false if the response
+	 * is not available anymore
+	 */
+	private boolean serveBlock2(Request request, Option block2) {
+
+		Transfer transfer = getTransfer(resourceKey(request));
+		if (transfer == null || transfer.body == null) {
+			return false;
+		}
+
+		int num = block2.getIntValue() >> 4;
+		int szx = Math.min(block2.getIntValue() & 0x7, transfer.szx);
+
+		// build response from stored one
+		Response response = new Response(transfer.message.getCode());
+		copyOptions(transfer.message, response);
+		response.setOptions(OptionNumberRegistry.TOKEN, null);
+		response.setOption(request.getFirstOption(OptionNumberRegistry.TOKEN));
+		response.copyPeer(request);
+		response.setRequest(request);
+		if (request.isConfirmable()) {
+			response.setType(messageType.Acknowledgement);
+			response.setID(request.getID());
+		} else {
+			response.setType(messageType.Non_Confirmable);
+		}
+
+		if (!prepareBlock2(response, transfer.body, num, szx)) {
+
+			// last block served
+			removeTransfer(transfer);
+		} else {
+			touchTransfer(transfer);
+		}
+
+		try {
+			sendMessageOverLowerLayer(response);
+		} catch (IOException e) {
+			LOG.error("Failed to send block #%d: %s", num, e.getMessage());
+		}
+		return true;
+	}
+
+	/*
+	 * Handles a block of an incoming blockwise request
+	 *
+	 * @param request The request carrying the block
+	 * @param block1 The Block1 option of the request
+	 * @return True if the request is complete and is to be delivered
+	 */
+	private boolean receiveBlock1(Request request, Option block1) {
+
+		int value = block1.getIntValue();
+		int szx = value      & 0x7;
+		int m   = value >> 3 & 0x1;
+		int num = value >> 4      ;
+
+		String key = resourceKey(request);
+		Transfer transfer = getTransfer(key);
+
+		if ((long) num * blockSize(szx) + request.payloadSize() > maxBodySize) {
+
+			// refuse to reassemble the payload any further
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Blockwise request too large: %s", request.key());
+			}
+
+			if (transfer != null) {
+				removeTransfer(transfer);
+			}
+			replyBlock1(request, CodeRegistry.RESP_REQUEST_ENTITY_TOO_LARGE, null);
+			return false;
+		}
+
+		if (num == 0) {
+
+			if (m == 0) {
+				// payload fits into a single block
+				return true;
+			}
+
+			// first block: start new transfer
+			transfer = new Transfer();
+			transfer.message     = request;
+			transfer.resourceKey = key;
+			addTransfer(transfer);
+
+		} else if (transfer == null ||
+			transfer.message.payloadSize() != num * blockSize(szx)) {
+
+			// blocks are missing
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Incomplete blockwise request: %s", request.key());
+			}
+
+			if (transfer != null) {
+				removeTransfer(transfer);
+			}
+			replyBlock1(request, CodeRegistry.RESP_REQUEST_ENTITY_INCOMPLETE, null);
+			return false;
+
+		} else {
+
+			// append block to reassembled payload
+			transfer.message.appendPayload(request);
+		}
+
+		transfer.num = num;
+		transfer.szx = szx;
+
+		if (m != 0) {
+
+			// acknowledge block, proposing our block size if smaller
+			touchTransfer(transfer);
+			replyBlock1(request, CodeRegistry.RESP_CHANGED, encodeBlock(
+				OptionNumberRegistry.BLOCK1, num, Math.min(szx, defaultSZX), 1));
+			return false;
+
+		} else {
+
+			// last block: deliver request with complete payload
+			removeTransfer(transfer);
+			if (transfer.message != request) {
+				request.setPayload(transfer.message.getPayload());
+			}
+			return true;
+		}
 	}
 
-	private Map<Integer, Message> incomplete
-		= new HashMap<Integer, Message>();
-	
-	private Map<Message, Message> partialOut
-	= new HashMap<Message, Message>();
+	/*
+	 * Sends a response to a single block of an incoming request
+	 *
+	 * @param request The request carrying the block
+	 * @param code The response code
+	 * @param block1 The Block1 option to echo, or null
+	 */
+	private void replyBlock1(Request request, int code, Option block1) {
+
+		Response response = new Response(code);
+		response.setOption(request.getFirstOption(OptionNumberRegistry.TOKEN));
+		response.setOption(block1);
+		response.copyPeer(request);
+		response.setRequest(request);
+		if (request.isConfirmable()) {
+			response.setType(messageType.Acknowledgement);
+			response.setID(request.getID());
+		} else {
+			response.setType(messageType.Non_Confirmable);
+		}
+
+		try {
+			sendMessageOverLowerLayer(response);
+		} catch (IOException e) {
+			LOG.error("Failed to reply to block: %s", e.getMessage());
+		}
+	}
+
+	/*
+	 * Sends a block of an outgoing request
+	 *
+	 * @param transfer The transfer of the request
+	 * @param previous The request carrying the previous block, or null
+	 */
+	private void sendBlock1(Transfer transfer, Request previous) {
+
+		int size = blockSize(transfer.szx);
+		int offset = transfer.num * size;
+		int m = offset + size < transfer.body.length ? 1 : 0;
+
+		Request block = newBlockRequest(transfer.request, previous);
+		block.setPayload(transfer.body, offset, Math.min(size, transfer.body.length - offset));
+		block.setOption(encodeBlock(OptionNumberRegistry.BLOCK1, transfer.num, transfer.szx, m));
+
+		sendBlockRequest(block, transfer);
+	}
+
+	/*
+	 * Handles a response to a block of an outgoing request
+	 *
+	 * @param response The response
+	 * @param block1 The Block1 option of the response, or null
+	 * @param transfer The transfer of the request
+	 * @return True if the response is final and is to be delivered
+	 */
+	private boolean receiveBlock1Response(Response response, Option block1, Transfer transfer) {
+
+		Request sent = response.getRequest();
+		Option sentBlock = sent.getFirstOption(OptionNumberRegistry.BLOCK1);
+		boolean last = sentBlock == null || (sentBlock.getIntValue() >> 3 & 0x1) == 0;
+
+		if (!last && CodeRegistry.responseClass(response.getCode()) == CodeRegistry.RESP_CLASS_SUCCESS) {
+
+			// continue with next block, adopting a smaller block size if proposed
+			int offset = (transfer.num + 1) * blockSize(transfer.szx);
+			if (block1 != null) {
+				transfer.szx = Math.min(transfer.szx, block1.getIntValue() & 0x7);
+			}
+			transfer.num = offset / blockSize(transfer.szx);
+
+			sendBlock1(transfer, sent);
+			return false;
+		}
+
+		// transfer completed or failed: deliver response to original request
+		response.setRequest(transfer.request);
+		return true;
+	}
+
+	/*
+	 * Starts the transfer of an incoming blockwise response
+	 *
+	 * @param response The response carrying the first block
+	 * @param block2 The Block2 option of the response
+	 * @return True if further blocks follow, false if the response is
+	 * not part of a transfer
+	 */
+	private boolean startBlock2(Response response, Option block2) {
+
+		int value = block2.getIntValue();
+		int szx = value      & 0x7;
+		int m   = value >> 3 & 0x1;
+		int num = value >> 4      ;
+
+		Request request = response.getRequest();
+		if (num != 0 || m == 0 || request == null) {
+			return false;
+		}
+
+		// deliver response, whose payload is completed as further
+		// blocks arrive
+		Transfer transfer = new Transfer();
+		transfer.message  = response;
+		transfer.request  = request;
+		transfer.num      = 0;
+		transfer.szx      = szx;
+		transfer.appended = 1;
+		transfer.next     = 1;
+
+		// the blocks up to the estimated size are requested in advance
+		int sizeHint = request.getSizeHint();
+		transfer.estimatedLast = sizeHint > 0 ? (sizeHint - 1) / blockSize(szx) : 0;
+
+		List<Request> blocks;
+		synchronized (transfer) {
+			blocks = requestBlocks(transfer, request);
+		}
+		sendBlockRequests(blocks, transfer);
+		return true;
+	}
+
+	/*
+	 * Handles a response to a request for a further block
+	 *
+	 * @param response The response carrying the block, or an error
+	 * @param block2 The Block2 option of the response, or null
+	 * @param transfer The transfer the response belongs to
+	 */
+	private void receiveBlock2(Response response, Option block2, Transfer transfer) {
+
+		Request sent = response.getRequest();
+		int requested = sent.getFirstOption(OptionNumberRegistry.BLOCK2).getIntValue() >> 4;
+
+		// the outcome, which is acted on after releasing the lock
+		boolean complete = false;
+		int abortedAt = -1;
+		List<Request> blocks = null;
+
+		synchronized (transfer) {
+
+			--transfer.inFlight;
+
+			if (transfer.done) {
+				return;
+			}
+
+			if (block2 == null) {
+
+				// error response, e.g. for a block beyond the end if the
+				// size hint was too large: the transfer is aborted unless
+				// the last block is received before
+				transfer.end = Math.min(transfer.end, requested);
+
+			} else {
+
+				int value = block2.getIntValue();
+				int szx = value      & 0x7;
+				int m   = value >> 3 & 0x1;
+				int num = value >> 4      ;
+
+				if (num != requested || szx != transfer.szx) {
+
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("Unexpected block #%d dropped: %s", num, response.key());
+					}
+
+					transfer.end = Math.min(transfer.end, requested);
+
+				} else if (num >= transfer.appended) {
+
+					// buffer block until the preceding ones are appended
+					if (transfer.blocks == null) {
+						transfer.blocks = new TreeMap<Integer, Response>();
+					}
+					transfer.blocks.put(num, response);
+
+					transfer.num = Math.max(transfer.num, num);
+					if (m == 0) {
+						transfer.last = num;
+					}
+				}
+			}
+
+			// append the payload of consecutive blocks to the response
+			// that initiated the transfer
+			Response block;
+			while (transfer.blocks != null &&
+				(block = transfer.blocks.remove(transfer.appended)) != null) {
+
+				transfer.message.appendPayload(block);
+				++transfer.appended;
+			}
+
+			if (transfer.last >= 0 && transfer.appended > transfer.last) {
+
+				// complete the transfer
+				transfer.done = true;
+				complete = true;
+
+			} else if (transfer.appended >= transfer.end) {
+
+				// transfer aborted, e.g. by an error response
+				abortedAt = transfer.appended;
+
+			} else {
+
+				// request further blocks
+				blocks = requestBlocks(transfer, sent);
+			}
+		}
+
+		if (complete) {
+			transfer.message.setComplete(true);
+
+		} else if (abortedAt >= 0) {
+			LOG.info("Blockwise transfer aborted: %s", response.key());
+
+			abortBlock2(transfer, new IOException(
+				"Blockwise transfer aborted at block #" + abortedAt));
+
+
+		} else {
+			sendBlockRequests(blocks, transfer);
+		}
+	}
+
+	/*
+	 * Creates the requests for further blocks of an incoming response
+	 * until the pipeline window is filled. Blocks are requested
+	 * speculatively up to the estimated size, and beyond that one by one
+	 * as long as the received blocks indicate that more follow. The caller
+	 * must hold the transfer's lock, and sends the requests after
+	 * releasing it.
+	 *
+	 * @param transfer The transfer of the response
+	 * @param previous The request for a previous block
+	 * @return The requests to send
+	 */
+	private List<Request> requestBlocks(Transfer transfer, Request previous) {
+
+		int window = pipelineWindow;
+		List<Request> blocks = new ArrayList<Request>(window);
+
+		int limit = Math.max(transfer.estimatedLast, transfer.num + 1);
+		if (transfer.last >= 0) {
+			limit = Math.min(limit, transfer.last);
+		}
+		limit = Math.min(limit, transfer.end - 1);
+
+		while (transfer.inFlight < window && transfer.next <= limit) {
+
+			// concurrent requests need tokens of their own
+			blocks.add(newBlock2Request(transfer, transfer.next++,
+				window == 1 ? previous : null));
+		}
+		return blocks;
+	}
+
+	/*
+	 * Requests a missing block again after its request timed out
+	 *
+	 * @param sent The request that timed out
+	 * @param transfer The transfer of the response
+	 * @return True if the block was requested again
+	 */
+	private boolean retryBlock2(Request sent, Transfer transfer) {
+
+		int num = sent.getFirstOption(OptionNumberRegistry.BLOCK2).getIntValue() >> 4;
+
+		Request block;
+		synchronized (transfer) {
+
+			if (transfer.done) {
+				return true;
+			}
+
+			--transfer.inFlight;
+
+			if (pipelineWindow == 1 || transfer.retries >= MAX_BLOCK_RETRIES) {
+				return false;
+			}
+			++transfer.retries;
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("Requesting block #%d again: %s", num, sent.key());
+			}
+
+			block = newBlock2Request(transfer, num, null);
+		}
+
+		sendBlockRequest(block, transfer);
+		return true;
+	}
+
+	/*
+	 * Marks an incoming response complete with the payload received so far,
+	 * so that readers are not blocked forever. The request is notified
+	 * first, so that its future fails instead of being completed with
+	 * the truncated payload.
+	 *
+	 * @param transfer The transfer of the response
+	 * @param cause The reason the transfer is aborted
+	 */
+	private static void abortBlock2(Transfer transfer, Throwable cause) {
+		synchronized (transfer) {
+			if (transfer.done) {
+				return;
+			}
+			transfer.done = true;
+		}
+		transfer.request.transferAborted(cause);
+		transfer.message.setComplete(true);
+	}
+
+	/*
+	 * Creates the request for a block of an incoming response, which is
+	 * counted as in flight. The caller must hold the transfer's lock.
+	 *
+	 * @param transfer The transfer of the response
+	 * @param num The number of the block
+	 * @param previous The request for a previous block, whose token
+	 *                 is reused, or null
+	 * @return The request to send
+	 */
+	private static Request newBlock2Request(Transfer transfer, int num, Request previous) {
+
+		Request block = newBlockRequest(transfer.request, previous);
+		block.setOption(encodeBlock(OptionNumberRegistry.BLOCK2, num, transfer.szx, 0));
+
+		++transfer.inFlight;
+		return block;
+	}
+
+	/*
+	 * Creates a request for a single block based on the request that
+	 * initiated a transfer
+	 *
+	 * @param request The request that initiated the transfer
+	 * @param previous The request for the previous block, whose token
+	 *                 is reused, or null
+	 * @return The new request
+	 */
+	private static Request newBlockRequest(Request request, Request previous) {
+
+		Request block;
+		try {
+			block = request.getClass().newInstance();
+		} catch (Exception e) {
+			block = new Request(request.getCode(), request.isConfirmable());
+		}
+
+		block.setType(request.getType());
+		block.copyPeer(request);
+		copyOptions(request, block);
+
+		if (previous != null) {
+			block.setOption(previous.getFirstOption(OptionNumberRegistry.TOKEN));
+		} else {
+			// let the transaction layer assign a new token
+			block.setOptions(OptionNumberRegistry.TOKEN, null);
+		}
+		return block;
+	}
+
+	private void sendBlockRequests(List<Request> blocks, Transfer transfer) {
+		for (Request block : blocks) {
+			sendBlockRequest(block, transfer);
+		}
+	}
+
+	/*
+	 * Sends a request for a block, relating it to the transfer. If it cannot
+	 * be sent, the transfer is aborted, as it cannot continue without it.
+	 *
+	 * @param block The request for the block
+	 * @param transfer The transfer of the request or response
+	 */
+	private void sendBlockRequest(Request block, Transfer transfer) {
+
+		purgeTransfers();
+		synchronized (this) {
+			transfer.timestamp = System.currentTimeMillis();
+			blockRequests.put(block, transfer);
+		}
+
+		try {
+			sendMessageOverLowerLayer(block);
+		} catch (IOException e) {
+
+			takeBlockRequest(block);
+
+			LOG.error("Failed to send block request: %s", e.getMessage());
+
+			abortTransfer(transfer, e);
+		}
+
+	}
+
+	/*
+	 * Notifies the request of an outgoing request or incoming response
+	 * that its transfer cannot be continued
+	 *
+	 * @param transfer The transfer of the request or response
+	 * @param cause The reason the transfer is aborted
+	 */
+	private static void abortTransfer(Transfer transfer, Throwable cause) {
+
+		if (transfer.body == null) {
+			abortBlock2(transfer, cause);
+		} else {
+
+			// no response to the original request will follow
+			transfer.request.transferAborted(cause);
+			transfer.request.timedOut();
+		}
+	}
+
+	/*
+	 * Copies all options except the block options from one message to another
+	 */
+	private static void copyOptions(Message from, Message to) {
+
+		int last = -1;
+		for (Option opt : from.getOptionList()) {
+
+			int nr = opt.getOptionNumber();
+			if (nr == OptionNumberRegistry.BLOCK ||
+				nr == OptionNumberRegistry.BLOCK1 ||
+				nr == OptionNumberRegistry.BLOCK2) {
+				continue;
+			}
+
+			// replace options with the same number
+			if (nr != last) {
+				to.setOptions(nr, null);
+				last = nr;
+			}
+			to.addOption(opt);
+		}
+	}
+
+	/*
+	 * Returns a string identifying the resource and the remote endpoint
+	 * of a request, which is used to relate the blocks of a transfer
+	 */
+	private static String resourceKey(Request request) {
+
+		StringBuilder builder = new StringBuilder(request.endpointID());
+		for (Option opt : request.getOptionList()) {
+			if (opt.getOptionNumber() == OptionNumberRegistry.URI_PATH) {
+				builder.append('/').append(opt.getStringValue());
+			} else if (opt.getOptionNumber() == OptionNumberRegistry.URI_QUERY) {
+				builder.append('?').append(opt.getStringValue());
+			}
+		}
+		return builder.toString();
+	}
+
+	private synchronized Transfer takeBlockRequest(Request request) {
+		return request != null ? blockRequests.remove(request) : null;
+	}
+
+	private void addTransfer(Transfer transfer) {
+		purgeTransfers();
+		synchronized (this) {
+			transfer.timestamp = System.currentTimeMillis();
+			resourceTransfers.put(transfer.resourceKey, transfer);
+		}
+	}
+
+	private Transfer getTransfer(String key) {
+		purgeTransfers();
+		synchronized (this) {
+			return resourceTransfers.get(key);
+		}
+	}
+
+	private synchronized void touchTransfer(Transfer transfer) {
+		transfer.timestamp = System.currentTimeMillis();
+	}
+
+	private synchronized void removeTransfer(Transfer transfer) {
+		if (resourceTransfers.get(transfer.resourceKey) == transfer) {
+			resourceTransfers.remove(transfer.resourceKey);
+		}
+	}
+
+	/*
+	 * Discards transfers that were not continued within their lifetime.
+	 * The requests of discarded outgoing requests and incoming responses
+	 * are notified outside the layer's lock.
+	 */
+	private void purgeTransfers() {
+
+		Set<Transfer> aborted = new LinkedHashSet<Transfer>();
+
+		synchronized (this) {
+
+			long now = System.currentTimeMillis();
+			long lifetime = transferLifetime;
+
+			// check at most once per second, or per lifetime if shorter
+			if (now - lastPurge < Math.min(lifetime, 1000)) {
+				return;
+			}
+			lastPurge = now;
+
+			Iterator<Transfer> it = resourceTransfers.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().timestamp >= lifetime) {
+					it.remove();
+				}
+			}
+
+			// pipelined transfers may be referred to by several requests
+			it = blockRequests.values().iterator();
+			while (it.hasNext()) {
+				Transfer transfer = it.next();
+				if (now - transfer.timestamp >= lifetime) {
+					it.remove();
+					aborted.add(transfer);
+				}
+			}
+		}
+
+		for (Transfer transfer : aborted) {
+
+			LOG.info("Blockwise transfer aborted due to inactivity: %s",
+				transfer.request.key());
+
+			abortTransfer(transfer, new TimeoutException("Blockwise transfer expired"));
+		}
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// the preferred block size exponent
+	private final int defaultSZX;
+
+	// the maximum number of blocks requested concurrently
+	private volatile int pipelineWindow;
+
+	// the maximum size of the reassembled payload of incoming requests
+	private volatile int maxBodySize;
+
+
+	// time after which incomplete transfers are discarded
+	private volatile long transferLifetime = TRANSFER_LIFETIME;
+
+	// time stale transfers were last purged
+	private long lastPurge;
+
+	// transfers identified by remote endpoint and resource, i.e. outgoing
+	// responses and incoming requests
+	private Map<String, Transfer> resourceTransfers
+		= new HashMap<String, Transfer>();
 
+	// transfers identified by the request for their next block, i.e.
+	// outgoing requests and incoming responses
+	private Map<Request, Transfer> blockRequests
+		= new HashMap<Request, Transfer>();
 }
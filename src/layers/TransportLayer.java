@@ -0,0 +1,234 @@
+package layers;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+
+import coap.Message;
+import metrics.Counter;
+import metrics.Gauge;
+import metrics.MetricRegistry;
+
+/*
+ * This class describes the functionality common to the lowest layers of
+ * the communication stack, which exchange encoded CoAP messages with
+ * remote endpoints, e.g. over UDP.
+ *
+ * Received datagrams are either processed on the thread that received
+ * them or handed over to a pool of worker threads. In the latter case,
+ * datagrams from the same remote endpoint are always processed by the
+ * same worker and thus in order.
+ *
+ * Messages may be sent by many threads concurrently, so subclasses must
+ * implement doSendMessage() without shared mutable state other than the
+ * thread-safe socket or channel. Received messages are delivered to the
+ * upper layer on the receiving or worker thread; with several workers,
+ * messages from different remote endpoints are delivered concurrently.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public abstract class TransportLayer extends Layer {
+
+	// CoAP specific constants /////////////////////////////////////////////////
+
+	// default CoAP port as defined in draft-ietf-core-coap-05, section 7.1:
+	// MUST be supported by a server for resource discovery and
+	// SHOULD be supported for providing access to other resources.
+	public static final int DEFAULT_PORT      = 5683;
+
+	// CoAP URI scheme name as defined in draft-ietf-core-coap-05, section 11.4:
+	public static final String URI_SCHEME_NAME = "coap";
+
+	// Implementation specific constants ///////////////////////////////////////
+
+	// default number of pending datagrams per receive worker
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new transport layer
+	 *
+	 * @param numWorkers The number of worker threads processing received
+	 *                   datagrams, or 0 to process them on the receiving thread
+	 * @param queueCapacity The maximum number of pending datagrams per worker
+	 * @param daemon True if the worker threads should not keep the
+	 *               application alive
+	 */
+	protected TransportLayer(int numWorkers, int queueCapacity, boolean daemon) {
+
+		this.workerPool = numWorkers > 0
+			? new WorkerPool(getClass().getSimpleName() + "-Worker",
+				numWorkers, queueCapacity, daemon)
+			: null;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the local port used to exchange messages
+	 *
+	 * @return The local port
+	 */
+	public abstract int getPort();
+
+	/*
+	 * Returns the number of received datagrams waiting to be processed
+	 *
+	 * @return The total queue depth of the worker pool,
+	 * or 0 if no worker pool is used
+	 */
+	public int getQueueDepth() {
+		return workerPool != null ? workerPool.getQueueDepth() : 0;
+	}
+
+	/*
+	 * Returns the number of received datagrams that were dropped
+	 * because the queue of their worker was full
+	 *
+	 * @return The number of dropped datagrams
+	 */
+	public long getNumDropped() {
+		return workerPool != null ? workerPool.getNumDropped() : 0;
+	}
+
+	/*
+	 * Returns the number of bytes of the datagrams sent
+	 */
+	public long getNumBytesSent() {
+		return numBytesSent.get();
+	}
+
+	/*
+	 * Returns the number of bytes of the datagrams received
+	 */
+	public long getNumBytesReceived() {
+		return numBytesReceived.get();
+	}
+
+	@Override
+	public void registerMetrics(MetricRegistry registry, String prefix) {
+		super.registerMetrics(registry, prefix);
+
+		registry.register(prefix + ".bytesSent", numBytesSent);
+		registry.register(prefix + ".bytesReceived", numBytesReceived);
+		registry.register(prefix + ".queueDepth", new Gauge() {
+			@Override
+			public long getValue() {
+				return getQueueDepth();
+			}
+		});
+		registry.register(prefix + ".datagramsDropped", new Gauge() {
+			@Override
+			public long getValue() {
+				return getNumDropped();
+			}
+		});
+	}
+
+	// I/O implementation //////////////////////////////////////////////////////
+
+	@Override
+	protected void doReceiveMessage(Message msg) {
+
+		// pass message to registered receivers
+		deliverMessage(msg);
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Processes a received datagram, either directly or by the worker
+	 * responsible for the remote endpoint
+	 *
+	 * @param address The address of the remote endpoint
+	 * @param port The port of the remote endpoint
+	 * @param task The task that processes the datagram
+	 * @return True if the task was executed or enqueued,
+	 * false if it was dropped
+	 */
+	protected boolean dispatchDatagram(InetAddress address, int port, Runnable task) {
+
+		if (workerPool != null) {
+
+			// preserve the order of messages from the same remote endpoint
+			return workerPool.execute(address.hashCode() * 31 + port, task);
+
+		} else {
+
+			task.run();
+			return true;
+		}
+	}
+
+	/*
+	 * Passes a message decoded from a received datagram to the upper layers
+	 *
+	 * @param msg The decoded message, or null if decoding failed
+	 * @param source The address and port of the remote endpoint
+	 * @param timestamp The time the datagram was received, in milliseconds
+	 */
+	protected void messageReceived(Message msg, InetSocketAddress source, long timestamp) {
+
+		// drop malformed datagrams
+		if (msg == null) {
+			return;
+		}
+
+		// remember when this message was received
+		msg.setTimestamp(timestamp);
+
+		// address message by the datagram's source; the message URI
+		// is only built if requested by the application
+		msg.setPeerAddress(source);
+
+		// call receive handler
+		receiveMessage(msg);
+	}
+
+	/*
+	 * Returns the remote endpoint a message is to be sent to
+	 *
+	 * @param msg The message to send
+	 * @return The peer address of the message, or the address
+	 * resolved from its URI
+	 * @throws UnknownHostException If the URI's host cannot be resolved
+	 */
+	protected static InetSocketAddress destination(Message msg)
+		throws UnknownHostException
+	{
+		InetSocketAddress peer = msg.getPeerAddress();
+		if (peer == null) {
+			peer = new InetSocketAddress(msg.getAddress(), destinationPort(msg));
+		}
+		return peer;
+	}
+
+	/*
+	 * Returns the remote port a message is to be sent to
+	 *
+	 * @param msg The message to send
+	 * @return The port of the message's URI, or the default port
+	 */
+	protected static int destinationPort(Message msg) {
+
+		URI uri = msg.getURI();
+		int port = uri != null ? uri.getPort() : -1;
+
+		return port >= 0 ? port : DEFAULT_PORT;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	// The worker threads that process received datagrams (optional)
+	private final WorkerPool workerPool;
+
+	// The traffic in bytes, to be counted by subclasses even if
+	// metrics are disabled
+	protected final Counter numBytesSent = new Counter(false);
+	protected final Counter numBytesReceived = new Counter(false);
+
+}
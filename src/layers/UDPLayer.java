@@ -3,13 +3,11 @@ package layers;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.Arrays;
 
 import coap.Message;
+import coap.MessageCodec;
 
 /*
  * This class describes the functionality of a UDP layer that is able
@@ -19,23 +17,17 @@ import coap.Message;
  * channel and thus may arrive out of order, appear duplicated or go missing
  * without notice.
  * 
+ * A single receiver thread blocks on the socket and decodes the datagrams
+ * received. Sending allocates a packet per message and relies on the
+ * socket, which may be used by several threads at once.
+ * 
  * @author Dominique Im Obersteg & Daniel Pauli
  * @version 0.1
  * 
  */
 
-public class UDPLayer extends Layer {
+public class UDPLayer extends TransportLayer {
 
-	// CoAP specific constants /////////////////////////////////////////////////
-	
-	// default CoAP port as defined in draft-ietf-core-coap-05, section 7.1:
-	// MUST be supported by a server for resource discovery and 
-	// SHOULD be supported for providing access to other resources. 
-	public static final int DEFAULT_PORT      = 5683;
-	
-	// CoAP URI scheme name as defined in draft-ietf-core-coap-05, section 11.4:
-	public static final String URI_SCHEME_NAME = "coap";
-	
 	// Implementation specific constants ///////////////////////////////////////
 	
 	// buffer size for incoming datagrams
@@ -64,22 +56,60 @@ public class UDPLayer extends Layer {
 					e.printStackTrace();
 					continue;
 				}
-			
-				datagramReceived(datagram);
+				
+				// get current time
+				long timestamp = System.currentTimeMillis();
+				numBytesReceived.add(datagram.getLength());
+				
+				// process datagram, possibly on a worker thread;
+				// if the worker's queue is full, the datagram is dropped
+				dispatchDatagram(datagram.getAddress(), datagram.getPort(), 
+					new DatagramTask(datagram, timestamp));
 			}
 		}
 	}
 	
+	/*
+	 * Task used to process a received datagram on a worker thread
+	 */
+	private class DatagramTask implements Runnable {
+		
+		DatagramTask(DatagramPacket datagram, long timestamp) {
+			this.datagram = datagram;
+			this.timestamp = timestamp;
+		}
+		
+		@Override
+		public void run() {
+			datagramReceived(datagram, timestamp);
+		}
+		
+		private DatagramPacket datagram;
+		private long timestamp;
+	}
+	
 	// Constructors ////////////////////////////////////////////////////////////
 	
 	/*
 	 * Constructor for a new UDP layer
 	 * 
+	 * If numWorkers is positive, the receiver thread only receives datagrams
+	 * and hands them over to a pool of worker threads that decode them and
+	 * pass them through the upper layers. Datagrams from the same remote
+	 * endpoint are always processed by the same worker and thus in order.
+	 * Otherwise, datagrams are processed synchronously on the receiver thread.
+	 * 
 	 * @param port The local UDP port to listen for incoming messages
+	 * @param daemon True if the receiver threads should not keep the
+	 *               application alive
+	 * @param numWorkers The number of worker threads, or 0 for none
+	 * @param queueCapacity The maximum number of pending datagrams per worker
 	 */	
-	public UDPLayer(int port, boolean daemon)
+	public UDPLayer(int port, boolean daemon, int numWorkers, int queueCapacity)
 		throws SocketException
 	{
+		super(numWorkers, queueCapacity, daemon);
+		
 		// initialize members
 		this.socket = new DatagramSocket(port);
 		this.receiverThread = new ReceiverThread();
@@ -92,6 +122,17 @@ public class UDPLayer extends Layer {
 		
 	}
 
+	/*
+	 * Constructor for a new UDP layer
+	 * 
+	 * @param port The local UDP port to listen for incoming messages
+	 */	
+	public UDPLayer(int port, boolean daemon)
+		throws SocketException
+	{
+		this(port, daemon, 0, DEFAULT_QUEUE_CAPACITY);
+	}
+
 	/*
 	 * Constructor for a new UDP layer
 	 * 
@@ -128,9 +169,10 @@ public class UDPLayer extends Layer {
 		return receiverThread.isDaemon();
 	}
 	
+	@Override
 	public int getPort() {
 		return socket.getLocalPort();
-	}	
+	}
 
 	// I/O implementation //////////////////////////////////////////////////////
 	
@@ -139,82 +181,36 @@ public class UDPLayer extends Layer {
 		
 		// assemble datagram components:
 		
-		// retrieve URI
-		URI uri = msg.getURI();
-		
-		// retrieve remote address
+		// retrieve remote endpoint
 		// throws UnknownHostException, subclass of IOException
-		InetAddress address = msg.getAddress();
-		
-		// retrieve remote port
-		int port = uri != null ? uri.getPort() : -1;
-		if (port < 0) port = DEFAULT_PORT;
+		InetSocketAddress target = destination(msg);
 
 		// retrieve payload
 		byte[] payload = msg.toByteArray();
 		
 		// create datagram		
 		DatagramPacket datagram = 
-			new DatagramPacket(payload, payload.length, address, port);
+			new DatagramPacket(payload, payload.length, target);
 		
 		// remember when this message was sent
 		msg.setTimestamp(System.currentTimeMillis());
 		
 		// send it over the UDP socket
 		socket.send(datagram);
+		numBytesSent.add(payload.length);
 	}
 
-	@Override
-	protected void doReceiveMessage(Message msg) {
-		
-		// pass message to registered receivers
-		deliverMessage(msg);
-	}
-
-	
 	// Internal ////////////////////////////////////////////////////////////////
 	
-	private void datagramReceived(DatagramPacket datagram) {
-		
-		// get current time
-		long timestamp = System.currentTimeMillis();
-		
-		// extract message data from datagram
-		byte[] data = Arrays.copyOfRange(datagram.getData(), 
-				datagram.getOffset(), datagram.getLength()); 
-		
-		// create new message from the received data
-		Message msg = Message.fromByteArray(data);
-		
-		// remember when this message was received
-		msg.setTimestamp(timestamp);
-		
-		// assemble URI components from datagram
-		
-		String 	scheme 		= URI_SCHEME_NAME;
-		String 	userInfo 	= null;
-		// TODO getHostName() leads to replies always in IPv4...
-		//String 	host 		= datagram.getAddress().getHostName();
-		String 	host 		= datagram.getAddress().getHostAddress();
-		int 	port 		= datagram.getPort();
-		String 	path 		= null;
-		String 	query 		= null;
-		String 	fragment 	= null;
-		
-		// set message URI to sender URI
-		try {
-			
-			msg.setURI(new URI(scheme, userInfo, host, port, path, query, fragment));
-			
-		} catch (URISyntaxException e) {
-
-			System.out.printf("[%s] Failed to build URI for incoming message: %s\n",
-				getClass().getName(), e.getMessage());
-		}
+	private void datagramReceived(DatagramPacket datagram, long timestamp) {
 		
-		// call receive handler
-		receiveMessage(msg);
+		// create new message from the received data,
+		// decoding it directly from the datagram buffer
+		Message msg = MessageCodec.decode(datagram.getData(), 
+			datagram.getOffset(), datagram.getLength());
 		
+		// pass message to upper layers
+		messageReceived(msg, (InetSocketAddress) datagram.getSocketAddress(), timestamp);
 	}
 
 	// Attributes //////////////////////////////////////////////////////////////
@@ -224,6 +220,6 @@ public class UDPLayer extends Layer {
 	private DatagramSocket socket;
 	
 	// The thread that listens on the socket for incoming datagrams
-	private ReceiverThread receiverThread;	
+	private ReceiverThread receiverThread;
 	
 }
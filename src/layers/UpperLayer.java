@@ -3,22 +3,49 @@ package layers;
 import java.io.IOException;
 
 import coap.Message;
+import log.Logger;
 
+/*
+ * This class describes the functionality of a layer that passes the
+ * messages it sends on to a lower layer and receives the messages that
+ * layer delivers.
+ *
+ * The lower layer may be replaced while messages are sent: it is read
+ * once per call, so that each message goes to either the old or the new
+ * lower layer. Replacing it is serialized, so that the layer is registered
+ * as receiver with the current lower layer only.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
 public abstract class UpperLayer extends Layer {
 
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(UpperLayer.class);
+
 	public void sendMessageOverLowerLayer(Message msg) throws IOException {
 		
 		// check if lower layer assigned
-		if (lowerLayer != null) {
+		Layer lower = lowerLayer;
+		if (lower != null) {
 			
-			lowerLayer.sendMessage(msg);
+			lower.sendMessage(msg);
 		} else {
-			System.out.printf("[%s] ERROR: No lower layer present", 
-				getClass().getName());
+			LOG.error("No lower layer present");
 		}
 	}
 	
-	public void setLowerLayer(Layer layer) {
+	@Override
+	public boolean cancelTransmission(Message msg) {
+		
+		// pass call on to lower layer
+		Layer lower = lowerLayer;
+		return lower != null && lower.cancelTransmission(msg);
+	}
+	
+	public synchronized void setLowerLayer(Layer layer) {
 		
 		// unsubscribe from old lower layer
 		if (lowerLayer != null) {
@@ -38,5 +65,6 @@ public abstract class UpperLayer extends Layer {
 		return lowerLayer;
 	}
 	
-	private Layer lowerLayer;
+	private volatile Layer lowerLayer;
+
 }
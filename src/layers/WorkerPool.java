@@ -0,0 +1,177 @@
+package layers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import log.Logger;
+
+/*
+ * This class describes the functionality of a pool of worker threads
+ * that execute tasks handed over by another thread, e.g. a socket
+ * receiver thread.
+ *
+ * Each worker owns a bounded queue. Tasks are assigned to workers by a key,
+ * so that all tasks with the same key are executed in the order they were
+ * submitted, while tasks with different keys may run in parallel. If the
+ * queue of the selected worker is full, the task is dropped.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class WorkerPool {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	private static final Logger LOG = Logger.getLogger(WorkerPool.class);
+
+	// Inner Classes ///////////////////////////////////////////////////////////
+
+	private class WorkerThread extends Thread {
+
+		WorkerThread(String name, int queueCapacity) {
+			super(name);
+			this.queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+		}
+
+		@Override
+		public void run() {
+			while (!shutdown) {
+
+				// wait for next task
+				Runnable task;
+				try {
+					task = queue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+
+				// execute task, keeping the worker alive on failure
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					LOG.error("Task failed in %s: %s", getName(), e.getMessage(), e);
+				}
+			}
+		}
+
+		private BlockingQueue<Runnable> queue;
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new worker pool
+	 *
+	 * @param name The name prefix of the worker threads
+	 * @param numWorkers The number of worker threads
+	 * @param queueCapacity The maximum number of pending tasks per worker
+	 * @param daemon True if the workers should not keep the application alive
+	 */
+	public WorkerPool(String name, int numWorkers, int queueCapacity, boolean daemon) {
+
+		if (numWorkers < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Worker pool requires at least one worker and queue slot");
+		}
+
+		this.workers = new WorkerThread[numWorkers];
+		for (int i = 0; i < numWorkers; i++) {
+			workers[i] = new WorkerThread(String.format("%s-%d", name, i), queueCapacity);
+			workers[i].setDaemon(daemon);
+			workers[i].start();
+		}
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Hands over a task to the worker selected by the given key
+	 *
+	 * @param key The key that determines the worker, e.g. a hash
+	 *            of the remote endpoint
+	 * @param task The task to execute
+	 * @return True if the task was enqueued, false if it was dropped
+	 */
+	public boolean execute(int key, Runnable task) {
+
+		WorkerThread worker = workers[(key & 0x7FFFFFFF) % workers.length];
+
+		if (worker.queue.offer(task)) {
+			numExecuted.incrementAndGet();
+			return true;
+		} else {
+			numDropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	/*
+	 * Hands over a task to the worker selected by the given key and waits
+	 * for room in its queue if it is full, so that a producer faster than
+	 * the workers is slowed down instead of losing tasks
+	 *
+	 * @param key The key that determines the worker
+	 * @param task The task to execute
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void executeBlocking(int key, Runnable task) throws InterruptedException {
+
+		WorkerThread worker = workers[(key & 0x7FFFFFFF) % workers.length];
+
+		worker.queue.put(task);
+		numExecuted.incrementAndGet();
+	}
+
+	/*
+	 * Stops all workers after their current task. Pending tasks are discarded.
+	 */
+	public void shutdown() {
+		shutdown = true;
+		for (WorkerThread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public int getNumWorkers() {
+		return workers.length;
+	}
+
+	/*
+	 * Returns the number of tasks currently waiting for execution
+	 *
+	 * @return The sum of the queue depths of all workers
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (WorkerThread worker : workers) {
+			depth += worker.queue.size();
+		}
+		return depth;
+	}
+
+	/*
+	 * Returns the number of tasks that were accepted for execution
+	 */
+	public long getNumExecuted() {
+		return numExecuted.get();
+	}
+
+	/*
+	 * Returns the number of tasks that were dropped due to full queues
+	 */
+	public long getNumDropped() {
+		return numDropped.get();
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private WorkerThread[] workers;
+
+	private volatile boolean shutdown;
+
+	private AtomicLong numExecuted = new AtomicLong();
+	private AtomicLong numDropped = new AtomicLong();
+}
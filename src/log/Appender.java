@@ -0,0 +1,17 @@
+package log;
+
+/*
+ * This interface describes an appender, which writes the log records
+ * of all loggers to some destination, e.g. the console.
+ *
+ * Appenders are called by the threads logging, usually threads of the
+ * communication stack, and must therefore be thread-safe.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public interface Appender {
+
+	void append(LogRecord record);
+}
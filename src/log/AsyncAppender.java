@@ -0,0 +1,211 @@
+package log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * This class describes an appender that hands records over to a
+ * background thread, which formats them and passes them on to another
+ * appender, e.g. a ConsoleAppender.
+ *
+ * Records are kept in a bounded ring buffer. Logging threads claim a slot
+ * by a compare-and-set on the tail sequence and never block: if the buffer
+ * is full, the record is dropped and counted, and the background thread
+ * reports the number of dropped records once it catches up. A slow console
+ * thus delays the log output, but not the communication stack.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class AsyncAppender implements Appender {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	public static final int DEFAULT_CAPACITY = 1024;
+
+	// Inner Classes ///////////////////////////////////////////////////////////
+
+	class WriterThread extends Thread {
+
+		WriterThread() {
+			super("AsyncAppender");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+
+				int index = (int) head & mask;
+				LogRecord record = slots.get(index);
+
+				if (record != null) {
+
+					// free the slot before advancing, so that producers
+					// claiming it find it empty; advancing only after the
+					// record is passed on lets flush() wait for it
+					slots.set(index, null);
+
+					deliver(record);
+					reportDropped();
+					++head;
+
+				} else if (head != tail.get()) {
+
+					// a producer claimed the slot but did not fill it yet
+					Thread.yield();
+
+				} else if (closed) {
+					return;
+
+				} else {
+
+					// the flag is set before checking the slot again, so that
+					// a producer either sees it or the writer sees the record
+					waiting = true;
+					if (slots.get(index) == null && !closed) {
+						LockSupport.park(this);
+					}
+					waiting = false;
+				}
+			}
+		}
+	}
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new asynchronous appender
+	 *
+	 * @param target The appender the records are passed on to
+	 * @param capacity The number of records buffered, rounded up
+	 * to a power of two
+	 */
+	public AsyncAppender(Appender target, int capacity) {
+
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		this.target = target;
+		this.slots = new AtomicReferenceArray<LogRecord>(size);
+		this.mask = size - 1;
+
+		writer.start();
+	}
+
+	public AsyncAppender(Appender target) {
+		this(target, DEFAULT_CAPACITY);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	@Override
+	public void append(LogRecord record) {
+
+		// claim a slot unless the buffer is full
+		long sequence;
+		do {
+			sequence = tail.get();
+			if (sequence - head > mask || closed) {
+				numDropped.incrementAndGet();
+				return;
+			}
+		} while (!tail.compareAndSet(sequence, sequence + 1));
+
+		slots.set((int) sequence & mask, record);
+
+		if (waiting) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/*
+	 * Waits until the records appended so far are passed on
+	 *
+	 * @param timeout The maximum time to wait in milliseconds
+	 * @return True if all records were passed on in time
+	 */
+	public boolean flush(long timeout) {
+
+		long sequence = tail.get();
+		long deadline = System.currentTimeMillis() + timeout;
+
+		while (head < sequence) {
+			if (System.currentTimeMillis() >= deadline) {
+				return false;
+			}
+			LockSupport.parkNanos(1000000);
+		}
+		return true;
+	}
+
+	/*
+	 * Passes on the records buffered and stops the background thread.
+	 * Records appended afterwards are dropped.
+	 */
+	public void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the number of records dropped because the buffer was full
+	 */
+	public long getNumDropped() {
+		return numDropped.get();
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	private void deliver(LogRecord record) {
+		try {
+			target.append(record);
+		} catch (RuntimeException e) {
+
+			// an appender failing must not stop the writer
+			e.printStackTrace();
+		}
+	}
+
+	private void reportDropped() {
+		long dropped = numDropped.get();
+		if (dropped > numReported) {
+			deliver(new LogRecord(Level.WARNING, getClass().getName(),
+				"%d log records dropped", new Object[] {dropped - numReported}));
+			numReported = dropped;
+		}
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final Appender target;
+
+	private final AtomicReferenceArray<LogRecord> slots;
+	private final int mask;
+
+	// the sequence of the next slot claimed by a producer
+	private final AtomicLong tail = new AtomicLong();
+
+	// the sequence of the next slot taken by the writer, written by it only
+	private volatile long head;
+
+	private final AtomicLong numDropped = new AtomicLong();
+
+	// the number of dropped records reported, accessed by the writer only
+	private long numReported;
+
+	private final WriterThread writer = new WriterThread();
+	private volatile boolean waiting;
+	private volatile boolean closed;
+}
@@ -0,0 +1,53 @@
+package log;
+
+import java.io.PrintStream;
+
+/*
+ * This class describes an appender that prints each record as a line of the
+ * form "[logger] LEVEL: message" to a stream, by default the standard output.
+ * The level is omitted for INFO and DEBUG records.
+ *
+ * The line is written by a single call, so that lines of concurrent threads
+ * do not interleave; the call blocks while the stream is blocked. Wrap the
+ * appender in an AsyncAppender to decouple the logging threads from it.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class ConsoleAppender implements Appender {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	public ConsoleAppender(PrintStream out) {
+		this.out = out;
+	}
+
+	public ConsoleAppender() {
+		this(System.out);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	@Override
+	public void append(LogRecord record) {
+
+		StringBuilder line = new StringBuilder();
+		line.append('[').append(record.getLoggerName()).append("] ");
+		if (record.getLevel().compareTo(Level.WARNING) <= 0) {
+			line.append(record.getLevel()).append(": ");
+		}
+		line.append(record.getMessage()).append('\n');
+
+		out.print(line);
+
+		Throwable thrown = record.getThrown();
+		if (thrown != null) {
+			thrown.printStackTrace(out);
+		}
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final PrintStream out;
+}
@@ -0,0 +1,43 @@
+package log;
+
+/*
+ * This enumeration defines the severity levels of log records, from the
+ * most to the least severe. A logger enabled for a level is also enabled
+ * for all levels more severe.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public enum Level {
+
+	// failures the stack cannot recover from for the affected message
+	ERROR,
+
+	// suspicious conditions, e.g. values truncated when encoding
+	WARNING,
+
+	// rare events worth noting, e.g. observers removed
+	INFO,
+
+	// per-message events, e.g. duplicates and retransmissions
+	DEBUG;
+
+	/*
+	 * Returns the level with a given name, ignoring case
+	 *
+	 * @param name The name of the level, e.g. "debug"
+	 * @param defaultLevel The level returned if the name is unknown
+	 * @return The level
+	 */
+	public static Level parse(String name, Level defaultLevel) {
+		if (name != null) {
+			for (Level level : values()) {
+				if (level.name().equalsIgnoreCase(name.trim())) {
+					return level;
+				}
+			}
+		}
+		return defaultLevel;
+	}
+}
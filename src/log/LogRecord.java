@@ -0,0 +1,84 @@
+package log;
+
+/*
+ * This class describes a record passed from a logger to its appender.
+ *
+ * The message is kept as format string and arguments, and formatted only
+ * when an appender calls getMessage(), possibly on another thread. The
+ * arguments should therefore not be modified after they are logged.
+ * As with SLF4J, a Throwable passed as last argument is the cause of the
+ * record; it is ignored by the format string unless referenced.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class LogRecord {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	public LogRecord(Level level, String loggerName, String format, Object[] args) {
+		this.level = level;
+		this.loggerName = loggerName;
+		this.format = format;
+		this.args = args;
+		this.timestamp = System.currentTimeMillis();
+		this.threadName = Thread.currentThread().getName();
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public Level getLevel() {
+		return level;
+	}
+
+	public String getLoggerName() {
+		return loggerName;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getThreadName() {
+		return threadName;
+	}
+
+	/*
+	 * Returns the message of this record, formatting it on first call
+	 *
+	 * @return The formatted message
+	 */
+	public String getMessage() {
+		if (message == null) {
+			message = args != null && args.length > 0
+				? String.format(format, args)
+				: format;
+		}
+		return message;
+	}
+
+	/*
+	 * Returns the Throwable passed as last argument, if any
+	 *
+	 * @return The cause of this record, or null
+	 */
+	public Throwable getThrown() {
+		if (args != null && args.length > 0 && args[args.length - 1] instanceof Throwable) {
+			return (Throwable) args[args.length - 1];
+		}
+		return null;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final Level level;
+	private final String loggerName;
+	private final String format;
+	private final Object[] args;
+	private final long timestamp;
+	private final String threadName;
+
+	// the formatted message, cached by getMessage()
+	private String message;
+}
@@ -0,0 +1,193 @@
+package log;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * This class describes a named logger, through which the components of the
+ * library report diagnostics. Loggers are usually kept in a static field:
+ *
+ *   private static final Logger LOG = Logger.getLogger(MessageLayer.class);
+ *
+ *   if (LOG.isDebugEnabled()) {
+ *       LOG.debug("Duplicate dropped: %s", msg.key());
+ *   }
+ *
+ * A record is only created if the logger is enabled for its level, and its
+ * message is only formatted by the appender. Calls on hot paths should be
+ * guarded as above, so that no arguments are computed and no varargs array
+ * is allocated while the level is disabled.
+ *
+ * The level of a logger is inherited from the root level unless set for
+ * the logger. All records go to a single appender. Both can be configured
+ * programmatically or by the system properties
+ *
+ *   jcoap.log.level  ERROR, WARNING, INFO (default) or DEBUG
+ *   jcoap.log.async  true to print through an AsyncAppender
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class Logger {
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	private Logger(String name) {
+		this.name = name;
+	}
+
+	// Class functions /////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the logger with a given name, creating it on first use
+	 *
+	 * @param name The name of the logger
+	 * @return The logger
+	 */
+	public static Logger getLogger(String name) {
+		Logger logger = loggers.get(name);
+		if (logger == null) {
+			Logger created = new Logger(name);
+			logger = loggers.putIfAbsent(name, created);
+			if (logger == null) {
+				logger = created;
+			}
+		}
+		return logger;
+	}
+
+	public static Logger getLogger(Class<?> cls) {
+		return getLogger(cls.getName());
+	}
+
+	public static Level getRootLevel() {
+		return rootLevel;
+	}
+
+	/*
+	 * Sets the level of all loggers without a level of their own
+	 *
+	 * @param level The level
+	 */
+	public static void setRootLevel(Level level) {
+		if (level == null) {
+			throw new IllegalArgumentException("Root level must not be null");
+		}
+		rootLevel = level;
+	}
+
+	public static Appender getAppender() {
+		return appender;
+	}
+
+	/*
+	 * Sets the appender all records are passed to
+	 *
+	 * @param appender The appender
+	 */
+	public static void setAppender(Appender appender) {
+		if (appender == null) {
+			throw new IllegalArgumentException("Appender must not be null");
+		}
+		Logger.appender = appender;
+	}
+
+	private static Appender createAppender() {
+		Appender console = new ConsoleAppender();
+		if (!Boolean.getBoolean("jcoap.log.async")) {
+			return console;
+		}
+
+		// pass on buffered records when the JVM exits
+		final AsyncAppender async = new AsyncAppender(console);
+		Runtime.getRuntime().addShutdownHook(new Thread("AsyncAppender-Shutdown") {
+			@Override
+			public void run() {
+				async.close();
+			}
+		});
+		return async;
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Passes a record to the appender if this logger is enabled for its level
+	 *
+	 * @param level The level of the record
+	 * @param format The message as format string, see String.format()
+	 * @param args The arguments referenced by the format string,
+	 * optionally followed by a Throwable
+	 */
+	public void log(Level level, String format, Object... args) {
+		if (isEnabled(level)) {
+			appender.append(new LogRecord(level, name, format, args));
+		}
+	}
+
+	public void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+
+	public void warning(String format, Object... args) {
+		log(Level.WARNING, format, args);
+	}
+
+	public void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+
+	public void debug(String format, Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+
+	/*
+	 * Sets the level of this logger
+	 *
+	 * @param level The level, or null to inherit the root level
+	 */
+	public void setLevel(Level level) {
+		this.level = level;
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	public String getName() {
+		return name;
+	}
+
+	/*
+	 * Returns the level of this logger
+	 *
+	 * @return The level set for this logger, or the root level if none
+	 */
+	public Level getLevel() {
+		Level own = level;
+		return own != null ? own : rootLevel;
+	}
+
+	public boolean isEnabled(Level level) {
+		return level.compareTo(getLevel()) <= 0;
+	}
+
+	public boolean isInfoEnabled() {
+		return isEnabled(Level.INFO);
+	}
+
+	public boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG);
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final String name;
+	private volatile Level level;
+
+	private static final ConcurrentHashMap<String, Logger> loggers
+		= new ConcurrentHashMap<String, Logger>();
+
+	private static volatile Level rootLevel
+		= Level.parse(System.getProperty("jcoap.log.level"), Level.INFO);
+
+	private static volatile Appender appender = createAppender();
+}
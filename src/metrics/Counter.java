@@ -0,0 +1,116 @@
+package metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * This class describes a counter that may be incremented by many threads
+ * concurrently without locking.
+ *
+ * Counters ignore updates while metrics are disabled, except ungated ones,
+ * which back the statistics accessors of the layers and thus count in
+ * any case.
+ *
+ * The count is spread over several cells, each on a cache line of its own,
+ * and each thread increments the cell selected by its ID. Threads thus
+ * rarely contend for the same cell, and reading the counter sums up all
+ * cells. The count is a long and does not wrap in practice.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class Counter implements Metric {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// number of cells, a power of two scaled to the number of processors
+	private static final int NUM_CELLS = cellsFor(Runtime.getRuntime().availableProcessors());
+
+	// distance between cells in longs, so that each has its own cache line
+	private static final int CELL_STRIDE = 8;
+
+	// Constructors ////////////////////////////////////////////////////////////
+
+	/*
+	 * Constructor for a new counter
+	 *
+	 * @param gated False if the counter counts even if metrics are disabled
+	 */
+	public Counter(boolean gated) {
+		this.gated = gated;
+	}
+
+	public Counter() {
+		this(true);
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	public void increment() {
+		add(1);
+	}
+
+	/*
+	 * Adds an amount to this counter, unless it is gated and metrics
+	 * are disabled
+	 *
+	 * @param amount The amount to add
+	 */
+	public void add(long amount) {
+		if (MetricRegistry.ENABLED || !gated) {
+			cells.getAndAdd(cell(), amount);
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the current count. Increments made concurrently
+	 * may or may not be included.
+	 */
+	public long get() {
+		long sum = 0;
+		for (int i = 0; i < NUM_CELLS; ++i) {
+			sum += cells.get(i * CELL_STRIDE);
+		}
+		return sum;
+	}
+
+	@Override
+	public void collect(String name, Map<String, Long> values) {
+		values.put(name, get());
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(get());
+	}
+
+	// Internal ////////////////////////////////////////////////////////////////
+
+	private static int cell() {
+
+		// spread consecutive thread IDs over the cells
+		long id = Thread.currentThread().getId();
+		int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+
+		return (hash & (NUM_CELLS - 1)) * CELL_STRIDE;
+	}
+
+	private static int cellsFor(int processors) {
+		int cells = 1;
+		while (cells < 2 * processors && cells < 32) {
+			cells <<= 1;
+		}
+		return cells;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final AtomicLongArray cells = new AtomicLongArray(NUM_CELLS * CELL_STRIDE);
+
+	// false if updates are counted even if metrics are disabled
+	private final boolean gated;
+
+}
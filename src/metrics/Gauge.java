@@ -0,0 +1,24 @@
+package metrics;
+
+import java.util.Map;
+
+/*
+ * This class describes a metric whose value is read on demand, e.g. from
+ * a counter or size that a component keeps anyway
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public abstract class Gauge implements Metric {
+
+	/*
+	 * Returns the current value
+	 */
+	public abstract long getValue();
+
+	@Override
+	public void collect(String name, Map<String, Long> values) {
+		values.put(name, getValue());
+	}
+}
@@ -0,0 +1,148 @@
+package metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * This class describes a histogram of non-negative values, e.g. latencies,
+ * that may be recorded by many threads concurrently without locking.
+ *
+ * As in HDR histograms, values are counted in buckets whose width grows
+ * with the magnitude of the value: each power of two is divided into
+ * SUB_BUCKETS buckets, so that the relative error of the reported
+ * percentiles is below 1/SUB_BUCKETS, while the whole range of long values
+ * is covered by less than a thousand buckets.
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class Histogram implements Metric {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// number of buckets per power of two
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// number of buckets covering all positive long values
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Records a value, unless metrics are disabled. Negative
+	 * values are recorded as 0.
+	 *
+	 * @param value The value, e.g. a latency
+	 */
+	public void record(long value) {
+
+		if (!MetricRegistry.ENABLED) {
+			return;
+		}
+
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(bucket(value));
+
+		// only contended while the maximum increases
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the number of values recorded
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	/*
+	 * Returns the largest value recorded, or 0 if none
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/*
+	 * Returns the value below which a given fraction of the recorded values
+	 * lie, which is the upper bound of the bucket containing it
+	 *
+	 * @param fraction The fraction between 0 and 1, e.g. 0.99
+	 * @return The percentile, or 0 if no value was recorded
+	 */
+	public long getPercentile(double fraction) {
+
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(fraction * total));
+		long seen = 0;
+		for (int i = 0; i < NUM_BUCKETS; ++i) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+
+				// the bucket's bound may exceed the largest value
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public void collect(String name, Map<String, Long> values) {
+		values.put(name + ".count", getCount());
+		values.put(name + ".p50", getPercentile(0.5));
+		values.put(name + ".p90", getPercentile(0.9));
+		values.put(name + ".p99", getPercentile(0.99));
+		values.put(name + ".p999", getPercentile(0.999));
+		values.put(name + ".max", getMax());
+	}
+
+	// Class functions /////////////////////////////////////////////////////////
+
+	private static int bucket(long value) {
+
+		// values below SUB_BUCKETS have a bucket of their own
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int sub = (int) (value >>> shift) - SUB_BUCKETS;
+
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket) {
+
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+
+		return ((sub + 1) << shift) - 1;
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+	private final AtomicLong max = new AtomicLong();
+}
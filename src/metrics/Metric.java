@@ -0,0 +1,22 @@
+package metrics;
+
+import java.util.Map;
+
+/*
+ * Interface to be implemented by the metrics kept in a MetricRegistry
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public interface Metric {
+
+	/*
+	 * Adds the current values of this metric to a snapshot
+	 *
+	 * @param name The name this metric is registered under, which
+	 *             prefixes the names of its values
+	 * @param values The snapshot to add the values to
+	 */
+	void collect(String name, Map<String, Long> values);
+}
@@ -0,0 +1,247 @@
+package metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import log.Logger;
+
+/*
+ * This class describes the functionality of a registry of named metrics,
+ * which is usually shared by the components of a communication stack.
+ * It provides:
+ *
+ * - Creation of counters and histograms on first use, and registration of
+ *   gauges that read values the components keep anyway
+ *
+ * - A sorted snapshot of all values, e.g. to render them as text
+ *
+ * - Export of the values as attributes of a JMX MBean
+ *
+ * Metrics can be disabled for the whole process by setting the system
+ * property jcoap.metrics to false. Counters and histograms then ignore all
+ * updates; as the switch is a constant, the JIT removes the updates. Only
+ * the ungated counters backing accessors such as getNumMessagesSent() of
+ * the layers keep counting.
+
+ *
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ *
+ */
+public class MetricRegistry {
+
+	// Constants ///////////////////////////////////////////////////////////////
+
+	// true unless metrics are disabled by the system property jcoap.metrics
+	public static final boolean ENABLED
+		= !"false".equalsIgnoreCase(System.getProperty("jcoap.metrics"));
+
+	private static final Logger LOG = Logger.getLogger(MetricRegistry.class);
+
+	// Nested Classes //////////////////////////////////////////////////////////
+
+	/*
+	 * MBean exposing each value of the snapshot as a read-only attribute
+	 */
+	private class RegistryMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Long value = snapshot().get(attribute);
+			if (value == null) {
+				throw new AttributeNotFoundException(attribute);
+			}
+			return value;
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			SortedMap<String, Long> values = snapshot();
+			AttributeList list = new AttributeList();
+			for (String attribute : attributes) {
+				Long value = values.get(attribute);
+				if (value != null) {
+					list.add(new Attribute(attribute, value));
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			SortedMap<String, Long> values = snapshot();
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+			int i = 0;
+			for (String name : values.keySet()) {
+				attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(),
+					name, true, false, false);
+			}
+			return new MBeanInfo(MetricRegistry.class.getName(), "CoAP metrics",
+				attributes, null, null, null);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+	}
+
+	// Commands ////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the counter registered under a name, registering
+	 * a new one if none is
+	 *
+	 * @param name The name of the counter
+	 * @return The counter
+	 * @throws IllegalArgumentException If another kind of metric
+	 * is registered under the name
+	 */
+	public Counter counter(String name) {
+		Metric metric = metrics.get(name);
+		if (metric == null) {
+			metric = register(name, new Counter());
+		}
+		if (!(metric instanceof Counter)) {
+			throw new IllegalArgumentException("Metric is not a counter: " + name);
+		}
+		return (Counter) metric;
+	}
+
+	/*
+	 * Returns the histogram registered under a name, registering
+	 * a new one if none is
+	 *
+	 * @param name The name of the histogram
+	 * @return The histogram
+	 * @throws IllegalArgumentException If another kind of metric
+	 * is registered under the name
+	 */
+	public Histogram histogram(String name) {
+		Metric metric = metrics.get(name);
+		if (metric == null) {
+			metric = register(name, new Histogram());
+		}
+		if (!(metric instanceof Histogram)) {
+			throw new IllegalArgumentException("Metric is not a histogram: " + name);
+		}
+		return (Histogram) metric;
+	}
+
+	/*
+	 * Registers a metric unless one is registered under the same name
+	 *
+	 * @param name The name of the metric
+	 * @param metric The metric to register
+	 * @return The metric registered under the name
+	 */
+	public Metric register(String name, Metric metric) {
+		Metric existing = metrics.putIfAbsent(name, metric);
+		return existing != null ? existing : metric;
+	}
+
+	public void remove(String name) {
+		metrics.remove(name);
+	}
+
+	/*
+	 * Registers this registry as MBean with the platform MBean server,
+	 * replacing the MBean registered under the same name, if any
+	 *
+	 * @param objectName The object name, e.g. "jcoap:type=Communicator,port=5683"
+	 * @return True if the MBean was registered
+	 */
+	public boolean registerMBean(String objectName) {
+		try {
+			ObjectName name = new ObjectName(objectName);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(new RegistryMBean(), name);
+			return true;
+		} catch (JMException e) {
+			LOG.error("Failed to register MBean %s: %s", objectName, e.getMessage());
+			return false;
+		}
+	}
+
+	/*
+	 * Removes the MBean registered under a name from the platform MBean server
+	 *
+	 * @param objectName The object name used to register the MBean
+	 */
+	public void unregisterMBean(String objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(objectName));
+		} catch (JMException e) {
+			LOG.error("Failed to unregister MBean %s: %s", objectName, e.getMessage());
+		}
+	}
+
+	// Queries /////////////////////////////////////////////////////////////////
+
+	/*
+	 * Returns the metric registered under a name
+	 *
+	 * @param name The name of the metric
+	 * @return The metric, or null if none is registered
+	 */
+	public Metric get(String name) {
+		return metrics.get(name);
+	}
+
+	/*
+	 * Returns the current values of all metrics sorted by name; a histogram
+	 * contributes its count, percentiles and maximum
+	 *
+	 * @return The values by name
+	 */
+	public SortedMap<String, Long> snapshot() {
+		SortedMap<String, Long> values = new TreeMap<String, Long>();
+		for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+			entry.getValue().collect(entry.getKey(), values);
+		}
+		return values;
+	}
+
+	/*
+	 * Returns the current values of all metrics as text,
+	 * one "name value" line per value
+	 */
+	public String toText() {
+		StringBuilder builder = new StringBuilder();
+		for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+			builder.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+		}
+		return builder.toString();
+	}
+
+	// Attributes //////////////////////////////////////////////////////////////
+
+	private final ConcurrentSkipListMap<String, Metric> metrics
+		= new ConcurrentSkipListMap<String, Metric>();
+}
@@ -0,0 +1,158 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.Message;
+import coap.MessageReceiver;
+import coap.Message.messageType;
+import layers.DatagramChannelLayer;
+
+public class DatagramChannelLayerTest {
+
+	// receiver handing messages over to the test thread
+	static class QueueReceiver implements MessageReceiver {
+
+		@Override
+		public void receiveMessage(Message msg) {
+			threads.add(Thread.currentThread().getName());
+			messages.add(msg);
+		}
+
+		Message take() throws InterruptedException {
+			Message msg = messages.poll(5, TimeUnit.SECONDS);
+			assertNotNull("No message received", msg);
+			return msg;
+		}
+
+		final BlockingQueue<Message> messages = new LinkedBlockingQueue<Message>();
+		final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (server != null) {
+			server.close();
+		}
+		if (client != null) {
+			client.close();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testRoundTrip() throws Exception {
+
+		server = new DatagramChannelLayer(0, true);
+		client = new DatagramChannelLayer(0, true);
+		QueueReceiver serverReceiver = new QueueReceiver();
+		QueueReceiver clientReceiver = new QueueReceiver();
+		server.registerReceiver(serverReceiver);
+		client.registerReceiver(clientReceiver);
+
+		Message request = new Message(messageType.Confirmable, CodeRegistry.METHOD_GET);
+		request.setID(4711);
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", server.getPort()));
+		request.setPayload("ping");
+		client.sendMessage(request);
+
+		Message received = serverReceiver.take();
+		assertEquals(4711, received.getID());
+		assertEquals("ping", received.getPayloadString());
+		assertEquals(client.getPort(), received.getPeerAddress().getPort());
+
+		// reply to the source of the datagram
+		Message reply = new Message(messageType.Acknowledgement, CodeRegistry.RESP_CONTENT);
+		reply.setID(received.getID());
+		reply.setPeerAddress(received.getPeerAddress());
+		reply.setPayload("pong");
+		server.sendMessage(reply);
+
+		received = clientReceiver.take();
+		assertEquals(4711, received.getID());
+		assertEquals("pong", received.getPayloadString());
+
+		assertEquals(client.getNumBytesSent(), server.getNumBytesReceived());
+		assertEquals(0, client.getNumSendDropped());
+
+		// the receive buffers were returned to the pool
+		assertEquals(server.getBufferPool().getNumAllocated(),
+			server.getBufferPool().getNumPooled());
+	}
+
+	@Test(timeout = 10000)
+	public void testWorkerDispatch() throws Exception {
+
+		server = new DatagramChannelLayer(0, true, 4, 1024);
+		client = new DatagramChannelLayer(0, true);
+		QueueReceiver serverReceiver = new QueueReceiver();
+		server.registerReceiver(serverReceiver);
+
+		int numMessages = 100;
+		for (int id = 0; id < numMessages; ++id) {
+			Message msg = new Message(messageType.Non_Confirmable, CodeRegistry.METHOD_GET);
+			msg.setID(id);
+			msg.setPeerAddress(new InetSocketAddress("127.0.0.1", server.getPort()));
+			client.sendMessage(msg);
+		}
+
+		// messages of the same remote endpoint are processed in order
+		for (int id = 0; id < numMessages; ++id) {
+			assertEquals(id, serverReceiver.take().getID());
+		}
+
+		// by a worker instead of the selector thread
+		assertFalse(serverReceiver.threads.contains("DatagramChannelLayer-Selector"));
+		assertEquals(numMessages, server.getNumMessagesReceived());
+	}
+
+	@Test(timeout = 10000)
+	public void testClose() throws Exception {
+
+		Set<Thread> before = selectorThreads();
+		DatagramChannelLayer layer = new DatagramChannelLayer(0, true);
+		Set<Thread> started = selectorThreads();
+		started.removeAll(before);
+		assertEquals(1, started.size());
+
+		final List<Throwable> uncaught = new ArrayList<Throwable>();
+		Thread thread = started.iterator().next();
+		thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread t, Throwable e) {
+				uncaught.add(e);
+			}
+		});
+
+		// the selector thread exits quietly once the selector is closed
+		layer.close();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertTrue(uncaught.toString(), uncaught.isEmpty());
+	}
+
+	private static Set<Thread> selectorThreads() {
+		Set<Thread> threads = new HashSet<Thread>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("DatagramChannelLayer-Selector")) {
+				threads.add(thread);
+			}
+		}
+		return threads;
+	}
+
+	private DatagramChannelLayer server;
+	private DatagramChannelLayer client;
+}
@@ -0,0 +1,150 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import coap.Message;
+import coap.MessageReceiver;
+import layers.Layer;
+
+public class LayerTest {
+
+	// layer delivering every message it receives
+	static class EchoLayer extends Layer {
+
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+	}
+
+	static class CountingReceiver implements MessageReceiver {
+
+		@Override
+		public void receiveMessage(Message msg) {
+			count.incrementAndGet();
+		}
+
+		final AtomicInteger count = new AtomicInteger();
+	}
+
+	@Test
+	public void testRegistration() {
+
+		EchoLayer layer = new EchoLayer();
+		CountingReceiver first = new CountingReceiver();
+		CountingReceiver second = new CountingReceiver();
+
+		layer.registerReceiver(first);
+		layer.registerReceiver(second);
+		layer.registerReceiver(layer);
+		layer.registerReceiver(null);
+		assertEquals(2, layer.getNumReceivers());
+
+		layer.receiveMessage(new Message());
+		assertEquals(1, first.count.get());
+		assertEquals(1, second.count.get());
+
+		layer.unregisterReceiver(first);
+		layer.unregisterReceiver(first);
+		layer.receiveMessage(new Message());
+		assertEquals(1, first.count.get());
+		assertEquals(2, second.count.get());
+		assertEquals(1, layer.getNumReceivers());
+	}
+
+	@Test
+	public void testUnregisterDuringDelivery() {
+
+		final EchoLayer layer = new EchoLayer();
+		final List<String> calls = new ArrayList<String>();
+
+		// receiver unregistering itself when called
+		MessageReceiver once = new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				calls.add("once");
+				layer.unregisterReceiver(this);
+			}
+		};
+		MessageReceiver always = new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				calls.add("always");
+			}
+		};
+		layer.registerReceiver(once);
+		layer.registerReceiver(always);
+
+		layer.receiveMessage(new Message());
+		layer.receiveMessage(new Message());
+
+		assertEquals("[once, always, always]", calls.toString());
+	}
+
+	@Test
+	public void testConcurrentRegistration() throws Exception {
+
+		final EchoLayer layer = new EchoLayer();
+		final CountingReceiver permanent = new CountingReceiver();
+		layer.registerReceiver(permanent);
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final int numMessages = 20000;
+
+		Thread deliverer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < numMessages; ++i) {
+						layer.receiveMessage(new Message());
+					}
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		};
+
+		Thread[] registrars = new Thread[4];
+		for (int i = 0; i < registrars.length; ++i) {
+			registrars[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < 2000; ++j) {
+							MessageReceiver receiver = new CountingReceiver();
+							layer.registerReceiver(receiver);
+							layer.unregisterReceiver(receiver);
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			};
+		}
+
+		deliverer.start();
+		for (Thread registrar : registrars) {
+			registrar.start();
+		}
+		deliverer.join();
+		for (Thread registrar : registrars) {
+			registrar.join();
+		}
+
+		assertNull(failure.get());
+		assertEquals(numMessages, permanent.count.get());
+		assertEquals(1, layer.getNumReceivers());
+	}
+}
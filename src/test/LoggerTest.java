@@ -0,0 +1,171 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import log.Appender;
+import log.AsyncAppender;
+import log.ConsoleAppender;
+import log.Level;
+import log.LogRecord;
+import log.Logger;
+
+public class LoggerTest {
+
+	// appender collecting the messages
+	static class ListAppender implements Appender {
+
+		@Override
+		public void append(LogRecord record) {
+			messages.add(record.getMessage());
+		}
+
+		final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	@Before
+	public void setUp() {
+		previousAppender = Logger.getAppender();
+		previousLevel = Logger.getRootLevel();
+	}
+
+	@After
+	public void tearDown() {
+		Logger.setAppender(previousAppender);
+		Logger.setRootLevel(previousLevel);
+		Logger.getLogger("test").setLevel(null);
+	}
+
+	@Test
+	public void testLevels() {
+
+		ListAppender appender = new ListAppender();
+		Logger.setAppender(appender);
+		Logger.setRootLevel(Level.INFO);
+
+		Logger logger = Logger.getLogger("test");
+		assertSame(logger, Logger.getLogger("test"));
+
+		assertTrue(logger.isInfoEnabled());
+		assertFalse(logger.isDebugEnabled());
+
+		logger.debug("dropped %d", 1);
+		logger.info("kept %d", 2);
+		logger.error("kept %d", 3);
+
+		// the level of the logger overrides the root level
+		logger.setLevel(Level.DEBUG);
+		logger.debug("kept %d", 4);
+		logger.setLevel(Level.ERROR);
+		logger.warning("dropped %d", 5);
+
+		assertEquals(3, appender.messages.size());
+		assertEquals("kept 2", appender.messages.get(0));
+		assertEquals("kept 4", appender.messages.get(2));
+	}
+
+	@Test
+	public void testNoFormattingWhenDisabled() {
+
+		Logger.setAppender(new ListAppender());
+		Logger.setRootLevel(Level.INFO);
+
+		Object argument = new Object() {
+			@Override
+			public String toString() {
+				fail("Argument formatted although level disabled");
+				return null;
+			}
+		};
+		Logger.getLogger("test").debug("%s", argument);
+	}
+
+	@Test
+	public void testConsoleAppender() {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Appender appender = new ConsoleAppender(new PrintStream(bytes, true));
+
+		appender.append(new LogRecord(Level.WARNING, "test", "value %d", new Object[] {7}));
+		appender.append(new LogRecord(Level.DEBUG, "test", "no arguments %d", null));
+
+		assertEquals("[test] WARNING: value 7\n[test] no arguments %d\n", bytes.toString());
+	}
+
+	@Test
+	public void testAsyncAppender() {
+
+		ListAppender target = new ListAppender();
+		AsyncAppender appender = new AsyncAppender(target, 16);
+
+		for (int i = 0; i < 100; ++i) {
+			appender.append(new LogRecord(Level.INFO, "test", "%d", new Object[] {i}));
+			if (i % 10 == 0) {
+				appender.flush(1000);
+			}
+		}
+		assertTrue(appender.flush(1000));
+		appender.close();
+
+		// records are passed on in order
+		assertEquals(100 - appender.getNumDropped(), target.messages.size());
+		int last = -1;
+		for (String message : target.messages) {
+			int value = Integer.parseInt(message);
+			assertTrue(value > last);
+			last = value;
+		}
+	}
+
+	@Test
+	public void testAsyncAppenderDoesNotBlock() throws Exception {
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final ListAppender list = new ListAppender();
+
+		// appender blocking like a stalled console
+		Appender blocked = new Appender() {
+			@Override
+			public void append(LogRecord record) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				list.append(record);
+			}
+		};
+		AsyncAppender appender = new AsyncAppender(blocked, 8);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; ++i) {
+			appender.append(new LogRecord(Level.INFO, "test", "%d", new Object[] {i}));
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// all records beyond the buffer and the one passed on are dropped
+		assertTrue(appender.getNumDropped() >= 1000 - 9);
+		assertTrue("Appending blocked", elapsed < 1000000000L);
+
+		release.countDown();
+		assertTrue(appender.flush(1000));
+		appender.close();
+
+		// the writer reports the dropped records
+		assertTrue(list.messages.contains(appender.getNumDropped() + " log records dropped"));
+		assertEquals(1000 - appender.getNumDropped() + 1, list.messages.size());
+	}
+
+	private Appender previousAppender;
+	private Level previousLevel;
+}
@@ -0,0 +1,215 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.Communicator;
+import coap.GETRequest;
+import coap.LocalResource;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Request;
+import coap.Response;
+import coap.Message.messageType;
+import endpoint.LocalEndpoint;
+import layers.LoopbackLayer;
+import layers.LoopbackNetwork;
+import layers.TransferLayer;
+
+
+public class LoopbackLayerTest {
+
+	// resource answering with a constant payload
+	static class HelloResource extends LocalResource {
+
+		HelloResource() {
+			super("hello");
+		}
+
+		@Override
+		public void performGET(GETRequest request) {
+			request.respond(CodeRegistry.RESP_CONTENT, "Hello");
+		}
+	}
+
+	// resource answering with a payload of several blocks
+	static class LargeResource extends LocalResource {
+
+		LargeResource() {
+			super("large");
+		}
+
+		@Override
+		public void performGET(GETRequest request) {
+			Response response = new Response(CodeRegistry.RESP_CONTENT);
+			response.setPayload(BODY);
+			request.respond(response);
+		}
+	}
+
+	@Before
+	public void setUp() {
+		network = new LoopbackNetwork();
+
+		serverLayer = new LoopbackLayer(network);
+		LocalEndpoint server = new LocalEndpoint(new Communicator(serverLayer));
+		hello = new HelloResource();
+		server.addResource(hello);
+		server.addResource(new LargeResource());
+
+		clientLayer = new LoopbackLayer(network);
+		client = new Communicator(clientLayer);
+	}
+
+	@After
+	public void tearDown() {
+		serverLayer.close();
+		clientLayer.close();
+	}
+
+	@Test
+	public void testExchange() throws Exception {
+
+		Response response = newRequest().executeAsync().get(1, TimeUnit.SECONDS);
+
+		assertEquals(CodeRegistry.RESP_CONTENT, response.getCode());
+		assertEquals("Hello", response.getPayloadString());
+		assertEquals(serverLayer.getAddress(), response.getPeerAddress());
+		assertEquals(2, network.getNumSent());
+	}
+
+	@Test
+	public void testLoss() throws Exception {
+
+		network.setLoss(1.0);
+
+		Request request = newRequest();
+		request.setType(messageType.Non_Confirmable);
+		assertFalse(request.executeAsync().isDone());
+
+		assertEquals(1, network.getNumLost());
+		assertEquals(0, serverLayer.getQueueDepth());
+	}
+
+	@Test
+	public void testDuplication() throws Exception {
+
+		network.setDuplication(1.0);
+
+		Response response = newRequest().executeAsync().get(1, TimeUnit.SECONDS);
+		assertEquals("Hello", response.getPayloadString());
+
+		// the request and at least its reply were duplicated
+		assertTrue(network.getNumDuplicated() >= 2);
+	}
+
+	@Test
+	public void testLatency() throws Exception {
+
+		network.setLatency(50);
+
+		long start = System.nanoTime();
+		newRequest().executeAsync().get(1, TimeUnit.SECONDS);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertTrue("Round trip took " + elapsed + " ms", elapsed >= 100);
+	}
+
+	@Test
+	public void testReordering() throws Exception {
+
+		network.setReordering(1.0, 20);
+
+		Response response = newRequest().executeAsync().get(1, TimeUnit.SECONDS);
+		assertEquals("Hello", response.getPayloadString());
+		assertEquals(2, network.getNumReordered());
+	}
+
+	@Test
+	public void testUnreachable() throws Exception {
+
+		serverLayer.close();
+
+		Request request = newRequest();
+		request.setType(messageType.Non_Confirmable);
+		request.executeAsync();
+
+		assertEquals(1, network.getNumUnreachable());
+	}
+
+	@Test
+	public void testObserverLimit() throws Exception {
+
+		hello.setMaxObservers(1);
+		LoopbackLayer otherLayer = new LoopbackLayer(network);
+		Communicator other = new Communicator(otherLayer);
+
+		try {
+			Request first = newRequest();
+			first.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+			Response response = first.executeAsync().get(1, TimeUnit.SECONDS);
+			assertTrue(response.hasOption(OptionNumberRegistry.OBSERVE));
+
+			// the refused observer is answered, but not told it observes
+			Request second = newRequest();
+			second.setCommunicator(other);
+			second.setOption(new Option(0, OptionNumberRegistry.OBSERVE));
+			response = second.executeAsync().get(1, TimeUnit.SECONDS);
+			assertEquals("Hello", response.getPayloadString());
+			assertFalse(response.hasOption(OptionNumberRegistry.OBSERVE));
+
+			assertEquals(1, hello.getObserverCount());
+			assertEquals(1, hello.getNumObserversRefused());
+		} finally {
+			otherLayer.close();
+		}
+	}
+
+	@Test
+	public void testPipelinedTransfer() throws Exception {
+
+		// blocks are only requested concurrently if NSTART allows it
+		client.getTransferLayer().setPipelineWindow(4);
+		client.getMessageLayer().setNstart(4);
+		network.setLatency(50);
+
+		Request request = new GETRequest();
+		request.setPeerAddress(serverLayer.getAddress());
+		request.setOption(new Option("large", OptionNumberRegistry.URI_PATH));
+		request.setCommunicator(client);
+		request.setSizeHint(BODY.length);
+
+		long start = System.nanoTime();
+		Response response = request.executeAsync().get(5, TimeUnit.SECONDS);
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		assertArrayEquals(BODY, response.getPayload());
+
+		// the first block, then two rounds of up to four blocks, instead
+		// of eight round trips one after another
+		assertTrue("Transfer took " + elapsed + " ms", elapsed < 600);
+	}
+
+	private Request newRequest() {
+		Request request = new GETRequest();
+		request.setPeerAddress(serverLayer.getAddress());
+		request.setOption(new Option("hello", OptionNumberRegistry.URI_PATH));
+		request.setCommunicator(client);
+		return request;
+	}
+
+	private static final byte[] BODY = new byte[8 * TransferLayer.DEFAULT_BLOCK_SIZE];
+
+	private LoopbackNetwork network;
+	private HelloResource hello;
+
+	private LoopbackLayer serverLayer;
+	private LoopbackLayer clientLayer;
+	private Communicator client;
+}
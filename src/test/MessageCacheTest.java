@@ -0,0 +1,93 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import coap.Message;
+import coap.MessageKey;
+import coap.Message.messageType;
+import layers.MessageCache;
+
+public class MessageCacheTest {
+
+	@Test
+	public void testDuplicates() {
+
+		MessageCache cache = new MessageCache(60000, 1024 * 1024);
+
+		assertTrue(cache.add(key(1)));
+		assertTrue(cache.add(key(2)));
+		assertFalse(cache.add(key(1)));
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getNumHits());
+		assertEquals(2, cache.getNumMisses());
+	}
+
+	@Test
+	public void testReplies() {
+
+		MessageCache cache = new MessageCache(60000, 1024 * 1024);
+		Message reply = new Message(messageType.Acknowledgement, 0);
+
+		cache.put(key(1), reply);
+
+		assertSame(reply, cache.get(key(1)));
+		assertNull(cache.get(key(2)));
+	}
+
+	@Test
+	public void testLifetime() throws InterruptedException {
+
+		MessageCache cache = new MessageCache(50, 1024 * 1024, 1);
+
+		cache.add(key(1));
+		Thread.sleep(100);
+
+		// expired key must be treated as new
+		assertTrue(cache.add(key(1)));
+		assertEquals(1, cache.getNumExpired());
+	}
+
+	@Test
+	public void testShrinkBudget() {
+
+		MessageCache cache = new MessageCache(60000, 10 * MessageCache.ENTRY_OVERHEAD, 1);
+
+		for (int id = 0; id < 10; ++id) {
+			cache.add(key(id));
+		}
+
+		// oldest entries are evicted as soon as the budget shrinks
+		cache.setMemoryBudget(4 * MessageCache.ENTRY_OVERHEAD);
+		assertEquals(4 * MessageCache.ENTRY_OVERHEAD, cache.getMemoryBudget());
+		assertEquals(4, cache.size());
+		assertEquals(6, cache.getNumEvicted());
+		assertFalse(cache.add(key(9)));
+		assertTrue(cache.add(key(0)));
+	}
+
+	@Test
+	public void testBudget() {
+
+
+		// room for ten entries without payload
+		MessageCache cache = new MessageCache(60000, 10 * MessageCache.ENTRY_OVERHEAD, 1);
+
+		for (int id = 0; id < 15; ++id) {
+			cache.add(key(id));
+		}
+
+		assertEquals(10, cache.size());
+		assertEquals(5, cache.getNumEvicted());
+
+		// oldest entries are evicted first
+		assertTrue(cache.add(key(0)));
+		assertFalse(cache.add(key(14)));
+	}
+
+	private static MessageKey key(int id) {
+		return new MessageKey(new byte[] {127, 0, 0, 1}, 5683, messageType.Confirmable, id);
+	}
+}
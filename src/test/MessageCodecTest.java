@@ -0,0 +1,182 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.DatagramWriter;
+import coap.MediaTypeRegistry;
+import coap.Message;
+import coap.MessageCodec;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Message.messageType;
+
+/*
+ * This unit test examines the MessageCodec class for byte-identical
+ * output compared to the bit-level DatagramWriter encoding.
+ * 
+ * @author Dominique Im Obersteg & Daniel Pauli
+ * @version 0.1
+ * 
+ */
+public class MessageCodecTest {
+
+	@Test
+	public void testHeaderOnly() {
+		
+		Message msg = newMessage();
+		
+		assertArrayEquals(referenceEncoding(msg), msg.toByteArray());
+	}
+	
+	@Test
+	public void testOptionsAndPayload() {
+		
+		Message msg = newMessage();
+		msg.setPayload("some payload".getBytes());
+		msg.addOption(new Option(MediaTypeRegistry.PLAIN, OptionNumberRegistry.CONTENT_TYPE));
+		msg.addOption(new Option("sensors", OptionNumberRegistry.URI_PATH));
+		msg.addOption(new Option(0xCAFE, OptionNumberRegistry.TOKEN));
+		msg.addOption(new Option("a=1", OptionNumberRegistry.URI_QUERY));
+		
+		assertArrayEquals(referenceEncoding(msg), msg.toByteArray());
+	}
+	
+	@Test
+	public void testExtendedLengthAndFenceposts() {
+		
+		Message msg = newMessage();
+		msg.addOption(new Option("a rather long Uri-Path option value", OptionNumberRegistry.URI_PATH));
+		msg.addOption(new Option(0x35, OptionNumberRegistry.BLOCK1));
+		msg.addOption(new Option("c".getBytes(), 40));
+		
+		byte[] data = msg.toByteArray();
+		assertArrayEquals(referenceEncoding(msg), data);
+		
+		Message convMsg = Message.fromByteArray(data);
+		assertEquals(msg.getOptionCount(), convMsg.getOptionCount());
+		assertEquals(msg.getFirstOption(OptionNumberRegistry.URI_PATH), 
+			convMsg.getFirstOption(OptionNumberRegistry.URI_PATH));
+		assertEquals(0x35, convMsg.getFirstOption(OptionNumberRegistry.BLOCK1).getIntValue());
+	}
+	
+	@Test
+	public void testOffset() {
+		
+		Message msg = newMessage();
+		msg.setPayload("hallo".getBytes());
+		msg.addOption(new Option("b".getBytes(), 2));
+		
+		byte[] buffer = new byte[64];
+		int length = MessageCodec.encode(msg, buffer, 7);
+		
+		assertEquals(MessageCodec.encodedLength(msg), length);
+		
+		Message convMsg = MessageCodec.decode(buffer, 7, length);
+		
+		assertEquals(msg.getCode(), convMsg.getCode());
+		assertEquals(msg.getType(), convMsg.getType());
+		assertEquals(msg.getID(), convMsg.getID());
+		assertEquals(msg.getOptionCount(), convMsg.getOptionCount());
+		assertArrayEquals(msg.getPayload(), convMsg.getPayload());
+	}
+	
+	@Test
+	public void testDirectByteBuffer() {
+		
+		Message msg = newMessage();
+		msg.setPayload("direct".getBytes());
+		msg.addOption(new Option("x", OptionNumberRegistry.URI_PATH));
+		
+		ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+		MessageCodec.encode(msg, buffer);
+		buffer.flip();
+		
+		Message convMsg = MessageCodec.decode(buffer);
+		
+		assertEquals(msg.getID(), convMsg.getID());
+		assertEquals(msg.getOptionCount(), convMsg.getOptionCount());
+		assertArrayEquals(msg.getPayload(), convMsg.getPayload());
+	}
+	
+	@Test
+	public void testTruncated() {
+		
+		Message msg = newMessage();
+		msg.addOption(new Option("sensors", OptionNumberRegistry.URI_PATH));
+		
+		byte[] data = msg.toByteArray();
+		
+		assertNull(MessageCodec.decode(data, 0, data.length - 1));
+		assertNull(MessageCodec.decode(data, 0, 3));
+	}
+	
+	private static Message newMessage() {
+		
+		Message msg = new Message();
+		msg.setCode(CodeRegistry.METHOD_GET);
+		msg.setType(messageType.Non_Confirmable);
+		msg.setID(0xBEEF);
+		
+		return msg;
+	}
+	
+	/*
+	 * Encodes a message bit by bit using the DatagramWriter 
+	 */
+	private static byte[] referenceEncoding(Message msg) {
+		
+		DatagramWriter optWriter = new DatagramWriter(); 
+		
+		int optionCount = 0;
+		int lastOptionNumber = 0;
+		for (Option opt : msg.getOptionList()) {
+			
+			int optionDelta = opt.getOptionNumber() - lastOptionNumber;
+			
+			while (optionDelta > Message.MAX_OPTIONDELTA) {
+				
+				int fencepostNumber = 
+					OptionNumberRegistry.nextFencepost(lastOptionNumber);
+				int fencepostDelta = fencepostNumber - lastOptionNumber;
+				
+				optWriter.write(fencepostDelta, Message.OPTIONDELTA_BITS);
+				optWriter.write(0, Message.OPTIONLENGTH_BASE_BITS);
+				
+				++optionCount;
+				lastOptionNumber = fencepostNumber;
+				optionDelta -= fencepostDelta;
+			}
+			
+			optWriter.write(optionDelta, Message.OPTIONDELTA_BITS);
+			
+			int length = opt.getLength();
+			if (length <= Message.MAX_OPTIONLENGTH_BASE) {
+				optWriter.write(length, Message.OPTIONLENGTH_BASE_BITS);
+			} else {
+				int baseLength = Message.MAX_OPTIONLENGTH_BASE + 1;
+				optWriter.write(baseLength, Message.OPTIONLENGTH_BASE_BITS);
+				optWriter.write(length - baseLength, Message.OPTIONLENGTH_EXTENDED_BITS);
+			}
+			optWriter.writeBytes(opt.getRawValue());
+			
+			++optionCount;
+			lastOptionNumber = opt.getOptionNumber();
+		}
+		
+		DatagramWriter writer = new DatagramWriter();
+		writer.write(msg.getVersion(), Message.VERSION_BITS);
+		writer.write(msg.getType().ordinal(), Message.TYPE_BITS);
+		writer.write(optionCount, Message.OPTIONCOUNT_BITS);
+		writer.write(msg.getCode(), Message.CODE_BITS);
+		writer.write(msg.getID(), Message.ID_BITS);
+		writer.writeBytes(optWriter.toByteArray());
+		writer.writeBytes(msg.getPayload());
+		
+		return writer.toByteArray();
+	}
+}
@@ -0,0 +1,75 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import org.junit.Test;
+
+import coap.Message;
+import coap.MessageKey;
+import coap.Message.messageType;
+import layers.TransportLayer;
+
+
+public class MessageKeyTest {
+
+	@Test
+	public void testEquality() {
+
+		byte[] addr = {(byte)192, (byte)168, 1, 10};
+
+		MessageKey key1 = new MessageKey(addr, 5683, messageType.Confirmable, 4711);
+		MessageKey key2 = new MessageKey(addr.clone(), 5683, messageType.Confirmable, 4711);
+
+		assertEquals(key1, key2);
+		assertEquals(key1.hashCode(), key2.hashCode());
+
+		assertFalse(key1.equals(new MessageKey(addr, 5684, messageType.Confirmable, 4711)));
+		assertFalse(key1.equals(new MessageKey(addr, 5683, messageType.Confirmable, 4712)));
+		assertFalse(key1.equals(key1.withType(messageType.Acknowledgement)));
+		assertEquals(key1, key1.withType(messageType.Acknowledgement).withType(messageType.Confirmable));
+	}
+
+	@Test
+	public void testString() {
+
+		byte[] addr = {(byte)192, (byte)168, 1, 10};
+		MessageKey key = new MessageKey(addr, 5683, messageType.Acknowledgement, 12);
+
+		assertEquals("192.168.1.10:5683", key.endpointID());
+		assertEquals("192.168.1.10:5683|ACK#12", key.toString());
+	}
+
+	@Test
+	public void testMessageKey() throws URISyntaxException {
+
+		Message msg = new Message(new URI("coap://192.168.1.10:61616/hello"),
+			messageType.Confirmable, 1, 12, null);
+
+		assertEquals("192.168.1.10:61616|CON#12", msg.key().toString());
+		assertEquals("192.168.1.10:61616", msg.endpointID());
+
+		// the key must follow changes of the message
+		msg.setID(13);
+		assertEquals(13, msg.key().getID());
+	}
+
+	@Test
+	public void testDefaultPort() throws URISyntaxException {
+
+		Message sent = new Message(new URI("coap://192.168.1.10/hello"),
+			messageType.Confirmable, 1, 12, null);
+
+		// a reply from the peer carries the port the message was sent to
+		Message reply = new Message();
+		reply.setPeerAddress(new InetSocketAddress("192.168.1.10", TransportLayer.DEFAULT_PORT));
+		reply.setType(messageType.Confirmable);
+		reply.setID(12);
+
+		assertEquals("192.168.1.10:5683|CON#12", sent.key().toString());
+		assertEquals(sent.key(), reply.key());
+	}
+}
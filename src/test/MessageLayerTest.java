@@ -0,0 +1,243 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.GETRequest;
+import coap.Message;
+import coap.MessageReceiver;
+
+import coap.Request;
+import coap.Response;
+import coap.Message.messageType;
+import layers.Layer;
+import layers.MessageLayer;
+import layers.PeerStatistics;
+
+public class MessageLayerTest {
+
+	// lower layer recording sent messages
+	static class RecordingLayer extends Layer {
+
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+			if (failing) {
+				throw new IOException("Network unreachable");
+			}
+			sent.add(msg);
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+
+		List<Message> sent = new ArrayList<Message>();
+		boolean failing;
+	}
+
+	@Before
+	public void setUp() {
+		lower = new RecordingLayer();
+		layer = new MessageLayer();
+		layer.setLowerLayer(lower);
+	}
+
+	@Test
+	public void testNstart() throws Exception {
+
+		Request first = newRequest(PEER);
+		Request second = newRequest(PEER);
+		Request third = newRequest(PEER);
+		layer.sendMessage(first);
+		layer.sendMessage(second);
+		layer.sendMessage(third);
+
+		// other remote endpoints are not affected
+		layer.sendMessage(newRequest(OTHER_PEER));
+
+		assertEquals(2, lower.sent.size());
+		assertSame(first, lower.sent.get(0));
+
+		PeerStatistics statistics = layer.getPeerStatistics(PEER);
+		assertEquals(1, statistics.getInFlight());
+		assertEquals(2, statistics.getQueued());
+
+		// acknowledgement starts the next Confirmable
+		layer.receiveMessage(newAck(first));
+		assertEquals(3, lower.sent.size());
+		assertSame(second, lower.sent.get(2));
+
+		// cancelled Confirmables are removed from the queue
+		assertTrue(layer.cancelTransmission(third));
+		layer.receiveMessage(newAck(second));
+		assertEquals(3, lower.sent.size());
+
+		statistics = layer.getPeerStatistics(PEER);
+		assertEquals(0, statistics.getInFlight());
+		assertEquals(0, statistics.getQueued());
+		assertEquals(2, statistics.getNumTransmissions());
+	}
+
+	@Test
+	public void testSendFailure() throws Exception {
+
+		lower.failing = true;
+		try {
+			layer.sendMessage(newRequest(PEER));
+			fail("IOException expected");
+		} catch (IOException e) {
+			// the failed Confirmable does not keep its slot
+			assertEquals(0, layer.getPeerStatistics(PEER).getInFlight());
+		}
+
+		lower.failing = false;
+		Request first = newRequest(PEER);
+		layer.sendMessage(first);
+		layer.sendMessage(newRequest(PEER));
+		assertEquals(1, lower.sent.size());
+
+		// neither does a queued Confirmable failing to start
+		lower.failing = true;
+		layer.receiveMessage(newAck(first));
+
+		PeerStatistics statistics = layer.getPeerStatistics(PEER);
+		assertEquals(0, statistics.getInFlight());
+		assertEquals(0, statistics.getQueued());
+	}
+
+	@Test
+	public void testDuplicateConfirmable() throws Exception {
+
+		final List<Message> received = new ArrayList<Message>();
+		layer.registerReceiver(new MessageReceiver() {
+			@Override
+			public void receiveMessage(Message msg) {
+				received.add(msg);
+			}
+		});
+
+		// retransmission arriving before the request was answered
+		layer.receiveMessage(newIncoming(4711));
+		layer.receiveMessage(newIncoming(4711));
+		assertEquals(1, received.size());
+		assertTrue(lower.sent.isEmpty());
+
+		// retransmission arriving afterwards is answered from the cache
+		Response ack = newAck(received.get(0));
+		layer.sendMessage(ack);
+		layer.receiveMessage(newIncoming(4711));
+		assertEquals(1, received.size());
+		assertEquals(2, lower.sent.size());
+		assertSame(ack, lower.sent.get(1));
+	}
+
+	@Test
+	public void testAdaptiveTimeout() throws Exception {
+
+
+		layer.setNstart(4);
+
+		for (int i = 0; i < 20; ++i) {
+			Request request = newRequest(PEER);
+			layer.sendMessage(request);
+			layer.receiveMessage(newAck(request));
+		}
+
+		// RTO converges towards the measured round-trip times
+		PeerStatistics statistics = layer.getPeerStatistics(PEER);
+		assertTrue(statistics.getSRTT() >= 0);
+		assertTrue(statistics.getRTO() < 1000);
+		assertEquals(20, statistics.getNumTransmissions());
+		assertEquals(0, statistics.getNumRetransmissions());
+	}
+
+	@Test
+	public void testReplyFromOtherPeer() throws Exception {
+
+		Request request = newRequest(PEER);
+		layer.sendMessage(request);
+
+		// same message ID from another remote endpoint is not matched
+		Response ack = newAck(request);
+		ack.setPeerAddress(OTHER_PEER);
+		layer.receiveMessage(ack);
+		assertEquals(1, layer.getPeerStatistics(PEER).getInFlight());
+
+		layer.receiveMessage(newAck(request));
+		assertEquals(0, layer.getPeerStatistics(PEER).getInFlight());
+	}
+
+	@Test
+	public void testMessageIdsExhausted() throws Exception {
+
+		// all IDs are available to each remote endpoint
+		for (int i = 0; i <= Message.MAX_ID; ++i) {
+			layer.sendMessage(newNonRequest(PEER));
+		}
+		layer.sendMessage(newNonRequest(OTHER_PEER));
+
+		// IDs are not used again within the exchange lifetime
+		try {
+			layer.sendMessage(newNonRequest(PEER));
+			fail("IOException expected");
+		} catch (IOException e) {
+			assertEquals(1, layer.getNumIDsExhausted());
+		}
+	}
+
+	@Test
+	public void testMessageCacheBudget() {
+
+		assertEquals(MessageLayer.DEFAULT_MESSAGE_CACHE_BUDGET, layer.getMessageCacheBudget());
+
+		// the caches are resized in place
+		layer.setMessageCacheBudget(64 * 1024);
+		assertEquals(64 * 1024, layer.getMessageCacheBudget());
+		assertEquals(64 * 1024, layer.getDuplicateCache().getMemoryBudget());
+		assertEquals(64 * 1024, layer.getReplyCache().getMemoryBudget());
+	}
+
+	private static Request newNonRequest(InetSocketAddress peer) {
+
+		Request request = new GETRequest();
+		request.setType(messageType.Non_Confirmable);
+		request.setPeerAddress(peer);
+		return request;
+	}
+
+	private static Request newIncoming(int id) {
+		Request request = new GETRequest();
+		request.setID(id);
+		request.setPeerAddress(PEER);
+		return request;
+	}
+
+	private static Request newRequest(InetSocketAddress peer) {
+		Request request = new GETRequest();
+		request.setPeerAddress(peer);
+		return request;
+	}
+
+	private static Response newAck(Message msg) {
+		Response ack = new Response(CodeRegistry.EMPTY_MESSAGE);
+		ack.setType(messageType.Acknowledgement);
+		ack.setID(msg.getID());
+		ack.setPeerAddress(msg.getPeerAddress());
+		return ack;
+	}
+
+	private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 5684);
+	private static final InetSocketAddress OTHER_PEER = new InetSocketAddress("127.0.0.1", 5685);
+
+	private RecordingLayer lower;
+	private MessageLayer layer;
+}
@@ -1,11 +1,18 @@
 package test;
 
 import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.List;
+
 import org.junit.Test;
 import coap.CodeRegistry;
 import coap.Message;
 import coap.Message.messageType;
 import coap.Option;
+import coap.OptionNumberRegistry;
 
 
 public class MessageTest {
@@ -89,6 +96,70 @@ public class MessageTest {
 		//assertArrayEquals(msg.getPayload(), convMsg.getPayload());
 	}
 	
+	@Test
+	public void testPeerAddress() throws Exception {
+		
+		Message msg = new Message(messageType.Confirmable, CodeRegistry.METHOD_GET);
+		msg.setID(12);
+		msg.setPeerAddress(new InetSocketAddress(InetAddress.getByName("192.168.1.10"), 61616));
+		
+		// URI is built on demand without Uri options
+		assertEquals(new URI("coap://192.168.1.10:61616"), msg.getURI());
+		assertEquals(0, msg.getOptionCount());
+		
+		// replies are addressed to the peer
+		Message ack = Message.newAcknowledgement(msg);
+		assertEquals(msg.getPeerAddress(), ack.getPeerAddress());
+		assertEquals("192.168.1.10:61616", ack.endpointID());
+	}
+	
+	@Test
+	public void testOptionOrder() {
+		
+		Message msg = new Message();
+		msg.addOption(new Option("b", OptionNumberRegistry.URI_PATH));
+		msg.addOption(new Option(0, OptionNumberRegistry.CONTENT_TYPE));
+		msg.addOption(new Option("c", OptionNumberRegistry.URI_PATH));
+		msg.addOption(new Option(1, OptionNumberRegistry.TOKEN));
+		msg.setOption(new Option(60, OptionNumberRegistry.MAX_AGE));
+		
+		// options are sorted by number, keeping the order of equal numbers
+		List<Option> list = msg.getOptionList();
+		assertEquals(5, msg.getOptionCount());
+		for (int i = 1; i < list.size(); i++) {
+			assertTrue(list.get(i-1).getOptionNumber() <= list.get(i).getOptionNumber());
+		}
+		assertEquals("b", msg.getFirstOption(OptionNumberRegistry.URI_PATH).getStringValue());
+		assertEquals(2, msg.getOptions(OptionNumberRegistry.URI_PATH).size());
+		
+		// setting an option replaces all options with its number
+		msg.setOption(new Option("a", OptionNumberRegistry.URI_PATH));
+		assertEquals(1, msg.getOptions(OptionNumberRegistry.URI_PATH).size());
+		assertEquals(4, msg.getOptionCount());
+		
+		msg.setOptions(OptionNumberRegistry.URI_PATH, null);
+		assertNull(msg.getFirstOption(OptionNumberRegistry.URI_PATH));
+		assertEquals(60, msg.getFirstOption(OptionNumberRegistry.MAX_AGE).getIntValue());
+		assertEquals(3, msg.getOptionCount());
+	}
+	
+	@Test
+	public void testReplyToReceivedMessage() {
+		
+		// messages received from the network have a peer address only
+		InetSocketAddress sender = new InetSocketAddress("192.168.1.10", 61616);
+		Message msg = new Message(messageType.Confirmable, CodeRegistry.RESP_CONTENT);
+		msg.setID(77);
+		msg.setPeerAddress(sender);
+		
+		Message reply = msg.newReply(true);
+		assertEquals(messageType.Acknowledgement, reply.getType());
+		assertEquals(sender, reply.getPeerAddress());
+		assertEquals("192.168.1.10:61616|ACK#77", reply.key().toString());
+		
+		assertEquals(sender, msg.newReply(false).getPeerAddress());
+	}
+	
 	public static String getHexString(byte[] b) throws Exception {
 		  String result = "";
 		  for (int i=0; i < b.length; i++) {
@@ -0,0 +1,148 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import coap.Communicator;
+import coap.GETRequest;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Request;
+import coap.Response;
+import endpoint.LocalEndpoint;
+import layers.LoopbackLayer;
+import layers.LoopbackNetwork;
+import metrics.Counter;
+import metrics.Histogram;
+import metrics.MetricRegistry;
+
+public class MetricsTest {
+
+	@Test
+	public void testCounter() throws Exception {
+
+		final Counter counter = new Counter();
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; ++j) {
+						counter.increment();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(40000, counter.get());
+	}
+
+	@Test
+	public void testUngatedCounter() {
+
+		// counters backing the layers' accessors count even if
+		// metrics are disabled by -Djcoap.metrics=false
+		Counter counter = new Counter(false);
+		counter.add(5);
+		counter.increment();
+
+		assertEquals(6, counter.get());
+	}
+
+	@Test
+	public void testHistogram() {
+
+
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 1000; ++i) {
+			histogram.record(i);
+		}
+
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+
+		// percentiles are accurate within the bucket width
+		assertEquals(500, histogram.getPercentile(0.5), 500 / 16);
+		assertEquals(990, histogram.getPercentile(0.99), 990 / 16);
+		assertEquals(1000, histogram.getPercentile(1.0));
+		assertEquals(1, histogram.getPercentile(0.0));
+	}
+
+	@Test
+	public void testRegistry() {
+
+		MetricRegistry registry = new MetricRegistry();
+		registry.counter("b.counter").add(3);
+		registry.histogram("a.latency").record(7);
+
+		assertSame(registry.counter("b.counter"), registry.get("b.counter"));
+
+		SortedMap<String, Long> values = registry.snapshot();
+		assertEquals(Long.valueOf(3), values.get("b.counter"));
+		assertEquals(Long.valueOf(1), values.get("a.latency.count"));
+		assertEquals(Long.valueOf(7), values.get("a.latency.max"));
+		assertEquals("a.latency.count", values.firstKey());
+	}
+
+	@Test
+	public void testCommunicatorMetrics() throws Exception {
+
+		LoopbackNetwork network = new LoopbackNetwork();
+		LoopbackLayer serverLayer = new LoopbackLayer(network);
+		LoopbackLayer clientLayer = new LoopbackLayer(network);
+
+		Communicator server = new Communicator(serverLayer);
+		new LocalEndpoint(server);
+		Communicator client = new Communicator(clientLayer);
+
+		// request metrics of the server
+		Request request = new GETRequest();
+		request.setPeerAddress(serverLayer.getAddress());
+		request.setOption(new Option(".well-known", OptionNumberRegistry.URI_PATH));
+		request.addOption(new Option("metrics", OptionNumberRegistry.URI_PATH));
+		request.setCommunicator(client);
+
+		Response response = request.executeAsync().get(1, TimeUnit.SECONDS);
+		assertTrue(response.getPayloadString().contains("message.messagesReceived 1\n"));
+
+		SortedMap<String, Long> values = client.getMetrics().snapshot();
+		assertEquals(Long.valueOf(1), values.get("communicator.messagesSent"));
+		assertEquals(values.get("transport.messagesReceived"), values.get("transaction.matched"));
+		assertEquals(Long.valueOf(1), values.get("communicator.rttMillis.count"));
+		assertTrue(values.get("transport.messagesSent") > 0);
+		assertTrue(values.get("transport.bytesReceived") > 0);
+
+		serverLayer.close();
+		clientLayer.close();
+	}
+
+	@Test
+	public void testMBean() throws Exception {
+
+		MetricRegistry registry = new MetricRegistry();
+		registry.counter("requests").add(42);
+
+		String name = "jcoap:type=Test,name=MetricsTest";
+		assertTrue(registry.registerMBean(name));
+
+		Object value = ManagementFactory.getPlatformMBeanServer()
+			.getAttribute(new ObjectName(name), "requests");
+		assertEquals(Long.valueOf(42), value);
+
+		registry.unregisterMBean(name);
+		assertFalse(ManagementFactory.getPlatformMBeanServer()
+			.isRegistered(new ObjectName(name)));
+	}
+}
@@ -0,0 +1,249 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.GETRequest;
+import coap.LocalResource;
+import coap.MessageCodec;
+import coap.NotificationEngine;
+import coap.NotificationPolicy;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Response;
+
+public class NotificationEngineTest {
+
+	// resource counting how often its representation is rendered
+	static class CountingResource extends LocalResource {
+
+		CountingResource() {
+			super("counter");
+		}
+
+		@Override
+		public void performGET(GETRequest request) {
+			++numRendered;
+			Response response = new Response(CodeRegistry.RESP_CONTENT);
+			response.setPayload("state " + numRendered);
+			request.respond(response);
+		}
+
+		void change() {
+			changed();
+		}
+
+		int numRendered;
+	}
+
+	@Test(timeout = 10000)
+	public void testFanOut() throws Exception {
+
+		CountingResource resource = new CountingResource();
+		resource.setNotificationEngine(new NotificationEngine(4, 2));
+
+		List<GETRequest> observers = new ArrayList<GETRequest>();
+		for (int i = 0; i < 100; ++i) {
+			GETRequest observer = new GETRequest();
+			observer.setPeerAddress(new InetSocketAddress("127.0.0.1", 10000 + i));
+			observer.setOption(new Option(i * 257, OptionNumberRegistry.TOKEN));
+			observer.setOption(new Option(60, OptionNumberRegistry.OBSERVE));
+			observer.enableResponseQueue(true);
+			resource.addObserveRequest(observer);
+			observers.add(observer);
+		}
+		assertEquals(100, resource.getObserverCount());
+
+		resource.change();
+
+		// representation is rendered once for all observers
+		assertEquals(1, resource.numRendered);
+
+		for (GETRequest observer : observers) {
+
+			Response notification = observer.receiveResponse();
+			assertEquals("state 1", notification.getPayloadString());
+			assertEquals(observer.getFirstOption(OptionNumberRegistry.TOKEN),
+				notification.getFirstOption(OptionNumberRegistry.TOKEN));
+			assertEquals(1, notification.getFirstOption(OptionNumberRegistry.OBSERVE).getIntValue());
+
+			// patched encoding equals the regular one
+			notification.setID(observer.hashCode() & 0xFFFF);
+			byte[] patched = MessageCodec.encode(notification);
+			notification.setCode(notification.getCode());
+			assertArrayEquals(MessageCodec.encode(notification), patched);
+		}
+
+		resource.removeObserveRequest(observers.get(0).endpointID());
+		assertEquals(99, resource.getObserverCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testCoalescing() throws Exception {
+
+		NotificationEngine engine = new NotificationEngine(1, 4);
+		CountingResource resource = new CountingResource();
+		resource.setNotificationEngine(engine);
+		resource.setNotificationPolicy(new NotificationPolicy(200, 0, false));
+
+		GETRequest observer = newObserver(10000);
+		resource.addObserveRequest(observer);
+
+		// first change is sent immediately, the others within
+		// the minimum interval are merged into one
+		resource.change();
+		resource.change();
+		resource.change();
+		resource.change();
+
+		assertEquals("state 1", observer.receiveResponse().getPayloadString());
+
+		Response notification = observer.receiveResponse();
+		assertEquals("state 2", notification.getPayloadString());
+		assertEquals(2, notification.getFirstOption(OptionNumberRegistry.OBSERVE).getIntValue());
+
+		assertEquals(2, resource.numRendered);
+		assertEquals(2, engine.getNumCoalesced());
+	}
+
+	@Test(timeout = 10000)
+	public void testConfirmable() throws Exception {
+
+		NotificationEngine engine = new NotificationEngine(1, 4);
+		CountingResource resource = new CountingResource();
+		resource.setNotificationEngine(engine);
+		resource.setNotificationPolicy(new NotificationPolicy(0, 0, true));
+
+		GETRequest observer = newObserver(10000);
+		resource.addObserveRequest(observer);
+
+		resource.change();
+		Response first = observer.receiveResponse();
+		assertTrue(first.isConfirmable());
+		assertEquals("state 1", first.getPayloadString());
+
+		// further changes are held back until the first is acknowledged,
+		// keeping only the latest state
+		resource.change();
+		resource.change();
+		while (engine.getNumSkipped() < 1 || engine.getQueueDepth() > 0) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+		assertEquals(1, engine.getNumNotifications());
+
+		first.acknowledged();
+
+		Response second = observer.receiveResponse();
+		assertEquals("state 3", second.getPayloadString());
+		assertEquals(2, engine.getNumNotifications());
+	}
+
+	@Test(timeout = 10000)
+	public void testEviction() throws Exception {
+
+		NotificationEngine engine = new NotificationEngine(1, 4);
+		CountingResource resource = new CountingResource();
+		resource.setNotificationEngine(engine);
+		resource.setNotificationPolicy(new NotificationPolicy(0, 0, true));
+
+		GETRequest rejecting = newObserver(10000);
+		GETRequest vanished = newObserver(10001);
+		resource.addObserveRequest(rejecting);
+		resource.addObserveRequest(vanished);
+
+		resource.change();
+
+		rejecting.receiveResponse().rejected();
+		assertFalse(resource.isObserved(rejecting.endpointID()));
+
+		vanished.receiveResponse().timedOut();
+		assertFalse(resource.isObserved(vanished.endpointID()));
+
+		assertEquals(0, resource.getObserverCount());
+		assertEquals(2, engine.getNumEvicted());
+	}
+
+	@Test(timeout = 10000)
+	public void testKeepalive() throws Exception {
+
+		NotificationEngine engine = new NotificationEngine(1, 4);
+		CountingResource resource = new CountingResource();
+		resource.setNotificationEngine(engine);
+		resource.setNotificationPolicy(new NotificationPolicy(0, 0, false, 100));
+
+		GETRequest observer = newObserver(10000);
+		resource.addObserveRequest(observer);
+
+		// Non-confirmable stream is confirmed once the interval elapsed
+		Thread.sleep(150);
+		resource.change();
+		Response keepalive = observer.receiveResponse();
+		assertTrue(keepalive.isConfirmable());
+		assertEquals(1, engine.getNumKeepalives());
+
+		keepalive.acknowledged();
+		resource.change();
+		assertTrue(observer.receiveResponse().isNonConfirmable());
+	}
+
+	@Test
+	public void testMaxObservers() {
+
+		CountingResource resource = new CountingResource();
+		resource.setMaxObservers(2);
+
+		assertTrue(resource.addObserveRequest(newObserver(10000)));
+		assertTrue(resource.addObserveRequest(newObserver(10001)));
+		assertFalse(resource.addObserveRequest(newObserver(10002)));
+
+		// observers may renew their registration
+		assertTrue(resource.addObserveRequest(newObserver(10001)));
+
+		assertEquals(2, resource.getObserverCount());
+		assertEquals(1, resource.getNumObserversRefused());
+	}
+
+	@Test
+	public void testConcurrentObserverLimit() throws Exception {
+
+		final CountingResource resource = new CountingResource();
+		resource.setMaxObservers(10);
+
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; ++i) {
+			final int base = 10000 + i * 1000;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 1000; ++j) {
+						resource.addObserveRequest(newObserver(base + j));
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(10, resource.getObserverCount());
+		assertEquals(4000 - 10, resource.getNumObserversRefused());
+	}
+
+	private static GETRequest newObserver(int port) {
+
+		GETRequest observer = new GETRequest();
+		observer.setPeerAddress(new InetSocketAddress("127.0.0.1", port));
+		observer.setOption(new Option(port, OptionNumberRegistry.TOKEN));
+		observer.setOption(new Option(60, OptionNumberRegistry.OBSERVE));
+		observer.enableResponseQueue(true);
+		return observer;
+	}
+}
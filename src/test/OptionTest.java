@@ -3,6 +3,7 @@ package test;
 import static org.junit.Assert.*;
 import org.junit.Test;
 import coap.Option;
+import coap.OptionNumberRegistry;
 
 public class OptionTest {
 
@@ -70,6 +71,46 @@ public class OptionTest {
 		assertFalse(optTwoBytes.equals(optOneByte));
 	}
 	
+	@Test
+	public void testSliceOption () {
+		byte[] datagram = {0x00, 0x01, 0x02, 't', 'e', 's', 't', 0x03};
+		
+		Option intOpt = new Option(datagram, 1, 2, OptionNumberRegistry.MAX_AGE);
+		Option strOpt = new Option(datagram, 3, 4, OptionNumberRegistry.URI_PATH);
+		
+		assertEquals(0x0102, intOpt.getIntValue());
+		assertEquals("test", strOpt.getStringValue());
+		assertArrayEquals("test".getBytes(), strOpt.getRawValue());
+		
+		// slices equal options built from values
+		assertEquals(new Option(0x0102, OptionNumberRegistry.MAX_AGE), intOpt);
+		assertEquals(new Option("test", OptionNumberRegistry.URI_PATH), strOpt);
+		assertEquals(new Option("test", OptionNumberRegistry.URI_PATH).hashCode(), strOpt.hashCode());
+	}
+	
+	@Test
+	public void testSliceRawValue () {
+		byte[] datagram = {0x00, 0x01, 0x02, 't', 'e', 's', 't', 0x03};
+		
+		Option strOpt = new Option(datagram, 3, 4, OptionNumberRegistry.URI_PATH);
+		
+		// the raw value of a slice is a copy, which leaves the slice intact
+		byte[] raw = strOpt.getRawValue();
+		assertNotSame(raw, strOpt.getRawValue());
+		raw[0] = 'b';
+		assertEquals("test", strOpt.getStringValue());
+		assertEquals(4, strOpt.getLength());
+	}
+
+	
+	@Test
+	public void testIntBytes () {
+		assertArrayEquals(new byte[] {0}, new Option(0, 1).getRawValue());
+		assertArrayEquals(new byte[] {0x01, 0x00, 0x00}, new Option(0x10000, 1).getRawValue());
+		assertArrayEquals(new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF}, new Option(-1, 1).getRawValue());
+		assertEquals(-1, new Option(new byte[] {(byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF}, 1).getIntValue());
+	}
+	
 	public static String getHexString(byte[] b) throws Exception {
 		  String result = "";
 		  for (int i=0; i < b.length; i++) {
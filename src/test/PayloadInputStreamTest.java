@@ -0,0 +1,93 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import coap.Message;
+import coap.PayloadInputStream;
+
+public class PayloadInputStreamTest {
+
+	@Test
+	public void testChunks() throws IOException {
+
+		Message msg = new Message();
+		msg.setPayload(new byte[] {0, 1, 2, 3}, 1, 2);
+		msg.appendPayload(new byte[] {3, 4, 5});
+		msg.appendPayload(new byte[] {9, 6, 7, 9}, 1, 2);
+		msg.setComplete(true);
+
+		assertEquals(7, msg.payloadSize());
+		assertEquals(5, msg.readPayload(4));
+
+		// bulk reads span chunks
+		PayloadInputStream in = new PayloadInputStream(msg);
+		byte[] buffer = new byte[5];
+		assertEquals(5, in.read(buffer));
+		assertArrayEquals(new byte[] {1, 2, 3, 4, 5}, buffer);
+		assertEquals(2, in.available());
+		assertEquals(2, in.read(buffer));
+		assertEquals(-1, in.read(buffer));
+		assertEquals(0, in.available());
+
+		// chunks are merged on demand
+		assertArrayEquals(new byte[] {1, 2, 3, 4, 5, 6, 7}, msg.getPayload());
+	}
+
+	@Test
+	public void testBuffers() {
+
+		Message msg = new Message();
+		msg.setPayload(new byte[] {1, 2});
+		msg.appendPayload(new byte[] {3});
+		msg.setComplete(true);
+
+		PayloadInputStream in = new PayloadInputStream(msg);
+
+		ByteBuffer buffer = in.readBuffer();
+		assertEquals(2, buffer.remaining());
+		assertTrue(buffer.isReadOnly());
+		assertEquals(1, buffer.get());
+
+		buffer = in.readBuffer();
+		assertEquals(1, buffer.remaining());
+		assertEquals(3, buffer.get());
+
+		assertNull(in.readBuffer());
+	}
+
+	@Test
+	public void testBlockingRead() throws Exception {
+
+		final Message msg = new Message();
+		msg.setPayload(new byte[] {1, 2});
+
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					return;
+				}
+				msg.appendPayload(new byte[] {3, 4});
+				msg.setComplete(true);
+			}
+		};
+		writer.start();
+
+		// reader proceeds with the data available and waits for the rest
+		PayloadInputStream in = new PayloadInputStream(msg);
+		byte[] buffer = new byte[4];
+		assertEquals(2, in.read(buffer, 0, 4));
+		assertEquals(2, in.read(buffer, 2, 2));
+		assertEquals(-1, in.read(buffer, 0, 4));
+		assertArrayEquals(new byte[] {1, 2, 3, 4}, buffer);
+
+		writer.join();
+	}
+}
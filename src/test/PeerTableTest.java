@@ -0,0 +1,124 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+
+import layers.PeerState;
+import layers.PeerTable;
+
+public class PeerTableTest {
+
+	// attachment that is in use until released
+	static class Busy implements PeerState.Attachment {
+
+		@Override
+		public boolean isActive() {
+			return active;
+		}
+
+		@Override
+		public int getMemoryUsage() {
+			return 100;
+		}
+
+		boolean active = true;
+	}
+
+	private static final PeerState.Key<String> NAME = PeerState.newKey("name");
+	private static final PeerState.Key<Busy> BUSY = PeerState.newKey("busy");
+
+	@Test
+	public void testAttach() {
+
+		PeerTable table = new PeerTable();
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", 5683);
+
+		PeerState peer = table.getOrCreate(address);
+		assertSame(peer, table.getOrCreate(new InetSocketAddress("127.0.0.1", 5683)));
+		assertNull(table.get(new InetSocketAddress("127.0.0.1", 5684)));
+
+		// first attachment wins
+		assertNull(peer.get(NAME));
+		assertEquals("first", peer.attach(NAME, "first"));
+		assertEquals("first", peer.attach(NAME, "second"));
+		assertEquals("first", table.get(address).get(NAME));
+
+		peer.attach(BUSY, new Busy());
+		assertEquals(PeerState.PEER_OVERHEAD + 100, table.getMemoryUsage());
+	}
+
+	@Test
+	public void testEviction() {
+
+		PeerTable table = new PeerTable(1000, 0);
+		PeerState idle = table.getOrCreate(new InetSocketAddress("127.0.0.1", 5683));
+		PeerState busy = table.getOrCreate(new InetSocketAddress("127.0.0.1", 5684));
+		Busy attachment = busy.attach(BUSY, new Busy());
+
+		long later = System.currentTimeMillis() + 2000;
+
+		// peers in use are kept
+		assertEquals(1, table.evictIdle(later));
+		assertNull(table.get(idle.getAddress()));
+		assertSame(busy, table.get(busy.getAddress()));
+
+		attachment.active = false;
+		assertEquals(1, table.evictIdle(later));
+		assertEquals(0, table.size());
+		assertEquals(2, table.getNumEvicted());
+	}
+
+	@Test
+	public void testEvictedPeerReplaced() {
+
+		PeerTable table = new PeerTable(1000, 0);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", 5683);
+		PeerState peer = table.getOrCreate(address);
+
+		assertEquals(1, table.evictIdle(System.currentTimeMillis() + 2000));
+
+		// a peer evicted cannot be touched, so that no state is attached
+		// to it after the lookup
+		assertTrue(peer.isEvicted());
+		assertFalse(peer.touch());
+
+		PeerState replaced = table.getOrCreate(address);
+		assertNotSame(peer, replaced);
+		assertTrue(replaced.touch());
+		assertSame(replaced, table.get(address));
+	}
+
+	@Test
+	public void testLookupTouches() throws InterruptedException {
+
+		PeerTable table = new PeerTable(1000, 0);
+		PeerState peer = table.getOrCreate(new InetSocketAddress("127.0.0.1", 5683));
+		long created = peer.getLastActivity();
+
+		Thread.sleep(20);
+		assertSame(peer, table.getOrCreate(peer.getAddress()));
+		assertTrue(peer.getLastActivity() > created);
+
+		// idle since creation, but not since the lookup
+		assertEquals(0, table.evictIdle(created + 1010));
+		assertFalse(peer.isEvicted());
+	}
+
+
+	@Test
+	public void testMaxPeers() {
+
+
+		PeerTable table = new PeerTable(PeerTable.DEFAULT_IDLE_TIMEOUT, 2);
+		assertNotNull(table.getOrCreate(new InetSocketAddress("127.0.0.1", 5683)));
+		assertNotNull(table.getOrCreate(new InetSocketAddress("127.0.0.1", 5684)));
+		assertNull(table.getOrCreate(new InetSocketAddress("127.0.0.1", 5685)));
+
+		// known peers are still found
+		assertNotNull(table.getOrCreate(new InetSocketAddress("127.0.0.1", 5684)));
+		assertEquals(1, table.getNumRefused());
+	}
+}
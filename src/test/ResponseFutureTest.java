@@ -0,0 +1,191 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.Communicator;
+import coap.GETRequest;
+import coap.Message;
+import coap.OptionNumberRegistry;
+import coap.Request;
+import coap.Response;
+import coap.ResponseCallback;
+import coap.ResponseFuture;
+import coap.Message.messageType;
+import layers.TransportLayer;
+
+public class ResponseFutureTest {
+
+	// transport recording sent messages instead of sending them
+	static class RecordingTransport extends TransportLayer {
+
+		RecordingTransport() {
+			super(0, 0, true);
+		}
+
+		@Override
+		protected void doSendMessage(Message msg) {
+			sent.add(msg);
+		}
+
+		@Override
+		public int getPort() {
+			return 5683;
+		}
+
+		void receive(Message msg) {
+			messageReceived(msg, PEER, System.currentTimeMillis());
+		}
+
+		List<Message> sent = new ArrayList<Message>();
+	}
+
+	// callback recording the outcome
+	static class Outcome implements ResponseCallback {
+
+		@Override
+		public void completed(Response response) {
+			this.response = response;
+		}
+
+		@Override
+		public void failed(Throwable cause) {
+			this.cause = cause;
+		}
+
+		Response response;
+		Throwable cause;
+	}
+
+	@Before
+	public void setUp() {
+		transport = new RecordingTransport();
+		communicator = new Communicator(transport);
+	}
+
+	@Test
+	public void testResponse() throws Exception {
+
+		Request request = newRequest();
+		Outcome outcome = new Outcome();
+		ResponseFuture future = request.executeAsync().addCallback(outcome);
+
+		assertFalse(future.isDone());
+		assertEquals(1, transport.sent.size());
+
+		// piggy-backed response
+		Message sent = transport.sent.get(0);
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setType(messageType.Acknowledgement);
+		response.setID(sent.getID());
+		response.setOption(sent.getFirstOption(OptionNumberRegistry.TOKEN));
+		response.setPayload("done");
+		transport.receive(response);
+
+		assertTrue(future.isDone());
+		assertEquals("done", future.get(1, TimeUnit.SECONDS).getPayloadString());
+		assertSame(future.get(), outcome.response);
+
+		// callbacks added later are invoked immediately
+		Outcome late = new Outcome();
+		future.addCallback(late);
+		assertSame(outcome.response, late.response);
+	}
+
+	@Test
+	public void testSeparateResponse() throws Exception {
+
+		Request request = newRequest();
+		ResponseFuture future = request.executeAsync();
+		Message sent = transport.sent.get(0);
+
+		// empty Acknowledgement announcing a separate response
+		Response ack = new Response(CodeRegistry.EMPTY_MESSAGE);
+		ack.setType(messageType.Acknowledgement);
+		ack.setID(sent.getID());
+		transport.receive(ack);
+
+		assertFalse(future.isDone());
+
+		// separate response in a Confirmable of its own
+		Response response = new Response(CodeRegistry.RESP_CONTENT);
+		response.setType(messageType.Confirmable);
+		response.setID(sent.getID() + 1);
+		response.setOption(sent.getFirstOption(OptionNumberRegistry.TOKEN));
+		response.setPayload("separate");
+		transport.receive(response);
+
+		assertTrue(future.isDone());
+		assertEquals("separate", future.get(1, TimeUnit.SECONDS).getPayloadString());
+
+		// the separate response was acknowledged to its sender
+		Message reply = transport.sent.get(transport.sent.size() - 1);
+		assertTrue(reply.isAcknowledgement());
+		assertEquals(response.getID(), reply.getID());
+		assertEquals(PEER, reply.getPeerAddress());
+	}
+
+
+	@Test
+	public void testCancel() throws Exception {
+
+		Request request = newRequest();
+		Outcome outcome = new Outcome();
+		ResponseFuture future = request.executeAsync().addCallback(outcome);
+
+		assertTrue(future.cancel(false));
+		assertTrue(future.isCancelled());
+		assertTrue(outcome.cause instanceof CancellationException);
+
+		// retransmission and exchange were released already
+		assertFalse(communicator.cancelTransmission(request));
+		assertFalse(future.cancel(false));
+
+		try {
+			future.get();
+			fail("CancellationException expected");
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testDeadline() throws Exception {
+
+		Request request = newRequest();
+		ResponseFuture future = request.executeAsync(50);
+
+		try {
+			future.get();
+			fail("ExecutionException expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+
+		// no retransmissions follow
+		assertFalse(communicator.cancelTransmission(request));
+	}
+
+	private Request newRequest() {
+		Request request = new GETRequest();
+		request.setPeerAddress(PEER);
+		request.setCommunicator(communicator);
+		return request;
+	}
+
+	private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 5684);
+
+	private RecordingTransport transport;
+	private Communicator communicator;
+}
@@ -0,0 +1,83 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import layers.TimingWheel;
+
+public class TimingWheelTest {
+	
+	class CountingTimeout extends TimingWheel.Timeout {
+
+		@Override
+		protected void expired() {
+			expiredAt = System.currentTimeMillis();
+			latch.countDown();
+		}
+		
+		CountDownLatch latch = new CountDownLatch(1);
+		long expiredAt;
+	}
+
+	@Test
+	public void testExpiration() throws InterruptedException {
+		
+		CountingTimeout timeout = new CountingTimeout();
+		
+		long start = System.currentTimeMillis();
+		wheel.schedule(timeout, 100);
+		
+		assertTrue(timeout.isScheduled());
+		assertTrue(timeout.latch.await(2, TimeUnit.SECONDS));
+		assertFalse(timeout.isScheduled());
+		
+		// the timeout must not expire before its delay elapsed
+		assertTrue(timeout.expiredAt - start >= 100);
+	}
+	
+	@Test
+	public void testMultipleRounds() throws InterruptedException {
+		
+		// delay longer than one revolution of the wheel (16 * 10 ms)
+		CountingTimeout timeout = new CountingTimeout();
+		
+		long start = System.currentTimeMillis();
+		wheel.schedule(timeout, 400);
+		
+		assertTrue(timeout.latch.await(2, TimeUnit.SECONDS));
+		assertTrue(timeout.expiredAt - start >= 400);
+	}
+	
+	@Test
+	public void testCancel() throws InterruptedException {
+		
+		CountingTimeout timeout = new CountingTimeout();
+		wheel.schedule(timeout, 50);
+		
+		assertTrue(wheel.cancel(timeout));
+		assertFalse(wheel.cancel(timeout));
+		assertEquals(0, wheel.size());
+		
+		assertFalse(timeout.latch.await(200, TimeUnit.MILLISECONDS));
+	}
+	
+	@Test
+	public void testReschedule() throws InterruptedException {
+		
+		CountingTimeout timeout = new CountingTimeout();
+		wheel.schedule(timeout, 50);
+		
+		long start = System.currentTimeMillis();
+		wheel.schedule(timeout, 300);
+		assertEquals(1, wheel.size());
+		
+		assertTrue(timeout.latch.await(2, TimeUnit.SECONDS));
+		assertTrue(timeout.expiredAt - start >= 300);
+	}
+	
+	TimingWheel wheel = new TimingWheel("TimingWheelTest", 10, 16);
+}
@@ -0,0 +1,175 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.GETRequest;
+import coap.Message;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.Request;
+import coap.Response;
+import coap.Message.messageType;
+import layers.Layer;
+import layers.PeerState;
+
+import layers.TransactionLayer;
+
+public class TransactionLayerTest {
+
+	// lower layer that records the last message sent
+	static class LoopbackLayer extends Layer {
+
+		@Override
+		protected void doSendMessage(Message msg) {
+			sent = msg;
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			deliverMessage(msg);
+		}
+
+		void timeout(Message msg) {
+			deliverTimeout(msg);
+		}
+
+		Message sent;
+	}
+
+	@Before
+	public void setUp() {
+		lower = new LoopbackLayer();
+		layer = new TransactionLayer(4, 60000);
+		layer.setLowerLayer(lower);
+	}
+
+	@Test
+	public void testFinalResponse() throws IOException {
+
+		Request request = newRequest();
+		layer.sendMessage(request);
+		assertEquals(1, layer.getNumExchanges());
+
+		lower.receiveMessage(newResponse(request, CodeRegistry.RESP_CONTENT, false));
+
+		assertEquals(0, layer.getNumExchanges());
+	}
+
+	@Test
+	public void testNotifications() throws IOException {
+
+		Request request = newRequest();
+		layer.sendMessage(request);
+
+		// successful notifications keep the exchange alive
+		Response notification = newResponse(request, CodeRegistry.RESP_CONTENT, true);
+		lower.receiveMessage(notification);
+		assertSame(request, notification.getRequest());
+		assertEquals(1, layer.getNumExchanges());
+
+		// an error terminates the observation
+		lower.receiveMessage(newResponse(request, CodeRegistry.RESP_NOT_FOUND, true));
+		assertEquals(0, layer.getNumExchanges());
+	}
+
+	@Test
+	public void testResponseFromOtherPeer() throws IOException {
+
+		Request request = newRequest();
+		layer.sendMessage(request);
+
+		// the same token from another remote endpoint is not matched
+		Response response = newResponse(request, CodeRegistry.RESP_CONTENT, false);
+		response.setPeerAddress(OTHER_PEER);
+		lower.receiveMessage(response);
+		assertNull(response.getRequest());
+		assertEquals(1, layer.getNumExchanges());
+
+		// outstanding exchanges keep the remote endpoint in the peer table
+		PeerState peer = layer.getPeerTable().get(PEER);
+		assertTrue(peer.isActive());
+
+		lower.receiveMessage(newResponse(request, CodeRegistry.RESP_CONTENT, false));
+		assertEquals(0, layer.getNumExchanges());
+		assertFalse(peer.isActive());
+	}
+
+	@Test
+	public void testTimeout() throws IOException {
+
+		Request request = newRequest();
+		layer.sendMessage(request);
+
+		lower.timeout(request);
+
+		assertEquals(0, layer.getNumExchanges());
+	}
+
+	@Test
+	public void testCapacity() throws IOException {
+
+		for (int i = 0; i < 10; ++i) {
+			layer.sendMessage(newRequest());
+		}
+
+		assertEquals(4, layer.getNumExchanges());
+		assertEquals(6, layer.getNumEvicted());
+	}
+
+	@Test
+	public void testRemoveKeepsExpiryOrder() throws Exception {
+
+		layer = new TransactionLayer(16, 200);
+		layer.setLowerLayer(lower);
+
+		Request request = newRequest();
+		layer.sendMessage(request);
+		Thread.sleep(120);
+		layer.sendMessage(newRequest());
+
+		// a request reusing the token does not remove the exchange,
+		// nor does looking it up delay its expiry
+		Request other = newRequest();
+		other.setOption(request.getFirstOption(OptionNumberRegistry.TOKEN));
+		assertFalse(layer.removeExchange(other));
+
+		Thread.sleep(120);
+		layer.sendMessage(newRequest());
+
+		assertEquals(1, layer.getNumExpired());
+		assertEquals(2, layer.getNumExchanges());
+		assertTrue(layer.removeExchange((Request) lower.sent));
+	}
+
+	private static Request newRequest() {
+		Request request = new GETRequest();
+		request.setPeerAddress(PEER);
+		return request;
+	}
+
+	private static Response newResponse(Request request, int code, boolean observe) {
+
+
+		Response response = new Response(code);
+		response.copyPeer(request);
+		response.setType(messageType.Non_Confirmable);
+		response.setOption(request.getFirstOption(OptionNumberRegistry.TOKEN));
+		if (observe) {
+			response.setOption(new Option(1, OptionNumberRegistry.OBSERVE));
+		}
+		return response;
+	}
+
+	private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 5684);
+	private static final InetSocketAddress OTHER_PEER = new InetSocketAddress("127.0.0.1", 5685);
+
+	private LoopbackLayer lower;
+	private TransactionLayer layer;
+}
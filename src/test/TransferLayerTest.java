@@ -0,0 +1,424 @@
+package test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import coap.CodeRegistry;
+import coap.GETRequest;
+import coap.Message;
+import coap.MessageCodec;
+import coap.MessageReceiver;
+import coap.Option;
+import coap.OptionNumberRegistry;
+import coap.POSTRequest;
+import coap.Request;
+import coap.Response;
+import coap.Message.messageType;
+import layers.Layer;
+import layers.TransactionLayer;
+import layers.TransferLayer;
+
+public class TransferLayerTest {
+
+	// lower layer that passes encoded messages to its peer
+	static class WireLayer extends Layer {
+
+		WireLayer(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		protected void doSendMessage(Message msg) throws IOException {
+
+			if (fail != null && (fail.equals(msg.getFirstOption(OptionNumberRegistry.BLOCK1)) ||
+				fail.equals(msg.getFirstOption(OptionNumberRegistry.BLOCK2)))) {
+				throw new IOException("Network unreachable");
+			}
+
+			if (drop != null && (drop.equals(msg.getFirstOption(OptionNumberRegistry.BLOCK1)) ||
+				drop.equals(msg.getFirstOption(OptionNumberRegistry.BLOCK2)))) {
+				drop = null;
+				dropped = msg;
+				return;
+			}
+
+			Message copy = MessageCodec.decode(MessageCodec.encode(msg), 0,
+				MessageCodec.encodedLength(msg));
+			copy.setPeerAddress(address);
+
+			if (held != null) {
+				held.add(copy);
+			} else {
+				peer.receiveMessage(copy);
+			}
+		}
+
+		// delivers held messages in reverse order until none are left
+		void releaseReversed() {
+			while (!held.isEmpty()) {
+				List<Message> batch = new ArrayList<Message>(held);
+				held.clear();
+				for (int i = batch.size() - 1; i >= 0; --i) {
+					peer.receiveMessage(batch.get(i));
+				}
+			}
+		}
+
+		void timeout(Message msg) {
+			deliverTimeout(msg);
+		}
+
+		@Override
+		protected void doReceiveMessage(Message msg) {
+			++numReceived;
+			deliverMessage(msg);
+		}
+
+		InetSocketAddress address;
+		int numReceived;
+		WireLayer peer;
+
+		// messages held back instead of being delivered, or null
+		List<Message> held;
+
+		// option of a block request to drop once, or null
+		Option drop;
+		Message dropped;
+
+		// option of block requests failing to be sent, or null
+		Option fail;
+	}
+
+	// request recording the notifications it receives
+	static class RecordingRequest extends Request {
+
+		RecordingRequest(int code) {
+			super(code, true);
+			setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+		}
+
+		@Override
+		public void transferAborted(Throwable cause) {
+			this.cause = cause;
+		}
+
+		@Override
+		public void timedOut() {
+			timedOut = true;
+		}
+
+		Throwable cause;
+		boolean timedOut;
+	}
+
+	// resource that echoes the size of request payloads
+	class Server implements MessageReceiver {
+
+		@Override
+		public void receiveMessage(Message msg) {
+
+			Request request = (Request) msg;
+			requests.add(request);
+
+			Response response = new Response(CodeRegistry.RESP_CONTENT);
+			response.setRequest(request);
+			response.setOption(request.getFirstOption(OptionNumberRegistry.TOKEN));
+			response.copyPeer(request);
+			response.setType(messageType.Acknowledgement);
+			response.setID(request.getID());
+			response.setPayload(body != null ? body :
+				Integer.toString(request.payloadSize()).getBytes());
+
+			try {
+				server.sendMessage(response);
+			} catch (IOException e) {
+				fail(e.getMessage());
+			}
+		}
+
+		byte[] body;
+		List<Request> requests = new ArrayList<Request>();
+	}
+
+	// upper layer receiver recording responses
+	static class Client implements MessageReceiver {
+
+		@Override
+		public void receiveMessage(Message msg) {
+			responses.add((Response) msg);
+		}
+
+		List<Response> responses = new ArrayList<Response>();
+	}
+
+	@Before
+	public void setUp() {
+
+		WireLayer clientWire = new WireLayer(new InetSocketAddress("127.0.0.1", 5683));
+		WireLayer serverWire = new WireLayer(new InetSocketAddress("127.0.0.1", 5684));
+		clientWire.peer = serverWire;
+		serverWire.peer = clientWire;
+		this.clientWire = clientWire;
+		this.serverWire = serverWire;
+
+		TransactionLayer transaction = new TransactionLayer();
+		transaction.setLowerLayer(clientWire);
+		client = new TransferLayer(64);
+		client.setLowerLayer(transaction);
+
+		server = new TransferLayer(64);
+		server.setLowerLayer(serverWire);
+
+		clientReceiver = new Client();
+		client.registerReceiver(clientReceiver);
+		serverReceiver = new Server();
+		server.registerReceiver(serverReceiver);
+	}
+
+	@Test
+	public void testBlock1() throws IOException {
+
+		Request request = new POSTRequest();
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+		request.setPayload(newBody(1000));
+
+		client.sendMessage(request);
+
+		// server sees reassembled request only
+		assertEquals(1, serverReceiver.requests.size());
+		assertArrayEquals(newBody(1000), serverReceiver.requests.get(0).getPayload());
+
+		// client sees final response to original request
+		assertEquals(1, clientReceiver.responses.size());
+		Response response = clientReceiver.responses.get(0);
+		assertSame(request, response.getRequest());
+		assertEquals("1000", response.getPayloadString());
+
+		assertEquals(0, client.getNumTransfers());
+		assertEquals(0, server.getNumTransfers());
+	}
+
+	@Test
+	public void testBlock2() throws IOException {
+
+		serverReceiver.body = newBody(1000);
+
+		Request request = new GETRequest();
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+
+		client.sendMessage(request);
+
+		// resource is only asked once
+		assertEquals(1, serverReceiver.requests.size());
+
+		// first block is delivered, further blocks are appended to it
+		assertEquals(1, clientReceiver.responses.size());
+		Response response = clientReceiver.responses.get(0);
+		assertTrue(response.isComplete());
+		assertArrayEquals(newBody(1000), response.getPayload());
+
+		assertEquals(0, client.getNumTransfers());
+		assertEquals(0, server.getNumTransfers());
+	}
+
+	@Test
+	public void testPipelined() throws IOException {
+
+		serverReceiver.body = newBody(1000);
+		serverWire.held = new ArrayList<Message>();
+		client.setPipelineWindow(4);
+
+		Request request = new GETRequest();
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+		request.setSizeHint(1000);
+
+		client.sendMessage(request);
+
+		// blocks arriving out of order are reassembled
+		serverWire.releaseReversed();
+
+		Response response = clientReceiver.responses.get(0);
+		assertTrue(response.isComplete());
+		assertArrayEquals(newBody(1000), response.getPayload());
+
+		// one request per block, none beyond the end
+		assertEquals(16, serverWire.numReceived);
+		assertEquals(0, client.getNumTransfers());
+	}
+
+	@Test
+	public void testPipelinedRetry() throws IOException {
+
+		serverReceiver.body = newBody(1000);
+		clientWire.drop = TransferLayer.encodeBlock(OptionNumberRegistry.BLOCK2, 3, 2, 0);
+		client.setPipelineWindow(4);
+
+		Request request = new GETRequest();
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+		request.setSizeHint(1000);
+
+		client.sendMessage(request);
+
+		// blocks following the missing one are buffered
+		Response response = clientReceiver.responses.get(0);
+		assertFalse(response.isComplete());
+		assertEquals(3 * 64, response.payloadSize());
+
+		// only the missing block is requested again
+		clientWire.timeout(clientWire.dropped);
+
+		assertTrue(response.isComplete());
+		assertArrayEquals(newBody(1000), response.getPayload());
+		assertEquals(16, serverWire.numReceived);
+	}
+
+	@Test
+	public void testBlock1SendFailure() throws IOException {
+
+		clientWire.fail = TransferLayer.encodeBlock(OptionNumberRegistry.BLOCK1, 1, 2, 1);
+
+		RecordingRequest request = new RecordingRequest(CodeRegistry.METHOD_POST);
+		request.setPayload(newBody(1000));
+
+		client.sendMessage(request);
+
+		// the request is notified instead of waiting for a response forever
+		assertTrue(request.cause instanceof IOException);
+		assertTrue(request.timedOut);
+		assertTrue(clientReceiver.responses.isEmpty());
+		assertEquals(0, client.getNumTransfers());
+	}
+
+	@Test
+	public void testBlock2SendFailure() throws IOException {
+
+		serverReceiver.body = newBody(1000);
+		clientWire.fail = TransferLayer.encodeBlock(OptionNumberRegistry.BLOCK2, 2, 2, 0);
+
+		RecordingRequest request = new RecordingRequest(CodeRegistry.METHOD_GET);
+
+		client.sendMessage(request);
+
+		// the truncated response is completed, but the abort is reported
+		Response response = clientReceiver.responses.get(0);
+		assertTrue(response.isComplete());
+		assertEquals(2 * 64, response.payloadSize());
+		assertTrue(request.cause instanceof IOException);
+		assertEquals(0, client.getNumTransfers());
+	}
+
+	@Test
+	public void testBlock1TooLarge() throws IOException {
+
+		server.setMaxBodySize(500);
+
+		Request request = new POSTRequest();
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+		request.setPayload(newBody(1000));
+
+		client.sendMessage(request);
+
+		// the block exceeding the limit is refused
+		assertTrue(serverReceiver.requests.isEmpty());
+		assertEquals(1, clientReceiver.responses.size());
+		assertEquals(CodeRegistry.RESP_REQUEST_ENTITY_TOO_LARGE,
+			clientReceiver.responses.get(0).getCode());
+		assertEquals(8, serverWire.numReceived);
+		assertEquals(0, server.getNumTransfers());
+	}
+
+	@Test
+	public void testBlock1Expired() throws Exception {
+
+
+		// a lost non-confirmable block request never times out
+		clientWire.drop = TransferLayer.encodeBlock(OptionNumberRegistry.BLOCK1, 1, 2, 1);
+		client.setTransferLifetime(10);
+
+		RecordingRequest request = new RecordingRequest(CodeRegistry.METHOD_POST);
+		request.setPayload(newBody(1000));
+		client.sendMessage(request);
+
+		assertNull(request.cause);
+		Thread.sleep(20);
+		startTransfer();
+
+		// the stale transfer is aborted once another one is started
+		assertTrue(request.cause instanceof TimeoutException);
+		assertTrue(request.timedOut);
+		assertEquals(0, client.getNumTransfers());
+	}
+
+	@Test
+	public void testBlock2Expired() throws Exception {
+
+		serverReceiver.body = newBody(1000);
+		clientWire.drop = TransferLayer.encodeBlock(OptionNumberRegistry.BLOCK2, 2, 2, 0);
+		client.setTransferLifetime(10);
+
+		RecordingRequest request = new RecordingRequest(CodeRegistry.METHOD_GET);
+		client.sendMessage(request);
+
+		Response response = clientReceiver.responses.get(0);
+		assertFalse(response.isComplete());
+		Thread.sleep(20);
+		startTransfer();
+
+		// readers of the truncated response are not blocked forever
+		assertTrue(response.isComplete());
+		assertEquals(2 * 64, response.payloadSize());
+		assertTrue(request.cause instanceof TimeoutException);
+		assertEquals(0, client.getNumTransfers());
+	}
+
+	@Test
+	public void testSmallPayload() throws IOException {
+
+
+		serverReceiver.body = newBody(64);
+
+		Request request = new GETRequest();
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+
+		client.sendMessage(request);
+
+		Response response = clientReceiver.responses.get(0);
+		assertFalse(response.hasOption(OptionNumberRegistry.BLOCK2));
+		assertTrue(response.isComplete());
+		assertEquals(64, response.payloadSize());
+	}
+
+	// completes a blockwise request, which purges stale transfers
+	private void startTransfer() throws IOException {
+		Request request = new POSTRequest();
+		request.setPeerAddress(new InetSocketAddress("127.0.0.1", 5684));
+		request.setPayload(newBody(1000));
+		client.sendMessage(request);
+	}
+
+	private static byte[] newBody(int size) {
+		byte[] body = new byte[size];
+		for (int i = 0; i < size; ++i) {
+			body[i] = (byte) i;
+		}
+		return body;
+	}
+
+	private WireLayer clientWire;
+	private WireLayer serverWire;
+
+	private TransferLayer client;
+	private TransferLayer server;
+
+	private Client clientReceiver;
+	private Server serverReceiver;
+}